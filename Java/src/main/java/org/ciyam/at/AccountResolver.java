@@ -0,0 +1,20 @@
+package org.ciyam.at;
+
+/**
+ * Maps ATs, and the targets of their side-effect API calls, to accounts, so {@link BlockExecutor} can detect ATs interacting within a block.
+ * <p>
+ * Keys can be any objects with suitable <tt>equals()</tt> and <tt>hashCode()</tt>, e.g. address strings.
+ * Methods are called from worker threads, so must be thread-safe.
+ */
+public interface AccountResolver {
+
+	/** Returns key of AT's own account, i.e. whose balance and incoming transactions the AT reads */
+	public Object getAccount(MachineState state);
+
+	/** Returns key of account in B, i.e. recipient of <tt>payAmountToB</tt> or <tt>messageAToB</tt> called with state's current B */
+	public Object getAccountInB(MachineState state);
+
+	/** Returns key of AT creator's account, i.e. recipient of refund on <tt>onFinished</tt> */
+	public Object getCreatorAccount(MachineState state);
+
+}
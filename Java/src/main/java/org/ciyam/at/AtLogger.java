@@ -12,6 +12,11 @@ public interface AtLogger {
 
 	void debug(final Supplier<String> messageSupplier);
 
+	/** Returns whether debug messages are actually logged, allowing callers to skip building them. Defaults to true. */
+	default boolean isDebugEnabled() {
+		return true;
+	}
+
 	void echo(final String message);
 
 	void echo(final Supplier<String> messageSupplier);
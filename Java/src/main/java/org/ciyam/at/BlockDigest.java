@@ -0,0 +1,119 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base for Merkle-Damgard digests with 64-byte blocks and 64-bit message length padding, i.e. MD5, RIPE-MD160 and SHA-256.
+ * <p>
+ * Not thread-safe. Instances are reusable and don't allocate after construction.
+ */
+abstract class BlockDigest {
+
+	/* package */ static final int BLOCK_SIZE = 64;
+
+	/** Padding appends message length in bits as little-endian (MD5, RIPE-MD160) or big-endian (SHA-256) */
+	private final boolean isBigEndian;
+
+	/** Partially filled block */
+	private final byte[] block = new byte[BLOCK_SIZE];
+	/** Number of bytes in <tt>block</tt> */
+	private int blockLength;
+	/** Number of message bytes so far */
+	private long messageLength;
+
+	protected BlockDigest(boolean isBigEndian) {
+		this.isBigEndian = isBigEndian;
+	}
+
+	/** Resets to initial state, ready for new message */
+	public void reset() {
+		this.blockLength = 0;
+		this.messageLength = 0L;
+		this.resetState();
+	}
+
+	/** Adds remaining bytes of <tt>input</tt> to message, leaving <tt>input</tt>'s position at its limit */
+	public void update(ByteBuffer input) {
+		this.messageLength += input.remaining();
+
+		while (input.hasRemaining()) {
+			// Process whole blocks straight from backing array if possible
+			if (this.blockLength == 0 && input.remaining() >= BLOCK_SIZE && input.hasArray()) {
+				final int position = input.position();
+				this.processBlock(input.array(), input.arrayOffset() + position);
+				input.position(position + BLOCK_SIZE);
+				continue;
+			}
+
+			final int length = Math.min(BLOCK_SIZE - this.blockLength, input.remaining());
+			input.get(this.block, this.blockLength, length);
+			this.blockLength += length;
+
+			if (this.blockLength == BLOCK_SIZE) {
+				this.processBlock(this.block, 0);
+				this.blockLength = 0;
+			}
+		}
+	}
+
+	/** Pads message and writes digest to start of <tt>output</tt>, then resets */
+	public void digest(byte[] output) {
+		final long bitLength = this.messageLength * 8;
+
+		this.block[this.blockLength++] = (byte) 0x80;
+
+		if (this.blockLength > BLOCK_SIZE - 8) {
+			while (this.blockLength < BLOCK_SIZE)
+				this.block[this.blockLength++] = 0;
+
+			this.processBlock(this.block, 0);
+			this.blockLength = 0;
+		}
+
+		while (this.blockLength < BLOCK_SIZE - 8)
+			this.block[this.blockLength++] = 0;
+
+		for (int i = 0; i < 8; ++i) {
+			final int shift = this.isBigEndian ? (7 - i) * 8 : i * 8;
+			this.block[BLOCK_SIZE - 8 + i] = (byte) (bitLength >>> shift);
+		}
+
+		this.processBlock(this.block, 0);
+
+		this.writeDigest(output);
+
+		this.reset();
+	}
+
+	/** Sets chaining variables to initial values */
+	protected abstract void resetState();
+
+	/** Compresses 64-byte block, starting at <tt>offset</tt>, into chaining variables */
+	protected abstract void processBlock(byte[] input, int offset);
+
+	/** Writes chaining variables to <tt>output</tt> */
+	protected abstract void writeDigest(byte[] output);
+
+	protected static int getIntLE(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8) | ((bytes[offset + 2] & 0xff) << 16) | ((bytes[offset + 3] & 0xff) << 24);
+	}
+
+	protected static int getIntBE(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+	}
+
+	protected static void putIntLE(int value, byte[] bytes, int offset) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >>> 8);
+		bytes[offset + 2] = (byte) (value >>> 16);
+		bytes[offset + 3] = (byte) (value >>> 24);
+	}
+
+	protected static void putIntBE(int value, byte[] bytes, int offset) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+}
@@ -0,0 +1,435 @@
+package org.ciyam.at;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes a block's worth of ATs in parallel, with results matching sequential execution.
+ * <p>
+ * Each MachineState's round runs on a worker thread with its API wrapped so that side-effect calls
+ * (<tt>payAmountToB</tt>, <tt>messageAToB</tt>, <tt>onFinished</tt>, <tt>onFatalError</tt>) are buffered instead of passed on.
+ * Once all rounds have finished, buffered calls are passed on to each MachineState's own API in canonical order,
+ * i.e. all of the first MachineState's calls, in the order they were made, then all of the second's, and so on.
+ * During each buffered call, the MachineState's A and B registers and current balance hold the values they had when the call was made.
+ * <p>
+ * Other API calls, e.g. <tt>getCurrentBalance</tt> or <tt>putTransactionAfterTimestampIntoA</tt>, are passed on immediately
+ * from worker threads, so must be thread-safe if API instances are shared between MachineStates.
+ * Without an {@link AccountResolver}, this includes platform-specific calls.
+ * <p>
+ * Without an {@link AccountResolver}, ATs must be independent: no AT's API reads may observe another AT's side effects from the same block,
+ * e.g. because the node applies resulting payments and messages only after all ATs have run.
+ * Otherwise results can differ from sequential execution.
+ * <p>
+ * With an AccountResolver, rounds are speculative. Each round records which accounts it reads (its own, via balance and transaction calls)
+ * and writes (recipients of side-effect calls). While passing on buffered calls in canonical order, any MachineState that read an account
+ * written earlier in the block, or written by itself, has its speculative round discarded. It is restored to its pre-block state
+ * and re-executed on the calling thread with its own API, after all earlier MachineStates' side effects, exactly as in sequential execution.
+ * <p>
+ * Platform-specific calls can read or write any account, so are never passed on from speculative rounds.
+ * Instead, a speculative round that makes one is abandoned and re-executed, as above,
+ * as are all later MachineStates' speculative rounds, in case they read accounts it wrote.
+ */
+public class BlockExecutor {
+
+	/** Side-effect API call, deferred until it can be passed on in canonical order */
+	private interface SideEffect {
+		public void apply(API api, MachineState state);
+	}
+
+	/** Side-effect call plus snapshot of A and B registers and current balance when it was made */
+	private static class BufferedCall {
+		private final SideEffect sideEffect;
+		private final long[] snapshot;
+
+		public BufferedCall(SideEffect sideEffect, long[] snapshot) {
+			this.sideEffect = sideEffect;
+			this.snapshot = snapshot;
+		}
+	}
+
+	/** Thrown to abandon speculative round, which is then re-executed */
+	private static class SpeculationAbandonedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public SpeculationAbandonedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * API wrapper that buffers side-effect calls, passing on all other calls.
+	 * <p>
+	 * Given an AccountResolver, also records accounts read and written,
+	 * and abandons speculative rounds on platform-specific calls, as their accounts are unknown.
+	 * If not buffering, side-effect calls are passed on immediately, after recording.
+	 */
+	private static class BufferingAPI extends DelegatingAPI {
+		private final AccountResolver accountResolver;
+		private final boolean isBuffering;
+		private final List<BufferedCall> calls = new ArrayList<>();
+		private final Set<Object> reads = new HashSet<>();
+		private final Set<Object> writes = new HashSet<>();
+		private boolean madePlatformCall = false;
+
+		public BufferingAPI(API api, AccountResolver accountResolver, boolean isBuffering) {
+			super(api);
+			this.accountResolver = accountResolver;
+			this.isBuffering = isBuffering;
+		}
+
+		public Set<Object> getReads() {
+			return this.reads;
+		}
+
+		public Set<Object> getWrites() {
+			return this.writes;
+		}
+
+		/** Returns whether platform-specific call was made, only tracked given AccountResolver */
+		public boolean madePlatformCall() {
+			return this.madePlatformCall;
+		}
+
+		private void recordRead(MachineState state) {
+			if (this.accountResolver != null)
+				this.reads.add(this.accountResolver.getAccount(state));
+		}
+
+		private void recordWrite(Object account) {
+			if (account != null)
+				this.writes.add(account);
+		}
+
+		private void recordPlatformCall(short rawFunctionCode) {
+			if (this.accountResolver == null)
+				return;
+
+			this.madePlatformCall = true;
+
+			if (this.isBuffering)
+				throw new SpeculationAbandonedException(String.format("Platform-specific function code 0x%04x called during speculative round", rawFunctionCode));
+		}
+
+		private void buffer(SideEffect sideEffect, MachineState state) {
+			if (this.isBuffering)
+				this.calls.add(new BufferedCall(sideEffect, snapshot(state)));
+			else
+				sideEffect.apply(this.api, state);
+		}
+
+		/** Passes on buffered calls, in order, to wrapped API */
+		public void applyCalls(MachineState state) {
+			if (this.calls.isEmpty())
+				return;
+
+			final long[] finalSnapshot = snapshot(state);
+
+			for (BufferedCall call : this.calls) {
+				restore(state, call.snapshot);
+				call.sideEffect.apply(this.api, state);
+			}
+
+			restore(state, finalSnapshot);
+		}
+
+		// Reads of AT's own account
+
+		@Override
+		public long getCurrentBalance(MachineState state) {
+			this.recordRead(state);
+			return this.api.getCurrentBalance(state);
+		}
+
+		@Override
+		public void putTransactionAfterTimestampIntoA(Timestamp timestamp, MachineState state) {
+			this.recordRead(state);
+			this.api.putTransactionAfterTimestampIntoA(timestamp, state);
+		}
+
+		@Override
+		public long getTypeFromTransactionInA(MachineState state) {
+			this.recordRead(state);
+			return this.api.getTypeFromTransactionInA(state);
+		}
+
+		@Override
+		public long getAmountFromTransactionInA(MachineState state) {
+			this.recordRead(state);
+			return this.api.getAmountFromTransactionInA(state);
+		}
+
+		@Override
+		public long getTimestampFromTransactionInA(MachineState state) {
+			this.recordRead(state);
+			return this.api.getTimestampFromTransactionInA(state);
+		}
+
+		@Override
+		public long generateRandomUsingTransactionInA(MachineState state) {
+			this.recordRead(state);
+			return this.api.generateRandomUsingTransactionInA(state);
+		}
+
+		@Override
+		public void putMessageFromTransactionInAIntoB(MachineState state) {
+			this.recordRead(state);
+			this.api.putMessageFromTransactionInAIntoB(state);
+		}
+
+		@Override
+		public void putAddressFromTransactionInAIntoB(MachineState state) {
+			this.recordRead(state);
+			this.api.putAddressFromTransactionInAIntoB(state);
+		}
+
+		// Platform-specific, so could read or write any account
+
+		@Override
+		public void platformSpecificPreExecuteCheck(int paramCount, boolean returnValueExpected, MachineState state, short rawFunctionCode)
+				throws IllegalFunctionCodeException {
+			this.recordPlatformCall(rawFunctionCode);
+			this.api.platformSpecificPreExecuteCheck(paramCount, returnValueExpected, state, rawFunctionCode);
+		}
+
+		@Override
+		public void platformSpecificPostCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
+			this.recordPlatformCall(rawFunctionCode);
+			this.api.platformSpecificPostCheckExecute(functionData, state, rawFunctionCode);
+		}
+
+		// Side effects
+
+		@Override
+		public void payAmountToB(long amount, MachineState state) {
+			if (this.accountResolver != null)
+				this.recordWrite(this.accountResolver.getAccountInB(state));
+
+			this.buffer((api, bufferedState) -> api.payAmountToB(amount, bufferedState), state);
+		}
+
+		@Override
+		public void messageAToB(MachineState state) {
+			if (this.accountResolver != null)
+				this.recordWrite(this.accountResolver.getAccountInB(state));
+
+			this.buffer(API::messageAToB, state);
+		}
+
+		@Override
+		public void onFinished(long amount, MachineState state) {
+			if (this.accountResolver != null)
+				this.recordWrite(this.accountResolver.getCreatorAccount(state));
+
+			this.buffer((api, bufferedState) -> api.onFinished(amount, bufferedState), state);
+		}
+
+		@Override
+		public void onFatalError(MachineState state, ExecutionException e) {
+			this.buffer((api, bufferedState) -> api.onFatalError(bufferedState, e), state);
+		}
+	}
+
+	private final ForkJoinPool pool;
+	/** Whether pool was created by, so should be shut down by, this executor */
+	private final boolean ownsPool;
+	/** Detects ATs interacting within a block, or null if ATs are independent */
+	private final AccountResolver accountResolver;
+
+	private final AtomicLong reexecutionCount = new AtomicLong();
+
+	/**
+	 * Block executor for independent ATs, using its own pool of worker threads.
+	 *
+	 * @param parallelism
+	 *            - number of worker threads, 1 to execute sequentially on calling thread
+	 * @throws IllegalArgumentException if parallelism is less than 1
+	 */
+	public BlockExecutor(int parallelism) {
+		this(parallelism, null);
+	}
+
+	/**
+	 * Block executor using its own pool of worker threads, re-executing ATs that interact within a block.
+	 *
+	 * @param parallelism
+	 *            - number of worker threads, 1 to execute sequentially on calling thread
+	 * @param accountResolver
+	 *            - or null if ATs are independent
+	 * @throws IllegalArgumentException if parallelism is less than 1
+	 */
+	public BlockExecutor(int parallelism, AccountResolver accountResolver) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+
+		this.pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+		this.ownsPool = true;
+		this.accountResolver = accountResolver;
+	}
+
+	/**
+	 * Block executor for independent ATs, using existing pool, e.g. <tt>ForkJoinPool.commonPool()</tt>.
+	 *
+	 * @param pool
+	 */
+	public BlockExecutor(ForkJoinPool pool) {
+		this(pool, null);
+	}
+
+	/**
+	 * Block executor using existing pool, re-executing ATs that interact within a block.
+	 *
+	 * @param pool
+	 * @param accountResolver
+	 *            - or null if ATs are independent
+	 */
+	public BlockExecutor(ForkJoinPool pool, AccountResolver accountResolver) {
+		if (pool == null)
+			throw new IllegalArgumentException("Pool cannot be null");
+
+		this.pool = pool;
+		this.ownsPool = false;
+		this.accountResolver = accountResolver;
+	}
+
+	/** Returns number of worker threads, or 1 if executing sequentially */
+	public int getParallelism() {
+		return this.pool == null ? 1 : this.pool.getParallelism();
+	}
+
+	/** Returns number of speculative rounds, so far, discarded and re-executed because of interaction with other ATs */
+	public long getReexecutionCount() {
+		return this.reexecutionCount.get();
+	}
+
+	/**
+	 * Executes one round of each MachineState, as if by calling <tt>execute()</tt> on each in turn.
+	 * <p>
+	 * If a round throws, side-effect calls from MachineStates before it, in canonical order, are still passed on,
+	 * but those from it and any later MachineStates are discarded, even though later rounds may have run.
+	 *
+	 * @param states
+	 *            - MachineStates in canonical order, each with its own API
+	 * @throws IllegalArgumentException if a MachineState appears more than once
+	 */
+	public void execute(List<MachineState> states) {
+		Set<MachineState> distinctStates = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (MachineState state : states)
+			if (!distinctStates.add(state))
+				throw new IllegalArgumentException("MachineState cannot be executed more than once per block");
+
+		if (this.pool == null || states.size() < 2) {
+			for (MachineState state : states)
+				state.execute();
+
+			return;
+		}
+
+		final int stateCount = states.size();
+		BufferingAPI[] bufferingApis = new BufferingAPI[stateCount];
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(stateCount);
+
+		// Pre-block states, in case of re-execution
+		byte[][] initialStateBytes = this.accountResolver == null ? null : new byte[stateCount][];
+
+		for (int i = 0; i < stateCount; ++i) {
+			final MachineState state = states.get(i);
+			final BufferingAPI bufferingApi = new BufferingAPI(state.getAPI(), this.accountResolver, true);
+			bufferingApis[i] = bufferingApi;
+
+			if (initialStateBytes != null)
+				initialStateBytes[i] = state.toBytes();
+
+			tasks.add(this.pool.submit(() -> executeWithAPI(state, bufferingApi)));
+		}
+
+		// Wait for all rounds, even if some fail, so no worker is still using a MachineState on return
+		RuntimeException[] failures = new RuntimeException[stateCount];
+
+		for (int i = 0; i < stateCount; ++i) {
+			try {
+				tasks.get(i).join();
+			} catch (RuntimeException e) {
+				failures[i] = e;
+			}
+		}
+
+		// Accounts written by MachineStates already passed on, only tracked given AccountResolver
+		Set<Object> writtenAccounts = new HashSet<>();
+		// Whether MachineState already passed on made platform-specific call, which could have written any account
+		boolean isAfterPlatformCall = false;
+
+		for (int i = 0; i < stateCount; ++i) {
+			final MachineState state = states.get(i);
+			final BufferingAPI bufferingApi = bufferingApis[i];
+
+			if (this.accountResolver == null) {
+				if (failures[i] != null)
+					throw failures[i];
+
+				bufferingApi.applyCalls(state);
+				continue;
+			}
+
+			// Speculative failure might be caused by reading stale values, or be abandonment, so re-execute, which throws again if genuine
+			if (failures[i] == null
+					&& !isAfterPlatformCall
+					&& Collections.disjoint(bufferingApi.getReads(), writtenAccounts)
+					&& Collections.disjoint(bufferingApi.getReads(), bufferingApi.getWrites())) {
+				bufferingApi.applyCalls(state);
+				writtenAccounts.addAll(bufferingApi.getWrites());
+				continue;
+			}
+
+			this.reexecutionCount.incrementAndGet();
+
+			final API api = bufferingApi.getDelegate();
+			state.reuseFromBytes(api, initialStateBytes[i]);
+
+			BufferingAPI recordingApi = new BufferingAPI(api, this.accountResolver, false);
+			executeWithAPI(state, recordingApi);
+
+			writtenAccounts.addAll(recordingApi.getWrites());
+			isAfterPlatformCall |= recordingApi.madePlatformCall();
+		}
+	}
+
+	/** Shuts down worker threads, unless using existing pool */
+	public void shutdown() {
+		if (this.pool != null && this.ownsPool)
+			this.pool.shutdown();
+	}
+
+	private static void executeWithAPI(MachineState state, DelegatingAPI api) {
+		state.swapAPI(api);
+		try {
+			state.execute();
+		} finally {
+			state.swapAPI(api.getDelegate());
+		}
+	}
+
+	/** Returns A and B registers, then current balance */
+	private static long[] snapshot(MachineState state) {
+		return new long[] { state.a1, state.a2, state.a3, state.a4, state.b1, state.b2, state.b3, state.b4, state.getCurrentBalance() };
+	}
+
+	private static void restore(MachineState state, long[] snapshot) {
+		state.a1 = snapshot[0];
+		state.a2 = snapshot[1];
+		state.a3 = snapshot[2];
+		state.a4 = snapshot[3];
+		state.b1 = snapshot[4];
+		state.b2 = snapshot[5];
+		state.b3 = snapshot[6];
+		state.b4 = snapshot[7];
+		state.setCurrentBalance(snapshot[8]);
+	}
+
+}
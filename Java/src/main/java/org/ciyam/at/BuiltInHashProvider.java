@@ -0,0 +1,31 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+
+/** Hash provider using pure-Java digests, reused per thread so hashing doesn't allocate. */
+final class BuiltInHashProvider implements HashProvider {
+
+	/** Per-thread digests, by Algorithm ordinal */
+	private static final ThreadLocal<BlockDigest[]> DIGESTS = ThreadLocal.withInitial(() -> {
+		BlockDigest[] digests = new BlockDigest[Algorithm.values().length];
+		digests[Algorithm.MD5.ordinal()] = new Md5Digest();
+		digests[Algorithm.RIPEMD160.ordinal()] = new Ripemd160Digest();
+		digests[Algorithm.SHA256.ordinal()] = new Sha256Digest();
+		return digests;
+	});
+
+	@Override
+	public String getName() {
+		return "built-in";
+	}
+
+	@Override
+	public void hash(Algorithm algorithm, ByteBuffer input, byte[] output) {
+		BlockDigest digest = DIGESTS.get()[algorithm.ordinal()];
+
+		digest.reset();
+		digest.update(input);
+		digest.digest(output);
+	}
+
+}
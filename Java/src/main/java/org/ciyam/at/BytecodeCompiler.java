@@ -0,0 +1,856 @@
+package org.ciyam.at;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiles a <tt>DecodedProgram</tt> into JVM bytecode.
+ * <p>
+ * Block leaders are program start, jump/branch/subroutine/error targets and any instruction following
+ * an opcode that isn't compiled. From each leader, a block extends over compilable opcodes
+ * up to, and including, a jump or branch.
+ * <p>
+ * Each block becomes a static method operating directly on the data segment <tt>ByteBuffer</tt>,
+ * returning the next program counter. A generated <tt>execute(block, dataByteBuffer)</tt> method dispatches to blocks.
+ * <p>
+ * Generated classes use class file version 49 so no stack map frames are required.
+ * <p>
+ * Each generated class is defined by its own throwaway classloader, so it is unloaded, freeing Metaspace,
+ * once its <tt>CompiledProgram</tt> is no longer referenced, e.g. after its <tt>DecodedProgram</tt> is evicted from cache.
+ * As that puts generated classes in a different runtime package, <tt>CompiledProgram.Code</tt> is public.
+ */
+final class BytecodeCompiler {
+
+	/** Maximum instructions per block, keeping methods well below JIT's huge method limit */
+	private static final int MAX_BLOCK_INSTRUCTIONS = 64;
+
+	/** Blocks per dispatch sub-method */
+	private static final int DISPATCH_GROUP_SIZE = 256;
+
+	private static final String BYTE_BUFFER_CLASS = "java/nio/ByteBuffer";
+	private static final String CODE_INTERFACE = CompiledProgram.Code.class.getName().replace('.', '/');
+	private static final String CLASS_NAME_PREFIX = BytecodeCompiler.class.getPackage().getName().replace('.', '/') + "/CompiledCode$";
+
+	private static final AtomicLong classCounter = new AtomicLong();
+
+	// JVM opcodes used
+	private static final int ICONST_0 = 0x03;
+	private static final int LCONST_0 = 0x09;
+	private static final int LCONST_1 = 0x0a;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int LDC2_W = 0x14;
+	private static final int ILOAD_1 = 0x1b;
+	private static final int LLOAD_1 = 0x1f;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int ALOAD_2 = 0x2c;
+	private static final int LSTORE_1 = 0x40;
+	private static final int POP = 0x57;
+	private static final int LADD = 0x61;
+	private static final int LSUB = 0x65;
+	private static final int LMUL = 0x69;
+	private static final int LSHL = 0x79;
+	private static final int ISHR = 0x7a;
+	private static final int LUSHR = 0x7d;
+	private static final int IAND = 0x7e;
+	private static final int LAND = 0x7f;
+	private static final int LOR = 0x81;
+	private static final int LXOR = 0x83;
+	private static final int L2I = 0x88;
+	private static final int LCMP = 0x94;
+	private static final int IFEQ = 0x99;
+	private static final int IFNE = 0x9a;
+	private static final int IFLT = 0x9b;
+	private static final int IFGE = 0x9c;
+	private static final int IFGT = 0x9d;
+	private static final int IFLE = 0x9e;
+	private static final int GOTO = 0xa7;
+	private static final int TABLESWITCH = 0xaa;
+	private static final int IRETURN = 0xac;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKEVIRTUAL = 0xb6;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKESTATIC = 0xb8;
+
+	private BytecodeCompiler() {
+	}
+
+	/** Returns whether opcode only operates on static data addresses and can't fail */
+	private static boolean isStraightLine(OpCode opCode) {
+		switch (opCode) {
+			case NOP:
+			case SET_VAL:
+			case SET_DAT:
+			case CLR_DAT:
+			case INC_DAT:
+			case DEC_DAT:
+			case ADD_DAT:
+			case SUB_DAT:
+			case MUL_DAT:
+			case BOR_DAT:
+			case AND_DAT:
+			case XOR_DAT:
+			case NOT_DAT:
+			case SHL_DAT:
+			case SHR_DAT:
+			case ADD_VAL:
+			case SUB_VAL:
+			case MUL_VAL:
+				return true;
+
+			default:
+				return false;
+		}
+	}
+
+	/** Returns whether opcode is a jump or branch that can end a block */
+	private static boolean isTerminator(OpCode opCode) {
+		switch (opCode) {
+			case JMP_ADR:
+			case BZR_DAT:
+			case BNZ_DAT:
+			case BGT_DAT:
+			case BLT_DAT:
+			case BGE_DAT:
+			case BLE_DAT:
+			case BEQ_DAT:
+			case BNE_DAT:
+				return true;
+
+			default:
+				return false;
+		}
+	}
+
+	/** Returns program counter of code target of decoded instruction, or -1 if none */
+	private static int getCodeTarget(DecodedProgram program, int slot) {
+		switch (program.getOpCode(slot)) {
+			case JMP_ADR:
+			case JMP_SUB:
+			case ERR_ADR:
+				return program.getArg(slot, 0);
+
+			case BZR_DAT:
+			case BNZ_DAT:
+				return program.getArg(slot, 1);
+
+			case BGT_DAT:
+			case BLT_DAT:
+			case BGE_DAT:
+			case BLE_DAT:
+			case BEQ_DAT:
+			case BNE_DAT:
+				return program.getArg(slot, 2);
+
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * Compiles decoded program.
+	 *
+	 * @throws RuntimeException or LinkageError if class generation/definition fails
+	 */
+	public static CompiledProgram compile(DecodedProgram program) {
+		final int codeLength = program.getCodeLength();
+
+		// Find block leaders
+		boolean[] isLeader = new boolean[codeLength];
+		int expectedProgramCounter = 0;
+
+		for (int programCounter = 0; programCounter < codeLength; ++programCounter) {
+			final int slot = program.getSlot(programCounter, Integer.MAX_VALUE);
+			if (slot == DecodedProgram.NOT_DECODED)
+				continue;
+
+			// Anything not reached by falling through from previous instruction, e.g. after unknown opcodes
+			if (programCounter != expectedProgramCounter)
+				isLeader[programCounter] = true;
+
+			final OpCode opCode = program.getOpCode(slot);
+			final int nextProgramCounter = program.getNextProgramCounter(slot);
+
+			final int codeTarget = getCodeTarget(program, slot);
+			if (codeTarget >= 0)
+				isLeader[codeTarget] = true;
+
+			if (!isStraightLine(opCode) && nextProgramCounter < codeLength)
+				isLeader[nextProgramCounter] = true;
+
+			expectedProgramCounter = nextProgramCounter;
+		}
+
+		if (codeLength > 0)
+			isLeader[0] = true;
+
+		// Build blocks
+		int[] blockByProgramCounter = new int[codeLength];
+		Arrays.fill(blockByProgramCounter, CompiledProgram.NO_BLOCK);
+
+		List<int[]> blockSlots = new ArrayList<>();
+		List<Integer> blockDataLimits = new ArrayList<>();
+
+		for (int leader = 0; leader < codeLength; ++leader) {
+			if (!isLeader[leader])
+				continue;
+
+			int[] slots = new int[MAX_BLOCK_INSTRUCTIONS];
+			int slotCount = 0;
+			int dataLimit = 0;
+
+			int programCounter = leader;
+			while (slotCount < MAX_BLOCK_INSTRUCTIONS) {
+				final int slot = program.getSlot(programCounter, Integer.MAX_VALUE);
+				if (slot == DecodedProgram.NOT_DECODED)
+					break;
+
+				final OpCode opCode = program.getOpCode(slot);
+				final boolean isTerminator = isTerminator(opCode);
+				if (!isStraightLine(opCode) && !isTerminator)
+					break;
+
+				slots[slotCount++] = slot;
+				dataLimit = Math.max(dataLimit, program.getDataLimit(slot));
+				programCounter = program.getNextProgramCounter(slot);
+
+				if (isTerminator)
+					break;
+			}
+
+			if (slotCount == 0)
+				continue;
+
+			blockByProgramCounter[leader] = blockSlots.size();
+			blockSlots.add(Arrays.copyOf(slots, slotCount));
+			blockDataLimits.add(dataLimit);
+		}
+
+		final int blockCount = blockSlots.size();
+
+		int[][] blockOpCodes = new int[blockCount][];
+		int[][] blockWrittenAddresses = new int[blockCount][];
+		int[] dataLimits = new int[blockCount];
+
+		for (int block = 0; block < blockCount; ++block) {
+			int[] slots = blockSlots.get(block);
+
+			blockOpCodes[block] = new int[slots.length];
+			for (int i = 0; i < slots.length; ++i)
+				blockOpCodes[block][i] = program.getOpCode(slots[i]).ordinal();
+
+			// Every straight-line opcode, apart from NOP, writes to its first argument's address
+			blockWrittenAddresses[block] = Arrays.stream(slots)
+					.filter(slot -> isStraightLine(program.getOpCode(slot)) && program.getOpCode(slot) != OpCode.NOP)
+					.map(slot -> program.getArg(slot, 0))
+					.distinct()
+					.toArray();
+
+			dataLimits[block] = blockDataLimits.get(block);
+		}
+
+		CompiledProgram.Code code = null;
+		if (blockCount > 0)
+			code = defineCode(generateClass(program, blockSlots));
+
+		return new CompiledProgram(blockByProgramCounter, dataLimits, blockOpCodes, blockWrittenAddresses, code);
+	}
+
+	/** Classloader for exactly one generated class, so that class can be unloaded along with its loader */
+	private static final class CodeClassLoader extends ClassLoader {
+		CodeClassLoader() {
+			super(BytecodeCompiler.class.getClassLoader());
+		}
+
+		Class<?> defineCode(String className, byte[] classBytes) {
+			return this.defineClass(className, classBytes, 0, classBytes.length);
+		}
+	}
+
+	private static CompiledProgram.Code defineCode(ClassFile classFile) {
+		try {
+			Class<?> codeClass = new CodeClassLoader().defineCode(classFile.className.replace('/', '.'), classFile.toBytes());
+
+			return (CompiledProgram.Code) codeClass.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Unable to instantiate compiled code", e);
+		}
+	}
+
+	private static ClassFile generateClass(DecodedProgram program, List<int[]> blockSlots) {
+		final String className = CLASS_NAME_PREFIX + classCounter.incrementAndGet();
+
+		ClassFile classFile = new ClassFile(className, CODE_INTERFACE);
+
+		// Constructor
+		CodeBuilder constructor = new CodeBuilder(classFile.constantPool);
+		constructor.op(ALOAD_0);
+		constructor.op(INVOKESPECIAL).u2(classFile.constantPool.methodRef("java/lang/Object", "<init>", "()V"));
+		constructor.op(RETURN);
+		classFile.addMethod(0x0001, "<init>", "()V", constructor, 1, 1);
+
+		// Blocks
+		for (int block = 0; block < blockSlots.size(); ++block) {
+			CodeBuilder blockCode = generateBlock(program, blockSlots.get(block), classFile.constantPool);
+
+			// private static
+			classFile.addMethod(0x000a, "b" + block, "(Ljava/nio/ByteBuffer;)I", blockCode, 8, 5);
+		}
+
+		// Dispatch groups
+		final int groupCount = (blockSlots.size() + DISPATCH_GROUP_SIZE - 1) / DISPATCH_GROUP_SIZE;
+		for (int group = 0; group < groupCount; ++group) {
+			final int firstBlock = group * DISPATCH_GROUP_SIZE;
+			final int lastBlock = Math.min(firstBlock + DISPATCH_GROUP_SIZE, blockSlots.size()) - 1;
+
+			CodeBuilder groupCode = new CodeBuilder(classFile.constantPool);
+			groupCode.op(ILOAD_1);
+
+			Map<Integer, Integer> caseTargets = new HashMap<>();
+			final int switchPosition = groupCode.tableSwitch(firstBlock, lastBlock);
+
+			for (int block = firstBlock; block <= lastBlock; ++block) {
+				caseTargets.put(block, groupCode.position());
+				groupCode.op(ALOAD_0);
+				groupCode.op(INVOKESTATIC).u2(classFile.constantPool.methodRef(className, "b" + block, "(Ljava/nio/ByteBuffer;)I"));
+				groupCode.op(IRETURN);
+			}
+
+			final int defaultPosition = groupCode.position();
+			groupCode.pushInt(CompiledProgram.NO_BLOCK);
+			groupCode.op(IRETURN);
+
+			groupCode.patchTableSwitch(switchPosition, defaultPosition, firstBlock, lastBlock, caseTargets);
+
+			// private static, (block, dataByteBuffer) as locals 1 & 0 to match block methods
+			classFile.addMethod(0x000a, "g" + group, "(Ljava/nio/ByteBuffer;I)I", groupCode, 4, 2);
+		}
+
+		// Top-level dispatch: execute(int block, ByteBuffer dataByteBuffer)
+		CodeBuilder dispatch = new CodeBuilder(classFile.constantPool);
+		dispatch.op(ILOAD_1);
+		dispatch.pushInt(Integer.numberOfTrailingZeros(DISPATCH_GROUP_SIZE));
+		dispatch.op(ISHR);
+
+		Map<Integer, Integer> groupTargets = new HashMap<>();
+		final int switchPosition = dispatch.tableSwitch(0, groupCount - 1);
+
+		for (int group = 0; group < groupCount; ++group) {
+			groupTargets.put(group, dispatch.position());
+			dispatch.op(ALOAD_2);
+			dispatch.op(ILOAD_1);
+			dispatch.op(INVOKESTATIC).u2(classFile.constantPool.methodRef(className, "g" + group, "(Ljava/nio/ByteBuffer;I)I"));
+			dispatch.op(IRETURN);
+		}
+
+		final int defaultPosition = dispatch.position();
+		dispatch.pushInt(CompiledProgram.NO_BLOCK);
+		dispatch.op(IRETURN);
+
+		dispatch.patchTableSwitch(switchPosition, defaultPosition, 0, groupCount - 1, groupTargets);
+
+		// public
+		classFile.addMethod(0x0001, "execute", "(ILjava/nio/ByteBuffer;)I", dispatch, 4, 3);
+
+		return classFile;
+	}
+
+	/**
+	 * Generates static block method.
+	 * <p>
+	 * Local 0 is data segment ByteBuffer, locals 1-2 and 3-4 are long temporaries.
+	 */
+	private static CodeBuilder generateBlock(DecodedProgram program, int[] slots, ConstantPool constantPool) {
+		final int getLong = constantPool.methodRef(BYTE_BUFFER_CLASS, "getLong", "(I)J");
+		final int putLong = constantPool.methodRef(BYTE_BUFFER_CLASS, "putLong", "(IJ)Ljava/nio/ByteBuffer;");
+
+		CodeBuilder code = new CodeBuilder(constantPool);
+		int nextProgramCounter = 0;
+
+		for (int slot : slots) {
+			final OpCode opCode = program.getOpCode(slot);
+			final int arg1 = program.getArg(slot, 0);
+			final int arg2 = program.getArg(slot, 1);
+			final int arg3 = program.getArg(slot, 2);
+			nextProgramCounter = program.getNextProgramCounter(slot);
+
+			switch (opCode) {
+				case NOP:
+					break;
+
+				case SET_VAL:
+					// data.putLong(arg1, value)
+					code.op(ALOAD_0).pushInt(arg1).pushLong(program.getValue(arg2));
+					code.op(INVOKEVIRTUAL).u2(putLong).op(POP);
+					break;
+
+				case SET_DAT:
+					// data.putLong(arg1, data.getLong(arg2))
+					code.op(ALOAD_0).pushInt(arg1);
+					code.op(ALOAD_0).pushInt(arg2).op(INVOKEVIRTUAL).u2(getLong);
+					code.op(INVOKEVIRTUAL).u2(putLong).op(POP);
+					break;
+
+				case CLR_DAT:
+					code.op(ALOAD_0).pushInt(arg1).op(LCONST_0);
+					code.op(INVOKEVIRTUAL).u2(putLong).op(POP);
+					break;
+
+				case INC_DAT:
+				case DEC_DAT:
+					code.op(ALOAD_0).pushInt(arg1);
+					code.op(ALOAD_0).pushInt(arg1).op(INVOKEVIRTUAL).u2(getLong);
+					code.op(LCONST_1).op(opCode == OpCode.INC_DAT ? LADD : LSUB);
+					code.op(INVOKEVIRTUAL).u2(putLong).op(POP);
+					break;
+
+				case NOT_DAT:
+					code.op(ALOAD_0).pushInt(arg1);
+					code.op(ALOAD_0).pushInt(arg1).op(INVOKEVIRTUAL).u2(getLong);
+					code.pushLong(-1L).op(LXOR);
+					code.op(INVOKEVIRTUAL).u2(putLong).op(POP);
+					break;
+
+				case ADD_DAT:
+				case SUB_DAT:
+				case MUL_DAT:
+				case BOR_DAT:
+				case AND_DAT:
+				case XOR_DAT:
+					// data.putLong(arg1, data.getLong(arg1) <op> data.getLong(arg2))
+					code.op(ALOAD_0).pushInt(arg1);
+					code.op(ALOAD_0).pushInt(arg1).op(INVOKEVIRTUAL).u2(getLong);
+					code.op(ALOAD_0).pushInt(arg2).op(INVOKEVIRTUAL).u2(getLong);
+					code.op(longOperation(opCode));
+					code.op(INVOKEVIRTUAL).u2(putLong).op(POP);
+					break;
+
+				case ADD_VAL:
+				case SUB_VAL:
+				case MUL_VAL:
+					// data.putLong(arg1, data.getLong(arg1) <op> value)
+					code.op(ALOAD_0).pushInt(arg1);
+					code.op(ALOAD_0).pushInt(arg1).op(INVOKEVIRTUAL).u2(getLong);
+					code.pushLong(program.getValue(arg2));
+					code.op(longOperation(opCode));
+					code.op(INVOKEVIRTUAL).u2(putLong).op(POP);
+					break;
+
+				case SHL_DAT:
+				case SHR_DAT: {
+					// shift = data.getLong(arg2); data.putLong(arg1, shift >= 64 ? 0 : data.getLong(arg1) <op> shift)
+					code.op(ALOAD_0).pushInt(arg1);
+					code.op(ALOAD_0).pushInt(arg2).op(INVOKEVIRTUAL).u2(getLong).op(LSTORE_1);
+
+					code.op(LLOAD_1).pushLong(MachineState.VALUE_SIZE * 8L).op(LCMP);
+					final int shiftBranch = code.branch(IFLT);
+
+					code.op(LCONST_0);
+					final int endBranch = code.branch(GOTO);
+
+					code.patchBranch(shiftBranch, code.position());
+					code.op(ALOAD_0).pushInt(arg1).op(INVOKEVIRTUAL).u2(getLong);
+					code.op(LLOAD_1).op(L2I).op(opCode == OpCode.SHL_DAT ? LSHL : LUSHR);
+
+					code.patchBranch(endBranch, code.position());
+					code.op(INVOKEVIRTUAL).u2(putLong).op(POP);
+					break;
+				}
+
+				case JMP_ADR:
+					code.pushInt(arg1).op(IRETURN);
+					break;
+
+				case BZR_DAT:
+				case BNZ_DAT: {
+					code.op(ALOAD_0).pushInt(arg1).op(INVOKEVIRTUAL).u2(getLong);
+					code.op(LCONST_0).op(LCMP);
+
+					final int notTakenBranch = code.branch(opCode == OpCode.BZR_DAT ? IFNE : IFEQ);
+					code.pushInt(arg2).op(IRETURN);
+
+					code.patchBranch(notTakenBranch, code.position());
+					code.pushInt(nextProgramCounter).op(IRETURN);
+					break;
+				}
+
+				case BGT_DAT:
+				case BLT_DAT:
+				case BGE_DAT:
+				case BLE_DAT:
+				case BEQ_DAT:
+				case BNE_DAT: {
+					code.op(ALOAD_0).pushInt(arg1).op(INVOKEVIRTUAL).u2(getLong);
+					code.op(ALOAD_0).pushInt(arg2).op(INVOKEVIRTUAL).u2(getLong);
+					code.op(LCMP);
+
+					final int notTakenBranch = code.branch(notTakenCondition(opCode));
+					code.pushInt(arg3).op(IRETURN);
+
+					code.patchBranch(notTakenBranch, code.position());
+					code.pushInt(nextProgramCounter).op(IRETURN);
+					break;
+				}
+
+				default:
+					throw new IllegalStateException(String.format("Can't compile %s", opCode.name()));
+			}
+		}
+
+		// If block didn't end with jump/branch then carry on with next instruction
+		if (!isTerminator(program.getOpCode(slots[slots.length - 1])))
+			code.pushInt(nextProgramCounter).op(IRETURN);
+
+		return code;
+	}
+
+	private static int longOperation(OpCode opCode) {
+		switch (opCode) {
+			case ADD_DAT:
+			case ADD_VAL:
+				return LADD;
+
+			case SUB_DAT:
+			case SUB_VAL:
+				return LSUB;
+
+			case MUL_DAT:
+			case MUL_VAL:
+				return LMUL;
+
+			case BOR_DAT:
+				return LOR;
+
+			case AND_DAT:
+				return LAND;
+
+			case XOR_DAT:
+				return LXOR;
+
+			default:
+				throw new IllegalStateException(String.format("No long operation for %s", opCode.name()));
+		}
+	}
+
+	/** Returns JVM conditional jump, following <tt>lcmp</tt>, for when branch is NOT taken */
+	private static int notTakenCondition(OpCode opCode) {
+		switch (opCode) {
+			case BGT_DAT:
+				return IFLE;
+
+			case BLT_DAT:
+				return IFGE;
+
+			case BGE_DAT:
+				return IFLT;
+
+			case BLE_DAT:
+				return IFGT;
+
+			case BEQ_DAT:
+				return IFNE;
+
+			case BNE_DAT:
+				return IFEQ;
+
+			default:
+				throw new IllegalStateException(String.format("No branch condition for %s", opCode.name()));
+		}
+	}
+
+	/** Minimal constant pool with de-duplication */
+	private static class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream output = new DataOutputStream(bytes);
+		private final Map<String, Integer> indexes = new HashMap<>();
+		private int nextIndex = 1;
+
+		private int add(String key, int size, ConstantWriter writer) {
+			Integer index = this.indexes.get(key);
+			if (index != null)
+				return index;
+
+			index = this.nextIndex;
+			if (index + size > 0xffff)
+				throw new IllegalStateException("Constant pool too large");
+
+			try {
+				writer.write(this.output);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+
+			this.nextIndex += size;
+			this.indexes.put(key, index);
+			return index;
+		}
+
+		public int utf8(String value) {
+			return add("U" + value, 1, output -> {
+				output.writeByte(1);
+				output.writeUTF(value);
+			});
+		}
+
+		public int classRef(String internalName) {
+			final int nameIndex = utf8(internalName);
+
+			return add("C" + internalName, 1, output -> {
+				output.writeByte(7);
+				output.writeShort(nameIndex);
+			});
+		}
+
+		public int methodRef(String owner, String name, String descriptor) {
+			final int classIndex = classRef(owner);
+			final int nameIndex = utf8(name);
+			final int descriptorIndex = utf8(descriptor);
+
+			final int nameAndTypeIndex = add("N" + name + ":" + descriptor, 1, output -> {
+				output.writeByte(12);
+				output.writeShort(nameIndex);
+				output.writeShort(descriptorIndex);
+			});
+
+			return add("M" + owner + "." + name + ":" + descriptor, 1, output -> {
+				output.writeByte(10);
+				output.writeShort(classIndex);
+				output.writeShort(nameAndTypeIndex);
+			});
+		}
+
+		public int integer(int value) {
+			return add("I" + value, 1, output -> {
+				output.writeByte(3);
+				output.writeInt(value);
+			});
+		}
+
+		public int longValue(long value) {
+			// Long constants take up two entries
+			return add("J" + value, 2, output -> {
+				output.writeByte(5);
+				output.writeLong(value);
+			});
+		}
+
+		public int count() {
+			return this.nextIndex;
+		}
+
+		public byte[] toBytes() {
+			return this.bytes.toByteArray();
+		}
+	}
+
+	@FunctionalInterface
+	private interface ConstantWriter {
+		void write(DataOutputStream output) throws IOException;
+	}
+
+	/** Method bytecode builder */
+	private static class CodeBuilder {
+		private final ConstantPool constantPool;
+		private byte[] code = new byte[256];
+		private int length = 0;
+
+		public CodeBuilder(ConstantPool constantPool) {
+			this.constantPool = constantPool;
+		}
+
+		public int position() {
+			return this.length;
+		}
+
+		private void ensureCapacity(int extra) {
+			if (this.length + extra > this.code.length)
+				this.code = Arrays.copyOf(this.code, Math.max(this.code.length * 2, this.length + extra));
+		}
+
+		public CodeBuilder op(int opcode) {
+			ensureCapacity(1);
+			this.code[this.length++] = (byte) opcode;
+			return this;
+		}
+
+		public CodeBuilder u2(int value) {
+			ensureCapacity(2);
+			this.code[this.length++] = (byte) (value >>> 8);
+			this.code[this.length++] = (byte) value;
+			return this;
+		}
+
+		public CodeBuilder u4(int value) {
+			u2(value >>> 16);
+			return u2(value);
+		}
+
+		public CodeBuilder pushInt(int value) {
+			if (value >= -1 && value <= 5)
+				return op(ICONST_0 + value);
+
+			if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+				return op(BIPUSH).op(value);
+
+			if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+				return op(SIPUSH).u2(value);
+
+			return op(LDC_W).u2(this.constantPool.integer(value));
+		}
+
+		public CodeBuilder pushLong(long value) {
+			if (value == 0L)
+				return op(LCONST_0);
+
+			if (value == 1L)
+				return op(LCONST_1);
+
+			return op(LDC2_W).u2(this.constantPool.longValue(value));
+		}
+
+		/** Emits branch with placeholder offset, returning position for use with <tt>patchBranch</tt> */
+		public int branch(int opcode) {
+			final int branchPosition = this.length;
+			op(opcode).u2(0);
+			return branchPosition;
+		}
+
+		public void patchBranch(int branchPosition, int targetPosition) {
+			final int offset = targetPosition - branchPosition;
+			this.code[branchPosition + 1] = (byte) (offset >>> 8);
+			this.code[branchPosition + 2] = (byte) offset;
+		}
+
+		/** Emits tableswitch with placeholder offsets, returning position for use with <tt>patchTableSwitch</tt> */
+		public int tableSwitch(int low, int high) {
+			final int switchPosition = this.length;
+			op(TABLESWITCH);
+
+			// Pad to 4-byte boundary
+			while (this.length % 4 != 0)
+				op(0);
+
+			u4(0); // default
+			u4(low);
+			u4(high);
+
+			for (int i = low; i <= high; ++i)
+				u4(0);
+
+			return switchPosition;
+		}
+
+		public void patchTableSwitch(int switchPosition, int defaultPosition, int low, int high, Map<Integer, Integer> caseTargets) {
+			int patchPosition = switchPosition + 1;
+			while (patchPosition % 4 != 0)
+				++patchPosition;
+
+			patchInt(patchPosition, defaultPosition - switchPosition);
+			patchPosition += 12;
+
+			for (int i = low; i <= high; ++i) {
+				patchInt(patchPosition, caseTargets.get(i) - switchPosition);
+				patchPosition += 4;
+			}
+		}
+
+		private void patchInt(int position, int value) {
+			this.code[position] = (byte) (value >>> 24);
+			this.code[position + 1] = (byte) (value >>> 16);
+			this.code[position + 2] = (byte) (value >>> 8);
+			this.code[position + 3] = (byte) value;
+		}
+
+		public byte[] toBytes() {
+			return Arrays.copyOf(this.code, this.length);
+		}
+	}
+
+	/** Minimal class file writer */
+	private static class ClassFile {
+		public final ConstantPool constantPool = new ConstantPool();
+		public final String className;
+
+		private final int thisClassIndex;
+		private final int superClassIndex;
+		private final int interfaceIndex;
+		private final int codeAttributeIndex;
+
+		private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+		private final DataOutputStream methods = new DataOutputStream(methodBytes);
+		private int methodCount = 0;
+
+		public ClassFile(String className, String interfaceName) {
+			this.className = className;
+			this.thisClassIndex = this.constantPool.classRef(className);
+			this.superClassIndex = this.constantPool.classRef("java/lang/Object");
+			this.interfaceIndex = this.constantPool.classRef(interfaceName);
+			this.codeAttributeIndex = this.constantPool.utf8("Code");
+		}
+
+		public void addMethod(int accessFlags, String name, String descriptor, CodeBuilder code, int maxStack, int maxLocals) {
+			byte[] codeBytes = code.toBytes();
+			if (codeBytes.length > 0xffff)
+				throw new IllegalStateException(String.format("Method %s too large", name));
+
+			final int nameIndex = this.constantPool.utf8(name);
+			final int descriptorIndex = this.constantPool.utf8(descriptor);
+
+			try {
+				this.methods.writeShort(accessFlags);
+				this.methods.writeShort(nameIndex);
+				this.methods.writeShort(descriptorIndex);
+
+				this.methods.writeShort(1); // attributes count
+				this.methods.writeShort(this.codeAttributeIndex);
+				this.methods.writeInt(2 + 2 + 4 + codeBytes.length + 2 + 2);
+				this.methods.writeShort(maxStack);
+				this.methods.writeShort(maxLocals);
+				this.methods.writeInt(codeBytes.length);
+				this.methods.write(codeBytes);
+				this.methods.writeShort(0); // exception table length
+				this.methods.writeShort(0); // attributes count
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+
+			++this.methodCount;
+		}
+
+		public byte[] toBytes() {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(bytes);
+
+			try {
+				output.writeInt(0xcafebabe);
+				output.writeShort(0); // minor version
+				output.writeShort(49); // major version: Java 5, so no stack map frames needed
+				output.writeShort(this.constantPool.count());
+				output.write(this.constantPool.toBytes());
+				output.writeShort(0x0031); // public final super
+				output.writeShort(this.thisClassIndex);
+				output.writeShort(this.superClassIndex);
+				output.writeShort(1); // interfaces count
+				output.writeShort(this.interfaceIndex);
+				output.writeShort(0); // fields count
+				output.writeShort(this.methodCount);
+				output.write(this.methodBytes.toByteArray());
+				output.writeShort(0); // attributes count
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+
+			return bytes.toByteArray();
+		}
+	}
+
+}
@@ -0,0 +1,205 @@
+package org.ciyam.at;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Static verifier for AT code, for use at deploy or load time.
+ * <p>
+ * Starting from program counter 0, follows every reachable instruction (fall-through, jump, branch,
+ * subroutine and error-handler targets) and checks:
+ * <ul>
+ * <li>opcodes are known and instructions aren't truncated</li>
+ * <li>static data addresses fit within data segment</li>
+ * <li>code addresses and branch targets are within code segment and land on the start of an instruction</li>
+ * <li>function codes are known and match their opcode</li>
+ * <li>execution can't run off the end of code segment</li>
+ * </ul>
+ * Indirect data accesses (e.g. <tt>SET_IND</tt>, <tt>IDX_DAT</tt>) and stack accesses depend on runtime values
+ * so can't be verified statically, and are still checked during execution.
+ * <p>
+ * <tt>MachineState</tt> executes verified programs on a fast path that skips per-instruction static address checks.
+ * Programs that fail verification still execute as before, with all checks, and fail at runtime in the usual way.
+ */
+public class CodeVerifier {
+
+	/** Outcome of verification */
+	public static class Result {
+		private final int dataLength;
+		private final List<String> errors;
+
+		/** Decoded instruction slot by program counter, or NOT_DECODED, with static addresses known to fit data segment */
+		private final int[] verifiedSlotByProgramCounter;
+
+		private Result(int dataLength, List<String> errors, int[] verifiedSlotByProgramCounter) {
+			this.dataLength = dataLength;
+			this.errors = errors;
+			this.verifiedSlotByProgramCounter = verifiedSlotByProgramCounter;
+		}
+
+		/** Returns whether every reachable instruction passed verification */
+		public boolean isValid() {
+			return this.errors.isEmpty();
+		}
+
+		/** Returns verification errors, each prefixed by program counter, or empty list if valid */
+		public List<String> getErrors() {
+			return this.errors;
+		}
+
+		/** Returns data segment length, in bytes, that program was verified against */
+		public int getDataLength() {
+			return this.dataLength;
+		}
+
+		/**
+		 * Returns slot of decoded instruction at program counter, or NOT_DECODED.
+		 * <p>
+		 * Unlike <tt>DecodedProgram.getSlot()</tt>, there's no need to check data segment length,
+		 * of either the instruction or the metering block starting with it.
+		 * Only valid if <tt>isValid()</tt> returns true.
+		 */
+		/* package */ int getSlot(int programCounter) {
+			if (programCounter < 0 || programCounter >= this.verifiedSlotByProgramCounter.length)
+				return DecodedProgram.NOT_DECODED;
+
+			return this.verifiedSlotByProgramCounter[programCounter];
+		}
+	}
+
+	private CodeVerifier() {
+	}
+
+	/**
+	 * Verifies code bytes against data segment size.
+	 * <p>
+	 * Data page size depends on AT version, e.g. 256 bytes for version 1, but 8 bytes for version 2.
+	 *
+	 * @param codeBytes
+	 * @param version AT version, as in header
+	 * @param numDataPages number of data pages, as in header
+	 * @return verification result
+	 * @throws IllegalArgumentException if <tt>version</tt> is unknown, or <tt>numDataPages</tt> is negative or too large
+	 */
+	public static Result verify(byte[] codeBytes, short version, int numDataPages) {
+		final int dataPageSize = MachineState.getDataPageSize(version);
+
+		if (numDataPages < 0 || numDataPages > Integer.MAX_VALUE / dataPageSize)
+			throw new IllegalArgumentException("Number of data pages out of range: " + numDataPages);
+
+		return Program.fromCodeBytes(codeBytes).getVerification(numDataPages * dataPageSize);
+	}
+
+	/**
+	 * Verifies MachineState's code segment against its data segment.
+	 *
+	 * @param state
+	 * @return verification result
+	 */
+	public static Result verify(MachineState state) {
+		return state.getProgram().getVerification(state.getDataLength());
+	}
+
+	/** Verifies decoded program against data segment length, in bytes. Use <tt>DecodedProgram.getVerification()</tt> to benefit from caching. */
+	/* package */ static Result verify(DecodedProgram decodedProgram, int dataLength) {
+		final int codeLength = decodedProgram.getCodeLength();
+
+		List<String> errors = new ArrayList<>();
+		boolean[] isReachable = new boolean[codeLength];
+
+		Deque<Integer> pending = new ArrayDeque<>();
+		if (codeLength > 0) {
+			isReachable[0] = true;
+			pending.add(0);
+		}
+
+		while (!pending.isEmpty()) {
+			final int programCounter = pending.poll();
+			final int slot = decodedProgram.getSlot(programCounter);
+
+			if (slot == DecodedProgram.NOT_DECODED) {
+				errors.add(String.format("PC %04x: %s", programCounter, describeUndecoded(decodedProgram, programCounter)));
+				continue;
+			}
+
+			if (decodedProgram.getDataLimit(slot) > dataLength)
+				errors.add(String.format("PC %04x: data address out of bounds for data segment of %d bytes", programCounter, dataLength));
+
+			final OpCode opCode = decodedProgram.getOpCode(slot);
+
+			// Code addresses and branch targets have already been bounds-checked during decoding
+			for (int i = 0; i < opCode.params.length; ++i)
+				if (opCode.params[i] == OpCodeParam.CODE_ADDR || opCode.params[i] == OpCodeParam.OFFSET)
+					addReachable(decodedProgram.getArg(slot, i), isReachable, pending);
+
+			if (!isFallThrough(opCode))
+				continue;
+
+			final int nextProgramCounter = decodedProgram.getNextProgramCounter(slot);
+			if (nextProgramCounter >= codeLength)
+				errors.add(String.format("PC %04x: execution runs off end of code segment", programCounter));
+			else
+				addReachable(nextProgramCounter, isReachable, pending);
+		}
+
+		if (!errors.isEmpty()) {
+			// Report in program counter order
+			Collections.sort(errors);
+			return new Result(dataLength, Collections.unmodifiableList(errors), null);
+		}
+
+		// Only include instructions whose whole metering block fits data segment, in case PC ends up somewhere unexpected,
+		// e.g. via API rewinding code into unreachable code, which could fall through into unverified instructions
+		int[] verifiedSlotByProgramCounter = new int[codeLength];
+		for (int programCounter = 0; programCounter < codeLength; ++programCounter) {
+			final int slot = decodedProgram.getSlot(programCounter);
+
+			if (slot != DecodedProgram.NOT_DECODED && decodedProgram.getBlockDataLimit(slot) <= dataLength)
+				verifiedSlotByProgramCounter[programCounter] = slot;
+			else
+				verifiedSlotByProgramCounter[programCounter] = DecodedProgram.NOT_DECODED;
+		}
+
+		return new Result(dataLength, Collections.emptyList(), verifiedSlotByProgramCounter);
+	}
+
+	private static void addReachable(int programCounter, boolean[] isReachable, Deque<Integer> pending) {
+		if (isReachable[programCounter])
+			return;
+
+		isReachable[programCounter] = true;
+		pending.add(programCounter);
+	}
+
+	/** Returns whether execution can continue with following instruction */
+	private static boolean isFallThrough(OpCode opCode) {
+		switch (opCode) {
+			case JMP_ADR:
+			case RET_SUB:
+			case FIN_IMD:
+			case STP_IMD:
+				// RET_SUB returns to instruction after JMP_SUB, which is reachable anyway.
+				// STP_IMD resumes at stop address, which is either 0 or the instruction after SET_PCS.
+				return false;
+
+			default:
+				return true;
+		}
+	}
+
+	private static String describeUndecoded(DecodedProgram decodedProgram, int programCounter) {
+		String invalidReason = decodedProgram.getInvalidReason(programCounter);
+		if (invalidReason != null)
+			return invalidReason;
+
+		byte rawOpCode = decodedProgram.getRawOpCode(programCounter);
+		if (OpCode.valueOf(rawOpCode) == null)
+			return String.format("OpCode 0x%02x not recognised", rawOpCode);
+
+		return "not at start of instruction";
+	}
+
+}
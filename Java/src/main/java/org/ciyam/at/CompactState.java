@@ -0,0 +1,418 @@
+package org.ciyam.at;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes {@link MachineState.StateFormat#COMPACT} state bytes.
+ * <p>
+ * Layout is header, with reserved field marking format, then lengths of call stack, user stack and misc sections,
+ * then data segment words, call stack entries, user stack words and finally misc, i.e. PC, flags, A, B, etc. as in <tt>V1</tt>.
+ * <p>
+ * Data segment and user stack words are grouped into runs of zero words, which need no further bytes,
+ * small values, each as a zigzag varint, and other values, each as 8 raw bytes.
+ * Call stack entries, i.e. code addresses, are varints. All lengths and counts are varints.
+ * <p>
+ * MachineState encodes straight from, and decodes straight into, its data segment and stacks, whatever the memory model,
+ * via {@link Section}s. Converting to and from <tt>V1</tt> state bytes uses the same code.
+ *
+ * @see MachineState#toBytes(MachineState.StateFormat)
+ */
+final class CompactState {
+
+	/** Run of zero words */
+	private static final int ZERO_RUN = 0;
+	/** Run of words, each as zigzag varint */
+	private static final int VARINT_RUN = 1;
+	/** Run of words, each as 8 raw bytes */
+	private static final int RAW_RUN = 2;
+
+	private static final int RUN_KIND_BITS = 2;
+	private static final int RUN_KIND_MASK = (1 << RUN_KIND_BITS) - 1;
+
+	/** Zigzag values below this fit in 8 or fewer varint bytes */
+	private static final long MAX_VARINT_WORD = 1L << 56;
+
+	/**
+	 * Data segment or stack contents, addressed by byte offset from start of section, i.e. from stack pointer for stacks.
+	 * <p>
+	 * Sections backed by arrays only hold whole entries, so don't support accesses of other sizes.
+	 */
+	/* package */ static abstract class Section {
+		public long getLong(int offset) {
+			throw new UnsupportedOperationException();
+		}
+
+		public int getInt(int offset) {
+			throw new UnsupportedOperationException();
+		}
+
+		public byte get(int offset) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void putLong(int offset, long value) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void putInt(int offset, int value) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void put(int offset, byte value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/** Section of big-endian ByteBuffer, from <tt>baseOffset</tt>, using absolute gets and puts so position is untouched */
+	/* package */ static final class BytesSection extends Section {
+		private final ByteBuffer bytes;
+		private final int baseOffset;
+
+		public BytesSection(ByteBuffer bytes, int baseOffset) {
+			this.bytes = bytes;
+			this.baseOffset = baseOffset;
+		}
+
+		@Override
+		public long getLong(int offset) {
+			return this.bytes.getLong(this.baseOffset + offset);
+		}
+
+		@Override
+		public int getInt(int offset) {
+			return this.bytes.getInt(this.baseOffset + offset);
+		}
+
+		@Override
+		public byte get(int offset) {
+			return this.bytes.get(this.baseOffset + offset);
+		}
+
+		@Override
+		public void putLong(int offset, long value) {
+			this.bytes.putLong(this.baseOffset + offset, value);
+		}
+
+		@Override
+		public void putInt(int offset, int value) {
+			this.bytes.putInt(this.baseOffset + offset, value);
+		}
+
+		@Override
+		public void put(int offset, byte value) {
+			this.bytes.put(this.baseOffset + offset, value);
+		}
+	}
+
+	/** Section of <tt>long[]</tt>, e.g. data segment or user stack, from <tt>fromIndex</tt> */
+	/* package */ static final class LongsSection extends Section {
+		private final long[] values;
+		private final int fromIndex;
+
+		public LongsSection(long[] values, int fromIndex) {
+			this.values = values;
+			this.fromIndex = fromIndex;
+		}
+
+		@Override
+		public long getLong(int offset) {
+			return this.values[this.fromIndex + offset / MachineState.VALUE_SIZE];
+		}
+
+		@Override
+		public void putLong(int offset, long value) {
+			this.values[this.fromIndex + offset / MachineState.VALUE_SIZE] = value;
+		}
+	}
+
+	/** Section of <tt>int[]</tt>, i.e. call stack, from <tt>fromIndex</tt> */
+	/* package */ static final class IntsSection extends Section {
+		private final int[] values;
+		private final int fromIndex;
+
+		public IntsSection(int[] values, int fromIndex) {
+			this.values = values;
+			this.fromIndex = fromIndex;
+		}
+
+		@Override
+		public int getInt(int offset) {
+			return this.values[this.fromIndex + offset / MachineState.ADDRESS_SIZE];
+		}
+
+		@Override
+		public void putInt(int offset, int value) {
+			this.values[this.fromIndex + offset / MachineState.ADDRESS_SIZE] = value;
+		}
+	}
+
+	private CompactState() {
+	}
+
+	/** Returns compact state bytes from <tt>V1</tt> state bytes */
+	public static byte[] encode(byte[] stateBytes) {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
+
+		final int dataOffset = MachineState.HEADER_LENGTH;
+		final int dataLength = MachineState.extractDataLength(stateBytes);
+
+		final int callStackLength = byteBuffer.getInt(dataOffset + dataLength);
+		final int callStackOffset = dataOffset + dataLength + 4;
+
+		final int userStackLength = byteBuffer.getInt(callStackOffset + callStackLength);
+		final int userStackOffset = callStackOffset + callStackLength + 4;
+
+		final int miscOffset = userStackOffset + userStackLength;
+		final int miscLength = stateBytes.length - miscOffset;
+
+		Section data = new BytesSection(byteBuffer, dataOffset);
+		Section callStack = new BytesSection(byteBuffer, callStackOffset);
+		Section userStack = new BytesSection(byteBuffer, userStackOffset);
+
+		// Size first, so output is exactly sized
+		final int compactLength = MachineState.HEADER_LENGTH + encodeLengths(null, callStackLength, userStackLength, miscLength)
+				+ encodeWords(null, data, dataLength) + encodeEntries(null, callStack, callStackLength) + encodeWords(null, userStack, userStackLength)
+				+ miscLength;
+
+		byte[] compactBytes = new byte[compactLength];
+		ByteBuffer compact = ByteBuffer.wrap(compactBytes);
+
+		// Header, with reserved field marking format
+		compact.put(stateBytes, 0, MachineState.HEADER_LENGTH);
+		compact.putShort(2 /*version*/, MachineState.COMPACT_RESERVED);
+
+		encodeLengths(compact, callStackLength, userStackLength, miscLength);
+		encodeWords(compact, data, dataLength);
+		encodeEntries(compact, callStack, callStackLength);
+		encodeWords(compact, userStack, userStackLength);
+
+		compact.put(stateBytes, miscOffset, miscLength);
+
+		return compactBytes;
+	}
+
+	/**
+	 * Returns <tt>V1</tt> state bytes from compact state bytes.
+	 *
+	 * @throws IllegalArgumentException if compact state bytes are malformed
+	 */
+	public static byte[] decode(byte[] compactBytes) {
+		try {
+			ByteBuffer compact = ByteBuffer.wrap(compactBytes);
+			compact.position(MachineState.HEADER_LENGTH);
+
+			final int dataLength = MachineState.extractDataLength(compactBytes);
+			final int callStackLength = getVarLength(compact, MachineState.extractCallStackCapacity(compactBytes));
+			final int userStackLength = getVarLength(compact, MachineState.extractUserStackCapacity(compactBytes));
+			final int miscLength = getVarLength(compact, compactBytes.length);
+
+			byte[] stateBytes = new byte[MachineState.HEADER_LENGTH + dataLength + 4 + callStackLength + 4 + userStackLength + miscLength];
+			ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
+
+			// Header, with reserved field back to zero
+			byteBuffer.put(compactBytes, 0, MachineState.HEADER_LENGTH);
+			byteBuffer.putShort(2 /*version*/, (short) 0);
+
+			decodeWords(compact, new BytesSection(byteBuffer, byteBuffer.position()), dataLength);
+			byteBuffer.position(byteBuffer.position() + dataLength);
+
+			byteBuffer.putInt(callStackLength);
+			decodeEntries(compact, new BytesSection(byteBuffer, byteBuffer.position()), callStackLength);
+			byteBuffer.position(byteBuffer.position() + callStackLength);
+
+			byteBuffer.putInt(userStackLength);
+			decodeWords(compact, new BytesSection(byteBuffer, byteBuffer.position()), userStackLength);
+			byteBuffer.position(byteBuffer.position() + userStackLength);
+
+			checkMiscLength(compact, miscLength);
+
+			byteBuffer.put(compact);
+
+			return stateBytes;
+		} catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated compact state bytes", e);
+		}
+	}
+
+	/** Writes lengths of call stack, user stack and misc sections, returning number of bytes. Only counts if <tt>compact</tt> is null. */
+	/* package */ static int encodeLengths(ByteBuffer compact, int callStackLength, int userStackLength, int miscLength) {
+		return putVarLong(compact, callStackLength) + putVarLong(compact, userStackLength) + putVarLong(compact, miscLength);
+	}
+
+	/**
+	 * Writes <tt>length</tt> bytes of <tt>section</tt> as runs of words, then any trailing partial word as raw bytes,
+	 * returning number of bytes. Only counts if <tt>compact</tt> is null.
+	 */
+	/* package */ static int encodeWords(ByteBuffer compact, Section section, int length) {
+		final int wordCount = length / MachineState.VALUE_SIZE;
+		int encodedLength = 0;
+
+		int word = 0;
+		while (word < wordCount) {
+			final int firstWord = word;
+			final int runKind = runKind(section.getLong(word * MachineState.VALUE_SIZE));
+
+			do
+				++word;
+			while (word < wordCount && runKind(section.getLong(word * MachineState.VALUE_SIZE)) == runKind);
+
+			final int runLength = word - firstWord;
+			encodedLength += putVarLong(compact, ((long) runLength << RUN_KIND_BITS) | runKind);
+
+			if (runKind == VARINT_RUN) {
+				for (int i = firstWord; i < word; ++i)
+					encodedLength += putVarLong(compact, zigzag(section.getLong(i * MachineState.VALUE_SIZE)));
+			} else if (runKind == RAW_RUN) {
+				if (compact != null)
+					for (int i = firstWord; i < word; ++i)
+						compact.putLong(section.getLong(i * MachineState.VALUE_SIZE));
+
+				encodedLength += runLength * MachineState.VALUE_SIZE;
+			}
+		}
+
+		return encodedLength + putPartial(compact, section, wordCount * MachineState.VALUE_SIZE, length);
+	}
+
+	/** Writes <tt>length</tt> bytes of call stack <tt>section</tt> as varint entries, then any trailing partial entry as raw bytes */
+	/* package */ static int encodeEntries(ByteBuffer compact, Section section, int length) {
+		final int entryCount = length / MachineState.ADDRESS_SIZE;
+		int encodedLength = 0;
+
+		for (int i = 0; i < entryCount; ++i)
+			encodedLength += putVarLong(compact, section.getInt(i * MachineState.ADDRESS_SIZE) & 0xffffffffL);
+
+		return encodedLength + putPartial(compact, section, entryCount * MachineState.ADDRESS_SIZE, length);
+	}
+
+	/** Reads runs of words, then any trailing partial word, into <tt>section</tt>, overwriting every byte including zero runs */
+	/* package */ static void decodeWords(ByteBuffer compact, Section section, int length) {
+		final int wordCount = length / MachineState.VALUE_SIZE;
+
+		int word = 0;
+		while (word < wordCount) {
+			final long run = getVarLong(compact);
+			final long runLength = run >>> RUN_KIND_BITS;
+
+			if (runLength <= 0 || runLength > wordCount - word)
+				throw new IllegalArgumentException("Invalid run length in compact state bytes");
+
+			final int endWord = word + (int) runLength;
+
+			switch ((int) run & RUN_KIND_MASK) {
+				case ZERO_RUN:
+					for (int i = word; i < endWord; ++i)
+						section.putLong(i * MachineState.VALUE_SIZE, 0L);
+					break;
+
+				case VARINT_RUN:
+					for (int i = word; i < endWord; ++i)
+						section.putLong(i * MachineState.VALUE_SIZE, unzigzag(getVarLong(compact)));
+					break;
+
+				case RAW_RUN:
+					for (int i = word; i < endWord; ++i)
+						section.putLong(i * MachineState.VALUE_SIZE, compact.getLong());
+					break;
+
+				default:
+					throw new IllegalArgumentException("Invalid run kind in compact state bytes");
+			}
+
+			word = endWord;
+		}
+
+		getPartial(compact, section, wordCount * MachineState.VALUE_SIZE, length);
+	}
+
+	/** Reads varint call stack entries, then any trailing partial entry, into <tt>section</tt> */
+	/* package */ static void decodeEntries(ByteBuffer compact, Section section, int length) {
+		final int entryCount = length / MachineState.ADDRESS_SIZE;
+
+		for (int i = 0; i < entryCount; ++i)
+			section.putInt(i * MachineState.ADDRESS_SIZE, (int) getVarLong(compact));
+
+		getPartial(compact, section, entryCount * MachineState.ADDRESS_SIZE, length);
+	}
+
+	/** Checks misc section, which follows stacks, is exactly what remains of <tt>compact</tt> */
+	/* package */ static void checkMiscLength(ByteBuffer compact, int miscLength) {
+		if (compact.remaining() != miscLength)
+			throw new IllegalArgumentException("Invalid misc length in compact state bytes");
+	}
+
+	/** Writes section's bytes from <tt>fromOffset</tt> to <tt>toOffset</tt> as raw bytes, returning number of bytes */
+	private static int putPartial(ByteBuffer compact, Section section, int fromOffset, int toOffset) {
+		if (compact != null)
+			for (int offset = fromOffset; offset < toOffset; ++offset)
+				compact.put(section.get(offset));
+
+		return toOffset - fromOffset;
+	}
+
+	/** Reads raw bytes into section from <tt>fromOffset</tt> to <tt>toOffset</tt> */
+	private static void getPartial(ByteBuffer compact, Section section, int fromOffset, int toOffset) {
+		for (int offset = fromOffset; offset < toOffset; ++offset)
+			section.put(offset, compact.get());
+	}
+
+	private static int runKind(long value) {
+		if (value == 0L)
+			return ZERO_RUN;
+
+		return Long.compareUnsigned(zigzag(value), MAX_VARINT_WORD) < 0 ? VARINT_RUN : RAW_RUN;
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/** Writes unsigned LEB128 varint, returning number of bytes. Only counts if <tt>compact</tt> is null. */
+	private static int putVarLong(ByteBuffer compact, long value) {
+		int length = 1;
+
+		while ((value & ~0x7fL) != 0) {
+			if (compact != null)
+				compact.put((byte) ((value & 0x7f) | 0x80));
+
+			value >>>= 7;
+			++length;
+		}
+
+		if (compact != null)
+			compact.put((byte) value);
+
+		return length;
+	}
+
+	/** Reads unsigned LEB128 varint */
+	private static long getVarLong(ByteBuffer compact) {
+		long value = 0;
+
+		for (int shift = 0; shift < Long.SIZE; shift += 7) {
+			final byte b = compact.get();
+			value |= (long) (b & 0x7f) << shift;
+
+			if (b >= 0)
+				return value;
+		}
+
+		throw new IllegalArgumentException("Invalid varint in compact state bytes");
+	}
+
+	/** Reads varint length, which must be no more than <tt>maxLength</tt> */
+	/* package */ static int getVarLength(ByteBuffer compact, int maxLength) {
+		final long length = getVarLong(compact);
+
+		if (length < 0 || length > maxLength)
+			throw new IllegalArgumentException("Invalid length in compact state bytes");
+
+		return (int) length;
+	}
+
+}
@@ -0,0 +1,88 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AT code compiled into JVM bytecode, one basic block at a time.
+ * <p>
+ * Each block is a run of straight-line data opcodes, optionally ending in a jump or branch,
+ * that can't fail once the data segment is known to be big enough. Blocks are executed in one go,
+ * with steps and fees charged for the whole block up front by <tt>MachineState</tt>.
+ * <p>
+ * Opcodes that can fail, touch stacks, call functions or change machine state flags
+ * are left to the interpreter.
+ *
+ * @see BytecodeCompiler
+ */
+final class CompiledProgram {
+
+	/** Returned by <tt>getBlock</tt> if there is no compiled block starting at program counter */
+	public static final int NO_BLOCK = -1;
+
+	/** Implemented by generated class, which is defined by its own classloader, so must be public */
+	public interface Code {
+		/** Executes block, returning program counter of next instruction */
+		int execute(int block, ByteBuffer dataByteBuffer);
+	}
+
+	/** Block index by program counter, or NO_BLOCK */
+	private final int[] blockByProgramCounter;
+
+	/** Minimum data segment length needed by each block */
+	private final int[] blockDataLimits;
+
+	/** OpCode ordinals of each block's instructions, for metering */
+	private final int[][] blockOpCodes;
+
+	/** Distinct data addresses written by each block, for dirty page tracking */
+	private final int[][] blockWrittenAddresses;
+
+	/** Generated code, or null if there are no blocks */
+	private final Code code;
+
+	/* package */ CompiledProgram(int[] blockByProgramCounter, int[] blockDataLimits, int[][] blockOpCodes, int[][] blockWrittenAddresses, Code code) {
+		this.blockByProgramCounter = blockByProgramCounter;
+		this.blockDataLimits = blockDataLimits;
+		this.blockOpCodes = blockOpCodes;
+		this.blockWrittenAddresses = blockWrittenAddresses;
+		this.code = code;
+	}
+
+	/** Returns number of compiled blocks */
+	public int getBlockCount() {
+		return this.blockOpCodes.length;
+	}
+
+	/** Returns compiled block starting at program counter, or NO_BLOCK, also checking data segment is big enough */
+	public int getBlock(int programCounter, int dataLength) {
+		if (programCounter < 0 || programCounter >= this.blockByProgramCounter.length)
+			return NO_BLOCK;
+
+		final int block = this.blockByProgramCounter[programCounter];
+		if (block == NO_BLOCK || this.blockDataLimits[block] > dataLength)
+			return NO_BLOCK;
+
+		return block;
+	}
+
+	/** Returns OpCode ordinals of block's instructions. Do not modify! */
+	public int[] getBlockOpCodes(int block) {
+		return this.blockOpCodes[block];
+	}
+
+	/** Returns distinct data addresses written by block. Blocks only branch at end, so every address is written. Do not modify! */
+	public int[] getBlockWrittenAddresses(int block) {
+		return this.blockWrittenAddresses[block];
+	}
+
+	/** Returns generated class, or null if there are no blocks */
+	/* package */ Class<?> getCodeClass() {
+		return this.code != null ? this.code.getClass() : null;
+	}
+
+	/** Executes block against data segment, returning program counter of next instruction */
+	public int execute(int block, ByteBuffer dataByteBuffer) {
+		return this.code.execute(block, dataByteBuffer);
+	}
+
+}
@@ -0,0 +1,1158 @@
+package org.ciyam.at;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pre-decoded form of an AT's code segment.
+ * <p>
+ * Code bytes are read-only, so instead of re-decoding each opcode and its params from raw bytes on every step,
+ * the code segment is decoded once into a compact <tt>int[]</tt> holding, per instruction:
+ * <ul>
+ * <li>OpCode ordinal</li>
+ * <li>program counter of the following instruction</li>
+ * <li>data addresses, already scaled by <tt>MachineState.VALUE_SIZE</tt></li>
+ * <li>resolved branch/jump targets</li>
+ * <li>raw function code and resolved FunctionCode ordinal</li>
+ * </ul>
+ * Immediate values are held separately in a <tt>long[]</tt>.
+ * <p>
+ * Decoding is a linear sweep from the start of the code segment. Any instruction that would fail during operand fetching,
+ * (e.g. out-of-bounds addresses or unknown function codes), or any program counter that doesn't start a decoded instruction,
+ * (e.g. a jump into the middle of an instruction), is left undecoded so that <tt>MachineState.execute()</tt> falls back
+ * to the original <tt>OpCode.execute</tt> path, which produces the exact same errors as before.
+ * <p>
+ * Static data addresses can't be validated without knowing the data segment size, so each instruction records the minimum
+ * data segment length it needs. Instructions are only executed in decoded form if the data segment is big enough.
+ * <p>
+ * Runs of decoded instructions that always execute in sequence are grouped into metering blocks,
+ * so <tt>MachineState</tt> can charge steps and fees for a whole block with one check.
+ * Common pairs of instructions within a block are also fused into superinstructions, see {@link Superinstruction}.
+ * <p>
+ * Decoded programs are immutable and shared between all MachineStates with the same code, via {@link Program}.
+ *
+ * @see DecodedProgram#fromCodeBytes(ByteBuffer)
+ */
+final class DecodedProgram {
+
+	/** Returned by <tt>getSlot</tt> if there is no decoded instruction at program counter */
+	public static final int NOT_DECODED = -1;
+
+	/** Returned by <tt>getSuperinstruction</tt> if instruction isn't fused with the following instruction */
+	public static final int NO_SUPERINSTRUCTION = -1;
+
+	// Layout of each instruction within instructions[]
+	private static final int OPCODE = 0;
+	private static final int NEXT_PC = 1;
+	private static final int DATA_LIMIT = 2;
+	private static final int FUNCTION = 3;
+	private static final int ARG1 = 4;
+	private static final int ARG2 = 5;
+	private static final int ARG3 = 6;
+	private static final int ARG4 = 7;
+	private static final int INSTRUCTION_SIZE = 8;
+
+	private static final OpCode[] OPCODES = OpCode.values();
+	private static final FunctionCode[] FUNCTION_CODES = FunctionCode.values();
+	private static final Superinstruction[] SUPERINSTRUCTIONS = Superinstruction.values();
+
+	private static final long MAX_SHIFT = MachineState.VALUE_SIZE * 8L;
+
+	/** Maximum number of instructions in a metering block */
+	private static final int MAX_BLOCK_LENGTH = 32;
+
+	/** Length of code segment */
+	private final int codeLength;
+
+	/** Code bytes, shared with {@link Program}, for diagnostics */
+	private final byte[] codeBytes;
+
+	/** Index into instructions[] by program counter, or NOT_DECODED */
+	private final int[] slotByProgramCounter;
+
+	/** Decoded instructions, INSTRUCTION_SIZE ints each */
+	private final int[] instructions;
+
+	/** Immediate values, indexed by instruction args */
+	private final long[] values;
+
+	/** Number of instructions in metering block starting at each decoded instruction, by instruction index */
+	private final int[] blockLengths;
+
+	/** Minimum data segment length needed by metering block starting at each decoded instruction, by instruction index */
+	private final int[] blockDataLimits;
+
+	/** Superinstruction ordinal fusing instruction with following instruction, or NO_SUPERINSTRUCTION, by instruction index */
+	private final int[] superinstructions;
+
+	/** Why instructions with known opcodes couldn't be decoded, by program counter */
+	private final Map<Integer, String> invalidReasons;
+
+	/** Most recent verification result, along with data segment length it was verified against */
+	private volatile CodeVerifier.Result verification;
+
+	/** Number of execution rounds using this program, for promotion to compiled tier */
+	private final AtomicInteger executionRounds = new AtomicInteger();
+
+	/** Compiled form of this program, or null if not compiled (yet) */
+	private volatile CompiledProgram compiledProgram;
+
+	/** Whether compilation was attempted but failed, so don't try again */
+	private volatile boolean hasCompilationFailed;
+
+	private DecodedProgram(byte[] codeBytes, int[] slotByProgramCounter, int[] instructions, long[] values, Map<Integer, String> invalidReasons) {
+		this.codeBytes = codeBytes;
+		this.codeLength = codeBytes.length;
+		this.slotByProgramCounter = slotByProgramCounter;
+		this.instructions = instructions;
+		this.values = values;
+		this.invalidReasons = invalidReasons;
+
+		final int instructionCount = instructions.length / INSTRUCTION_SIZE;
+		this.blockLengths = new int[instructionCount];
+		this.blockDataLimits = new int[instructionCount];
+		this.buildBlocks();
+
+		this.superinstructions = new int[instructionCount];
+		this.fuseSuperinstructions();
+	}
+
+	/**
+	 * Returns decoded program for code bytes, shared via {@link Program} cache if possible.
+	 * <p>
+	 * Uses the entire code segment, i.e. from 0 up to <tt>codeByteBuffer.limit()</tt>, regardless of current position.
+	 *
+	 * @param codeByteBuffer
+	 * @return DecodedProgram
+	 */
+	public static DecodedProgram fromCodeBytes(ByteBuffer codeByteBuffer) {
+		return Program.fromCodeBytes(codeByteBuffer).getDecodedProgram();
+	}
+
+	/**
+	 * Decodes code bytes.
+	 * <p>
+	 * Decoded program keeps <tt>codeBytes</tt>, rather than a copy, e.g. sharing {@link Program}'s array, so they mustn't be modified afterwards.
+	 */
+	/* package */ static DecodedProgram decode(byte[] codeBytes) {
+		final int codeLength = codeBytes.length;
+		final ByteBuffer codeByteBuffer = ByteBuffer.wrap(codeBytes);
+
+		int[] slotByProgramCounter = new int[codeLength];
+		Arrays.fill(slotByProgramCounter, NOT_DECODED);
+
+		// Worst case is every byte being a single-byte instruction
+		int[] instructions = new int[codeLength * INSTRUCTION_SIZE];
+		int instructionsLength = 0;
+
+		long[] values = new long[16];
+		int valuesLength = 0;
+
+		int[] args = new int[4];
+
+		Map<Integer, String> invalidReasons = new TreeMap<>();
+
+		int programCounter = 0;
+		while (programCounter < codeLength) {
+			OpCode opCode = OpCode.valueOf(codeByteBuffer.get(programCounter));
+			if (opCode == null) {
+				// Unknown opcode, or zero padding - leave for OpCode.execute() to throw if ever reached
+				++programCounter;
+				continue;
+			}
+
+			int position = programCounter + MachineState.OPCODE_SIZE;
+			String invalidReason = null;
+			int dataLimit = 0;
+			int functionOrdinal = 0;
+
+			for (int i = 0; i < opCode.params.length; ++i) {
+				OpCodeParam param = opCode.params[i];
+
+				final int paramSize = paramSize(param);
+				if (position + paramSize > codeLength) {
+					// Truncated instruction - OpCode.execute() will throw CodeSegmentException
+					invalidReason = "instruction truncated by end of code segment";
+					position = codeLength;
+					break;
+				}
+
+				switch (param) {
+					case VALUE:
+						if (valuesLength == values.length)
+							values = Arrays.copyOf(values, valuesLength * 2);
+
+						args[i] = valuesLength;
+						values[valuesLength++] = codeByteBuffer.getLong(position);
+						break;
+
+					case DEST_ADDR:
+					case INDIRECT_DEST_ADDR:
+					case INDIRECT_DEST_ADDR_WITH_INDEX:
+					case SRC_ADDR:
+					case INDIRECT_SRC_ADDR:
+					case INDIRECT_SRC_ADDR_WITH_INDEX:
+					case INDEX: {
+						// Same int arithmetic as Utils.getDataAddress()
+						final int address = codeByteBuffer.getInt(position) * MachineState.VALUE_SIZE;
+
+						if (address < 0 || address > Integer.MAX_VALUE - MachineState.VALUE_SIZE)
+							invalidReason = String.format("data address 0x%08x out of bounds", codeByteBuffer.getInt(position));
+						else
+							dataLimit = Math.max(dataLimit, address + MachineState.VALUE_SIZE);
+
+						args[i] = address;
+						break;
+					}
+
+					case CODE_ADDR: {
+						// Same checks as Utils.getCodeAddress()
+						final int address = codeByteBuffer.getInt(position);
+
+						if (address < 0 || address > MachineState.MAX_CODE_ADDRESS || address >= codeLength)
+							invalidReason = String.format("code address 0x%08x out of bounds", address);
+
+						args[i] = address;
+						break;
+					}
+
+					case OFFSET: {
+						// Same checks as OpCode.calculateBranchTarget()
+						final int branchTarget = programCounter + codeByteBuffer.get(position);
+
+						if (branchTarget < 0 || branchTarget >= codeLength)
+							invalidReason = String.format("branch target 0x%08x out of bounds", branchTarget);
+
+						args[i] = branchTarget;
+						break;
+					}
+
+					case FUNC: {
+						final short rawFunctionCode = codeByteBuffer.getShort(position);
+						FunctionCode functionCode = FunctionCode.valueOf(rawFunctionCode);
+
+						if (functionCode == null) {
+							invalidReason = String.format("unknown function code 0x%04x", rawFunctionCode);
+						} else {
+							try {
+								opCode.preExecuteCheck(rawFunctionCode);
+								functionOrdinal = functionCode.ordinal();
+							} catch (ExecutionException e) {
+								invalidReason = e.getMessage();
+							}
+						}
+
+						args[i] = rawFunctionCode;
+						break;
+					}
+
+					case BLOCK_HEIGHT: {
+						// SLP_DAT fetches its value from the code segment, which we can do now
+						final int address = codeByteBuffer.getInt(position);
+
+						if (address < 0 || address > codeLength - MachineState.VALUE_SIZE)
+							invalidReason = String.format("block height address 0x%08x out of bounds", address);
+						else
+							args[i] = (int) codeByteBuffer.getLong(address);
+
+						break;
+					}
+				}
+
+				position += paramSize;
+			}
+
+			if (invalidReason == null) {
+				slotByProgramCounter[programCounter] = instructionsLength;
+
+				instructions[instructionsLength + OPCODE] = opCode.ordinal();
+				instructions[instructionsLength + NEXT_PC] = position;
+				instructions[instructionsLength + DATA_LIMIT] = dataLimit;
+				instructions[instructionsLength + FUNCTION] = functionOrdinal;
+				System.arraycopy(args, 0, instructions, instructionsLength + ARG1, opCode.params.length);
+
+				instructionsLength += INSTRUCTION_SIZE;
+			} else {
+				invalidReasons.put(programCounter, invalidReason);
+			}
+
+			programCounter = position;
+		}
+
+		return new DecodedProgram(codeBytes, slotByProgramCounter, Arrays.copyOf(instructions, instructionsLength), Arrays.copyOf(values, valuesLength),
+				invalidReasons.isEmpty() ? Collections.emptyMap() : invalidReasons);
+	}
+
+	/**
+	 * Writes decoded form, along with execution round count, for {@link ProgramCache}.
+	 * <p>
+	 * Code bytes aren't written, as caller writes them beforehand. Metering blocks and superinstructions are quick to rebuild so aren't written either.
+	 * Nor are verification results, as fast paths rely on them, so programs are always verified again after loading.
+	 */
+	/* package */ void writeTo(DataOutputStream out) throws IOException {
+		ProgramCache.writeInts(out, this.slotByProgramCounter);
+
+		out.writeInt(this.instructions.length);
+		ProgramCache.writeInts(out, this.instructions);
+
+		out.writeInt(this.values.length);
+		for (long value : this.values)
+			out.writeLong(value);
+
+		out.writeInt(this.invalidReasons.size());
+		for (Map.Entry<Integer, String> entry : this.invalidReasons.entrySet()) {
+			out.writeInt(entry.getKey());
+			ProgramCache.writeString(out, entry.getValue());
+		}
+
+		out.writeInt(this.executionRounds.get());
+	}
+
+	/**
+	 * Returns decoded program read from {@link ProgramCache} file, without decoding <tt>codeBytes</tt> again.
+	 * <p>
+	 * Each decoded instruction is checked against <tt>codeBytes</tt>, see {@link #checkInstruction(byte[], int, int[], int, int)}.
+	 *
+	 * @throws IllegalArgumentException if decoded form is inconsistent
+	 * @throws java.nio.BufferUnderflowException if decoded form is truncated
+	 */
+	/* package */ static DecodedProgram readFrom(ByteBuffer in, byte[] codeBytes) {
+		final int codeLength = codeBytes.length;
+
+		int[] slotByProgramCounter = ProgramCache.readInts(in, codeLength);
+		int[] instructions = ProgramCache.readInts(in, in.getInt());
+
+		if (instructions.length % INSTRUCTION_SIZE != 0)
+			throw new IllegalArgumentException("Invalid decoded instructions length");
+
+		final int valuesLength = ProgramCache.checkLength(in, in.getInt(), Long.BYTES);
+		long[] values = new long[valuesLength];
+		in.asLongBuffer().get(values);
+		in.position(in.position() + valuesLength * Long.BYTES);
+
+		// Slots are allocated in program counter order, so every instruction must belong to exactly one program counter
+		int expectedSlot = 0;
+		for (int programCounter = 0; programCounter < codeLength; ++programCounter) {
+			final int slot = slotByProgramCounter[programCounter];
+			if (slot == NOT_DECODED)
+				continue;
+
+			if (slot != expectedSlot || slot >= instructions.length)
+				throw new IllegalArgumentException("Invalid decoded instruction slot");
+
+			checkInstruction(codeBytes, programCounter, instructions, slot, valuesLength);
+			expectedSlot += INSTRUCTION_SIZE;
+		}
+
+		if (expectedSlot != instructions.length)
+			throw new IllegalArgumentException("Unexpected decoded instructions");
+
+		final int invalidReasonCount = ProgramCache.checkLength(in, in.getInt(), Integer.BYTES);
+		Map<Integer, String> invalidReasons = invalidReasonCount == 0 ? Collections.emptyMap() : new TreeMap<>();
+		for (int i = 0; i < invalidReasonCount; ++i) {
+			final int programCounter = in.getInt();
+			invalidReasons.put(programCounter, ProgramCache.readString(in));
+		}
+
+		DecodedProgram decodedProgram = new DecodedProgram(codeBytes, slotByProgramCounter, instructions, values, invalidReasons);
+		decodedProgram.executionRounds.set(in.getInt());
+
+		return decodedProgram;
+	}
+
+	/**
+	 * Checks loaded instruction at <tt>slot</tt> matches its program counter in <tt>codeBytes</tt>, so can't make fast paths read out of bounds.
+	 * <p>
+	 * Opcode must match code byte at program counter, and following program counter must match opcode's params.
+	 * Function ordinal, value indexes, code addresses and branch targets must all be in range,
+	 * and data addresses must fit within instruction's minimum data segment length.
+	 *
+	 * @throws IllegalArgumentException if not
+	 */
+	private static void checkInstruction(byte[] codeBytes, int programCounter, int[] instructions, int slot, int valuesLength) {
+		final int opCodeOrdinal = instructions[slot + OPCODE];
+		if (opCodeOrdinal < 0 || opCodeOrdinal >= OPCODES.length || OPCODES[opCodeOrdinal].value != codeBytes[programCounter])
+			throw new IllegalArgumentException(String.format("Decoded opcode doesn't match code at %04x", programCounter));
+
+		final OpCode opCode = OPCODES[opCodeOrdinal];
+
+		int nextProgramCounter = programCounter + MachineState.OPCODE_SIZE;
+		for (OpCodeParam param : opCode.params)
+			nextProgramCounter += paramSize(param);
+
+		if (nextProgramCounter > codeBytes.length || instructions[slot + NEXT_PC] != nextProgramCounter)
+			throw new IllegalArgumentException(String.format("Invalid decoded next program counter at %04x", programCounter));
+
+		final int functionOrdinal = instructions[slot + FUNCTION];
+		if (functionOrdinal < 0 || functionOrdinal >= FUNCTION_CODES.length)
+			throw new IllegalArgumentException(String.format("Invalid decoded function code at %04x", programCounter));
+
+		final long dataLimit = instructions[slot + DATA_LIMIT];
+
+		for (int i = 0; i < opCode.params.length; ++i) {
+			final int arg = instructions[slot + ARG1 + i];
+			final boolean isValid;
+
+			switch (opCode.params[i]) {
+				case VALUE:
+					isValid = arg >= 0 && arg < valuesLength;
+					break;
+
+				case CODE_ADDR:
+				case OFFSET:
+					isValid = arg >= 0 && arg < codeBytes.length;
+					break;
+
+				case FUNC:
+					isValid = FunctionCode.valueOf((short) arg) == FUNCTION_CODES[functionOrdinal];
+					break;
+
+				case BLOCK_HEIGHT:
+					isValid = true;
+					break;
+
+				default:
+					// Data addresses
+					isValid = arg >= 0 && arg % MachineState.VALUE_SIZE == 0 && (long) arg + MachineState.VALUE_SIZE <= dataLimit;
+					break;
+			}
+
+			if (!isValid)
+				throw new IllegalArgumentException(String.format("Invalid decoded param %d at %04x", i + 1, programCounter));
+		}
+	}
+
+	/**
+	 * Works out metering blocks, i.e. runs of consecutive decoded instructions that always execute in sequence unless an error occurs.
+	 * <p>
+	 * A block ends with any instruction that can change program counter, stop/sleep/finish execution or call a function
+	 * (other than A/B register functions), or before any instruction that couldn't be decoded.
+	 */
+	private void buildBlocks() {
+		final int instructionCount = this.blockLengths.length;
+
+		// Work backwards so following instruction's block length is already known
+		for (int index = instructionCount - 1; index >= 0; --index) {
+			final int slot = index * INSTRUCTION_SIZE;
+			final int nextProgramCounter = this.instructions[slot + NEXT_PC];
+
+			final boolean continuesBlock = this.isBlockContinuation(slot)
+					&& index + 1 < instructionCount
+					&& nextProgramCounter < this.codeLength
+					&& this.slotByProgramCounter[nextProgramCounter] == slot + INSTRUCTION_SIZE;
+
+			this.blockLengths[index] = continuesBlock ? Math.min(MAX_BLOCK_LENGTH, 1 + this.blockLengths[index + 1]) : 1;
+
+			int dataLimit = 0;
+			for (int i = 0; i < this.blockLengths[index]; ++i)
+				dataLimit = Math.max(dataLimit, this.instructions[slot + i * INSTRUCTION_SIZE + DATA_LIMIT]);
+
+			this.blockDataLimits[index] = dataLimit;
+		}
+	}
+
+	/** Pairs consecutive instructions within metering blocks into superinstructions, where possible */
+	private void fuseSuperinstructions() {
+		for (int index = 0; index < this.superinstructions.length; ++index) {
+			this.superinstructions[index] = NO_SUPERINSTRUCTION;
+
+			// Following instruction must be in same block, and not already fused with its predecessor
+			if (this.blockLengths[index] < 2 || (index > 0 && this.superinstructions[index - 1] != NO_SUPERINSTRUCTION))
+				continue;
+
+			final int slot = index * INSTRUCTION_SIZE;
+			Superinstruction superinstruction = Superinstruction.valueOf(OPCODES[this.instructions[slot + OPCODE]],
+					OPCODES[this.instructions[slot + INSTRUCTION_SIZE + OPCODE]]);
+
+			if (superinstruction != null)
+				this.superinstructions[index] = superinstruction.ordinal();
+		}
+	}
+
+	/** Returns whether execution of instruction in slot always carries on with following instruction, barring errors */
+	private boolean isBlockContinuation(int slot) {
+		final OpCode opCode = OPCODES[this.instructions[slot + OPCODE]];
+
+		switch (opCode) {
+			case EXT_FUN:
+			case EXT_FUN_DAT:
+			case EXT_FUN_DAT_2:
+			case EXT_FUN_RET:
+			case EXT_FUN_RET_DAT:
+			case EXT_FUN_RET_DAT_2:
+				return isRegisterFunction(FUNCTION_CODES[this.instructions[slot + FUNCTION]]);
+
+			default:
+				return isBlockContinuation(opCode);
+		}
+	}
+
+	/**
+	 * Returns whether function only accesses A/B registers and data segment, i.e. <tt>0x01xx</tt> function codes.
+	 * <p>
+	 * These don't call API, observe balance or steps, or change program counter or execution flags, so can be part of a metering block.
+	 */
+	private static boolean isRegisterFunction(FunctionCode functionCode) {
+		return (functionCode.value & 0xff00) == 0x0100;
+	}
+
+	/** Returns whether execution always carries on with following instruction, barring errors */
+	private static boolean isBlockContinuation(OpCode opCode) {
+		switch (opCode) {
+			case NOP:
+			case SET_VAL:
+			case SET_DAT:
+			case CLR_DAT:
+			case INC_DAT:
+			case DEC_DAT:
+			case ADD_DAT:
+			case SUB_DAT:
+			case MUL_DAT:
+			case DIV_DAT:
+			case BOR_DAT:
+			case AND_DAT:
+			case XOR_DAT:
+			case NOT_DAT:
+			case SET_IND:
+			case SET_IDX:
+			case PSH_DAT:
+			case POP_DAT:
+			case IND_DAT:
+			case IDX_DAT:
+			case MOD_DAT:
+			case SHL_DAT:
+			case SHR_DAT:
+			case ERR_ADR:
+			case SET_PCS:
+			case ADD_VAL:
+			case SUB_VAL:
+			case MUL_VAL:
+			case DIV_VAL:
+				return true;
+
+			default:
+				return false;
+		}
+	}
+
+	private static int paramSize(OpCodeParam param) {
+		switch (param) {
+			case VALUE:
+				return MachineState.VALUE_SIZE;
+
+			case OFFSET:
+				return 1;
+
+			case FUNC:
+				return MachineState.FUNCTIONCODE_SIZE;
+
+			default:
+				// Addresses, indexes and block heights
+				return MachineState.ADDRESS_SIZE;
+		}
+	}
+
+	/** Returns length of code segment this program was decoded from */
+	public int getCodeLength() {
+		return this.codeLength;
+	}
+
+	/**
+	 * Returns slot of decoded instruction at program counter, or NOT_DECODED.
+	 * <p>
+	 * Also returns NOT_DECODED if the instruction's static data addresses don't fit within <tt>dataLength</tt>.
+	 */
+	public int getSlot(int programCounter, int dataLength) {
+		if (programCounter < 0 || programCounter >= this.codeLength)
+			return NOT_DECODED;
+
+		final int slot = this.slotByProgramCounter[programCounter];
+		if (slot == NOT_DECODED || this.instructions[slot + DATA_LIMIT] > dataLength)
+			return NOT_DECODED;
+
+		return slot;
+	}
+
+	/** Returns slot of decoded instruction at program counter, or NOT_DECODED, regardless of data segment length */
+	/* package */ int getSlot(int programCounter) {
+		if (programCounter < 0 || programCounter >= this.codeLength)
+			return NOT_DECODED;
+
+		return this.slotByProgramCounter[programCounter];
+	}
+
+	/** Returns raw opcode byte at program counter, which must be within code segment */
+	public byte getRawOpCode(int programCounter) {
+		return this.codeBytes[programCounter];
+	}
+
+	/** Returns why instruction at program counter, with known opcode, couldn't be decoded, or null */
+	public String getInvalidReason(int programCounter) {
+		return this.invalidReasons.get(programCounter);
+	}
+
+	/**
+	 * Returns result of verifying this program against data segment length, verifying if necessary.
+	 * <p>
+	 * ATs sharing the same code almost always have the same data segment length too, so only the most recent result is kept.
+	 */
+	public CodeVerifier.Result getVerification(int dataLength) {
+		CodeVerifier.Result verification = this.verification;
+
+		if (verification == null || verification.getDataLength() != dataLength) {
+			verification = CodeVerifier.verify(this, dataLength);
+			this.verification = verification;
+		}
+
+		return verification;
+	}
+
+	/**
+	 * Returns number of instructions in metering block starting at slot.
+	 * <p>
+	 * Block instructions occupy consecutive slots, i.e. <tt>slot</tt>, <tt>getFollowingSlot(slot)</tt>, etc.
+	 */
+	public int getBlockLength(int slot) {
+		return this.blockLengths[slot / INSTRUCTION_SIZE];
+	}
+
+	/** Returns minimum data segment length needed by metering block starting at slot */
+	public int getBlockDataLimit(int slot) {
+		return this.blockDataLimits[slot / INSTRUCTION_SIZE];
+	}
+
+	/** Returns slot immediately after slot, only valid within metering block */
+	public int getFollowingSlot(int slot) {
+		return slot + INSTRUCTION_SIZE;
+	}
+
+	/**
+	 * Returns ordinal of superinstruction fusing instruction in slot with following instruction, or NO_SUPERINSTRUCTION.
+	 * <p>
+	 * Both instructions are always in the same metering block.
+	 */
+	public int getSuperinstruction(int slot) {
+		return this.superinstructions[slot / INSTRUCTION_SIZE];
+	}
+
+	/** Returns OpCode ordinal of decoded instruction in slot */
+	public int getOpCodeOrdinal(int slot) {
+		return this.instructions[slot + OPCODE];
+	}
+
+	/** Returns OpCode of decoded instruction in slot */
+	public OpCode getOpCode(int slot) {
+		return OPCODES[this.instructions[slot + OPCODE]];
+	}
+
+	/** Returns program counter of instruction following decoded instruction in slot */
+	public int getNextProgramCounter(int slot) {
+		return this.instructions[slot + NEXT_PC];
+	}
+
+	/** Returns minimum data segment length needed by decoded instruction in slot */
+	public int getDataLimit(int slot) {
+		return this.instructions[slot + DATA_LIMIT];
+	}
+
+	/**
+	 * Returns decoded arg of instruction in slot.
+	 * <p>
+	 * Data addresses are pre-scaled, offsets are resolved to branch targets,
+	 * and VALUE args are indexes for use with <tt>getValue</tt>.
+	 */
+	public int getArg(int slot, int argIndex) {
+		return this.instructions[slot + ARG1 + argIndex];
+	}
+
+	/** Returns immediate value using index from <tt>getArg</tt> */
+	public long getValue(int valueIndex) {
+		return this.values[valueIndex];
+	}
+
+	/**
+	 * Returns compiled form of this program, compiling it if it has reached <tt>threshold</tt> execution rounds.
+	 * <p>
+	 * Each call counts as an execution round. Returns null if program isn't hot enough yet, or compilation failed,
+	 * in which case callers should carry on using the decoded (interpreted) form.
+	 */
+	public CompiledProgram getCompiledProgram(int threshold, AtLogger logger) {
+		CompiledProgram compiledProgram = this.compiledProgram;
+		if (compiledProgram != null || this.hasCompilationFailed)
+			return compiledProgram;
+
+		if (this.executionRounds.incrementAndGet() < threshold)
+			return null;
+
+		synchronized (this) {
+			if (this.compiledProgram == null && !this.hasCompilationFailed) {
+				try {
+					this.compiledProgram = BytecodeCompiler.compile(this);
+				} catch (RuntimeException | LinkageError e) {
+					this.hasCompilationFailed = true;
+					logger.error(() -> String.format("Bytecode compilation failed, using interpreter: %s", e.getMessage()));
+				}
+			}
+
+			return this.compiledProgram;
+		}
+	}
+
+	/**
+	 * Executes decoded instruction in slot.
+	 * <p>
+	 * Equivalent to <tt>OpCode.execute(state)</tt>, including leaving <tt>state.codeByteBuffer.position()</tt>
+	 * at the next program counter, but without any decoding or operand boxing.
+	 *
+	 * @param slot
+	 * @param state
+	 * @throws ExecutionException
+	 */
+	public void execute(int slot, MachineState state) throws ExecutionException {
+		final int[] instructions = this.instructions;
+		final ByteBuffer codeByteBuffer = state.codeByteBuffer;
+
+		final int arg1 = instructions[slot + ARG1];
+		final int arg2 = instructions[slot + ARG2];
+		final int arg3 = instructions[slot + ARG3];
+
+		// As if operands had been fetched
+		codeByteBuffer.position(instructions[slot + NEXT_PC]);
+
+		switch (OPCODES[instructions[slot + OPCODE]]) {
+			case NOP:
+				break;
+
+			case SET_VAL:
+				state.setDataValue(arg1, this.values[arg2]);
+				break;
+
+			case SET_DAT:
+				state.setDataValue(arg1, state.getDataValue(arg2));
+				break;
+
+			case CLR_DAT:
+				state.setDataValue(arg1, 0L);
+				break;
+
+			case INC_DAT:
+				state.setDataValue(arg1, state.getDataValue(arg1) + 1);
+				break;
+
+			case DEC_DAT:
+				state.setDataValue(arg1, state.getDataValue(arg1) - 1);
+				break;
+
+			case ADD_DAT:
+				state.setDataValue(arg1, state.getDataValue(arg1) + state.getDataValue(arg2));
+				break;
+
+			case SUB_DAT:
+				state.setDataValue(arg1, state.getDataValue(arg1) - state.getDataValue(arg2));
+				break;
+
+			case MUL_DAT:
+				state.setDataValue(arg1, state.getDataValue(arg1) * state.getDataValue(arg2));
+				break;
+
+			case DIV_DAT: {
+				final long divisor = state.getDataValue(arg2);
+				if (divisor == 0)
+					throw new IllegalOperationException("Divide by zero", new ArithmeticException("/ by zero"));
+
+				state.setDataValue(arg1, state.getDataValue(arg1) / divisor);
+				break;
+			}
+
+			case BOR_DAT:
+				state.setDataValue(arg1, state.getDataValue(arg1) | state.getDataValue(arg2));
+				break;
+
+			case AND_DAT:
+				state.setDataValue(arg1, state.getDataValue(arg1) & state.getDataValue(arg2));
+				break;
+
+			case XOR_DAT:
+				state.setDataValue(arg1, state.getDataValue(arg1) ^ state.getDataValue(arg2));
+				break;
+
+			case NOT_DAT:
+				state.setDataValue(arg1, ~state.getDataValue(arg1));
+				break;
+
+			case SET_IND: {
+				long address = state.getDataValue(arg2) * MachineState.VALUE_SIZE;
+
+				if (address < 0 || address + MachineState.VALUE_SIZE >= state.getDataLength())
+					throw new InvalidAddressException("Data address out of bounds");
+
+				state.setDataValue(arg1, state.getDataValue((int) address));
+				break;
+			}
+
+			case SET_IDX: {
+				long baseAddress = state.getDataValue(arg2) * MachineState.VALUE_SIZE;
+				long offset = state.getDataValue(arg3) * MachineState.VALUE_SIZE;
+
+				long address = baseAddress + offset;
+
+				if (address < 0 || address + MachineState.VALUE_SIZE >= state.getDataLength())
+					throw new InvalidAddressException("Data address out of bounds");
+
+				state.setDataValue(arg1, state.getDataValue((int) address));
+				break;
+			}
+
+			case PSH_DAT: {
+				long value = state.getDataValue(arg1);
+
+				state.pushUserStack(value);
+				break;
+			}
+
+			case POP_DAT:
+				state.setDataValue(arg1, state.popUserStack());
+				break;
+
+			case JMP_SUB:
+				state.pushCallStack(codeByteBuffer.position());
+
+				codeByteBuffer.position(arg1);
+				break;
+
+			case RET_SUB:
+				codeByteBuffer.position(state.popCallStack());
+				break;
+
+			case IND_DAT: {
+				long address = state.getDataValue(arg1) * MachineState.VALUE_SIZE;
+
+				if (address < 0 || address + MachineState.VALUE_SIZE >= state.getDataLength())
+					throw new InvalidAddressException("Data address out of bounds");
+
+				state.setDataValue((int) address, state.getDataValue(arg2));
+				break;
+			}
+
+			case IDX_DAT: {
+				long baseAddress = state.getDataValue(arg1) * MachineState.VALUE_SIZE;
+				long offset = state.getDataValue(arg2) * MachineState.VALUE_SIZE;
+
+				long address = baseAddress + offset;
+
+				if (address < 0 || address + MachineState.VALUE_SIZE >= state.getDataLength())
+					throw new InvalidAddressException("Data address out of bounds");
+
+				state.setDataValue((int) address, state.getDataValue(arg3));
+				break;
+			}
+
+			case MOD_DAT: {
+				final long divisor = state.getDataValue(arg2);
+				if (divisor == 0)
+					throw new IllegalOperationException("Divide by zero", new ArithmeticException("/ by zero"));
+
+				state.setDataValue(arg1, state.getDataValue(arg1) % divisor);
+				break;
+			}
+
+			case SHL_DAT: {
+				final long shift = state.getDataValue(arg2);
+				state.setDataValue(arg1, shift >= MAX_SHIFT ? 0 : state.getDataValue(arg1) << shift);
+				break;
+			}
+
+			case SHR_DAT: {
+				final long shift = state.getDataValue(arg2);
+				state.setDataValue(arg1, shift >= MAX_SHIFT ? 0 : state.getDataValue(arg1) >>> shift);
+				break;
+			}
+
+			case JMP_ADR:
+				codeByteBuffer.position(arg1);
+				break;
+
+			case BZR_DAT:
+				if (state.getDataValue(arg1) == 0)
+					codeByteBuffer.position(arg2);
+				break;
+
+			case BNZ_DAT:
+				if (state.getDataValue(arg1) != 0)
+					codeByteBuffer.position(arg2);
+				break;
+
+			case BGT_DAT:
+				if (state.getDataValue(arg1) > state.getDataValue(arg2))
+					codeByteBuffer.position(arg3);
+				break;
+
+			case BLT_DAT:
+				if (state.getDataValue(arg1) < state.getDataValue(arg2))
+					codeByteBuffer.position(arg3);
+				break;
+
+			case BGE_DAT:
+				if (state.getDataValue(arg1) >= state.getDataValue(arg2))
+					codeByteBuffer.position(arg3);
+				break;
+
+			case BLE_DAT:
+				if (state.getDataValue(arg1) <= state.getDataValue(arg2))
+					codeByteBuffer.position(arg3);
+				break;
+
+			case BEQ_DAT:
+				if (state.getDataValue(arg1) == state.getDataValue(arg2))
+					codeByteBuffer.position(arg3);
+				break;
+
+			case BNE_DAT:
+				if (state.getDataValue(arg1) != state.getDataValue(arg2))
+					codeByteBuffer.position(arg3);
+				break;
+
+			case SLP_DAT:
+				// arg1 is block height already fetched from code segment during decoding
+				state.setSleepUntilHeight(arg1);
+				state.setIsSleeping(true);
+				break;
+
+			case FIZ_DAT:
+				if (state.getDataValue(arg1) == 0)
+					state.setIsFinished(true);
+				break;
+
+			case STZ_DAT:
+				if (state.getDataValue(arg1) == 0) {
+					codeByteBuffer.position(state.getOnStopAddress());
+					state.setIsStopped(true);
+				}
+				break;
+
+			case FIN_IMD:
+				state.setIsFinished(true);
+				break;
+
+			case STP_IMD:
+				state.setIsStopped(true);
+				break;
+
+			case SLP_IMD:
+				state.setSleepUntilHeight(state.getCurrentBlockHeight() + 1);
+				state.setIsSleeping(true);
+				break;
+
+			case ERR_ADR:
+				state.setOnErrorAddress(arg1);
+				break;
+
+			case SET_PCS:
+				state.setOnStopAddress(codeByteBuffer.position());
+				break;
+
+			case EXT_FUN: {
+				FunctionData functionData = new FunctionData(false);
+
+				FUNCTION_CODES[instructions[slot + FUNCTION]].execute(functionData, state, (short) arg1);
+				break;
+			}
+
+			case EXT_FUN_DAT: {
+				FunctionData functionData = new FunctionData(state.getDataValue(arg2), false);
+
+				FUNCTION_CODES[instructions[slot + FUNCTION]].execute(functionData, state, (short) arg1);
+				break;
+			}
+
+			case EXT_FUN_DAT_2: {
+				FunctionData functionData = new FunctionData(state.getDataValue(arg2), state.getDataValue(arg3), false);
+
+				FUNCTION_CODES[instructions[slot + FUNCTION]].execute(functionData, state, (short) arg1);
+				break;
+			}
+
+			case EXT_FUN_RET: {
+				FunctionData functionData = new FunctionData(true);
+
+				FUNCTION_CODES[instructions[slot + FUNCTION]].execute(functionData, state, (short) arg1);
+
+				if (functionData.returnValue == null)
+					throw new ExecutionException("Function failed to return a value as expected of EXT_FUN_RET");
+
+				state.setDataValue(arg2, functionData.returnValue);
+				break;
+			}
+
+			case EXT_FUN_RET_DAT: {
+				FunctionData functionData = new FunctionData(state.getDataValue(arg3), true);
+
+				FUNCTION_CODES[instructions[slot + FUNCTION]].execute(functionData, state, (short) arg1);
+
+				if (functionData.returnValue == null)
+					throw new ExecutionException("Function failed to return a value as expected of EXT_FUN_RET_DAT");
+
+				state.setDataValue(arg2, functionData.returnValue);
+				break;
+			}
+
+			case EXT_FUN_RET_DAT_2: {
+				FunctionData functionData = new FunctionData(state.getDataValue(arg3), state.getDataValue(instructions[slot + ARG4]), true);
+
+				FUNCTION_CODES[instructions[slot + FUNCTION]].execute(functionData, state, (short) arg1);
+
+				if (functionData.returnValue == null)
+					throw new ExecutionException("Function failed to return a value as expected of EXT_FUN_RET_DAT_2");
+
+				state.setDataValue(arg2, functionData.returnValue);
+				break;
+			}
+
+			case ADD_VAL:
+				state.setDataValue(arg1, state.getDataValue(arg1) + this.values[arg2]);
+				break;
+
+			case SUB_VAL:
+				state.setDataValue(arg1, state.getDataValue(arg1) - this.values[arg2]);
+				break;
+
+			case MUL_VAL:
+				state.setDataValue(arg1, state.getDataValue(arg1) * this.values[arg2]);
+				break;
+
+			case DIV_VAL: {
+				final long divisor = this.values[arg2];
+				if (divisor == 0)
+					throw new IllegalOperationException("Divide by zero", new ArithmeticException("/ by zero"));
+
+				state.setDataValue(arg1, state.getDataValue(arg1) / divisor);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Executes superinstruction starting in slot, i.e. instruction in slot and the following instruction.
+	 * <p>
+	 * Equivalent to calling <tt>execute()</tt> for each instruction in turn. Program counter is synchronized
+	 * after the first instruction, so if the second instruction throws, the error is reported against the second instruction.
+	 * Callers can tell which instruction threw by comparing program counter with <tt>getNextProgramCounter(slot)</tt>.
+	 *
+	 * @param slot
+	 *            - slot of first instruction, which must have a superinstruction
+	 * @param state
+	 * @throws ExecutionException
+	 */
+	public void executeSuperinstruction(int slot, MachineState state) throws ExecutionException {
+		final int[] instructions = this.instructions;
+		final ByteBuffer codeByteBuffer = state.codeByteBuffer;
+
+		final int arg1 = instructions[slot + ARG1];
+		final int arg2 = instructions[slot + ARG2];
+
+		final int secondSlot = slot + INSTRUCTION_SIZE;
+		final int secondArg1 = instructions[secondSlot + ARG1];
+		final int secondArg2 = instructions[secondSlot + ARG2];
+		final int secondArg3 = instructions[secondSlot + ARG3];
+
+		// Value written by first instruction, to save re-reading it in second instruction
+		final long value;
+
+		switch (SUPERINSTRUCTIONS[this.superinstructions[slot / INSTRUCTION_SIZE]]) {
+			case SET_VAL_BEQ_DAT:
+				value = this.values[arg2];
+				state.setDataValue(arg1, value);
+				this.startSecond(slot, state);
+
+				if (valueAt(secondArg1, arg1, value, state) == valueAt(secondArg2, arg1, value, state))
+					codeByteBuffer.position(secondArg3);
+				break;
+
+			case SET_VAL_BNE_DAT:
+				value = this.values[arg2];
+				state.setDataValue(arg1, value);
+				this.startSecond(slot, state);
+
+				if (valueAt(secondArg1, arg1, value, state) != valueAt(secondArg2, arg1, value, state))
+					codeByteBuffer.position(secondArg3);
+				break;
+
+			case EXT_FUN_RET_BZR_DAT:
+				value = this.executeFunctionWithReturn(slot, state);
+				this.startSecond(slot, state);
+
+				if (valueAt(secondArg1, arg2, value, state) == 0)
+					codeByteBuffer.position(secondArg2);
+				break;
+
+			case EXT_FUN_RET_BNZ_DAT:
+				value = this.executeFunctionWithReturn(slot, state);
+				this.startSecond(slot, state);
+
+				if (valueAt(secondArg1, arg2, value, state) != 0)
+					codeByteBuffer.position(secondArg2);
+				break;
+
+			case INC_DAT_BLT_DAT:
+				value = state.getDataValue(arg1) + 1;
+				state.setDataValue(arg1, value);
+				this.startSecond(slot, state);
+
+				if (valueAt(secondArg1, arg1, value, state) < valueAt(secondArg2, arg1, value, state))
+					codeByteBuffer.position(secondArg3);
+				break;
+
+			case INC_DAT_BNE_DAT:
+				value = state.getDataValue(arg1) + 1;
+				state.setDataValue(arg1, value);
+				this.startSecond(slot, state);
+
+				if (valueAt(secondArg1, arg1, value, state) != valueAt(secondArg2, arg1, value, state))
+					codeByteBuffer.position(secondArg3);
+				break;
+
+			case DEC_DAT_BNZ_DAT:
+				value = state.getDataValue(arg1) - 1;
+				state.setDataValue(arg1, value);
+				this.startSecond(slot, state);
+
+				if (valueAt(secondArg1, arg1, value, state) != 0)
+					codeByteBuffer.position(secondArg2);
+				break;
+		}
+	}
+
+	/** Moves on to second instruction of superinstruction, as if first instruction had been executed on its own */
+	private void startSecond(int slot, MachineState state) {
+		state.setProgramCounter(this.instructions[slot + NEXT_PC]);
+		state.codeByteBuffer.position(this.instructions[slot + INSTRUCTION_SIZE + NEXT_PC]);
+	}
+
+	/** Returns value at data address, using <tt>writtenValue</tt> if address is <tt>writtenAddress</tt> */
+	private static long valueAt(int address, int writtenAddress, long writtenValue, MachineState state) {
+		return address == writtenAddress ? writtenValue : state.getDataValue(address);
+	}
+
+	/** Executes EXT_FUN_RET in slot, as per <tt>execute()</tt>, returning value stored */
+	private long executeFunctionWithReturn(int slot, MachineState state) throws ExecutionException {
+		state.codeByteBuffer.position(this.instructions[slot + NEXT_PC]);
+
+		FunctionData functionData = new FunctionData(true);
+
+		FUNCTION_CODES[this.instructions[slot + FUNCTION]].execute(functionData, state, (short) this.instructions[slot + ARG1]);
+
+		if (functionData.returnValue == null)
+			throw new ExecutionException("Function failed to return a value as expected of EXT_FUN_RET");
+
+		final long value = functionData.returnValue;
+		state.setDataValue(this.instructions[slot + ARG2], value);
+		return value;
+	}
+
+}
@@ -0,0 +1,135 @@
+package org.ciyam.at;
+
+/**
+ * API that passes all calls on to another API, for subclasses to intercept specific calls.
+ */
+/* package */ class DelegatingAPI extends API {
+
+	protected final API api;
+
+	public DelegatingAPI(API api) {
+		this.api = api;
+	}
+
+	/** Returns API that calls are passed on to */
+	public API getDelegate() {
+		return this.api;
+	}
+
+	@Override
+	public int getMaxStepsPerRound() {
+		return this.api.getMaxStepsPerRound();
+	}
+
+	@Override
+	public int getOpCodeSteps(OpCode opcode) {
+		return this.api.getOpCodeSteps(opcode);
+	}
+
+	@Override
+	public long getFeePerStep() {
+		return this.api.getFeePerStep();
+	}
+
+	@Override
+	public int getCurrentBlockHeight() {
+		return this.api.getCurrentBlockHeight();
+	}
+
+	@Override
+	public int getATCreationBlockHeight(MachineState state) {
+		return this.api.getATCreationBlockHeight(state);
+	}
+
+	@Override
+	public int getPreviousBlockHeight() {
+		return this.api.getPreviousBlockHeight();
+	}
+
+	@Override
+	public void putPreviousBlockHashIntoA(MachineState state) {
+		this.api.putPreviousBlockHashIntoA(state);
+	}
+
+	@Override
+	public void putTransactionAfterTimestampIntoA(Timestamp timestamp, MachineState state) {
+		this.api.putTransactionAfterTimestampIntoA(timestamp, state);
+	}
+
+	@Override
+	public long getTypeFromTransactionInA(MachineState state) {
+		return this.api.getTypeFromTransactionInA(state);
+	}
+
+	@Override
+	public long getAmountFromTransactionInA(MachineState state) {
+		return this.api.getAmountFromTransactionInA(state);
+	}
+
+	@Override
+	public long getTimestampFromTransactionInA(MachineState state) {
+		return this.api.getTimestampFromTransactionInA(state);
+	}
+
+	@Override
+	public long generateRandomUsingTransactionInA(MachineState state) {
+		return this.api.generateRandomUsingTransactionInA(state);
+	}
+
+	@Override
+	public void putMessageFromTransactionInAIntoB(MachineState state) {
+		this.api.putMessageFromTransactionInAIntoB(state);
+	}
+
+	@Override
+	public void putAddressFromTransactionInAIntoB(MachineState state) {
+		this.api.putAddressFromTransactionInAIntoB(state);
+	}
+
+	@Override
+	public void putCreatorAddressIntoB(MachineState state) {
+		this.api.putCreatorAddressIntoB(state);
+	}
+
+	@Override
+	public long getCurrentBalance(MachineState state) {
+		return this.api.getCurrentBalance(state);
+	}
+
+	@Override
+	public void payAmountToB(long amount, MachineState state) {
+		this.api.payAmountToB(amount, state);
+	}
+
+	@Override
+	public void messageAToB(MachineState state) {
+		this.api.messageAToB(state);
+	}
+
+	@Override
+	public long addMinutesToTimestamp(Timestamp timestamp, long minutes, MachineState state) {
+		return this.api.addMinutesToTimestamp(timestamp, minutes, state);
+	}
+
+	@Override
+	public void onFinished(long amount, MachineState state) {
+		this.api.onFinished(amount, state);
+	}
+
+	@Override
+	public void onFatalError(MachineState state, ExecutionException e) {
+		this.api.onFatalError(state, e);
+	}
+
+	@Override
+	public void platformSpecificPreExecuteCheck(int paramCount, boolean returnValueExpected, MachineState state, short rawFunctionCode)
+			throws IllegalFunctionCodeException {
+		this.api.platformSpecificPreExecuteCheck(paramCount, returnValueExpected, state, rawFunctionCode);
+	}
+
+	@Override
+	public void platformSpecificPostCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
+		this.api.platformSpecificPostCheckExecute(functionData, state, rawFunctionCode);
+	}
+
+}
@@ -0,0 +1,42 @@
+package org.ciyam.at;
+
+/**
+ * Runs the execution loop for a round of <tt>MachineState.execute()</tt>.
+ * <p>
+ * <tt>MachineState</tt> performs pre-execution checks (finished, frozen, sleeping) and post-execution processing
+ * (stop address, refunds on finishing, etc.), and delegates fetching, metering and executing opcodes to an engine.
+ * All engines must produce identical results: steps, balance, serialized state and {@link API} calls.
+ * <p>
+ * Engines are stateless, so can be shared between MachineStates and threads. Engines can be selected node-wide
+ * using <tt>MachineState.setDefaultExecutionEngine()</tt> or per AT using <tt>MachineState.setExecutionEngine()</tt>.
+ */
+public interface ExecutionEngine {
+
+	/** Interprets each opcode directly from code bytes via <tt>OpCode.execute()</tt>, metering each opcode in turn (default) */
+	public static final ExecutionEngine REFERENCE = new ReferenceExecutionEngine();
+
+	/**
+	 * Executes pre-decoded instructions using switch-based dispatch with primitive operands,
+	 * metering blocks of instructions at once, and using compiled code if enabled.
+	 * <p>
+	 * Opt-in, e.g. once shadow execution has shown it to be identical to {@link #REFERENCE}.
+	 */
+	public static final ExecutionEngine FAST = new FastExecutionEngine();
+
+	/** Returns short name of engine, e.g. for logging or configuration */
+	public String getName();
+
+	/**
+	 * Executes opcodes until <tt>state</tt> is sleeping, stopped, finished or frozen.
+	 * <p>
+	 * On entry, program counter and code position are in sync and opcode steps for this round are reset.
+	 *
+	 * @param state
+	 * @param feePerStep
+	 *            - from API
+	 * @param maxSteps
+	 *            - maximum steps per round, from API
+	 */
+	public void run(MachineState state, long feePerStep, int maxSteps);
+
+}
@@ -0,0 +1,209 @@
+package org.ciyam.at;
+
+/**
+ * Fast engine: executes pre-decoded instructions, see {@link DecodedProgram}, charging steps and fees per block where possible,
+ * and fusing common instruction pairs within blocks, see {@link Superinstruction}.
+ * <p>
+ * Verified programs, see {@link CodeVerifier}, skip checking static data addresses of decoded instructions and blocks
+ * against data segment length, as verified program counters only map to instructions whose whole block is known to fit.
+ * Hot code is executed in compiled form, see {@link BytecodeCompiler}, if enabled via <tt>MachineState.setCompilationThreshold()</tt>.
+ * <p>
+ * Anything that can't be executed in decoded form falls back to <tt>OpCode.execute()</tt>, as per {@link ReferenceExecutionEngine}.
+ */
+final class FastExecutionEngine implements ExecutionEngine {
+
+	@Override
+	public String getName() {
+		return "fast";
+	}
+
+	@Override
+	public void run(MachineState state, long feePerStep, int maxSteps) {
+		final AtLogger logger = state.getLogger();
+		final DecodedProgram decodedProgram = state.getDecodedProgram();
+		final int dataLength = state.getDataLength();
+
+		// Verified programs can skip checking each instruction's, and block's, static data addresses against data segment length
+		final CodeVerifier.Result verification = decodedProgram.getVerification(dataLength);
+		final boolean isVerified = verification.isValid();
+
+		// Compiled blocks skip per-opcode debug logging, so only use them if debugging is disabled.
+		// They also operate directly on data segment ByteBuffer so aren't used with ARRAY memory model.
+		final int compilationThreshold = MachineState.getCompilationThreshold();
+		CompiledProgram compiledProgram = null;
+		if (compilationThreshold > 0 && !logger.isDebugEnabled() && state.dataByteBuffer != null)
+			compiledProgram = decodedProgram.getCompiledProgram(compilationThreshold, logger);
+
+		while (state.isRunning()) {
+			final int programCounter = state.getProgramCounter();
+
+			if (compiledProgram != null) {
+				final int block = compiledProgram.getBlock(programCounter, dataLength);
+
+				if (block != CompiledProgram.NO_BLOCK && executeCompiledBlock(state, compiledProgram, block, feePerStep, maxSteps))
+					continue;
+			}
+
+			// Use pre-decoded instruction if possible, otherwise fall back to decoding from code bytes
+			final int slot = isVerified ? verification.getSlot(programCounter) : decodedProgram.getSlot(programCounter, dataLength);
+
+			// Charge for a whole block of decoded instructions at once, if possible
+			if (slot != DecodedProgram.NOT_DECODED && decodedProgram.getBlockLength(slot) > 1
+					&& (isVerified || decodedProgram.getBlockDataLimit(slot) <= dataLength)
+					&& executeDecodedBlock(state, decodedProgram, slot, feePerStep, maxSteps))
+				continue;
+
+			final byte rawOpCode;
+			final OpCode nextOpCode;
+
+			if (slot != DecodedProgram.NOT_DECODED) {
+				nextOpCode = decodedProgram.getOpCode(slot);
+				rawOpCode = nextOpCode.value;
+			} else {
+				rawOpCode = state.codeByteBuffer.get();
+				nextOpCode = OpCode.valueOf(rawOpCode);
+			}
+
+			try {
+				if (nextOpCode == null)
+					throw new IllegalOperationException("OpCode 0x" + String.format("%02x", rawOpCode) + " not recognised");
+
+				if (logger.isDebugEnabled())
+					logger.debug(() -> String.format("[PC: %04x] %s", programCounter, nextOpCode.name()));
+
+				if (!state.meterOpCode(state.getOpCodeStepsThisRound(nextOpCode.ordinal()), feePerStep, maxSteps))
+					break;
+
+				// At this point, programCounter is BEFORE opcode (and args).
+				if (slot != DecodedProgram.NOT_DECODED)
+					decodedProgram.execute(slot, state);
+				else
+					nextOpCode.execute(state);
+
+				// Synchronize programCounter with codeByteBuffer in case of JMPs, branches, etc.
+				state.syncProgramCounter();
+			} catch (ExecutionException e) {
+				if (state.handleExecutionException(e))
+					break;
+			}
+
+			// No longer true
+			state.clearFirstOpCodeAfterSleeping();
+		}
+	}
+
+	/**
+	 * Executes block of decoded instructions, charging steps and fees for the whole block up front, if possible.
+	 * <p>
+	 * If the whole block doesn't fit within remaining steps or balance, or the API's step/fee values are negative,
+	 * then nothing is executed and <tt>false</tt> is returned, so the caller can fall back to per-opcode metering,
+	 * which sleeps or freezes at exactly the same instruction as before.
+	 * <p>
+	 * Only the last instruction in a block can call API functions or change program counter or execution flags,
+	 * so nothing can observe the early charge. If an instruction throws, charges for the instructions after it are refunded.
+	 */
+	private static boolean executeDecodedBlock(MachineState state, DecodedProgram decodedProgram, int slot, long feePerStep, int maxSteps) {
+		if (feePerStep < 0)
+			return false;
+
+		final int blockLength = decodedProgram.getBlockLength(slot);
+
+		long blockSteps = 0;
+		for (int i = 0, blockSlot = slot; i < blockLength; ++i, blockSlot = decodedProgram.getFollowingSlot(blockSlot)) {
+			int opcodeSteps = state.getOpCodeStepsThisRound(decodedProgram.getOpCodeOrdinal(blockSlot));
+
+			if (opcodeSteps < 0)
+				return false;
+
+			blockSteps += opcodeSteps;
+		}
+
+		if (!state.meterBlock(blockSteps, feePerStep, maxSteps))
+			return false;
+
+		final AtLogger logger = state.getLogger();
+
+		// Superinstructions skip per-opcode debug logging, so only use them if debugging is disabled
+		final boolean isDebugEnabled = logger.isDebugEnabled();
+
+		long executedSteps = 0;
+		for (int i = 0, blockSlot = slot; i < blockLength; ++i, blockSlot = decodedProgram.getFollowingSlot(blockSlot)) {
+			final int opCodeOrdinal = decodedProgram.getOpCodeOrdinal(blockSlot);
+			executedSteps += state.getOpCodeStepsThisRound(opCodeOrdinal);
+
+			final boolean isFused = !isDebugEnabled && i + 1 < blockLength && decodedProgram.getSuperinstruction(blockSlot) != DecodedProgram.NO_SUPERINSTRUCTION;
+
+			if (isDebugEnabled)
+				logger.debug(() -> String.format("[PC: %04x] %s", state.getProgramCounter(), MachineState.OPCODES[opCodeOrdinal].name()));
+
+			try {
+				if (isFused) {
+					final int secondSlot = decodedProgram.getFollowingSlot(blockSlot);
+
+					decodedProgram.executeSuperinstruction(blockSlot, state);
+
+					// Second instruction has been executed too
+					++i;
+					blockSlot = secondSlot;
+					executedSteps += state.getOpCodeStepsThisRound(decodedProgram.getOpCodeOrdinal(secondSlot));
+				} else {
+					decodedProgram.execute(blockSlot, state);
+				}
+
+				state.syncProgramCounter();
+			} catch (ExecutionException e) {
+				// If second instruction of superinstruction threw then first was executed, and second needs charging
+				if (isFused && state.getProgramCounter() == decodedProgram.getNextProgramCounter(blockSlot))
+					executedSteps += state.getOpCodeStepsThisRound(decodedProgram.getOpCodeOrdinal(decodedProgram.getFollowingSlot(blockSlot)));
+
+				// Refund instructions that won't be executed
+				state.refundSteps(blockSteps - executedSteps, feePerStep);
+
+				if (!state.handleExecutionException(e))
+					state.clearFirstOpCodeAfterSleeping();
+
+				return true;
+			}
+
+			state.clearFirstOpCodeAfterSleeping();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Executes compiled block, charging steps and fees for the whole block, if possible.
+	 * <p>
+	 * If the whole block doesn't fit within remaining steps or balance, or the API's step/fee values are negative,
+	 * then nothing is executed and <tt>false</tt> is returned, so the caller can fall back to per-opcode metering.
+	 * Otherwise the outcome is identical to executing and metering each opcode in turn.
+	 */
+	private static boolean executeCompiledBlock(MachineState state, CompiledProgram compiledProgram, int block, long feePerStep, int maxSteps) {
+		if (feePerStep < 0)
+			return false;
+
+		long blockSteps = 0;
+		for (int opCodeOrdinal : compiledProgram.getBlockOpCodes(block)) {
+			int opcodeSteps = state.getOpCodeStepsThisRound(opCodeOrdinal);
+
+			if (opcodeSteps < 0)
+				return false;
+
+			blockSteps += opcodeSteps;
+		}
+
+		if (!state.meterBlock(blockSteps, feePerStep, maxSteps))
+			return false;
+
+		state.setProgramCounter(compiledProgram.execute(block, state.dataByteBuffer));
+
+		// Compiled code writes to data segment directly
+		for (int address : compiledProgram.getBlockWrittenAddresses(block))
+			state.markDataWritten(address);
+
+		state.clearFirstOpCodeAfterSleeping();
+
+		return true;
+	}
+
+}
@@ -1,11 +1,6 @@
 package org.ciyam.at;
 
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 /**
  * This enum contains function codes for the CIYAM AT machine.
@@ -125,10 +120,10 @@ public enum FunctionCode {
 
 			int dataIndex = (int) (functionData.value1 & Integer.MAX_VALUE);
 
-			state.dataByteBuffer.putLong(dataIndex++ * MachineState.VALUE_SIZE, state.a1);
-			state.dataByteBuffer.putLong(dataIndex++ * MachineState.VALUE_SIZE, state.a2);
-			state.dataByteBuffer.putLong(dataIndex++ * MachineState.VALUE_SIZE, state.a3);
-			state.dataByteBuffer.putLong(dataIndex++ * MachineState.VALUE_SIZE, state.a4);
+			state.setDataValue(dataIndex++ * MachineState.VALUE_SIZE, state.a1);
+			state.setDataValue(dataIndex++ * MachineState.VALUE_SIZE, state.a2);
+			state.setDataValue(dataIndex++ * MachineState.VALUE_SIZE, state.a3);
+			state.setDataValue(dataIndex++ * MachineState.VALUE_SIZE, state.a4);
 		}
 	},
 	/**
@@ -143,10 +138,10 @@ public enum FunctionCode {
 
 			int dataIndex = (int) (functionData.value1 & Integer.MAX_VALUE);
 
-			state.dataByteBuffer.putLong(dataIndex++ * MachineState.VALUE_SIZE, state.b1);
-			state.dataByteBuffer.putLong(dataIndex++ * MachineState.VALUE_SIZE, state.b2);
-			state.dataByteBuffer.putLong(dataIndex++ * MachineState.VALUE_SIZE, state.b3);
-			state.dataByteBuffer.putLong(dataIndex++ * MachineState.VALUE_SIZE, state.b4);
+			state.setDataValue(dataIndex++ * MachineState.VALUE_SIZE, state.b1);
+			state.setDataValue(dataIndex++ * MachineState.VALUE_SIZE, state.b2);
+			state.setDataValue(dataIndex++ * MachineState.VALUE_SIZE, state.b3);
+			state.setDataValue(dataIndex++ * MachineState.VALUE_SIZE, state.b4);
 		}
 	},
 	/**
@@ -285,10 +280,10 @@ public enum FunctionCode {
 
 			int dataIndex = (int) (functionData.value1 & Integer.MAX_VALUE);
 
-			state.a1 = state.dataByteBuffer.getLong(dataIndex++ * MachineState.VALUE_SIZE);
-			state.a2 = state.dataByteBuffer.getLong(dataIndex++ * MachineState.VALUE_SIZE);
-			state.a3 = state.dataByteBuffer.getLong(dataIndex++ * MachineState.VALUE_SIZE);
-			state.a4 = state.dataByteBuffer.getLong(dataIndex++ * MachineState.VALUE_SIZE);
+			state.a1 = state.getDataValue(dataIndex++ * MachineState.VALUE_SIZE);
+			state.a2 = state.getDataValue(dataIndex++ * MachineState.VALUE_SIZE);
+			state.a3 = state.getDataValue(dataIndex++ * MachineState.VALUE_SIZE);
+			state.a4 = state.getDataValue(dataIndex++ * MachineState.VALUE_SIZE);
 		}
 	},
 	/**
@@ -303,10 +298,10 @@ public enum FunctionCode {
 
 			int dataIndex = (int) (functionData.value1 & Integer.MAX_VALUE);
 
-			state.b1 = state.dataByteBuffer.getLong(dataIndex++ * MachineState.VALUE_SIZE);
-			state.b2 = state.dataByteBuffer.getLong(dataIndex++ * MachineState.VALUE_SIZE);
-			state.b3 = state.dataByteBuffer.getLong(dataIndex++ * MachineState.VALUE_SIZE);
-			state.b4 = state.dataByteBuffer.getLong(dataIndex++ * MachineState.VALUE_SIZE);
+			state.b1 = state.getDataValue(dataIndex++ * MachineState.VALUE_SIZE);
+			state.b2 = state.getDataValue(dataIndex++ * MachineState.VALUE_SIZE);
+			state.b3 = state.getDataValue(dataIndex++ * MachineState.VALUE_SIZE);
+			state.b4 = state.getDataValue(dataIndex++ * MachineState.VALUE_SIZE);
 		}
 	},
 	/**
@@ -529,21 +524,12 @@ public enum FunctionCode {
 	MD5_INTO_B(0x0200, 2, false) {
 		@Override
 		protected void postCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
-			byte[] message = getHashData(functionData, state);
+			byte[] digest = hashData(functionData, state, HashProvider.Algorithm.MD5);
 
-			try {
-				MessageDigest digester = MessageDigest.getInstance("MD5");
-				byte[] digest = digester.digest(message);
-
-				ByteBuffer digestByteBuffer = ByteBuffer.wrap(digest);
-
-				state.b1 = digestByteBuffer.getLong();
-				state.b2 = digestByteBuffer.getLong();
-				state.b3 = 0L;
-				state.b4 = 0L;
-			} catch (NoSuchAlgorithmException e) {
-				throw new ExecutionException("No MD5 message digest service available", e);
-			}
+			state.b1 = Utils.bytesToLong(digest, 0);
+			state.b2 = Utils.bytesToLong(digest, 8);
+			state.b3 = 0L;
+			state.b4 = 0L;
 		}
 	},
 	/**
@@ -555,26 +541,13 @@ public enum FunctionCode {
 	CHECK_MD5_WITH_B(0x0201, 2, true) {
 		@Override
 		protected void postCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
-			byte[] message = getHashData(functionData, state);
-
-			try {
-				MessageDigest digester = MessageDigest.getInstance("MD5");
-				byte[] actualDigest = digester.digest(message);
+			byte[] actualDigest = hashData(functionData, state, HashProvider.Algorithm.MD5);
 
-				ByteBuffer digestByteBuffer = ByteBuffer.allocate(digester.getDigestLength());
-
-				digestByteBuffer.putLong(state.b1);
-				digestByteBuffer.putLong(state.b2);
-
-				byte[] expectedDigest = digestByteBuffer.array();
-
-				if (Arrays.equals(actualDigest, expectedDigest))
-					functionData.returnValue = 1L; // true
-				else
-					functionData.returnValue = 0L; // false
-			} catch (NoSuchAlgorithmException e) {
-				throw new ExecutionException("No MD5 message digest service available", e);
-			}
+			if (Utils.bytesToLong(actualDigest, 0) == state.b1
+					&& Utils.bytesToLong(actualDigest, 8) == state.b2)
+				functionData.returnValue = 1L; // true
+			else
+				functionData.returnValue = 0L; // false
 		}
 	},
 	/**
@@ -585,21 +558,9 @@ public enum FunctionCode {
 	RMD160_INTO_B(0x0202, 2, false) {
 		@Override
 		protected void postCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
-			byte[] message = getHashData(functionData, state);
-
-			try {
-				MessageDigest digester = MessageDigest.getInstance("RIPEMD160");
-				byte[] digest = digester.digest(message);
+			byte[] digest = hashData(functionData, state, HashProvider.Algorithm.RIPEMD160);
 
-				ByteBuffer digestByteBuffer = ByteBuffer.wrap(digest);
-
-				state.b1 = digestByteBuffer.getLong();
-				state.b2 = digestByteBuffer.getLong();
-				state.b3 = ((long) digestByteBuffer.getInt()) << 32; // MSB of B3
-				state.b4 = 0L;
-			} catch (NoSuchAlgorithmException e) {
-				throw new ExecutionException("No RIPEMD160 message digest service available", e);
-			}
+			setRmd160IntoB(digest, state);
 		}
 	},
 	/**
@@ -611,28 +572,12 @@ public enum FunctionCode {
 	CHECK_RMD160_WITH_B(0x0203, 2, true) {
 		@Override
 		protected void postCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
-			byte[] message = getHashData(functionData, state);
-
-			try {
-				MessageDigest digester = MessageDigest.getInstance("RIPEMD160");
-				byte[] actualDigest = digester.digest(message);
+			byte[] actualDigest = hashData(functionData, state, HashProvider.Algorithm.RIPEMD160);
 
-				ByteBuffer digestByteBuffer = ByteBuffer.allocate(digester.getDigestLength());
-
-				digestByteBuffer.putLong(state.b1);
-				digestByteBuffer.putLong(state.b2);
-				digestByteBuffer.putInt((int) (state.b3 >>> 32)); // MSB of B3
-				// NOTE: b4 ignored
-
-				byte[] expectedDigest = digestByteBuffer.array();
-
-				if (Arrays.equals(actualDigest, expectedDigest))
-					functionData.returnValue = 1L; // true
-				else
-					functionData.returnValue = 0L; // false
-			} catch (NoSuchAlgorithmException e) {
-				throw new ExecutionException("No RIPEMD160 message digest service available", e);
-			}
+			if (rmd160EqualsB(actualDigest, state))
+				functionData.returnValue = 1L; // true
+			else
+				functionData.returnValue = 0L; // false
 		}
 	},
 	/**
@@ -643,21 +588,12 @@ public enum FunctionCode {
 	SHA256_INTO_B(0x0204, 2, false) {
 		@Override
 		protected void postCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
-			byte[] message = getHashData(functionData, state);
-
-			try {
-				MessageDigest digester = MessageDigest.getInstance("SHA-256");
-				byte[] digest = digester.digest(message);
+			byte[] digest = hashData(functionData, state, HashProvider.Algorithm.SHA256);
 
-				ByteBuffer digestByteBuffer = ByteBuffer.wrap(digest);
-
-				state.b1 = digestByteBuffer.getLong();
-				state.b2 = digestByteBuffer.getLong();
-				state.b3 = digestByteBuffer.getLong();
-				state.b4 = digestByteBuffer.getLong();
-			} catch (NoSuchAlgorithmException e) {
-				throw new ExecutionException("No SHA-256 message digest service available", e);
-			}
+			state.b1 = Utils.bytesToLong(digest, 0);
+			state.b2 = Utils.bytesToLong(digest, 8);
+			state.b3 = Utils.bytesToLong(digest, 16);
+			state.b4 = Utils.bytesToLong(digest, 24);
 		}
 	},
 	/**
@@ -669,28 +605,15 @@ public enum FunctionCode {
 	CHECK_SHA256_WITH_B(0x0205, 2, true) {
 		@Override
 		protected void postCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
-			byte[] message = getHashData(functionData, state);
-
-			try {
-				MessageDigest digester = MessageDigest.getInstance("SHA-256");
-				byte[] actualDigest = digester.digest(message);
-
-				ByteBuffer digestByteBuffer = ByteBuffer.allocate(digester.getDigestLength());
+			byte[] actualDigest = hashData(functionData, state, HashProvider.Algorithm.SHA256);
 
-				digestByteBuffer.putLong(state.b1);
-				digestByteBuffer.putLong(state.b2);
-				digestByteBuffer.putLong(state.b3);
-				digestByteBuffer.putLong(state.b4);
-
-				byte[] expectedDigest = digestByteBuffer.array();
-
-				if (Arrays.equals(actualDigest, expectedDigest))
-					functionData.returnValue = 1L; // true
-				else
-					functionData.returnValue = 0L; // false
-			} catch (NoSuchAlgorithmException e) {
-				throw new ExecutionException("No SHA256 message digest service available", e);
-			}
+			if (Utils.bytesToLong(actualDigest, 0) == state.b1
+					&& Utils.bytesToLong(actualDigest, 8) == state.b2
+					&& Utils.bytesToLong(actualDigest, 16) == state.b3
+					&& Utils.bytesToLong(actualDigest, 24) == state.b4)
+				functionData.returnValue = 1L; // true
+			else
+				functionData.returnValue = 0L; // false
 		}
 	},
 	/**
@@ -702,24 +625,10 @@ public enum FunctionCode {
 	HASH160_INTO_B(0x0206, 2, false) {
 		@Override
 		protected void postCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
-			byte[] message = getHashData(functionData, state);
-
-			try {
-				MessageDigest sha256Digester = MessageDigest.getInstance("SHA-256");
-				byte[] sha256Digest = sha256Digester.digest(message);
+			byte[] sha256Digest = hashData(functionData, state, HashProvider.Algorithm.SHA256);
+			byte[] rmd160Digest = hash(HashProvider.Algorithm.RIPEMD160, sha256Digest);
 
-				MessageDigest rmd160Digester = MessageDigest.getInstance("RIPEMD160");
-				byte[] rmd160Digest = rmd160Digester.digest(sha256Digest);
-
-				ByteBuffer digestByteBuffer = ByteBuffer.wrap(rmd160Digest);
-
-				state.b1 = digestByteBuffer.getLong();
-				state.b2 = digestByteBuffer.getLong();
-				state.b3 = ((long) digestByteBuffer.getInt()) << 32; // MSB of B3
-				state.b4 = 0L;
-			} catch (NoSuchAlgorithmException e) {
-				throw new ExecutionException("No SHA-256 or RIPEMD160 message digest service available", e);
-			}
+			setRmd160IntoB(rmd160Digest, state);
 		}
 	},
 	/**
@@ -731,31 +640,13 @@ public enum FunctionCode {
 	CHECK_HASH160_WITH_B(0x0207, 2, true) {
 		@Override
 		protected void postCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
-			byte[] message = getHashData(functionData, state);
-
-			try {
-				MessageDigest sha256Digester = MessageDigest.getInstance("SHA-256");
-				byte[] sha256Digest = sha256Digester.digest(message);
+			byte[] sha256Digest = hashData(functionData, state, HashProvider.Algorithm.SHA256);
+			byte[] rmd160Digest = hash(HashProvider.Algorithm.RIPEMD160, sha256Digest);
 
-				MessageDigest rmd160Digester = MessageDigest.getInstance("RIPEMD160");
-				byte[] rmd160Digest = rmd160Digester.digest(sha256Digest);
-
-				ByteBuffer digestByteBuffer = ByteBuffer.allocate(rmd160Digester.getDigestLength());
-
-				digestByteBuffer.putLong(state.b1);
-				digestByteBuffer.putLong(state.b2);
-				digestByteBuffer.putInt((int) (state.b3 >>> 32)); // MSB of B3
-				// NOTE: b4 ignored
-
-				byte[] expectedDigest = digestByteBuffer.array();
-
-				if (Arrays.equals(rmd160Digest, expectedDigest))
-					functionData.returnValue = 1L; // true
-				else
-					functionData.returnValue = 0L; // false
-			} catch (NoSuchAlgorithmException e) {
-				throw new ExecutionException("No SHA-256 or RIPEMD160 message digest service available", e);
-			}
+			if (rmd160EqualsB(rmd160Digest, state))
+				functionData.returnValue = 1L; // true
+			else
+				functionData.returnValue = 0L; // false
 		}
 	},
 	/**
@@ -1020,8 +911,21 @@ public enum FunctionCode {
 	public final int paramCount;
 	public final boolean returnsValue;
 
-	private static final Map<Short, FunctionCode> map = Arrays.stream(FunctionCode.values())
-			.collect(Collectors.toMap(functionCode -> functionCode.value, functionCode -> functionCode));
+	// Two-level dispatch table of function code values to FunctionCode, indexed by high byte then low byte
+	private static final FunctionCode[][] table = new FunctionCode[256][];
+	static {
+		for (FunctionCode functionCode : FunctionCode.values()) {
+			final int rawValue = functionCode.value & 0xffff;
+
+			FunctionCode[] subTable = table[rawValue >>> 8];
+			if (subTable == null) {
+				subTable = new FunctionCode[256];
+				table[rawValue >>> 8] = subTable;
+			}
+
+			subTable[rawValue & 0xff] = functionCode;
+		}
+	}
 
 	private FunctionCode(int value, int paramCount, boolean returnsValue) {
 		this.value = (short) value;
@@ -1034,7 +938,13 @@ public enum FunctionCode {
 		if (value >= 0x0500 && value <= 0x06ff)
 			return API_PASSTHROUGH;
 
-		return map.get((short) value);
+		final int rawValue = value & 0xffff;
+
+		FunctionCode[] subTable = table[rawValue >>> 8];
+		if (subTable == null)
+			return null;
+
+		return subTable[rawValue & 0xff];
 	}
 
 	public void preExecuteCheck(int paramCount, boolean returnValueExpected) throws ExecutionException {
@@ -1068,7 +978,8 @@ public enum FunctionCode {
 		if (functionData.paramCount == 2 && functionData.value2 == null)
 			throw new IllegalFunctionCodeException("Passed value2 is null but function has paramCount of (" + this.paramCount + ")");
 
-		state.getLogger().debug(() -> String.format("Function \"%s\"", this.name()));
+		if (state.getLogger().isDebugEnabled())
+			state.getLogger().debug(() -> String.format("Function \"%s\"", this.name()));
 
 		postCheckExecute(functionData, state, rawFunctionCode);
 	}
@@ -1078,7 +989,8 @@ public enum FunctionCode {
 
 	// TODO: public abstract String disassemble();
 
-	protected byte[] getHashData(FunctionData functionData, MachineState state) throws ExecutionException {
+	/** Returns hash of data segment bytes specified by args, fed to hash provider directly from data segment. */
+	protected byte[] hashData(FunctionData functionData, MachineState state, HashProvider.Algorithm algorithm) throws ExecutionException {
 		// Validate data offset in arg1
 		checkDataAddress(state, functionData.value1, 1);
 
@@ -1089,15 +1001,35 @@ public enum FunctionCode {
 		final int dataStart = (int) (functionData.value1 & Integer.MAX_VALUE);
 		final int dataLength = (int) (functionData.value2 & Integer.MAX_VALUE);
 
-		byte[] message = new byte[dataLength];
+		byte[] digest = new byte[algorithm.digestLength];
 
-		ByteBuffer messageByteBuffer = state.dataByteBuffer.asReadOnlyBuffer();
-		messageByteBuffer.position(dataStart * MachineState.VALUE_SIZE);
-		messageByteBuffer.limit(dataStart * MachineState.VALUE_SIZE + dataLength);
+		state.hashDataBytes(algorithm, dataStart * MachineState.VALUE_SIZE, dataLength, digest);
 
-		messageByteBuffer.get(message);
+		return digest;
+	}
+
+	/** Returns hash of <tt>message</tt> using current hash provider. */
+	protected byte[] hash(HashProvider.Algorithm algorithm, byte[] message) throws ExecutionException {
+		byte[] digest = new byte[algorithm.digestLength];
+
+		MachineState.getHashProvider().hash(algorithm, ByteBuffer.wrap(message), digest);
+
+		return digest;
+	}
+
+	/** Stores 20-byte RIPE-MD160 digest in B1, B2 and MSB of B3. B4 is zeroed. */
+	protected void setRmd160IntoB(byte[] digest, MachineState state) {
+		state.b1 = Utils.bytesToLong(digest, 0);
+		state.b2 = Utils.bytesToLong(digest, 8);
+		state.b3 = ((long) Utils.bytesToInt(digest, 16)) << 32; // MSB of B3
+		state.b4 = 0L;
+	}
 
-		return message;
+	/** Returns whether 20-byte RIPE-MD160 digest matches B1, B2 and MSB of B3. B4 is ignored. */
+	protected boolean rmd160EqualsB(byte[] digest, MachineState state) {
+		return Utils.bytesToLong(digest, 0) == state.b1
+				&& Utils.bytesToLong(digest, 8) == state.b2
+				&& Utils.bytesToInt(digest, 16) == (int) (state.b3 >>> 32); // MSB of B3
 	}
 
 	/** Returns the number of data-page values to contain specific length of bytes. */
@@ -0,0 +1,48 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implementations of hash algorithms used by hashing {@link FunctionCode}s, e.g. <tt>SHA256_INTO_B</tt>.
+ * <p>
+ * Selected globally using <tt>MachineState.setHashProvider()</tt>. Implementations must be thread-safe.
+ */
+public interface HashProvider {
+
+	public enum Algorithm {
+		MD5(16),
+		RIPEMD160(20),
+		SHA256(32);
+
+		/** Length of digest, in bytes */
+		public final int digestLength;
+
+		private Algorithm(int digestLength) {
+			this.digestLength = digestLength;
+		}
+	}
+
+	/** Pure-Java, allocation-free implementations, needing no JCE provider. Default. */
+	public static final HashProvider BUILT_IN = new BuiltInHashProvider();
+
+	/** JCE <tt>MessageDigest</tt>s. RIPE-MD160 needs a suitable provider, e.g. BouncyCastle, to be registered. */
+	public static final HashProvider JCE = new JceHashProvider();
+
+	/** Returns name, for logging/diagnostics */
+	public String getName();
+
+	/**
+	 * Hashes remaining bytes of <tt>input</tt>, writing digest to start of <tt>output</tt>.
+	 * <p>
+	 * On return, <tt>input</tt>'s position is at its limit.
+	 *
+	 * @param algorithm
+	 * @param input
+	 * @param output
+	 *            - at least <tt>algorithm.digestLength</tt> bytes
+	 * @throws ExecutionException
+	 *             if algorithm is unavailable
+	 */
+	public void hash(Algorithm algorithm, ByteBuffer input, byte[] output) throws ExecutionException;
+
+}
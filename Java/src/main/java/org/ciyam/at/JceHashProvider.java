@@ -0,0 +1,39 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** Hash provider using JCE <tt>MessageDigest</tt>s, cached per thread. */
+final class JceHashProvider implements HashProvider {
+
+	/** JCE algorithm names, by Algorithm ordinal */
+	private static final String[] JCE_NAMES = new String[Algorithm.values().length];
+	static {
+		JCE_NAMES[Algorithm.MD5.ordinal()] = "MD5";
+		JCE_NAMES[Algorithm.RIPEMD160.ordinal()] = "RIPEMD160";
+		JCE_NAMES[Algorithm.SHA256.ordinal()] = "SHA-256";
+	}
+
+	@Override
+	public String getName() {
+		return "jce";
+	}
+
+	@Override
+	public void hash(Algorithm algorithm, ByteBuffer input, byte[] output) throws ExecutionException {
+		final String jceName = JCE_NAMES[algorithm.ordinal()];
+
+		try {
+			MessageDigest digest = MessageDigests.get(jceName);
+			digest.update(input);
+			digest.digest(output, 0, algorithm.digestLength);
+		} catch (NoSuchAlgorithmException e) {
+			throw new ExecutionException("No " + jceName + " message digest service available", e);
+		} catch (DigestException e) {
+			throw new ExecutionException(jceName + " digest failed", e);
+		}
+	}
+
+}
@@ -1,10 +1,15 @@
 package org.ciyam.at;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 public class MachineState {
 
@@ -55,6 +60,79 @@ public class MachineState {
 		VERSIONED_CONSTANTS.put((short) 2, new VersionedConstants(OPCODE_SIZE, VALUE_SIZE, ADDRESS_SIZE, VALUE_SIZE));
 	}
 
+	/** Number of execution rounds, per distinct code, before compiling code into JVM bytecode. Zero disables compilation (default). */
+	private static volatile int compilationThreshold = 0;
+
+	/** How data segment and stacks are held in memory. Serialized form is identical for all models. */
+	public enum MemoryModel {
+		/** Big-endian heap <tt>ByteBuffer</tt>s, with stack pointers held as buffer positions */
+		BYTE_BUFFER,
+		/** <tt>long[]</tt> data segment and user stack, <tt>int[]</tt> call stack, with index-based stack pointers */
+		ARRAY
+	}
+
+	/** Memory model used by newly constructed or deserialized MachineStates */
+	private static volatile MemoryModel defaultMemoryModel = MemoryModel.BYTE_BUFFER;
+
+	/**
+	 * Layout of serialized state. Data segment and stacks are identical in <tt>V1</tt> and <tt>V2</tt> formats.
+	 * <p>
+	 * Deserialization detects format from header's reserved field, which is always zero in <tt>V1</tt> state bytes.
+	 */
+	public enum StateFormat {
+		/** Header, data segment, stacks, then flags, PC and other status, with only present optional values (default) */
+		V1,
+		/**
+		 * Header, then flags, PC and other status at fixed offsets, then data segment and stacks.
+		 * Allows reading status, e.g. sleep-until height or frozen balance, without parsing stacks.
+		 */
+		V2,
+		/**
+		 * Header, then <tt>V1</tt> layout with zero words run-length encoded and small values varint-encoded in data segment and stacks.
+		 * Much smaller for typical, mostly zero, data segments, e.g. for storage, but must be decoded before use.
+		 */
+		COMPACT
+	}
+
+	/** Header reserved field value marking <tt>V2</tt> state bytes */
+	private static final short V2_RESERVED = 2;
+
+	/** Header reserved field value marking <tt>COMPACT</tt> state bytes */
+	/* package */ static final short COMPACT_RESERVED = 3;
+
+	// V2 status offsets: flags, PC, PCS, PCE, sleep-until height, previous balance, frozen balance
+	private static final int V2_FLAGS_OFFSET = HEADER_LENGTH;
+	private static final int V2_PROGRAM_COUNTER_OFFSET = V2_FLAGS_OFFSET + 4;
+	private static final int V2_ON_STOP_ADDRESS_OFFSET = V2_PROGRAM_COUNTER_OFFSET + 4;
+	private static final int V2_ON_ERROR_ADDRESS_OFFSET = V2_ON_STOP_ADDRESS_OFFSET + 4;
+	private static final int V2_SLEEP_UNTIL_HEIGHT_OFFSET = V2_ON_ERROR_ADDRESS_OFFSET + 4;
+	private static final int V2_PREVIOUS_BALANCE_OFFSET = V2_SLEEP_UNTIL_HEIGHT_OFFSET + 4;
+	private static final int V2_FROZEN_BALANCE_OFFSET = V2_PREVIOUS_BALANCE_OFFSET + 8;
+	private static final int V2_STATUS_LENGTH = V2_FROZEN_BALANCE_OFFSET + 8 - HEADER_LENGTH;
+
+	/** Flags for non-zero A and B registers, which are pushed last */
+	private static final int REGISTER_FLAGS_MASK = 0x3;
+
+	/** Bytes per chunk of lazily-read data segment copied on first write */
+	private static final int LAZY_DATA_CHUNK_SIZE = 256;
+
+	/** Format of state bytes produced by <tt>toBytes()</tt> */
+	private static volatile StateFormat defaultStateFormat = StateFormat.V1;
+
+	/** Execution engine used by newly constructed or deserialized MachineStates, reference engine unless opted in to faster engine */
+	private static volatile ExecutionEngine defaultExecutionEngine = ExecutionEngine.REFERENCE;
+
+	/** Cross-engine shadow execution of sampled rounds, or null if disabled (default) */
+	private static volatile ShadowExecution shadowExecution = null;
+
+	/** Implementations of hash algorithms used by hashing function codes */
+	private static volatile HashProvider hashProvider = HashProvider.BUILT_IN;
+
+	/* package */ static final OpCode[] OPCODES = OpCode.values();
+
+	/** Marker for opcode steps not yet requested from API this round */
+	private static final int UNKNOWN_STEPS = Integer.MIN_VALUE;
+
 	// Set during construction
 	public final short version;
 	public final short reserved;
@@ -67,6 +145,21 @@ public class MachineState {
 	/** Constants set in effect */
 	private final VersionedConstants constants;
 
+	/** log2 of data page size, which is always a power of two */
+	private final int dataPageShift;
+
+	/** Bitmap of data pages written since start of latest execution round, 64 pages per long */
+	private final long[] dirtyDataPages;
+
+	/** Length of state bytes this state was last restored from, as base for deltas, or -1 if none */
+	private int deltaBaseLength = -1;
+
+	/** CRC32 of state bytes this state was last restored from */
+	private int deltaBaseCrc;
+
+	/** Bitmap of data pages written since this state was last restored, across execution rounds, 64 pages per long */
+	private final long[] deltaDirtyDataPages;
+
 	/** Program Counter: offset into code to point of current execution */
 	private int programCounter;
 
@@ -132,6 +225,37 @@ public class MachineState {
 	/* package */ ByteBuffer callStackByteBuffer;
 	/* package */ ByteBuffer userStackByteBuffer;
 
+	// ARRAY memory model: used instead of the above ByteBuffers if not null. Access via getDataValue(), pushUserStack(), etc.
+	private long[] dataValues;
+	private int[] callStackValues;
+	/** Index of call stack's top-most entry, equal to callStackValues.length when empty */
+	private int callStackIndex;
+	private long[] userStackValues;
+	/** Index of user stack's top-most entry, equal to userStackValues.length when empty */
+	private int userStackIndex;
+
+	// Lazily-read data segment: used instead of the above if not null. Chunks are copied from lazyDataBytes on first write.
+	private ByteBuffer lazyDataBytes;
+	private long[][] lazyDataChunks;
+
+	/** Memory model to use when (re)loading state */
+	private MemoryModel memoryModel = MemoryModel.BYTE_BUFFER;
+
+	/** Arena block holding data segment and stacks, or null if they're on heap */
+	/* package */ MachineStateArena.Block arenaBlock;
+
+	/** Reusable storage for opcode params, to avoid allocation during OpCode.execute() */
+	/* package */ final long[] opCodeArgs = new long[OpCode.MAX_PARAMS];
+
+	/** Code bytes and their decoded form, shared with other MachineStates with same code. Set when restored, or on first execution. */
+	private Program program;
+
+	/** Opcode steps, by OpCode ordinal, requested from API this round for metering compiled blocks */
+	private int[] opCodeStepsThisRound;
+
+	/** Engine that runs execution loop. Not serialized. */
+	private ExecutionEngine executionEngine = defaultExecutionEngine;
+
 	// Constructors
 
 	/** For internal use when recreating a machine state. Leaves ByteBuffer position immediately after header. */
@@ -170,6 +294,10 @@ public class MachineState {
 			throw new IllegalArgumentException("Minimum activation amount must be >= 0");
 
 		// Header OK
+
+		this.dataPageShift = Integer.numberOfTrailingZeros(this.constants.DATA_PAGE_SIZE);
+		this.dirtyDataPages = new long[(this.numDataPages + Long.SIZE - 1) / Long.SIZE];
+		this.deltaDirtyDataPages = new long[this.dirtyDataPages.length];
 	}
 
 	/** For creating a new machine state */
@@ -225,6 +353,9 @@ public class MachineState {
 	}
 
 	private void commonFinalConstruction(API api, AtLoggerFactory loggerFactory) {
+		// Stacks are empty at this point so can always be converted
+		this.convertMemory(defaultMemoryModel);
+
 		this.api = api;
 		this.loggerFactory = loggerFactory;
 		this.logger = loggerFactory.create(MachineState.class);
@@ -353,6 +484,13 @@ public class MachineState {
 		return this.loggerFactory;
 	}
 
+	/** Replaces API, returning previous API. Used to record API calls during shadow execution. */
+	/* package */ API swapAPI(API api) {
+		API previousApi = this.api;
+		this.api = api;
+		return previousApi;
+	}
+
 	/* package */ AtLogger getLogger() {
 		return this.logger;
 	}
@@ -386,6 +524,425 @@ public class MachineState {
 		this.codeByteBuffer.position(this.codeByteBuffer.position() - offset);
 	}
 
+	// Memory model
+
+	/** Returns memory model used by newly constructed or deserialized MachineStates */
+	public static MemoryModel getDefaultMemoryModel() {
+		return defaultMemoryModel;
+	}
+
+	/**
+	 * Sets memory model used by newly constructed or deserialized MachineStates.
+	 * <p>
+	 * Compiled code (see <tt>setCompilationThreshold</tt>) is only used with <tt>BYTE_BUFFER</tt> memory model.
+	 */
+	public static void setDefaultMemoryModel(MemoryModel memoryModel) {
+		if (memoryModel == null)
+			throw new IllegalArgumentException("Memory model cannot be null");
+
+		MachineState.defaultMemoryModel = memoryModel;
+	}
+
+	public MemoryModel getMemoryModel() {
+		return this.dataValues != null ? MemoryModel.ARRAY : MemoryModel.BYTE_BUFFER;
+	}
+
+	/**
+	 * Converts this MachineState's data segment and stacks to memory model, preserving contents.
+	 *
+	 * @throws IllegalArgumentException if memory model is null
+	 * @throws IllegalStateException if stacks don't hold whole entries, so can't be converted to <tt>ARRAY</tt>
+	 */
+	public void setMemoryModel(MemoryModel memoryModel) {
+		if (memoryModel == null)
+			throw new IllegalArgumentException("Memory model cannot be null");
+
+		if (this.arenaBlock != null && memoryModel != MemoryModel.BYTE_BUFFER)
+			throw new IllegalStateException("Arena-backed state must use " + MemoryModel.BYTE_BUFFER + " memory model");
+
+		if (!this.convertMemory(memoryModel))
+			throw new IllegalStateException("Stacks cannot be converted to " + memoryModel + " memory model");
+
+		this.memoryModel = memoryModel;
+	}
+
+	/** Converts data segment and stacks to memory model. Returns false, leaving ByteBuffers in place, if stacks can't be held as arrays. */
+	private boolean convertMemory(MemoryModel memoryModel) {
+		this.copyLazyData();
+
+		if (memoryModel == MemoryModel.BYTE_BUFFER) {
+			if (this.dataValues != null) {
+				this.dataByteBuffer = ByteBuffer.allocate(this.dataValues.length * VALUE_SIZE);
+				this.dataByteBuffer.asLongBuffer().put(this.dataValues);
+				this.dataValues = null;
+			}
+
+			if (this.callStackValues != null) {
+				this.callStackByteBuffer = ByteBuffer.allocate(this.callStackValues.length * ADDRESS_SIZE);
+				this.callStackByteBuffer.asIntBuffer().put(this.callStackValues);
+				this.callStackByteBuffer.position(this.callStackIndex * ADDRESS_SIZE);
+				this.callStackValues = null;
+			}
+
+			if (this.userStackValues != null) {
+				this.userStackByteBuffer = ByteBuffer.allocate(this.userStackValues.length * VALUE_SIZE);
+				this.userStackByteBuffer.asLongBuffer().put(this.userStackValues);
+				this.userStackByteBuffer.position(this.userStackIndex * VALUE_SIZE);
+				this.userStackValues = null;
+			}
+
+			return true;
+		}
+
+		if (this.dataValues != null)
+			return true;
+
+		final ByteBuffer callStack = this.callStackByteBuffer;
+		final ByteBuffer userStack = this.userStackByteBuffer;
+
+		if (!isArrayCompatible(callStack.limit() - callStack.position(), callStack.limit(), ADDRESS_SIZE)
+				|| !isArrayCompatible(userStack.limit() - userStack.position(), userStack.limit(), VALUE_SIZE)
+				|| this.dataByteBuffer.limit() % VALUE_SIZE != 0)
+			return false;
+
+		this.dataValues = new long[this.dataByteBuffer.limit() / VALUE_SIZE];
+		this.dataByteBuffer.duplicate().clear().asLongBuffer().get(this.dataValues);
+		this.dataByteBuffer = null;
+
+		this.callStackValues = new int[callStack.limit() / ADDRESS_SIZE];
+		callStack.duplicate().clear().asIntBuffer().get(this.callStackValues);
+		this.callStackIndex = callStack.position() / ADDRESS_SIZE;
+		this.callStackByteBuffer = null;
+
+		this.userStackValues = new long[userStack.limit() / VALUE_SIZE];
+		userStack.duplicate().clear().asLongBuffer().get(this.userStackValues);
+		this.userStackIndex = userStack.position() / VALUE_SIZE;
+		this.userStackByteBuffer = null;
+
+		return true;
+	}
+
+	/** Returns length, in bytes, of arena block needed for data segment and stacks, using page sizes for this state's version */
+	/* package */ int getArenaLength() {
+		return this.numDataPages * this.constants.DATA_PAGE_SIZE
+				+ this.numCallStackPages * this.constants.CALL_STACK_PAGE_SIZE
+				+ this.numUserStackPages * this.constants.USER_STACK_PAGE_SIZE;
+	}
+
+	/**
+	 * Rebinds data segment and stacks to <tt>memory</tt>, which must be <tt>getArenaLength()</tt> bytes, preserving positions and limits.
+	 * <p>
+	 * If <tt>copy</tt> is true, current contents are copied into <tt>memory</tt> first, otherwise <tt>memory</tt> already holds them,
+	 * e.g. after arena compaction.
+	 */
+	/* package */ void bindArenaMemory(ByteBuffer memory, boolean copy) {
+		final int dataLength = this.numDataPages * this.constants.DATA_PAGE_SIZE;
+		final int callStackLength = this.numCallStackPages * this.constants.CALL_STACK_PAGE_SIZE;
+		final int userStackLength = this.numUserStackPages * this.constants.USER_STACK_PAGE_SIZE;
+
+		ByteBuffer dataBytes = sliceOf(memory, 0, dataLength);
+		ByteBuffer callStackBytes = sliceOf(memory, dataLength, callStackLength);
+		ByteBuffer userStackBytes = sliceOf(memory, dataLength + callStackLength, userStackLength);
+
+		if (copy) {
+			dataBytes.duplicate().put(this.dataByteBuffer.duplicate().clear());
+			callStackBytes.duplicate().put(this.callStackByteBuffer.duplicate().clear());
+			userStackBytes.duplicate().put(this.userStackByteBuffer.duplicate().clear());
+		}
+
+		dataBytes.limit(this.dataByteBuffer.limit()).position(this.dataByteBuffer.position());
+		callStackBytes.limit(this.callStackByteBuffer.limit()).position(this.callStackByteBuffer.position());
+		userStackBytes.limit(this.userStackByteBuffer.limit()).position(this.userStackByteBuffer.position());
+
+		this.dataByteBuffer = dataBytes;
+		this.callStackByteBuffer = callStackBytes;
+		this.userStackByteBuffer = userStackBytes;
+	}
+
+	/** Moves data segment and stacks back to heap, e.g. when freed from arena, so this state remains usable */
+	/* package */ void unbindArenaMemory() {
+		ByteBuffer dataBytes = ByteBuffer.allocate(this.dataByteBuffer.capacity());
+		ByteBuffer callStackBytes = ByteBuffer.allocate(this.callStackByteBuffer.capacity());
+		ByteBuffer userStackBytes = ByteBuffer.allocate(this.userStackByteBuffer.capacity());
+
+		this.bindHeapCopy(dataBytes, this.dataByteBuffer);
+		this.bindHeapCopy(callStackBytes, this.callStackByteBuffer);
+		this.bindHeapCopy(userStackBytes, this.userStackByteBuffer);
+
+		this.dataByteBuffer = dataBytes;
+		this.callStackByteBuffer = callStackBytes;
+		this.userStackByteBuffer = userStackBytes;
+	}
+
+	private void bindHeapCopy(ByteBuffer heapBytes, ByteBuffer arenaBytes) {
+		heapBytes.put(arenaBytes.duplicate().clear());
+		heapBytes.limit(arenaBytes.limit()).position(arenaBytes.position());
+	}
+
+	private static ByteBuffer sliceOf(ByteBuffer memory, int offset, int length) {
+		ByteBuffer slice = memory.duplicate();
+		slice.limit(offset + length).position(offset);
+		return slice.slice();
+	}
+
+	// Memory access, for use by OpCodes and FunctionCodes. Data addresses are in bytes, i.e. already scaled by VALUE_SIZE.
+
+	/** Returns length of data segment, in bytes */
+	/* package */ int getDataLength() {
+		if (this.dataValues != null)
+			return this.dataValues.length * VALUE_SIZE;
+
+		if (this.dataByteBuffer != null)
+			return this.dataByteBuffer.limit();
+
+		return this.lazyDataBytes.limit();
+	}
+
+	/* package */ long getDataValue(int address) {
+		if (this.dataValues != null)
+			return this.dataValues[address / VALUE_SIZE];
+
+		if (this.dataByteBuffer != null)
+			return this.dataByteBuffer.getLong(address);
+
+		final long[] chunk = this.lazyDataChunks[address / LAZY_DATA_CHUNK_SIZE];
+		if (chunk != null)
+			return chunk[address % LAZY_DATA_CHUNK_SIZE / VALUE_SIZE];
+
+		return this.lazyDataBytes.getLong(address);
+	}
+
+	/* package */ void setDataValue(int address, long value) {
+		if (this.dataValues != null)
+			this.dataValues[address / VALUE_SIZE] = value;
+		else if (this.dataByteBuffer != null)
+			this.dataByteBuffer.putLong(address, value);
+		else
+			this.getLazyDataChunk(address / LAZY_DATA_CHUNK_SIZE)[address % LAZY_DATA_CHUNK_SIZE / VALUE_SIZE] = value;
+
+		this.markDataWritten(address);
+	}
+
+	/** Returns chunk of lazily-read data segment, copying it on first use */
+	private long[] getLazyDataChunk(int chunkIndex) {
+		long[] chunk = this.lazyDataChunks[chunkIndex];
+		if (chunk != null)
+			return chunk;
+
+		final int chunkOffset = chunkIndex * LAZY_DATA_CHUNK_SIZE;
+		chunk = new long[Math.min(LAZY_DATA_CHUNK_SIZE, this.lazyDataBytes.limit() - chunkOffset) / VALUE_SIZE];
+		for (int i = 0; i < chunk.length; ++i)
+			chunk[i] = this.lazyDataBytes.getLong(chunkOffset + i * VALUE_SIZE);
+
+		this.lazyDataChunks[chunkIndex] = chunk;
+		return chunk;
+	}
+
+	/** Copies whole of lazily-read data segment, if any, into data ByteBuffer */
+	private void copyLazyData() {
+		if (this.lazyDataBytes == null)
+			return;
+
+		this.dataByteBuffer = ByteBuffer.allocate(this.lazyDataBytes.limit());
+		this.dataByteBuffer.put(this.lazyDataBytes.duplicate());
+
+		for (int chunkIndex = 0; chunkIndex < this.lazyDataChunks.length; ++chunkIndex) {
+			final long[] chunk = this.lazyDataChunks[chunkIndex];
+			if (chunk == null)
+				continue;
+
+			for (int i = 0; i < chunk.length; ++i)
+				this.dataByteBuffer.putLong(chunkIndex * LAZY_DATA_CHUNK_SIZE + i * VALUE_SIZE, chunk[i]);
+		}
+
+		this.dataByteBuffer.clear();
+		this.lazyDataBytes = null;
+		this.lazyDataChunks = null;
+	}
+
+	/** Marks data page containing value at address as dirty. Address must be valid, so value-aligned, which never straddles pages. */
+	/* package */ void markDataWritten(int address) {
+		final int page = address >>> this.dataPageShift;
+		this.dirtyDataPages[page / Long.SIZE] |= 1L << page;
+		this.deltaDirtyDataPages[page / Long.SIZE] |= 1L << page;
+	}
+
+	/** Returns size of data pages, in bytes, as used by <tt>getDirtyDataPages()</tt> */
+	public int getDataPageSize() {
+		return this.constants.DATA_PAGE_SIZE;
+	}
+
+	/**
+	 * Returns size of data pages, in bytes, for AT <tt>version</tt>.
+	 *
+	 * @throws IllegalArgumentException if <tt>version</tt> is unknown
+	 */
+	/* package */ static int getDataPageSize(short version) {
+		VersionedConstants constants = VERSIONED_CONSTANTS.get(version);
+		if (constants == null)
+			throw new IllegalArgumentException("Version " + version + " unsupported");
+
+		return constants.DATA_PAGE_SIZE;
+	}
+
+	/**
+	 * Returns indexes of data pages written since start of latest execution round, e.g. so only changed pages need persisting or hashing.
+	 * <p>
+	 * Includes pages written with unchanged values. Pages are <tt>getDataPageSize()</tt> bytes.
+	 */
+	public BitSet getDirtyDataPages() {
+		return BitSet.valueOf(this.dirtyDataPages);
+	}
+
+	/**
+	 * Records <tt>stateBytes</tt>, from 0 to limit, which this state is being restored from, as base for deltas.
+	 * Also resets data pages written since base.
+	 */
+	private void setDeltaBase(ByteBuffer stateBytes) {
+		CRC32 crc32 = new CRC32();
+		crc32.update(stateBytes.duplicate().position(0));
+
+		this.deltaBaseLength = stateBytes.limit();
+		this.deltaBaseCrc = (int) crc32.getValue();
+		Arrays.fill(this.deltaDirtyDataPages, 0L);
+	}
+
+	/** Returns whether <tt>stateBytes</tt> are those this state was last restored from, with <tt>crc32</tt> being their CRC32 */
+	/* package */ boolean isDeltaBase(byte[] stateBytes, int crc32) {
+		return stateBytes.length == this.deltaBaseLength && crc32 == this.deltaBaseCrc;
+	}
+
+	/** Returns indexes of data pages written since this state was last restored, across execution rounds */
+	/* package */ BitSet getDeltaDirtyDataPages() {
+		return BitSet.valueOf(this.deltaDirtyDataPages);
+	}
+
+	/** Copies bytes from data segment, starting at address, into <tt>dest</tt> */
+	/* package */ void getDataBytes(int address, byte[] dest) {
+		if (this.dataByteBuffer != null) {
+			ByteBuffer dataBytes = this.dataByteBuffer.asReadOnlyBuffer();
+			dataBytes.position(address);
+			dataBytes.limit(address + dest.length);
+			dataBytes.get(dest);
+			return;
+		}
+
+		if (address < 0 || address + dest.length > this.getDataLength())
+			throw new IllegalArgumentException("Data bytes out of bounds");
+
+		for (int i = 0; i < dest.length; ++i) {
+			final int byteAddress = address + i;
+			final int shift = (VALUE_SIZE - 1 - byteAddress % VALUE_SIZE) * 8;
+
+			dest[i] = (byte) (this.getDataValue(byteAddress - byteAddress % VALUE_SIZE) >>> shift);
+		}
+	}
+
+	/** Hashes bytes from data segment, starting at address, into <tt>output</tt>, without copying where possible */
+	/* package */ void hashDataBytes(HashProvider.Algorithm algorithm, int address, int length, byte[] output) throws ExecutionException {
+		ByteBuffer dataBytes;
+
+		if (this.dataByteBuffer != null) {
+			dataBytes = this.dataByteBuffer.duplicate();
+			dataBytes.limit(address + length);
+			dataBytes.position(address);
+		} else {
+			byte[] copiedBytes = new byte[length];
+			this.getDataBytes(address, copiedBytes);
+			dataBytes = ByteBuffer.wrap(copiedBytes);
+		}
+
+		MachineState.hashProvider.hash(algorithm, dataBytes, output);
+	}
+
+	/* package */ void pushUserStack(long value) throws StackBoundsException {
+		if (this.userStackValues != null) {
+			if (this.userStackIndex == 0)
+				throw new StackBoundsException("No room on user stack to push data");
+
+			this.userStackValues[--this.userStackIndex] = value;
+			return;
+		}
+
+		try {
+			// Simulate backwards-walking stack
+			int newPosition = this.userStackByteBuffer.position() - VALUE_SIZE;
+			this.userStackByteBuffer.putLong(newPosition, value);
+			this.userStackByteBuffer.position(newPosition);
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new StackBoundsException("No room on user stack to push data", e);
+		}
+	}
+
+	/* package */ long popUserStack() throws StackBoundsException {
+		if (this.userStackValues != null) {
+			if (this.userStackIndex == this.userStackValues.length)
+				throw new StackBoundsException("Empty user stack from which to pop data");
+
+			long value = this.userStackValues[this.userStackIndex];
+
+			// Clear old stack entry
+			this.userStackValues[this.userStackIndex++] = 0L;
+
+			return value;
+		}
+
+		try {
+			long value = this.userStackByteBuffer.getLong();
+
+			// Clear old stack entry
+			this.userStackByteBuffer.putLong(this.userStackByteBuffer.position() - VALUE_SIZE, 0L);
+
+			return value;
+		} catch (BufferUnderflowException e) {
+			throw new StackBoundsException("Empty user stack from which to pop data", e);
+		}
+	}
+
+	/* package */ void pushCallStack(int address) throws StackBoundsException {
+		if (this.callStackValues != null) {
+			if (this.callStackIndex == 0)
+				throw new StackBoundsException("No room on call stack to call subroutine");
+
+			this.callStackValues[--this.callStackIndex] = address;
+			return;
+		}
+
+		try {
+			// Simulate backwards-walking stack
+			int newPosition = this.callStackByteBuffer.position() - ADDRESS_SIZE;
+			this.callStackByteBuffer.putInt(newPosition, address);
+			this.callStackByteBuffer.position(newPosition);
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new StackBoundsException("No room on call stack to call subroutine", e);
+		}
+	}
+
+	/* package */ int popCallStack() throws StackBoundsException {
+		if (this.callStackValues != null) {
+			if (this.callStackIndex == this.callStackValues.length)
+				throw new StackBoundsException("Empty call stack missing return address from subroutine");
+
+			int address = this.callStackValues[this.callStackIndex];
+
+			// Clear old stack entry
+			this.callStackValues[this.callStackIndex++] = 0;
+
+			return address;
+		}
+
+		try {
+			int address = this.callStackByteBuffer.getInt();
+
+			// Clear old stack entry
+			this.callStackByteBuffer.putInt(this.callStackByteBuffer.position() - ADDRESS_SIZE, 0);
+
+			return address;
+		} catch (BufferUnderflowException e) {
+			throw new StackBoundsException("Empty call stack missing return address from subroutine", e);
+		}
+	}
+
 	// Serialization
 
 	public static byte[] toCreationBytes(short version, byte[] codeBytes, byte[] dataBytes, short numCallStackPages, short numUserStackPages, long minActivationAmount) {
@@ -446,215 +1003,826 @@ public class MachineState {
 	/** Returns code bytes only as these are read-only so no need to be duplicated in every serialized state */
 	public byte[] getCodeBytes() {
 		// We create a copy because codeByteBuffer is a read-only sub-slice of another ByteBuffer
+		// Duplicate so that program counter, i.e. code position, isn't disturbed
 		byte[] codeBytes = new byte[this.codeByteBuffer.limit()];
-		this.codeByteBuffer.position(0).get(codeBytes);
+		this.codeByteBuffer.duplicate().position(0).get(codeBytes);
 		return codeBytes;
 	}
 
-	private static class NumericByteArrayOutputStream extends ByteArrayOutputStream {
-		public NumericByteArrayOutputStream(int capacity) {
-			super(capacity);
-		}
-
-		public void writeShort(short value) {
-			this.write((byte) (value >> 8));
-			this.write((byte) (value));
-		}
-
-		public void writeInt(int value) {
-			this.write((byte) (value >> 24));
-			this.write((byte) (value >> 16));
-			this.write((byte) (value >> 8));
-			this.write((byte) (value));
-		}
+	/**
+	 * Returns program, i.e. code bytes and their decoded form, shared with other MachineStates with identical code.
+	 * <p>
+	 * MachineStates created from code bytes, rather than restored, intern their code on first call.
+	 */
+	public Program getProgram() {
+		if (this.program == null)
+			this.program = Program.fromCodeBytes(this.codeByteBuffer);
 
-		public void writeLong(long value) {
-			this.write((byte) (value >> 56));
-			this.write((byte) (value >> 48));
-			this.write((byte) (value >> 40));
-			this.write((byte) (value >> 32));
-			this.write((byte) (value >> 24));
-			this.write((byte) (value >> 16));
-			this.write((byte) (value >> 8));
-			this.write((byte) (value));
-		}
+		return this.program;
 	}
 
-	/** For serializing a machine state */
+	/** For serializing a machine state, in default state format */
 	public byte[] toBytes() {
-		int capacity = HEADER_LENGTH
-				+ this.dataByteBuffer.capacity()
-				+ this.callStackByteBuffer.capacity()
-				+ this.userStackByteBuffer.capacity()
-				+ 7 * 4 // Misc ints like stack lengths, PC, PCS, flags, etc.
-				+ 10 * 8; // Misc longs like previous balance, frozen balance, A, B, etc.
+		return this.toBytes(defaultStateFormat);
+	}
 
-		NumericByteArrayOutputStream bytes = new NumericByteArrayOutputStream(capacity);
+	/** For serializing a machine state in specific state format */
+	public byte[] toBytes(StateFormat stateFormat) {
+		byte[] bytes = new byte[this.serializedSize(stateFormat)];
+		this.writeTo(ByteBuffer.wrap(bytes), stateFormat);
+		return bytes;
+	}
 
-		try {
-			// Header first
+	/** Returns length of state bytes, in default state format, as written by {@link #writeTo(ByteBuffer)} */
+	public int serializedSize() {
+		return this.serializedSize(defaultStateFormat);
+	}
 
-			// Version
-			bytes.writeShort(version);
+	/** Returns length of state bytes, in specific state format, as written by {@link #writeTo(ByteBuffer, StateFormat)} */
+	public int serializedSize(StateFormat stateFormat) {
+		// Compact length is counted by a dry run of encoding, without writing anything
+		if (stateFormat == StateFormat.COMPACT)
+			return this.writeCompact(null);
+
+		return HEADER_LENGTH
+				+ (stateFormat == StateFormat.V2 ? V2_STATUS_LENGTH : 0)
+				+ this.getDataLength()
+				+ 4 + this.getCallStackLength()
+				+ 4 + this.getUserStackLength()
+				+ (stateFormat == StateFormat.V1 ? this.miscLength() : 0)
+				+ this.registersLength();
+	}
 
-			// Reserved
-			bytes.writeShort((short) 0);
+	/**
+	 * Serializes machine state, in default state format, into <tt>dst</tt> at its position, e.g. a pooled or direct buffer.
+	 *
+	 * @return number of bytes written, i.e. {@link #serializedSize()}
+	 * @throws BufferOverflowException if <tt>dst</tt> has insufficient remaining space, in which case nothing is written
+	 */
+	public int writeTo(ByteBuffer dst) {
+		return this.writeTo(dst, defaultStateFormat);
+	}
 
-			// Code length
-			bytes.writeShort(numCodePages);
+	/**
+	 * Serializes machine state, in specific state format, into <tt>dst</tt> at its position, advancing position.
+	 * <p>
+	 * State bytes are identical to <tt>toBytes(stateFormat)</tt>, regardless of <tt>dst</tt>'s byte order,
+	 * and are written using bulk puts without intermediate arrays.
+	 * {@link StateFormat#COMPACT} state bytes are encoded straight from data segment and stacks, also without intermediate arrays.
+	 *
+	 * @return number of bytes written, i.e. {@link #serializedSize(StateFormat)}
+	 * @throws BufferOverflowException if <tt>dst</tt> has insufficient remaining space, in which case nothing is written
+	 */
+	public int writeTo(ByteBuffer dst, StateFormat stateFormat) {
+		final int serializedSize = this.serializedSize(stateFormat);
+		if (dst.remaining() < serializedSize)
+			throw new BufferOverflowException();
 
-			// Data length
-			bytes.writeShort(numDataPages);
+		final ByteOrder byteOrder = dst.order();
+		dst.order(ByteOrder.BIG_ENDIAN);
 
-			// Call stack length
-			bytes.writeShort(numCallStackPages);
+		try {
+			if (stateFormat == StateFormat.COMPACT) {
+				this.writeCompact(dst);
+				return serializedSize;
+			}
 
-			// User stack length
-			bytes.writeShort(numUserStackPages);
+			// Header first
+			this.writeHeader(dst, stateFormat);
 
-			// Minimum activation amount
-			bytes.writeLong(minActivationAmount);
+			if (stateFormat == StateFormat.V2)
+				this.writeStatus(dst);
 
 			// Data
-			bytes.write(this.dataByteBuffer.array());
+			if (this.dataValues != null) {
+				dst.asLongBuffer().put(this.dataValues);
+				dst.position(dst.position() + this.dataValues.length * VALUE_SIZE);
+			} else if (this.dataByteBuffer != null) {
+				putBytes(dst, this.dataByteBuffer, 0);
+			} else {
+				this.writeLazyData(dst);
+			}
 
 			// Call stack length (32bit unsigned int)
-			int callStackLength = this.callStackByteBuffer.limit() - this.callStackByteBuffer.position();
-			bytes.writeInt(callStackLength);
-			// Call stack (only the bytes actually in use)
-			bytes.write(this.callStackByteBuffer.array(), this.callStackByteBuffer.position(), callStackLength);
+			dst.putInt(this.getCallStackLength());
+
+			// Call stack (only the entries actually in use)
+			if (this.callStackValues != null) {
+				dst.asIntBuffer().put(this.callStackValues, this.callStackIndex, this.callStackValues.length - this.callStackIndex);
+				dst.position(dst.position() + (this.callStackValues.length - this.callStackIndex) * ADDRESS_SIZE);
+			} else {
+				putBytes(dst, this.callStackByteBuffer, this.callStackByteBuffer.position());
+			}
 
 			// User stack length (32bit unsigned int)
-			int userStackLength = this.userStackByteBuffer.limit() - this.userStackByteBuffer.position();
-			bytes.writeInt(userStackLength);
-			// User stack (only the bytes actually in use)
-			bytes.write(this.userStackByteBuffer.array(), this.userStackByteBuffer.position(), userStackLength);
+			dst.putInt(this.getUserStackLength());
+
+			// User stack (only the entries actually in use)
+			if (this.userStackValues != null) {
+				dst.asLongBuffer().put(this.userStackValues, this.userStackIndex, this.userStackValues.length - this.userStackIndex);
+				dst.position(dst.position() + (this.userStackValues.length - this.userStackIndex) * VALUE_SIZE);
+			} else {
+				putBytes(dst, this.userStackByteBuffer, this.userStackByteBuffer.position());
+			}
 
-			// Actual state
-			bytes.writeInt(this.programCounter);
-			bytes.writeInt(this.onStopAddress);
-			bytes.writeLong(this.previousBalance);
+			if (stateFormat == StateFormat.V1)
+				this.writeMisc(dst);
+
+			this.writeRegisters(dst);
+		} finally {
+			dst.order(byteOrder);
+		}
+
+		return serializedSize;
+	}
 
-			// Various flags
-			Flags flags = new Flags();
-			flags.push(this.isSleeping);
-			flags.push(this.isStopped);
-			flags.push(this.isFinished);
-			flags.push(this.hadFatalError);
-			flags.push(this.isFrozen);
+	/**
+	 * Writes {@link StateFormat#COMPACT} state bytes into <tt>dst</tt>, which must be big-endian,
+	 * encoding straight from data segment and stacks, whatever the memory model.
+	 * <p>
+	 * If <tt>dst</tt> is null, nothing is written, but length is still returned.
+	 *
+	 * @return length of compact state bytes
+	 */
+	private int writeCompact(ByteBuffer dst) {
+		final int callStackLength = this.getCallStackLength();
+		final int userStackLength = this.getUserStackLength();
+		final int miscLength = this.miscLength() + this.registersLength();
+
+		final CompactState.Section data;
+		if (this.dataValues != null)
+			data = new CompactState.LongsSection(this.dataValues, 0);
+		else if (this.dataByteBuffer != null)
+			data = new CompactState.BytesSection(this.dataByteBuffer, 0);
+		else
+			// Lazily-read data segment, without copying any chunks
+			data = new CompactState.Section() {
+				@Override
+				public long getLong(int offset) {
+					return MachineState.this.getDataValue(offset);
+				}
+			};
 
-			flags.push(this.onErrorAddress != null); // has onErrorAddress?
-			flags.push(this.sleepUntilHeight != null); // has sleepUntilHeight?
-			flags.push(this.frozenBalance != null); // has frozenBalance?
+		final CompactState.Section callStack = this.callStackValues != null
+				? new CompactState.IntsSection(this.callStackValues, this.callStackIndex)
+				: new CompactState.BytesSection(this.callStackByteBuffer, this.callStackByteBuffer.position());
 
-			boolean hasNonZeroA = this.a1 != 0 || this.a2 != 0 || this.a3 != 0 || this.a4 != 0;
-			flags.push(hasNonZeroA);
+		final CompactState.Section userStack = this.userStackValues != null
+				? new CompactState.LongsSection(this.userStackValues, this.userStackIndex)
+				: new CompactState.BytesSection(this.userStackByteBuffer, this.userStackByteBuffer.position());
 
-			boolean hasNonZeroB = this.b1 != 0 || this.b2 != 0 || this.b3 != 0 || this.b4 != 0;
-			flags.push(hasNonZeroB);
+		if (dst != null)
+			this.writeHeader(dst, StateFormat.COMPACT);
 
-			bytes.writeInt(flags.intValue());
+		final int compactLength = HEADER_LENGTH
+				+ CompactState.encodeLengths(dst, callStackLength, userStackLength, miscLength)
+				+ CompactState.encodeWords(dst, data, this.getDataLength())
+				+ CompactState.encodeEntries(dst, callStack, callStackLength)
+				+ CompactState.encodeWords(dst, userStack, userStackLength)
+				+ miscLength;
 
-			// Optional flag-indicated extra info in same order as above
-			if (this.onErrorAddress != null)
-				bytes.writeInt(this.onErrorAddress);
+		if (dst != null) {
+			this.writeMisc(dst);
+			this.writeRegisters(dst);
+		}
 
-			if (this.sleepUntilHeight != null)
-				bytes.writeInt(this.sleepUntilHeight);
+		return compactLength;
+	}
 
-			if (this.frozenBalance != null)
-				bytes.writeLong(this.frozenBalance);
+	/** Writes lazily-read data segment, using copied chunks where written */
+	private void writeLazyData(ByteBuffer dst) {
+		for (int chunkIndex = 0; chunkIndex < this.lazyDataChunks.length; ++chunkIndex) {
+			final long[] chunk = this.lazyDataChunks[chunkIndex];
 
-			if (hasNonZeroA) {
-				bytes.writeLong(this.a1);
-				bytes.writeLong(this.a2);
-				bytes.writeLong(this.a3);
-				bytes.writeLong(this.a4);
+			if (chunk != null) {
+				dst.asLongBuffer().put(chunk);
+				dst.position(dst.position() + chunk.length * VALUE_SIZE);
+				continue;
 			}
 
-			if (hasNonZeroB) {
-				bytes.writeLong(this.b1);
-				bytes.writeLong(this.b2);
-				bytes.writeLong(this.b3);
-				bytes.writeLong(this.b4);
-			}
-		} catch (IOException e) {
-			return null;
+			ByteBuffer chunkBytes = this.lazyDataBytes.duplicate();
+			chunkBytes.limit(Math.min(chunkBytes.limit(), (chunkIndex + 1) * LAZY_DATA_CHUNK_SIZE)).position(chunkIndex * LAZY_DATA_CHUNK_SIZE);
+			dst.put(chunkBytes);
+		}
+	}
+
+	/** Puts bytes of <tt>src</tt>, from <tt>offset</tt> up to its limit, into <tt>dst</tt>, whether <tt>src</tt> is on heap or not */
+	private static void putBytes(ByteBuffer dst, ByteBuffer src, int offset) {
+		if (src.hasArray()) {
+			dst.put(src.array(), src.arrayOffset() + offset, src.limit() - offset);
+			return;
 		}
 
-		return bytes.toByteArray();
+		ByteBuffer bytes = src.duplicate();
+		bytes.position(offset);
+		dst.put(bytes);
 	}
 
-	/** For restoring a previously serialized machine state */
-	public static MachineState fromBytes(API api, AtLoggerFactory loggerFactory, byte[] stateBytes, byte[] codeBytes) {
-		ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
+	/** Returns number of call stack bytes in use */
+	private int getCallStackLength() {
+		if (this.callStackValues != null)
+			return (this.callStackValues.length - this.callStackIndex) * ADDRESS_SIZE;
 
-		MachineState state = new MachineState(byteBuffer);
+		return this.callStackByteBuffer.limit() - this.callStackByteBuffer.position();
+	}
 
-		if (codeBytes.length != state.numCodePages * state.constants.CODE_PAGE_SIZE)
-			throw new IllegalStateException("Passed codeBytes does not match length in header");
+	/** Returns number of user stack bytes in use */
+	private int getUserStackLength() {
+		if (this.userStackValues != null)
+			return (this.userStackValues.length - this.userStackIndex) * VALUE_SIZE;
 
-		state.loggerFactory = loggerFactory;
-		state.logger = loggerFactory.create(MachineState.class);
+		return this.userStackByteBuffer.limit() - this.userStackByteBuffer.position();
+	}
 
-		state.currentBlockHeight = 0;
-		state.currentBalance = 0;
-		state.previousBalance = 0;
-		state.steps = 0;
+	/** Returns call stack entries in use, as serialized, i.e. starting from top of stack */
+	/* package */ byte[] getCallStackBytes() {
+		ByteBuffer bytes = ByteBuffer.allocate(this.getCallStackLength());
 
-		// Ring-fence code bytes
-		state.codeByteBuffer = ByteBuffer.wrap(codeBytes).asReadOnlyBuffer();
+		if (this.callStackValues != null)
+			bytes.asIntBuffer().put(this.callStackValues, this.callStackIndex, this.callStackValues.length - this.callStackIndex);
+		else
+			putBytes(bytes, this.callStackByteBuffer, this.callStackByteBuffer.position());
 
-		reuse(state, api, byteBuffer);
+		return bytes.array();
+	}
 
-		return state;
+	/** Returns user stack entries in use, as serialized, i.e. starting from top of stack */
+	/* package */ byte[] getUserStackBytes() {
+		ByteBuffer bytes = ByteBuffer.allocate(this.getUserStackLength());
+
+		if (this.userStackValues != null)
+			bytes.asLongBuffer().put(this.userStackValues, this.userStackIndex, this.userStackValues.length - this.userStackIndex);
+		else
+			putBytes(bytes, this.userStackByteBuffer, this.userStackByteBuffer.position());
+
+		return bytes.array();
 	}
 
-	/** For restoring a previously serialized machine state, reusing existing instance as much as possible. */
-	public void reuseFromBytes(API api, byte[] stateBytes) {
-		ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
-		reuse(this, api, byteBuffer);
+	/** Returns V1 status and registers, as serialized after stacks */
+	/* package */ byte[] getMiscBytes() {
+		ByteBuffer bytes = ByteBuffer.allocate(this.miscLength() + this.registersLength());
+		this.writeMisc(bytes);
+		this.writeRegisters(bytes);
+		return bytes.array();
 	}
 
-	private static void reuse(MachineState state, API api, ByteBuffer byteBuffer) {
-		byte[] stateBytes = byteBuffer.array();
-		state.api = api;
+	private void writeHeader(ByteBuffer bytes, StateFormat stateFormat) {
+		// Version
+		bytes.putShort(version);
 
-		// Pull in data bytes
-		int dataBytesLength = state.numDataPages * state.constants.DATA_PAGE_SIZE;
-		state.dataByteBuffer = ByteBuffer.allocate(dataBytesLength);
-		System.arraycopy(stateBytes, HEADER_LENGTH, state.dataByteBuffer.array(), 0, dataBytesLength);
-		byteBuffer.position(HEADER_LENGTH + dataBytesLength);
+		// Reserved, also marks state format
+		bytes.putShort(stateFormat == StateFormat.V2 ? V2_RESERVED : stateFormat == StateFormat.COMPACT ? COMPACT_RESERVED : (short) 0);
 
-		state.constructStacks();
+		// Code length
+		bytes.putShort(numCodePages);
+
+		// Data length
+		bytes.putShort(numDataPages);
+
+		// Call stack length
+		bytes.putShort(numCallStackPages);
+
+		// User stack length
+		bytes.putShort(numUserStackPages);
+
+		// Minimum activation amount
+		bytes.putLong(minActivationAmount);
+	}
+
+	/** Writes V2 fixed-offset status, with zero in place of absent optional values */
+	private void writeStatus(ByteBuffer bytes) {
+		bytes.putInt(this.flagsValue());
+		bytes.putInt(this.programCounter);
+		bytes.putInt(this.onStopAddress);
+		bytes.putInt(this.onErrorAddress != null ? this.onErrorAddress : 0);
+		bytes.putInt(this.sleepUntilHeight != null ? this.sleepUntilHeight : 0);
+		bytes.putLong(this.previousBalance);
+		bytes.putLong(this.frozenBalance != null ? this.frozenBalance : 0L);
+	}
+
+	/** Writes V1 status, which follows stacks */
+	private void writeMisc(ByteBuffer bytes) {
+		// Actual state
+		bytes.putInt(this.programCounter);
+		bytes.putInt(this.onStopAddress);
+		bytes.putLong(this.previousBalance);
+
+		// Various flags
+		bytes.putInt(this.flagsValue());
+
+		// Optional flag-indicated extra info in same order as flags
+		if (this.onErrorAddress != null)
+			bytes.putInt(this.onErrorAddress);
+
+		if (this.sleepUntilHeight != null)
+			bytes.putInt(this.sleepUntilHeight);
+
+		if (this.frozenBalance != null)
+			bytes.putLong(this.frozenBalance);
+	}
+
+	/** Returns length of V1 status written by {@link #writeMisc(ByteBuffer)} */
+	private int miscLength() {
+		return 4 + 4 + 8 + 4
+				+ (this.onErrorAddress != null ? 4 : 0)
+				+ (this.sleepUntilHeight != null ? 4 : 0)
+				+ (this.frozenBalance != null ? 8 : 0);
+	}
+
+	/** Writes A and B registers, each only if non-zero, as indicated by flags */
+	private void writeRegisters(ByteBuffer bytes) {
+		if (this.hasNonZeroA()) {
+			bytes.putLong(this.a1);
+			bytes.putLong(this.a2);
+			bytes.putLong(this.a3);
+			bytes.putLong(this.a4);
+		}
+
+		if (this.hasNonZeroB()) {
+			bytes.putLong(this.b1);
+			bytes.putLong(this.b2);
+			bytes.putLong(this.b3);
+			bytes.putLong(this.b4);
+		}
+	}
+
+	/** Returns length of registers written by {@link #writeRegisters(ByteBuffer)} */
+	private int registersLength() {
+		return (this.hasNonZeroA() ? 4 * 8 : 0) + (this.hasNonZeroB() ? 4 * 8 : 0);
+	}
+
+	private int flagsValue() {
+		Flags flags = new Flags();
+		flags.push(this.isSleeping);
+		flags.push(this.isStopped);
+		flags.push(this.isFinished);
+		flags.push(this.hadFatalError);
+		flags.push(this.isFrozen);
+
+		flags.push(this.onErrorAddress != null); // has onErrorAddress?
+		flags.push(this.sleepUntilHeight != null); // has sleepUntilHeight?
+		flags.push(this.frozenBalance != null); // has frozenBalance?
+
+		// Pushed last so covered by REGISTER_FLAGS_MASK
+		flags.push(this.hasNonZeroA());
+		flags.push(this.hasNonZeroB());
+
+		return flags.intValue();
+	}
+
+	private boolean hasNonZeroA() {
+		return this.a1 != 0 || this.a2 != 0 || this.a3 != 0 || this.a4 != 0;
+	}
+
+	private boolean hasNonZeroB() {
+		return this.b1 != 0 || this.b2 != 0 || this.b3 != 0 || this.b4 != 0;
+	}
+
+	/**
+	 * For restoring a previously serialized machine state.
+	 * <p>
+	 * Code bytes are interned, so MachineStates with identical code share one {@link Program}.
+	 */
+	public static MachineState fromBytes(API api, AtLoggerFactory loggerFactory, byte[] stateBytes, byte[] codeBytes) {
+		return fromBytes(api, loggerFactory, stateBytes, Program.fromCodeBytes(codeBytes));
+	}
+
+	/** For restoring a previously serialized machine state, using already interned program, e.g. one kept per AT template */
+	public static MachineState fromBytes(API api, AtLoggerFactory loggerFactory, byte[] stateBytes, Program program) {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
+
+		MachineState state = new MachineState(byteBuffer);
+
+		state.restore(api, loggerFactory, program);
+		reuse(state, api, byteBuffer);
+
+		return state;
+	}
+
+	/**
+	 * For restoring a previously serialized machine state without copying its data segment, e.g. from a slice of a memory-mapped file.
+	 * <p>
+	 * Data segment values are read directly from <tt>stateBytes</tt> until written, when the enclosing 256-byte chunk is copied,
+	 * so rounds that read a few values then sleep copy little more than stacks in use.
+	 * Serialized state, from <tt>stateBytes</tt> position to limit, must not be modified while returned state is in use.
+	 * <p>
+	 * Data segment is fully copied by <tt>setMemoryModel()</tt>. Until then, compiled blocks aren't used, as with <tt>ARRAY</tt> memory model.
+	 * Compact state bytes are decoded first, so gain nothing.
+	 */
+	public static MachineState lazyFromBytes(API api, AtLoggerFactory loggerFactory, ByteBuffer stateBytes, byte[] codeBytes) {
+		return lazyFromBytes(api, loggerFactory, stateBytes, Program.fromCodeBytes(codeBytes));
+	}
+
+	/** For restoring a previously serialized machine state without copying its data segment, using already interned program */
+	public static MachineState lazyFromBytes(API api, AtLoggerFactory loggerFactory, ByteBuffer stateBytes, Program program) {
+		ByteBuffer byteBuffer = stateBytes.slice();
+		final ByteBuffer deltaBase = byteBuffer;
+
+		if (byteBuffer.remaining() >= HEADER_LENGTH && stateFormatOf(byteBuffer) == StateFormat.COMPACT) {
+			byte[] compactBytes = new byte[byteBuffer.remaining()];
+			byteBuffer.duplicate().get(compactBytes);
+			byteBuffer = ByteBuffer.wrap(CompactState.decode(compactBytes));
+		}
+
+		MachineState state = new MachineState(byteBuffer);
+
+		state.restore(api, loggerFactory, program);
+		state.setDeltaBase(deltaBase);
+		reuseLazily(state, api, byteBuffer);
+
+		return state;
+	}
+
+	/**
+	 * For restoring a previously serialized machine state, reusing existing instance as much as possible.
+	 * <p>
+	 * Data segment and stacks are overwritten in place, without allocation, if their sizes match those in <tt>stateBytes</tt>.
+	 */
+	public void reuseFromBytes(API api, byte[] stateBytes) {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
+		reuse(this, api, byteBuffer);
+	}
+
+	/**
+	 * For restoring any AT's serialized state into this instance, as if by <tt>fromBytes()</tt>, e.g. by {@link MachineStatePool}.
+	 *
+	 * @throws IllegalArgumentException if header of <tt>stateBytes</tt> doesn't match this instance's, ignoring reserved field
+	 */
+	/* package */ void reuseFromBytes(API api, AtLoggerFactory loggerFactory, byte[] stateBytes, byte[] codeBytes) {
+		this.reuseFromBytes(api, loggerFactory, stateBytes, Program.fromCodeBytes(codeBytes));
+	}
+
+	/** For restoring any AT's serialized state into this instance, using already interned program */
+	/* package */ void reuseFromBytes(API api, AtLoggerFactory loggerFactory, byte[] stateBytes, Program program) {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
+
+		if (!this.hasSameHeader(byteBuffer))
+			throw new IllegalArgumentException("State bytes header does not match");
+
+		byteBuffer.position(HEADER_LENGTH);
+
+		// Code, and so program, may differ
+		this.executionEngine = defaultExecutionEngine;
+		Arrays.fill(this.dirtyDataPages, 0L);
+
+		this.restore(api, loggerFactory, program);
+		reuse(this, api, byteBuffer);
+	}
+
+	/** Returns whether header, excluding reserved field, at start of <tt>byteBuffer</tt> matches this instance's */
+	/* package */ boolean hasSameHeader(ByteBuffer byteBuffer) {
+		return byteBuffer.limit() >= HEADER_LENGTH
+				&& byteBuffer.getShort(0) == this.version
+				&& byteBuffer.getShort(2 /*version*/ + 2 /*reserved*/) == this.numCodePages
+				&& byteBuffer.getShort(2 + 2 + 2 /*code pages*/) == this.numDataPages
+				&& byteBuffer.getShort(2 + 2 + 2 + 2 /*data pages*/) == this.numCallStackPages
+				&& byteBuffer.getShort(2 + 2 + 2 + 2 + 2 /*call stack pages*/) == this.numUserStackPages
+				&& byteBuffer.getLong(2 + 2 + 2 + 2 + 2 + 2 /*user stack pages*/) == this.minActivationAmount;
+	}
+
+	/** Resets non-serialized state prior to restoring serialized state */
+	private void restore(API api, AtLoggerFactory loggerFactory, Program program) {
+		if (program.getCodeLength() != this.numCodePages * this.constants.CODE_PAGE_SIZE)
+			throw new IllegalStateException("Passed codeBytes does not match length in header");
+
+		if (loggerFactory != this.loggerFactory) {
+			this.loggerFactory = loggerFactory;
+			this.logger = loggerFactory.create(MachineState.class);
+		}
+
+		this.currentBlockHeight = 0;
+		this.currentBalance = 0;
+		this.previousBalance = 0;
+		this.steps = 0;
+
+		// Own read-only view of shared code bytes, as position is program counter
+		this.program = program;
+		this.codeByteBuffer = program.newCodeByteBuffer();
+
+		// Arena-backed data segment and stacks are overwritten in place
+		this.memoryModel = this.arenaBlock != null ? MemoryModel.BYTE_BUFFER : defaultMemoryModel;
+	}
+
+	private static void reuse(MachineState state, API api, ByteBuffer byteBuffer) {
+		state.api = api;
+		state.setDeltaBase(byteBuffer);
+
+		state.lazyDataBytes = null;
+		state.lazyDataChunks = null;
+
+		// Compact state bytes are decoded straight into data segment and stacks
+		if (stateFormatOf(byteBuffer) == StateFormat.COMPACT) {
+			state.reuseFromCompact(byteBuffer);
+			return;
+		}
+
+		byte[] stateBytes = byteBuffer.array();
+
+		final StateFormat stateFormat = stateFormatOf(byteBuffer);
+		final int dataOffset = dataOffset(stateFormat);
+
+		if (state.memoryModel == MemoryModel.ARRAY && state.reuseIntoArrays(byteBuffer, dataOffset)) {
+			extractMisc(byteBuffer, state, stateFormat);
+			return;
+		}
+
+		state.dataValues = null;
+		state.callStackValues = null;
+		state.userStackValues = null;
+
+		// Pull in data bytes, overwriting existing buffer if possible
+		int dataBytesLength = state.numDataPages * state.constants.DATA_PAGE_SIZE;
+		if (state.dataByteBuffer == null || state.dataByteBuffer.capacity() != dataBytesLength)
+			state.dataByteBuffer = ByteBuffer.allocate(dataBytesLength);
+		else
+			state.dataByteBuffer.clear();
+
+		state.dataByteBuffer.put(stateBytes, dataOffset, dataBytesLength).clear();
+		byteBuffer.position(dataOffset + dataBytesLength);
+
+		final boolean areStacksReused = state.callStackByteBuffer != null
+				&& state.callStackByteBuffer.capacity() == state.numCallStackPages * state.constants.CALL_STACK_PAGE_SIZE
+				&& state.userStackByteBuffer != null
+				&& state.userStackByteBuffer.capacity() == state.numUserStackPages * state.constants.USER_STACK_PAGE_SIZE;
+
+		if (areStacksReused) {
+			state.callStackByteBuffer.clear();
+			state.userStackByteBuffer.clear();
+		} else {
+			state.constructStacks();
+		}
 
 		// Pull in call stack
 		int callStackLength = byteBuffer.getInt();
 		// Restore call stack pointer, and useful for copy below
 		state.callStackByteBuffer.position(state.callStackByteBuffer.limit() - callStackLength);
 		// Call stack grows downwards so copy to end
-		System.arraycopy(stateBytes, byteBuffer.position(), state.callStackByteBuffer.array(), state.callStackByteBuffer.position(), callStackLength);
+		state.callStackByteBuffer.duplicate().put(stateBytes, byteBuffer.position(), callStackLength);
 		byteBuffer.position(byteBuffer.position() + callStackLength);
 
+		// Clear unused entries left by previous state, as with ARRAY memory model
+		if (areStacksReused)
+			zeroBelowPosition(state.callStackByteBuffer);
+
 		// Pull in user stack
 		int userStackLength = byteBuffer.getInt();
 		// Restore user stack pointer, and useful for copy below
 		state.userStackByteBuffer.position(state.userStackByteBuffer.limit() - userStackLength);
 		// User stack grows downwards so copy to end
-		System.arraycopy(stateBytes, byteBuffer.position(), state.userStackByteBuffer.array(), state.userStackByteBuffer.position(), userStackLength);
+		state.userStackByteBuffer.duplicate().put(stateBytes, byteBuffer.position(), userStackLength);
 		byteBuffer.position(byteBuffer.position() + userStackLength);
 
-		extractMisc(byteBuffer, state);
+		if (areStacksReused)
+			zeroBelowPosition(state.userStackByteBuffer);
+
+		// If ARRAY memory model was requested then convert, now that stacks are known to be valid
+		state.convertMemory(state.memoryModel);
+
+		extractMisc(byteBuffer, state, stateFormat);
+	}
+
+	/**
+	 * Restores data segment, stacks and status from {@link StateFormat#COMPACT} state bytes,
+	 * decoding straight into arrays or ByteBuffers, as per memory model, overwriting existing ones if possible.
+	 *
+	 * @throws IllegalArgumentException if compact state bytes are malformed
+	 */
+	private void reuseFromCompact(ByteBuffer compact) {
+		final int dataBytesLength = this.numDataPages * this.constants.DATA_PAGE_SIZE;
+		final int callStackCapacity = this.numCallStackPages * this.constants.CALL_STACK_PAGE_SIZE;
+		final int userStackCapacity = this.numUserStackPages * this.constants.USER_STACK_PAGE_SIZE;
+
+		try {
+			compact.position(HEADER_LENGTH);
+
+			final int callStackLength = CompactState.getVarLength(compact, callStackCapacity);
+			final int userStackLength = CompactState.getVarLength(compact, userStackCapacity);
+			final int miscLength = CompactState.getVarLength(compact, compact.limit());
+
+			final boolean isArrayCompatible = this.memoryModel == MemoryModel.ARRAY
+					&& isArrayCompatible(callStackLength, callStackCapacity, ADDRESS_SIZE)
+					&& isArrayCompatible(userStackLength, userStackCapacity, VALUE_SIZE)
+					&& dataBytesLength % VALUE_SIZE == 0;
+
+			final CompactState.Section data;
+			final CompactState.Section callStack;
+			final CompactState.Section userStack;
+
+			if (isArrayCompatible) {
+				this.dataByteBuffer = null;
+				this.callStackByteBuffer = null;
+				this.userStackByteBuffer = null;
+
+				if (this.dataValues == null || this.dataValues.length != dataBytesLength / VALUE_SIZE)
+					this.dataValues = new long[dataBytesLength / VALUE_SIZE];
+
+				// Stacks grow downwards so in-use entries are at the end. Clear unused entries as popping would.
+				if (this.callStackValues == null || this.callStackValues.length != callStackCapacity / ADDRESS_SIZE)
+					this.callStackValues = new int[callStackCapacity / ADDRESS_SIZE];
+
+				this.callStackIndex = this.callStackValues.length - callStackLength / ADDRESS_SIZE;
+				Arrays.fill(this.callStackValues, 0, this.callStackIndex, 0);
+
+				if (this.userStackValues == null || this.userStackValues.length != userStackCapacity / VALUE_SIZE)
+					this.userStackValues = new long[userStackCapacity / VALUE_SIZE];
+
+				this.userStackIndex = this.userStackValues.length - userStackLength / VALUE_SIZE;
+				Arrays.fill(this.userStackValues, 0, this.userStackIndex, 0L);
+
+				data = new CompactState.LongsSection(this.dataValues, 0);
+				callStack = new CompactState.IntsSection(this.callStackValues, this.callStackIndex);
+				userStack = new CompactState.LongsSection(this.userStackValues, this.userStackIndex);
+			} else {
+				this.dataValues = null;
+				this.callStackValues = null;
+				this.userStackValues = null;
+
+				if (this.dataByteBuffer == null || this.dataByteBuffer.capacity() != dataBytesLength)
+					this.dataByteBuffer = ByteBuffer.allocate(dataBytesLength);
+				else
+					this.dataByteBuffer.clear();
+
+				final boolean areStacksReused = this.callStackByteBuffer != null
+						&& this.callStackByteBuffer.capacity() == callStackCapacity
+						&& this.userStackByteBuffer != null
+						&& this.userStackByteBuffer.capacity() == userStackCapacity;
+
+				if (areStacksReused) {
+					this.callStackByteBuffer.clear();
+					this.userStackByteBuffer.clear();
+				} else {
+					this.constructStacks();
+				}
+
+				// Restore stack pointers, with stacks growing downwards, clearing unused entries left by previous state
+				this.callStackByteBuffer.position(this.callStackByteBuffer.limit() - callStackLength);
+				this.userStackByteBuffer.position(this.userStackByteBuffer.limit() - userStackLength);
+
+				if (areStacksReused) {
+					zeroBelowPosition(this.callStackByteBuffer);
+					zeroBelowPosition(this.userStackByteBuffer);
+				}
+
+				data = new CompactState.BytesSection(this.dataByteBuffer, 0);
+				callStack = new CompactState.BytesSection(this.callStackByteBuffer, this.callStackByteBuffer.position());
+				userStack = new CompactState.BytesSection(this.userStackByteBuffer, this.userStackByteBuffer.position());
+			}
+
+			CompactState.decodeWords(compact, data, dataBytesLength);
+			CompactState.decodeEntries(compact, callStack, callStackLength);
+			CompactState.decodeWords(compact, userStack, userStackLength);
+
+			CompactState.checkMiscLength(compact, miscLength);
+
+			extractMisc(compact, this, StateFormat.V1);
+		} catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated compact state bytes", e);
+		}
+	}
+
+	/** Zeroes <tt>byteBuffer</tt> from 0 up to its position, i.e. unused part of downward-growing stack, whether on heap or not */
+	private static void zeroBelowPosition(ByteBuffer byteBuffer) {
+		final int position = byteBuffer.position();
+
+		if (byteBuffer.hasArray()) {
+			Arrays.fill(byteBuffer.array(), byteBuffer.arrayOffset(), byteBuffer.arrayOffset() + position, (byte) 0);
+			return;
+		}
+
+		for (int i = 0; i < position; ++i)
+			byteBuffer.put(i, (byte) 0);
+	}
+
+	/** Restores state from non-compact <tt>byteBuffer</tt>, which needn't be backed by an array, reading data segment in place */
+	private static void reuseLazily(MachineState state, API api, ByteBuffer byteBuffer) {
+		state.api = api;
+
+		final StateFormat stateFormat = stateFormatOf(byteBuffer);
+		final int dataOffset = dataOffset(stateFormat);
+		final int dataBytesLength = state.numDataPages * state.constants.DATA_PAGE_SIZE;
+
+		state.dataByteBuffer = null;
+		state.dataValues = null;
+		state.callStackValues = null;
+		state.userStackValues = null;
+
+		// Data segment is read in place
+		ByteBuffer lazyDataBytes = byteBuffer.duplicate();
+		lazyDataBytes.limit(dataOffset + dataBytesLength).position(dataOffset);
+		state.lazyDataBytes = lazyDataBytes.slice().asReadOnlyBuffer();
+		state.lazyDataChunks = new long[(dataBytesLength + LAZY_DATA_CHUNK_SIZE - 1) / LAZY_DATA_CHUNK_SIZE][];
+		byteBuffer.position(dataOffset + dataBytesLength);
+
+		state.constructStacks();
+
+		// Pull in call stack, which grows downwards so copy to end
+		int callStackLength = byteBuffer.getInt();
+		state.callStackByteBuffer.position(state.callStackByteBuffer.limit() - callStackLength);
+		byteBuffer.get(state.callStackByteBuffer.array(), state.callStackByteBuffer.position(), callStackLength);
+
+		// Pull in user stack, which grows downwards so copy to end
+		int userStackLength = byteBuffer.getInt();
+		state.userStackByteBuffer.position(state.userStackByteBuffer.limit() - userStackLength);
+		byteBuffer.get(state.userStackByteBuffer.array(), state.userStackByteBuffer.position(), userStackLength);
+
+		extractMisc(byteBuffer, state, stateFormat);
+	}
+
+	/**
+	 * Reads data segment and stacks from serialized state straight into arrays.
+	 * <p>
+	 * Returns false, leaving <tt>byteBuffer</tt> position unchanged, if stack lengths are invalid or don't hold whole entries,
+	 * in which case caller should fall back to ByteBuffers, which will also produce any exceptions as before.
+	 */
+	private boolean reuseIntoArrays(ByteBuffer byteBuffer, int dataOffset) {
+		final int dataBytesLength = this.numDataPages * this.constants.DATA_PAGE_SIZE;
+		final int callStackCapacity = this.numCallStackPages * this.constants.CALL_STACK_PAGE_SIZE;
+		final int userStackCapacity = this.numUserStackPages * this.constants.USER_STACK_PAGE_SIZE;
+
+		// Check stack lengths before allocating anything
+		final int callStackLengthPosition = dataOffset + dataBytesLength;
+		if (byteBuffer.limit() - callStackLengthPosition < ADDRESS_SIZE)
+			return false;
+
+		final int callStackLength = byteBuffer.getInt(callStackLengthPosition);
+		if (!isArrayCompatible(callStackLength, callStackCapacity, ADDRESS_SIZE))
+			return false;
+
+		final int userStackLengthPosition = callStackLengthPosition + ADDRESS_SIZE + callStackLength;
+		if (byteBuffer.limit() - userStackLengthPosition < ADDRESS_SIZE)
+			return false;
+
+		final int userStackLength = byteBuffer.getInt(userStackLengthPosition);
+		if (!isArrayCompatible(userStackLength, userStackCapacity, VALUE_SIZE)
+				|| byteBuffer.limit() - userStackLengthPosition - ADDRESS_SIZE < userStackLength
+				|| dataBytesLength % VALUE_SIZE != 0)
+			return false;
+
+		this.dataByteBuffer = null;
+		this.callStackByteBuffer = null;
+		this.userStackByteBuffer = null;
+
+		byteBuffer.position(dataOffset);
+
+		// Overwrite existing arrays if possible, clearing unused stack entries as popping would
+		if (this.dataValues == null || this.dataValues.length != dataBytesLength / VALUE_SIZE)
+			this.dataValues = new long[dataBytesLength / VALUE_SIZE];
+
+		for (int i = 0; i < this.dataValues.length; ++i)
+			this.dataValues[i] = byteBuffer.getLong();
+
+		// Stacks grow downwards so in-use entries are at the end
+		byteBuffer.getInt(); // call stack length
+		if (this.callStackValues == null || this.callStackValues.length != callStackCapacity / ADDRESS_SIZE)
+			this.callStackValues = new int[callStackCapacity / ADDRESS_SIZE];
+
+		this.callStackIndex = this.callStackValues.length - callStackLength / ADDRESS_SIZE;
+		Arrays.fill(this.callStackValues, 0, this.callStackIndex, 0);
+		for (int i = this.callStackIndex; i < this.callStackValues.length; ++i)
+			this.callStackValues[i] = byteBuffer.getInt();
+
+		byteBuffer.getInt(); // user stack length
+		if (this.userStackValues == null || this.userStackValues.length != userStackCapacity / VALUE_SIZE)
+			this.userStackValues = new long[userStackCapacity / VALUE_SIZE];
+
+		this.userStackIndex = this.userStackValues.length - userStackLength / VALUE_SIZE;
+		Arrays.fill(this.userStackValues, 0, this.userStackIndex, 0L);
+		for (int i = this.userStackIndex; i < this.userStackValues.length; ++i)
+			this.userStackValues[i] = byteBuffer.getLong();
+
+		return true;
 	}
 
-	/** For restoring only flags from a previously serialized machine state */
+	/** Returns whether stack with <tt>length</tt> bytes in use, out of <tt>capacity</tt>, can be held as array of <tt>entrySize</tt> entries */
+	private static boolean isArrayCompatible(int length, int capacity, int entrySize) {
+		return length >= 0 && length <= capacity && length % entrySize == 0 && capacity % entrySize == 0;
+	}
+
+	/**
+	 * For restoring only flags from a previously serialized machine state.
+	 * <p>
+	 * With {@link StateFormat#V2} state bytes, flags and status are read from fixed offsets,
+	 * only skipping data segment and stacks if A or B registers need restoring.
+	 */
 	public static MachineState flagsOnlyfromBytes(byte[] stateBytes) {
-		ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
+		ByteBuffer byteBuffer = ByteBuffer.wrap(decodeIfCompact(stateBytes));
 
 		MachineState state = new MachineState(byteBuffer);
 
+		final StateFormat stateFormat = stateFormatOf(byteBuffer);
+
+		if (stateFormat == StateFormat.V1 || (byteBuffer.getInt(V2_FLAGS_OFFSET) & REGISTER_FLAGS_MASK) != 0)
+			skipMemory(byteBuffer, state, dataOffset(stateFormat));
+
+		extractMisc(byteBuffer, state, stateFormat);
+
+		return state;
+	}
+
+	/** Positions <tt>byteBuffer</tt> immediately after data segment and stacks */
+	private static void skipMemory(ByteBuffer byteBuffer, MachineState state, int dataOffset) {
 		// Skip data segment
-		byteBuffer.position(HEADER_LENGTH + state.numDataPages * state.constants.DATA_PAGE_SIZE);
+		byteBuffer.position(dataOffset + state.numDataPages * state.constants.DATA_PAGE_SIZE);
 
 		// Skip call stack
 		int callStackLength = byteBuffer.getInt();
@@ -663,20 +1831,27 @@ public class MachineState {
 		// Skip user stack
 		int userStackLength = byteBuffer.getInt();
 		byteBuffer.position(byteBuffer.position() + userStackLength);
-
-		extractMisc(byteBuffer, state);
-
-		return state;
 	}
 
-	private static void extractMisc(ByteBuffer byteBuffer, MachineState state) {
+	/** Extracts status, then A and B registers from <tt>byteBuffer</tt>'s position, which must be immediately after stacks */
+	private static void extractMisc(ByteBuffer byteBuffer, MachineState state, StateFormat stateFormat) {
+		final int flagsValue;
+
 		// Actual state
-		state.programCounter = byteBuffer.getInt();
-		state.onStopAddress = byteBuffer.getInt();
-		state.previousBalance = byteBuffer.getLong();
+		if (stateFormat == StateFormat.V2) {
+			flagsValue = byteBuffer.getInt(V2_FLAGS_OFFSET);
+			state.programCounter = byteBuffer.getInt(V2_PROGRAM_COUNTER_OFFSET);
+			state.onStopAddress = byteBuffer.getInt(V2_ON_STOP_ADDRESS_OFFSET);
+			state.previousBalance = byteBuffer.getLong(V2_PREVIOUS_BALANCE_OFFSET);
+		} else {
+			state.programCounter = byteBuffer.getInt();
+			state.onStopAddress = byteBuffer.getInt();
+			state.previousBalance = byteBuffer.getLong();
+			flagsValue = byteBuffer.getInt();
+		}
 
 		// Various flags (reverse order to toBytes)
-		Flags flags = new Flags(byteBuffer.getInt());
+		Flags flags = new Flags(flagsValue);
 		boolean hasNonZeroB = flags.pop();
 		boolean hasNonZeroA = flags.pop();
 		boolean hasFrozenBalance = flags.pop();
@@ -689,21 +1864,24 @@ public class MachineState {
 		state.isStopped = flags.pop();
 		state.isSleeping = flags.pop();
 
-		// Optional extras (same order as toBytes)
-		if (hasOnErrorAddress)
-			state.onErrorAddress = byteBuffer.getInt();
-
-		if (hasSleepUntilHeight)
-			state.sleepUntilHeight = byteBuffer.getInt();
-
-		if (hasFrozenBalance)
-			state.frozenBalance = byteBuffer.getLong();
+		// Optional extras (same order as toBytes), reset if absent in case state is being reused
+		if (stateFormat == StateFormat.V2) {
+			state.onErrorAddress = hasOnErrorAddress ? byteBuffer.getInt(V2_ON_ERROR_ADDRESS_OFFSET) : null;
+			state.sleepUntilHeight = hasSleepUntilHeight ? byteBuffer.getInt(V2_SLEEP_UNTIL_HEIGHT_OFFSET) : null;
+			state.frozenBalance = hasFrozenBalance ? byteBuffer.getLong(V2_FROZEN_BALANCE_OFFSET) : null;
+		} else {
+			state.onErrorAddress = hasOnErrorAddress ? byteBuffer.getInt() : null;
+			state.sleepUntilHeight = hasSleepUntilHeight ? byteBuffer.getInt() : null;
+			state.frozenBalance = hasFrozenBalance ? byteBuffer.getLong() : null;
+		}
 
 		if (hasNonZeroA) {
 			state.a1 = byteBuffer.getLong();
 			state.a2 = byteBuffer.getLong();
 			state.a3 = byteBuffer.getLong();
 			state.a4 = byteBuffer.getLong();
+		} else {
+			state.a1 = state.a2 = state.a3 = state.a4 = 0L;
 		}
 
 		if (hasNonZeroB) {
@@ -711,11 +1889,134 @@ public class MachineState {
 			state.b2 = byteBuffer.getLong();
 			state.b3 = byteBuffer.getLong();
 			state.b4 = byteBuffer.getLong();
+		} else {
+			state.b1 = state.b2 = state.b3 = state.b4 = 0L;
 		}
 	}
 
+	// State formats
+
+	/** Returns state format of serialized state */
+	public static StateFormat getStateFormat(byte[] stateBytes) {
+		return stateFormatOf(ByteBuffer.wrap(stateBytes));
+	}
+
+	private static StateFormat stateFormatOf(ByteBuffer byteBuffer) {
+		switch (byteBuffer.getShort(2 /*version*/)) {
+			case V2_RESERVED:
+				return StateFormat.V2;
+
+			case COMPACT_RESERVED:
+				return StateFormat.COMPACT;
+
+			default:
+				return StateFormat.V1;
+		}
+	}
+
+	/** Returns <tt>V1</tt> state bytes if <tt>stateBytes</tt> are compact, otherwise <tt>stateBytes</tt> itself */
+	private static byte[] decodeIfCompact(byte[] stateBytes) {
+		if (stateFormatOf(ByteBuffer.wrap(stateBytes)) == StateFormat.COMPACT)
+			return CompactState.decode(stateBytes);
+
+		return stateBytes;
+	}
+
+	/** Returns offset of data segment in serialized state */
+	private static int dataOffset(StateFormat stateFormat) {
+		return stateFormat == StateFormat.V2 ? HEADER_LENGTH + V2_STATUS_LENGTH : HEADER_LENGTH;
+	}
+
+	/** Returns state format used by <tt>toBytes()</tt> */
+	public static StateFormat getDefaultStateFormat() {
+		return defaultStateFormat;
+	}
+
+	/** Sets state format used by <tt>toBytes()</tt>. All formats can always be deserialized. */
+	public static void setDefaultStateFormat(StateFormat stateFormat) {
+		if (stateFormat == null)
+			throw new IllegalArgumentException("State format cannot be null");
+
+		MachineState.defaultStateFormat = stateFormat;
+	}
+
+	/**
+	 * Converts serialized state to state format, without deserializing data segment or stacks.
+	 * <p>
+	 * Returns <tt>stateBytes</tt> itself if already in state format.
+	 * Converting to or from {@link StateFormat#COMPACT} encodes or decodes data segment and stacks in one pass.
+	 * Converting to {@link StateFormat#V1} reproduces the bytes that <tt>toBytes(StateFormat.V1)</tt> would have returned,
+	 * e.g. for hashing.
+	 */
+	public static byte[] convertStateFormat(byte[] stateBytes, StateFormat stateFormat) {
+		if (stateFormat == StateFormat.COMPACT)
+			return getStateFormat(stateBytes) == StateFormat.COMPACT ? stateBytes : CompactState.encode(convertStateFormat(stateBytes, StateFormat.V1));
+
+		stateBytes = decodeIfCompact(stateBytes);
+		ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
+
+		final StateFormat sourceStateFormat = stateFormatOf(byteBuffer);
+		if (sourceStateFormat == stateFormat)
+			return stateBytes;
+
+		MachineState state = new MachineState(byteBuffer);
+
+		final int dataOffset = dataOffset(sourceStateFormat);
+		skipMemory(byteBuffer, state, dataOffset);
+		final int memoryLength = byteBuffer.position() - dataOffset;
+
+		extractMisc(byteBuffer, state, sourceStateFormat);
+
+		final int convertedLength = HEADER_LENGTH
+				+ (stateFormat == StateFormat.V2 ? V2_STATUS_LENGTH : 0)
+				+ memoryLength
+				+ (stateFormat == StateFormat.V1 ? state.miscLength() : 0)
+				+ state.registersLength();
+
+		ByteBuffer bytes = ByteBuffer.allocate(convertedLength);
+
+		state.writeHeader(bytes, stateFormat);
+
+		if (stateFormat == StateFormat.V2)
+			state.writeStatus(bytes);
+
+		// Data segment and stacks are identical in both formats
+		bytes.put(stateBytes, dataOffset, memoryLength);
+
+		if (stateFormat == StateFormat.V1)
+			state.writeMisc(bytes);
+
+		state.writeRegisters(bytes);
+
+		return bytes.array();
+	}
+
+	/**
+	 * Lazily converts stream of serialized states to state format, e.g. for bulk migration of stored states in constant memory.
+	 *
+	 * @see #convertStateFormat(byte[], StateFormat)
+	 */
+	public static Stream<byte[]> convertStateFormat(Stream<byte[]> stateBytesStream, StateFormat stateFormat) {
+		return stateBytesStream.map(stateBytes -> convertStateFormat(stateBytes, stateFormat));
+	}
+
 	/** Returns data bytes from saved state to allow external analysis, e.g. confirming expected payouts, etc. */
 	public static byte[] extractDataBytes(byte[] stateBytes) {
+		stateBytes = decodeIfCompact(stateBytes);
+		ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
+
+		// Extract data bytes
+		int dataBytesLength = extractDataLength(stateBytes);
+		byte[] dataBytes = new byte[dataBytesLength];
+
+		// More efficient than ByteBuffer.get()
+		System.arraycopy(stateBytes, dataOffset(stateFormatOf(byteBuffer)), dataBytes, 0, dataBytesLength);
+
+		return dataBytes;
+	}
+
+	/** Returns length of data segment, in bytes, from saved state's header */
+	/* package */ static int extractDataLength(byte[] stateBytes) {
 		ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
 
 		short version = byteBuffer.getShort(0);
@@ -723,14 +2024,63 @@ public class MachineState {
 
 		short numDataPages = byteBuffer.getShort(2 /*version*/ + 2 /*reserved*/ + 2 /*code pages*/);
 
-		// Extract data bytes
-		int dataBytesLength = numDataPages * constants.DATA_PAGE_SIZE;
-		byte[] dataBytes = new byte[dataBytesLength];
+		return numDataPages * constants.DATA_PAGE_SIZE;
+	}
 
-		// More efficient than ByteBuffer.get()
-		System.arraycopy(stateBytes, HEADER_LENGTH, dataBytes, 0, dataBytesLength);
+	/** Returns capacity of call stack, in bytes, from saved state's header */
+	/* package */ static int extractCallStackCapacity(byte[] stateBytes) {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
 
-		return dataBytes;
+		short version = byteBuffer.getShort(0);
+		VersionedConstants constants = VERSIONED_CONSTANTS.get(version);
+
+		short numCallStackPages = byteBuffer.getShort(2 /*version*/ + 2 /*reserved*/ + 2 /*code pages*/ + 2 /*data pages*/);
+
+		return numCallStackPages * constants.CALL_STACK_PAGE_SIZE;
+	}
+
+	/** Returns capacity of user stack, in bytes, from saved state's header */
+	/* package */ static int extractUserStackCapacity(byte[] stateBytes) {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
+
+		short version = byteBuffer.getShort(0);
+		VersionedConstants constants = VERSIONED_CONSTANTS.get(version);
+
+		short numUserStackPages = byteBuffer.getShort(2 /*version*/ + 2 /*reserved*/ + 2 /*code pages*/ + 2 /*data pages*/ + 2 /*call stack pages*/);
+
+		return numUserStackPages * constants.USER_STACK_PAGE_SIZE;
+	}
+
+	// Deltas
+
+	/**
+	 * Returns delta from previously serialized state of this AT, e.g. last persisted, to this state.
+	 * <p>
+	 * Deltas hold only changed data segment words and stack entries, plus PC, flags, A, B, etc.
+	 * so are usually much smaller than full state bytes. Apply using {@link #applyDelta(byte[], byte[])}.
+	 * Chains of deltas depend on every earlier delta, so callers should persist full state bytes periodically.
+	 * <p>
+	 * Delta is encoded straight from this state, without serializing it. If previous state bytes are exactly those this state
+	 * was last restored from, e.g. by <tt>fromBytes()</tt>, only data pages written since then are compared,
+	 * otherwise, e.g. for an older snapshot, all data segment words are compared.
+	 *
+	 * @param previousStateBytes
+	 *            - from <tt>toBytes()</tt>, in any state format
+	 * @throws IllegalArgumentException if previous state has different header, e.g. from another AT
+	 */
+	public byte[] toDeltaBytes(byte[] previousStateBytes) {
+		return StateDelta.encode(previousStateBytes, this);
+	}
+
+	/**
+	 * Returns state bytes resulting from applying delta, from <tt>toDeltaBytes()</tt>, to previous state bytes it was computed against.
+	 * <p>
+	 * Result is in same state format as <tt>previousStateBytes</tt>, and identical to state bytes at the time delta was computed.
+	 *
+	 * @throws IllegalArgumentException if delta was computed against different state bytes, or is malformed
+	 */
+	public static byte[] applyDelta(byte[] previousStateBytes, byte[] deltaBytes) {
+		return StateDelta.apply(previousStateBytes, deltaBytes);
 	}
 
 	/** Class for pushing/popping boolean flags onto/from an int */
@@ -784,8 +2134,20 @@ public class MachineState {
 	 * for block records.
 	 */
 	public void execute() {
+		final ShadowExecution shadowExecution = MachineState.shadowExecution;
+		if (shadowExecution != null && shadowExecution.isSampled(this)) {
+			shadowExecution.execute(this);
+			return;
+		}
+
+		this.executeRound();
+	}
+
+	/** Performs a round of execution, without shadow execution */
+	/* package */ void executeRound() {
 		// Initialization
 		this.steps = 0;
+		Arrays.fill(this.dirtyDataPages, 0L);
 		this.currentBlockHeight = api.getCurrentBlockHeight();
 		this.currentBalance = api.getCurrentBalance(this);
 		this.isFirstOpCodeAfterSleeping = false;
@@ -824,62 +2186,13 @@ public class MachineState {
 		// Set byte buffer position using program counter
 		codeByteBuffer.position(this.programCounter);
 
-		while (!this.isSleeping && !this.isStopped && !this.isFinished && !this.isFrozen) {
-			byte rawOpCode = codeByteBuffer.get();
-			OpCode nextOpCode = OpCode.valueOf(rawOpCode);
-
-			try {
-				if (nextOpCode == null)
-					throw new IllegalOperationException("OpCode 0x" + String.format("%02x", rawOpCode) + " not recognised");
-
-				this.logger.debug(() -> String.format("[PC: %04x] %s", this.programCounter, nextOpCode.name()));
-
-				// Request opcode step-fee from API, apply fee to balance, etc.
-				int opcodeSteps = this.api.getOpCodeSteps(nextOpCode);
-				long opcodeFee = opcodeSteps * feePerStep;
+		// Opcode steps are requested from API at most once per round
+		if (this.opCodeStepsThisRound == null)
+			this.opCodeStepsThisRound = new int[OPCODES.length];
 
-				if (this.steps + opcodeSteps > maxSteps) {
-					logger.debug(() -> String.format("Enforced sleep due to exceeding maximum number of steps (%d) per execution round", maxSteps));
-					this.isSleeping = true;
-					break;
-				}
-
-				if (this.currentBalance < opcodeFee) {
-					// Not enough balance left to continue execution - freeze AT
-					logger.debug(() -> "Frozen due to lack of balance");
-					this.isFrozen = true;
-					this.frozenBalance = this.currentBalance;
-					break;
-				}
-
-				// Apply opcode step-fee
-				this.currentBalance -= opcodeFee;
-				this.steps += opcodeSteps;
-
-				// At this point, programCounter is BEFORE opcode (and args).
-				nextOpCode.execute(this);
-
-				// Synchronize programCounter with codeByteBuffer in case of JMPs, branches, etc.
-				this.programCounter = codeByteBuffer.position();
-			} catch (ExecutionException e) {
-				this.logger.error(() -> String.format("Error at PC %04x: %s", this.programCounter, e.getMessage()));
+		Arrays.fill(this.opCodeStepsThisRound, UNKNOWN_STEPS);
 
-				if (this.onErrorAddress == null) {
-					this.isFinished = true;
-					this.hadFatalError = true;
-
-					// Notify API that there was an error
-					this.api.onFatalError(this, e);
-					break;
-				}
-
-				this.programCounter = this.onErrorAddress;
-				codeByteBuffer.position(this.programCounter);
-			}
-
-			// No longer true
-			this.isFirstOpCodeAfterSleeping = false;
-		}
+		this.executionEngine.run(this, feePerStep, maxSteps);
 
 		if (this.isSleeping) {
 			if (this.sleepUntilHeight != null)
@@ -903,6 +2216,208 @@ public class MachineState {
 		this.previousBalance = this.currentBalance;
 	}
 
+	// Execution engine support
+
+	/** Returns whether execution can continue this round, i.e. not sleeping, stopped, finished or frozen */
+	/* package */ boolean isRunning() {
+		return !this.isSleeping && !this.isStopped && !this.isFinished && !this.isFrozen;
+	}
+
+	/** Returns pre-decoded form of code bytes, decoding on first use */
+	/* package */ DecodedProgram getDecodedProgram() {
+		return this.getProgram().getDecodedProgram();
+	}
+
+	/** Synchronizes program counter with code position, e.g. after JMPs, branches, etc. */
+	/* package */ void syncProgramCounter() {
+		this.programCounter = this.codeByteBuffer.position();
+	}
+
+	/** Sets both program counter and code position */
+	/* package */ void setProgramCounter(int programCounter) {
+		this.programCounter = programCounter;
+		this.codeByteBuffer.position(programCounter);
+	}
+
+	/* package */ void clearFirstOpCodeAfterSleeping() {
+		this.isFirstOpCodeAfterSleeping = false;
+	}
+
+	/**
+	 * Charges <tt>opcodeSteps</tt>, as returned by API for a single opcode, and their fee, or sleeps/freezes AT if steps or balance are exhausted.
+	 *
+	 * @return true if charged, false if AT is now sleeping or frozen
+	 */
+	/* package */ boolean meterOpCode(int opcodeSteps, long feePerStep, int maxSteps) {
+		// Apply opcode step-fee to balance, etc.
+		long opcodeFee = opcodeSteps * feePerStep;
+
+		if (this.steps + opcodeSteps > maxSteps) {
+			logger.debug(() -> String.format("Enforced sleep due to exceeding maximum number of steps (%d) per execution round", maxSteps));
+			this.isSleeping = true;
+			return false;
+		}
+
+		if (this.currentBalance < opcodeFee) {
+			// Not enough balance left to continue execution - freeze AT
+			logger.debug(() -> "Frozen due to lack of balance");
+			this.isFrozen = true;
+			this.frozenBalance = this.currentBalance;
+			return false;
+		}
+
+		// Apply opcode step-fee
+		this.currentBalance -= opcodeFee;
+		this.steps += opcodeSteps;
+
+		return true;
+	}
+
+	/**
+	 * Charges steps and fee for a block of opcodes, totalling <tt>blockSteps</tt>, but only if the whole block fits
+	 * within remaining steps and balance. Otherwise nothing is charged, and no flags are changed.
+	 * <p>
+	 * Negative step/fee values from API are never charged this way, so caller falls back to per-opcode metering.
+	 *
+	 * @return true if charged
+	 */
+	/* package */ boolean meterBlock(long blockSteps, long feePerStep, int maxSteps) {
+		if (feePerStep < 0 || blockSteps < 0)
+			return false;
+
+		if (this.steps + blockSteps > maxSteps)
+			return false;
+
+		final long blockFee;
+		try {
+			blockFee = Math.multiplyExact(blockSteps, feePerStep);
+		} catch (ArithmeticException e) {
+			return false;
+		}
+
+		if (this.currentBalance < blockFee)
+			return false;
+
+		this.currentBalance -= blockFee;
+		this.steps += (int) blockSteps;
+
+		return true;
+	}
+
+	/** Refunds steps, and their fee, previously charged by <tt>meterBlock()</tt> but not executed */
+	/* package */ void refundSteps(long unexecutedSteps, long feePerStep) {
+		this.currentBalance += unexecutedSteps * feePerStep;
+		this.steps -= (int) unexecutedSteps;
+	}
+
+	/**
+	 * Handles exception thrown during opcode execution, by jumping to error address if set.
+	 *
+	 * @return true if error was fatal, i.e. no error address was set
+	 */
+	/* package */ boolean handleExecutionException(ExecutionException e) {
+		this.logger.error(() -> String.format("Error at PC %04x: %s", this.programCounter, e.getMessage()));
+
+		if (this.onErrorAddress == null) {
+			this.isFinished = true;
+			this.hadFatalError = true;
+
+			// Notify API that there was an error
+			this.api.onFatalError(this, e);
+			return true;
+		}
+
+		this.programCounter = this.onErrorAddress;
+		this.codeByteBuffer.position(this.programCounter);
+		return false;
+	}
+
+	/** Returns steps for opcode, by ordinal, requesting from API only on first use this round */
+	/* package */ int getOpCodeStepsThisRound(int opCodeOrdinal) {
+		int opcodeSteps = this.opCodeStepsThisRound[opCodeOrdinal];
+
+		if (opcodeSteps == UNKNOWN_STEPS) {
+			opcodeSteps = this.api.getOpCodeSteps(OPCODES[opCodeOrdinal]);
+			this.opCodeStepsThisRound[opCodeOrdinal] = opcodeSteps;
+		}
+
+		return opcodeSteps;
+	}
+
+	/** Returns engine used by newly constructed or deserialized MachineStates */
+	public static ExecutionEngine getDefaultExecutionEngine() {
+		return defaultExecutionEngine;
+	}
+
+	/** Sets engine used by newly constructed or deserialized MachineStates, e.g. node-wide */
+	public static void setDefaultExecutionEngine(ExecutionEngine executionEngine) {
+		if (executionEngine == null)
+			throw new IllegalArgumentException("Execution engine cannot be null");
+
+		MachineState.defaultExecutionEngine = executionEngine;
+	}
+
+	/** Returns cross-engine shadow execution settings, or null if disabled */
+	public static ShadowExecution getShadowExecution() {
+		return shadowExecution;
+	}
+
+	/**
+	 * Enables cross-engine shadow execution for a sample of execution rounds, node-wide, or disables if <tt>null</tt>.
+	 *
+	 * @see ShadowExecution
+	 */
+	public static void setShadowExecution(ShadowExecution shadowExecution) {
+		MachineState.shadowExecution = shadowExecution;
+	}
+
+	/** Returns implementations of hash algorithms used by hashing function codes */
+	public static HashProvider getHashProvider() {
+		return hashProvider;
+	}
+
+	/**
+	 * Sets implementations of hash algorithms used by hashing function codes, node-wide.
+	 *
+	 * @see HashProvider#BUILT_IN
+	 * @see HashProvider#JCE
+	 */
+	public static void setHashProvider(HashProvider hashProvider) {
+		if (hashProvider == null)
+			throw new IllegalArgumentException("Hash provider cannot be null");
+
+		MachineState.hashProvider = hashProvider;
+	}
+
+	public ExecutionEngine getExecutionEngine() {
+		return this.executionEngine;
+	}
+
+	/** Sets engine used to execute this MachineState, e.g. per AT. All engines produce identical results. */
+	public void setExecutionEngine(ExecutionEngine executionEngine) {
+		if (executionEngine == null)
+			throw new IllegalArgumentException("Execution engine cannot be null");
+
+		this.executionEngine = executionEngine;
+	}
+
+	/** Returns number of execution rounds, per distinct code, before compiling code into JVM bytecode. Zero means compilation is disabled. */
+	public static int getCompilationThreshold() {
+		return compilationThreshold;
+	}
+
+	/**
+	 * Sets number of execution rounds, per distinct code, before compiling code into JVM bytecode.
+	 * <p>
+	 * Compiled code is only used when debug logging is disabled. Zero disables compilation (default).
+	 */
+	public static void setCompilationThreshold(int compilationThreshold) {
+		if (compilationThreshold < 0)
+			throw new IllegalArgumentException("Compilation threshold cannot be negative");
+
+		MachineState.compilationThreshold = compilationThreshold;
+	}
+
 	/** Return disassembly of code bytes */
 	public static String disassemble(byte[] codeBytes, int dataBufferLength) throws ExecutionException {
 		StringBuilder output = new StringBuilder();
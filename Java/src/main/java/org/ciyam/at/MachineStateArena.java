@@ -0,0 +1,205 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ciyam.at.MachineState.MemoryModel;
+
+/**
+ * Large block of memory, typically direct so off-heap, managed by the node to hold data segments and stacks of many MachineStates,
+ * instead of each having its own heap ByteBuffers, which otherwise dominate old generation and GC pauses.
+ * <p>
+ * {@link #allocate(MachineState)} moves a state's data segment and stacks into one contiguous block of the arena,
+ * sized using page counts from the state's header and page sizes from its version's constants.
+ * The state then carries on as normal, using <tt>BYTE_BUFFER</tt> memory model, and is restored in place by
+ * <tt>reuseFromBytes()</tt> or {@link MachineStatePool}. Serialized state is exactly as if the state was on heap.
+ * <p>
+ * Blocks are allocated from the top of the arena. {@link #free(MachineState)} explicitly releases a state's block,
+ * moving its data segment and stacks back on heap, and {@link #compact()} moves live blocks down to reclaim space left by freed blocks.
+ * Allocation compacts automatically if that would make room.
+ * <p>
+ * Not thread-safe. Use one arena per worker thread, or synchronize externally.
+ */
+public final class MachineStateArena {
+
+	/** Region of arena owned by one MachineState, or by nobody once freed */
+	/* package */ static class Block {
+		private final MachineStateArena arena;
+		private final int length;
+		private int offset;
+		private MachineState state;
+
+		private Block(MachineStateArena arena, int offset, int length, MachineState state) {
+			this.arena = arena;
+			this.offset = offset;
+			this.length = length;
+			this.state = state;
+		}
+	}
+
+	/** Chunk size for moving blocks during compaction */
+	private static final int MOVE_CHUNK_SIZE = 64 * 1024;
+
+	private final ByteBuffer memory;
+
+	/** Allocated blocks, in address order, including freed blocks until next compaction */
+	private List<Block> blocks = new ArrayList<>();
+
+	/** Offset of first unallocated byte */
+	private int top = 0;
+
+	/** Total length of live, i.e. not freed, blocks */
+	private int liveLength = 0;
+
+	private int liveCount = 0;
+
+	/**
+	 * Creates arena backed by new direct ByteBuffer of <tt>capacity</tt> bytes.
+	 *
+	 * @throws IllegalArgumentException if <tt>capacity</tt> is negative
+	 */
+	public MachineStateArena(int capacity) {
+		this(ByteBuffer.allocateDirect(capacity));
+	}
+
+	/**
+	 * Creates arena using <tt>memory</tt>, from its position to limit, e.g. a memory-mapped file managed by the node.
+	 * <p>
+	 * <tt>memory</tt> must not be used for anything else while arena is in use.
+	 *
+	 * @throws IllegalArgumentException if <tt>memory</tt> is read-only
+	 */
+	public MachineStateArena(ByteBuffer memory) {
+		if (memory.isReadOnly())
+			throw new IllegalArgumentException("Arena memory cannot be read-only");
+
+		this.memory = memory.slice();
+	}
+
+	/**
+	 * Moves <tt>state</tt>'s data segment and stacks into this arena, converting to <tt>BYTE_BUFFER</tt> memory model if necessary.
+	 *
+	 * @throws IllegalStateException if state is already in an arena, or there's not enough free space, even after compaction
+	 */
+	public void allocate(MachineState state) {
+		if (state.arenaBlock != null)
+			throw new IllegalStateException("MachineState already allocated in arena");
+
+		// Also copies any lazily-read data segment
+		state.setMemoryModel(MemoryModel.BYTE_BUFFER);
+
+		final int length = state.getArenaLength();
+		if (length > this.memory.capacity() - this.top) {
+			if (length > this.memory.capacity() - this.liveLength)
+				throw new IllegalStateException("Not enough free space in arena for " + length + " bytes");
+
+			this.compact();
+		}
+
+		Block block = new Block(this, this.top, length, state);
+		state.bindArenaMemory(this.blockMemory(block), true);
+		state.arenaBlock = block;
+
+		this.blocks.add(block);
+		this.top += length;
+		this.liveLength += length;
+		++this.liveCount;
+	}
+
+	/**
+	 * Releases <tt>state</tt>'s block, moving its data segment and stacks back on heap, so state remains usable.
+	 * <p>
+	 * Space isn't reusable until compaction, unless block was the most recently allocated.
+	 *
+	 * @throws IllegalArgumentException if state isn't allocated in this arena
+	 */
+	public void free(MachineState state) {
+		Block block = state.arenaBlock;
+		if (block == null || block.arena != this)
+			throw new IllegalArgumentException("MachineState not allocated in this arena");
+
+		state.unbindArenaMemory();
+		state.arenaBlock = null;
+
+		block.state = null;
+		this.liveLength -= block.length;
+		--this.liveCount;
+
+		// Reclaim top-most freed blocks straight away
+		while (!this.blocks.isEmpty() && this.blocks.get(this.blocks.size() - 1).state == null) {
+			Block topBlock = this.blocks.remove(this.blocks.size() - 1);
+			this.top = topBlock.offset;
+		}
+	}
+
+	/** Moves live blocks down, in address order, so that all free space is at the top of arena */
+	public void compact() {
+		List<Block> liveBlocks = new ArrayList<>(this.liveCount);
+		byte[] chunk = null;
+		int newTop = 0;
+
+		for (Block block : this.blocks) {
+			if (block.state == null)
+				continue;
+
+			if (block.offset != newTop) {
+				if (chunk == null)
+					chunk = new byte[MOVE_CHUNK_SIZE];
+
+				this.move(block.offset, newTop, block.length, chunk);
+				block.offset = newTop;
+				block.state.bindArenaMemory(this.blockMemory(block), false);
+			}
+
+			liveBlocks.add(block);
+			newTop += block.length;
+		}
+
+		this.blocks = liveBlocks;
+		this.top = newTop;
+	}
+
+	/** Returns total size of arena, in bytes */
+	public int getCapacity() {
+		return this.memory.capacity();
+	}
+
+	/** Returns number of bytes allocated to live states */
+	public int getLiveLength() {
+		return this.liveLength;
+	}
+
+	/** Returns number of bytes available for allocation without compaction */
+	public int getUnallocatedLength() {
+		return this.memory.capacity() - this.top;
+	}
+
+	/** Returns number of states allocated in arena */
+	public int getLiveCount() {
+		return this.liveCount;
+	}
+
+	private ByteBuffer blockMemory(Block block) {
+		ByteBuffer blockMemory = this.memory.duplicate();
+		blockMemory.limit(block.offset + block.length).position(block.offset);
+		return blockMemory.slice();
+	}
+
+	/** Moves <tt>length</tt> bytes down from <tt>fromOffset</tt> to <tt>toOffset</tt>, in ascending chunks, so overlap is safe */
+	private void move(int fromOffset, int toOffset, int length, byte[] chunk) {
+		ByteBuffer from = this.memory.duplicate();
+		ByteBuffer to = this.memory.duplicate();
+		from.position(fromOffset);
+		to.position(toOffset);
+
+		int remaining = length;
+		while (remaining > 0) {
+			final int chunkLength = Math.min(remaining, chunk.length);
+			from.get(chunk, 0, chunkLength);
+			to.put(chunk, 0, chunkLength);
+			remaining -= chunkLength;
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of idle MachineState instances, for restoring many ATs' states without allocating data segment and stacks each time.
+ * <p>
+ * Instances are keyed by header, i.e. version, page counts and minimum activation amount, which are fixed per instance.
+ * {@link #acquire(API, AtLoggerFactory, byte[], byte[])} behaves like <tt>MachineState.fromBytes()</tt>,
+ * but overwrites an idle instance with matching header, if any.
+ * After executing and serializing an AT, {@link #release(MachineState)} its instance for reuse by a later AT.
+ * <p>
+ * Not thread-safe. Use one pool per worker thread, e.g. via <tt>ThreadLocal.withInitial(MachineStatePool::new)</tt>.
+ */
+public class MachineStatePool {
+
+	/** Header fields that must match for an instance to be reused */
+	private static class Key {
+		private final short version;
+		private final short numCodePages;
+		private final short numDataPages;
+		private final short numCallStackPages;
+		private final short numUserStackPages;
+		private final long minActivationAmount;
+
+		public Key(short version, short numCodePages, short numDataPages, short numCallStackPages, short numUserStackPages, long minActivationAmount) {
+			this.version = version;
+			this.numCodePages = numCodePages;
+			this.numDataPages = numDataPages;
+			this.numCallStackPages = numCallStackPages;
+			this.numUserStackPages = numUserStackPages;
+			this.minActivationAmount = minActivationAmount;
+		}
+
+		public Key(MachineState state) {
+			this(state.version, state.numCodePages, state.numDataPages, state.numCallStackPages, state.numUserStackPages, state.minActivationAmount);
+		}
+
+		public Key(ByteBuffer byteBuffer) {
+			this(byteBuffer.getShort(0),
+					byteBuffer.getShort(2 /*version*/ + 2 /*reserved*/),
+					byteBuffer.getShort(2 + 2 + 2 /*code pages*/),
+					byteBuffer.getShort(2 + 2 + 2 + 2 /*data pages*/),
+					byteBuffer.getShort(2 + 2 + 2 + 2 + 2 /*call stack pages*/),
+					byteBuffer.getLong(2 + 2 + 2 + 2 + 2 + 2 /*user stack pages*/));
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key))
+				return false;
+
+			Key otherKey = (Key) other;
+			return this.version == otherKey.version
+					&& this.numCodePages == otherKey.numCodePages
+					&& this.numDataPages == otherKey.numDataPages
+					&& this.numCallStackPages == otherKey.numCallStackPages
+					&& this.numUserStackPages == otherKey.numUserStackPages
+					&& this.minActivationAmount == otherKey.minActivationAmount;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = this.version;
+			hash = 31 * hash + this.numCodePages;
+			hash = 31 * hash + this.numDataPages;
+			hash = 31 * hash + this.numCallStackPages;
+			hash = 31 * hash + this.numUserStackPages;
+			return 31 * hash + Long.hashCode(this.minActivationAmount);
+		}
+	}
+
+	/** Default maximum number of idle instances kept per header */
+	public static final int DEFAULT_MAX_IDLE_PER_KEY = 4;
+
+	private final int maxIdlePerKey;
+	private final Map<Key, ArrayDeque<MachineState>> idleStates = new HashMap<>();
+	private long reuseCount = 0;
+
+	/** Creates pool keeping up to {@link #DEFAULT_MAX_IDLE_PER_KEY} idle instances per header */
+	public MachineStatePool() {
+		this(DEFAULT_MAX_IDLE_PER_KEY);
+	}
+
+	/**
+	 * Creates pool keeping up to <tt>maxIdlePerKey</tt> idle instances per header.
+	 *
+	 * @throws IllegalArgumentException if <tt>maxIdlePerKey</tt> is less than 1
+	 */
+	public MachineStatePool(int maxIdlePerKey) {
+		if (maxIdlePerKey < 1)
+			throw new IllegalArgumentException("Maximum idle instances per key must be > 0");
+
+		this.maxIdlePerKey = maxIdlePerKey;
+	}
+
+	/**
+	 * Returns MachineState restored from serialized state, reusing idle instance with same header if possible.
+	 *
+	 * @see MachineState#fromBytes(API, AtLoggerFactory, byte[], byte[])
+	 */
+	public MachineState acquire(API api, AtLoggerFactory loggerFactory, byte[] stateBytes, byte[] codeBytes) {
+		return this.acquire(api, loggerFactory, stateBytes, Program.fromCodeBytes(codeBytes));
+	}
+
+	/**
+	 * Returns MachineState restored from serialized state and already interned program, reusing idle instance with same header if possible.
+	 *
+	 * @see MachineState#fromBytes(API, AtLoggerFactory, byte[], Program)
+	 */
+	public MachineState acquire(API api, AtLoggerFactory loggerFactory, byte[] stateBytes, Program program) {
+		if (stateBytes.length >= MachineState.HEADER_LENGTH) {
+			ArrayDeque<MachineState> states = this.idleStates.get(new Key(ByteBuffer.wrap(stateBytes)));
+
+			if (states != null && !states.isEmpty()) {
+				MachineState state = states.pop();
+				state.reuseFromBytes(api, loggerFactory, stateBytes, program);
+				++this.reuseCount;
+				return state;
+			}
+		}
+
+		return MachineState.fromBytes(api, loggerFactory, stateBytes, program);
+	}
+
+	/**
+	 * Returns instance to pool for reuse, discarding it if there are already enough idle instances with same header.
+	 * <p>
+	 * Caller must not use <tt>state</tt> afterwards, e.g. serialize it first.
+	 */
+	public void release(MachineState state) {
+		ArrayDeque<MachineState> states = this.idleStates.computeIfAbsent(new Key(state), key -> new ArrayDeque<>());
+
+		if (states.size() < this.maxIdlePerKey)
+			states.push(state);
+	}
+
+	/** Returns number of idle instances in pool */
+	public int getIdleCount() {
+		int idleCount = 0;
+
+		for (ArrayDeque<MachineState> states : this.idleStates.values())
+			idleCount += states.size();
+
+		return idleCount;
+	}
+
+	/** Returns number of times <tt>acquire()</tt> reused an idle instance */
+	public long getReuseCount() {
+		return this.reuseCount;
+	}
+
+}
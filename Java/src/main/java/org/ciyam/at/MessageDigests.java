@@ -0,0 +1,38 @@
+package org.ciyam.at;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-thread cache of {@link MessageDigest} instances, avoiding a provider lookup every time a hash function is called.
+ */
+final class MessageDigests {
+
+	private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS = ThreadLocal.withInitial(HashMap::new);
+
+	private MessageDigests() {
+	}
+
+	/**
+	 * Returns reset digest for <tt>algorithm</tt>, e.g. <tt>"SHA-256"</tt>.
+	 * <p>
+	 * Digest is only for use by the calling thread, and only until its next call for the same algorithm.
+	 */
+	static MessageDigest get(String algorithm) throws NoSuchAlgorithmException {
+		Map<String, MessageDigest> digests = DIGESTS.get();
+
+		MessageDigest digest = digests.get(algorithm);
+		if (digest == null) {
+			digest = MessageDigest.getInstance(algorithm);
+			digests.put(algorithm, digest);
+		} else {
+			// In case previous use was interrupted by an exception
+			digest.reset();
+		}
+
+		return digest;
+	}
+
+}
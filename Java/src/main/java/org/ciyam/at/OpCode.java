@@ -1,12 +1,7 @@
 package org.ciyam.at;
 
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 /**
  * This enum contains op codes for the CIYAM AT machine.
@@ -28,7 +23,7 @@ import java.util.stream.Collectors;
  * <tt>$($addr1 + $addr2)</tt> means "fetch from address fetched from <tt>addr1</tt> plus offset fetched from <tt>addr2</tt>", i.e. indirect indexed
  * 
  * @see OpCode#valueOf(int)
- * @see OpCode#executeWithParams(MachineState, Object...)
+ * @see OpCode#executeWithParams(MachineState, long...)
  */
 public enum OpCode {
 
@@ -39,7 +34,7 @@ public enum OpCode {
 	 */
 	NOP(0x7f) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) {
+		protected void executeWithParams(MachineState state, long... args) {
 			// Do nothing
 		}
 	},
@@ -50,11 +45,11 @@ public enum OpCode {
 	 */
 	SET_VAL(0x01, OpCodeParam.DEST_ADDR, OpCodeParam.VALUE) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
-			long value = (long) args[1];
+			long value = args[1];
 
-			state.dataByteBuffer.putLong(address, value);
+			state.setDataValue(address, value);
 		}
 	},
 	/**
@@ -64,12 +59,12 @@ public enum OpCode {
 	 */
 	SET_DAT(0x02, OpCodeParam.DEST_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address1 = (int) args[0];
 			int address2 = (int) args[1];
 
-			long value = state.dataByteBuffer.getLong(address2);
-			state.dataByteBuffer.putLong(address1, value);
+			long value = state.getDataValue(address2);
+			state.setDataValue(address1, value);
 		}
 	},
 	/**
@@ -79,10 +74,10 @@ public enum OpCode {
 	 */
 	CLR_DAT(0x03, OpCodeParam.DEST_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 
-			state.dataByteBuffer.putLong(address, 0L);
+			state.setDataValue(address, 0L);
 		}
 	},
 	/**
@@ -92,11 +87,11 @@ public enum OpCode {
 	 */
 	INC_DAT(0x04, OpCodeParam.DEST_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 
-			long value = state.dataByteBuffer.getLong(address);
-			state.dataByteBuffer.putLong(address, value + 1);
+			long value = state.getDataValue(address);
+			state.setDataValue(address, value + 1);
 		}
 	},
 	/**
@@ -106,11 +101,11 @@ public enum OpCode {
 	 */
 	DEC_DAT(0x05, OpCodeParam.DEST_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 
-			long value = state.dataByteBuffer.getLong(address);
-			state.dataByteBuffer.putLong(address, value - 1);
+			long value = state.getDataValue(address);
+			state.setDataValue(address, value - 1);
 		}
 	},
 	/**
@@ -120,7 +115,7 @@ public enum OpCode {
 	 */
 	ADD_DAT(0x06, OpCodeParam.DEST_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeDataOperation(state, (a, b) -> a + b, args);
 		}
 	},
@@ -131,7 +126,7 @@ public enum OpCode {
 	 */
 	SUB_DAT(0x07, OpCodeParam.DEST_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeDataOperation(state, (a, b) -> a - b, args);
 		}
 	},
@@ -142,7 +137,7 @@ public enum OpCode {
 	 */
 	MUL_DAT(0x08, OpCodeParam.DEST_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeDataOperation(state, (a, b) -> a * b, args);
 		}
 	},
@@ -154,7 +149,7 @@ public enum OpCode {
 	 */
 	DIV_DAT(0x09, OpCodeParam.DEST_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			try {
 				executeDataOperation(state, (a, b) -> a / b, args);
 			} catch (ArithmeticException e) {
@@ -169,7 +164,7 @@ public enum OpCode {
 	 */
 	BOR_DAT(0x0a, OpCodeParam.DEST_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeDataOperation(state, (a, b) -> a | b, args);
 		}
 	},
@@ -180,7 +175,7 @@ public enum OpCode {
 	 */
 	AND_DAT(0x0b, OpCodeParam.DEST_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeDataOperation(state, (a, b) -> a & b, args);
 		}
 	},
@@ -191,7 +186,7 @@ public enum OpCode {
 	 */
 	XOR_DAT(0x0c, OpCodeParam.DEST_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeDataOperation(state, (a, b) -> a ^ b, args);
 		}
 	},
@@ -202,11 +197,11 @@ public enum OpCode {
 	 */
 	NOT_DAT(0x0d, OpCodeParam.DEST_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 
-			long value = state.dataByteBuffer.getLong(address);
-			state.dataByteBuffer.putLong(address, ~value);
+			long value = state.getDataValue(address);
+			state.setDataValue(address, ~value);
 		}
 	},
 	/**
@@ -216,17 +211,17 @@ public enum OpCode {
 	 */
 	SET_IND(0x0e, OpCodeParam.DEST_ADDR, OpCodeParam.INDIRECT_SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address1 = (int) args[0];
 			int address2 = (int) args[1];
 
-			long address3 = state.dataByteBuffer.getLong(address2) * MachineState.VALUE_SIZE;
+			long address3 = state.getDataValue(address2) * MachineState.VALUE_SIZE;
 
-			if (address3 < 0 || address3 + MachineState.VALUE_SIZE >= state.dataByteBuffer.limit())
+			if (address3 < 0 || address3 + MachineState.VALUE_SIZE >= state.getDataLength())
 				throw new InvalidAddressException("Data address out of bounds");
 
-			long value = state.dataByteBuffer.getLong((int) address3);
-			state.dataByteBuffer.putLong(address1, value);
+			long value = state.getDataValue((int) address3);
+			state.setDataValue(address1, value);
 		}
 	},
 	/**
@@ -236,21 +231,21 @@ public enum OpCode {
 	 */
 	SET_IDX(0x0f, OpCodeParam.DEST_ADDR, OpCodeParam.INDIRECT_SRC_ADDR_WITH_INDEX, OpCodeParam.INDEX) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address1 = (int) args[0];
 			int address2 = (int) args[1];
 			int address3 = (int) args[2];
 
-			long baseAddress = state.dataByteBuffer.getLong(address2) * MachineState.VALUE_SIZE;
-			long offset = state.dataByteBuffer.getLong(address3) * MachineState.VALUE_SIZE;
+			long baseAddress = state.getDataValue(address2) * MachineState.VALUE_SIZE;
+			long offset = state.getDataValue(address3) * MachineState.VALUE_SIZE;
 
 			long newAddress = baseAddress + offset;
 
-			if (newAddress < 0 || newAddress + MachineState.VALUE_SIZE >= state.dataByteBuffer.limit())
+			if (newAddress < 0 || newAddress + MachineState.VALUE_SIZE >= state.getDataLength())
 				throw new InvalidAddressException("Data address out of bounds");
 
-			long value = state.dataByteBuffer.getLong((int) newAddress);
-			state.dataByteBuffer.putLong(address1, value);
+			long value = state.getDataValue((int) newAddress);
+			state.setDataValue(address1, value);
 		}
 	},
 	/**
@@ -261,19 +256,12 @@ public enum OpCode {
 	 */
 	PSH_DAT(0x10, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 
-			long value = state.dataByteBuffer.getLong(address);
+			long value = state.getDataValue(address);
 
-			try {
-				// Simulate backwards-walking stack
-				int newPosition = state.userStackByteBuffer.position() - MachineState.VALUE_SIZE;
-				state.userStackByteBuffer.putLong(newPosition, value);
-				state.userStackByteBuffer.position(newPosition);
-			} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
-				throw new StackBoundsException("No room on user stack to push data", e);
-			}
+			state.pushUserStack(value);
 		}
 	},
 	/**
@@ -284,20 +272,13 @@ public enum OpCode {
 	 */
 	POP_DAT(0x11, OpCodeParam.DEST_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 
-			try {
-				long value = state.userStackByteBuffer.getLong();
-
-				// Clear old stack entry
-				state.userStackByteBuffer.putLong(state.userStackByteBuffer.position() - MachineState.VALUE_SIZE, 0L);
+			long value = state.popUserStack();
 
-				// Put popped value into data address
-				state.dataByteBuffer.putLong(address, value);
-			} catch (BufferUnderflowException e) {
-				throw new StackBoundsException("Empty user stack from which to pop data", e);
-			}
+			// Put popped value into data address
+			state.setDataValue(address, value);
 		}
 	},
 	/**
@@ -308,17 +289,10 @@ public enum OpCode {
 	 */
 	JMP_SUB(0x12, OpCodeParam.CODE_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 
-			try {
-				// Simulate backwards-walking stack
-				int newPosition = state.callStackByteBuffer.position() - MachineState.ADDRESS_SIZE;
-				state.callStackByteBuffer.putInt(newPosition, state.codeByteBuffer.position());
-				state.callStackByteBuffer.position(newPosition);
-			} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
-				throw new StackBoundsException("No room on call stack to call subroutine", e);
-			}
+			state.pushCallStack(state.codeByteBuffer.position());
 
 			state.codeByteBuffer.position(address);
 		}
@@ -331,17 +305,10 @@ public enum OpCode {
 	 */
 	RET_SUB(0x13) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
-			try {
-				int returnAddress = state.callStackByteBuffer.getInt();
-
-				// Clear old stack entry
-				state.callStackByteBuffer.putInt(state.callStackByteBuffer.position() - MachineState.ADDRESS_SIZE, 0);
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
+			int returnAddress = state.popCallStack();
 
-				state.codeByteBuffer.position(returnAddress);
-			} catch (BufferUnderflowException e) {
-				throw new StackBoundsException("Empty call stack missing return address from subroutine", e);
-			}
+			state.codeByteBuffer.position(returnAddress);
 		}
 	},
 	/**
@@ -351,17 +318,17 @@ public enum OpCode {
 	 */
 	IND_DAT(0x14, OpCodeParam.INDIRECT_DEST_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address1 = (int) args[0];
 			int address2 = (int) args[1];
 
-			long address3 = state.dataByteBuffer.getLong(address1) * MachineState.VALUE_SIZE;
+			long address3 = state.getDataValue(address1) * MachineState.VALUE_SIZE;
 
-			if (address3 < 0 || address3 + MachineState.VALUE_SIZE >= state.dataByteBuffer.limit())
+			if (address3 < 0 || address3 + MachineState.VALUE_SIZE >= state.getDataLength())
 				throw new InvalidAddressException("Data address out of bounds");
 
-			long value = state.dataByteBuffer.getLong(address2);
-			state.dataByteBuffer.putLong((int) address3, value);
+			long value = state.getDataValue(address2);
+			state.setDataValue((int) address3, value);
 		}
 	},
 	/**
@@ -371,21 +338,21 @@ public enum OpCode {
 	 */
 	IDX_DAT(0x15, OpCodeParam.INDIRECT_DEST_ADDR_WITH_INDEX, OpCodeParam.INDEX, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address1 = (int) args[0];
 			int address2 = (int) args[1];
 			int address3 = (int) args[2];
 
-			long baseAddress = state.dataByteBuffer.getLong(address1) * MachineState.VALUE_SIZE;
-			long offset = state.dataByteBuffer.getLong(address2) * MachineState.VALUE_SIZE;
+			long baseAddress = state.getDataValue(address1) * MachineState.VALUE_SIZE;
+			long offset = state.getDataValue(address2) * MachineState.VALUE_SIZE;
 
 			long newAddress = baseAddress + offset;
 
-			if (newAddress < 0 || newAddress + MachineState.VALUE_SIZE >= state.dataByteBuffer.limit())
+			if (newAddress < 0 || newAddress + MachineState.VALUE_SIZE >= state.getDataLength())
 				throw new InvalidAddressException("Data address out of bounds");
 
-			long value = state.dataByteBuffer.getLong(address3);
-			state.dataByteBuffer.putLong((int) newAddress, value);
+			long value = state.getDataValue(address3);
+			state.setDataValue((int) newAddress, value);
 		}
 	},
 	/**
@@ -395,7 +362,7 @@ public enum OpCode {
 	 */
 	MOD_DAT(0x16, OpCodeParam.DEST_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			try {
 				executeDataOperation(state, (a, b) -> a % b, args);
 			} catch (ArithmeticException e) {
@@ -412,7 +379,7 @@ public enum OpCode {
 		private static final long MAX_SHIFT = MachineState.VALUE_SIZE * 8L;
 
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			// If 2nd arg is more than value size (in bits) then return 0 to simulate all bits being shifted out of existence
 			executeDataOperation(state, (a, b) -> b >= MAX_SHIFT ? 0 : a << b, args);
 		}
@@ -427,7 +394,7 @@ public enum OpCode {
 		private static final long MAX_SHIFT = MachineState.VALUE_SIZE * 8L;
 
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			// If 2nd arg is more than value size (in bits) then return 0 to simulate all bits being shifted out of existence
 			executeDataOperation(state, (a, b) -> b >= MAX_SHIFT ? 0 : a >>> b, args);
 		}
@@ -439,7 +406,7 @@ public enum OpCode {
 	 */
 	JMP_ADR(0x1a, OpCodeParam.CODE_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 
 			state.codeByteBuffer.position(address);
@@ -453,13 +420,13 @@ public enum OpCode {
 	 */
 	BZR_DAT(0x1b, OpCodeParam.SRC_ADDR, OpCodeParam.OFFSET) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 			byte offset = (byte) args[1];
 
 			int branchTarget = calculateBranchTarget(state, offset);
 
-			long value = state.dataByteBuffer.getLong(address);
+			long value = state.getDataValue(address);
 
 			if (value == 0)
 				state.codeByteBuffer.position(branchTarget);
@@ -473,13 +440,13 @@ public enum OpCode {
 	 */
 	BNZ_DAT(0x1e, OpCodeParam.SRC_ADDR, OpCodeParam.OFFSET) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 			byte offset = (byte) args[1];
 
 			int branchTarget = calculateBranchTarget(state, offset);
 
-			long value = state.dataByteBuffer.getLong(address);
+			long value = state.getDataValue(address);
 
 			if (value != 0)
 				state.codeByteBuffer.position(branchTarget);
@@ -493,7 +460,7 @@ public enum OpCode {
 	 */
 	BGT_DAT(0x1f, OpCodeParam.SRC_ADDR, OpCodeParam.SRC_ADDR, OpCodeParam.OFFSET) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeBranchConditional(state, (a, b) -> a > b, args);
 		}
 	},
@@ -505,7 +472,7 @@ public enum OpCode {
 	 */
 	BLT_DAT(0x20, OpCodeParam.SRC_ADDR, OpCodeParam.SRC_ADDR, OpCodeParam.OFFSET) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeBranchConditional(state, (a, b) -> a < b, args);
 		}
 	},
@@ -517,7 +484,7 @@ public enum OpCode {
 	 */
 	BGE_DAT(0x21, OpCodeParam.SRC_ADDR, OpCodeParam.SRC_ADDR, OpCodeParam.OFFSET) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeBranchConditional(state, (a, b) -> a >= b, args);
 		}
 	},
@@ -529,7 +496,7 @@ public enum OpCode {
 	 */
 	BLE_DAT(0x22, OpCodeParam.SRC_ADDR, OpCodeParam.SRC_ADDR, OpCodeParam.OFFSET) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeBranchConditional(state, (a, b) -> a <= b, args);
 		}
 	},
@@ -541,7 +508,7 @@ public enum OpCode {
 	 */
 	BEQ_DAT(0x23, OpCodeParam.SRC_ADDR, OpCodeParam.SRC_ADDR, OpCodeParam.OFFSET) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeBranchConditional(state, (a, b) -> a == b, args);
 		}
 	},
@@ -553,7 +520,7 @@ public enum OpCode {
 	 */
 	BNE_DAT(0x24, OpCodeParam.SRC_ADDR, OpCodeParam.SRC_ADDR, OpCodeParam.OFFSET) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeBranchConditional(state, (a, b) -> a != b, args);
 		}
 	},
@@ -565,7 +532,7 @@ public enum OpCode {
 	 */
 	SLP_DAT(0x25, OpCodeParam.BLOCK_HEIGHT) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 
 			long value = state.codeByteBuffer.getLong(address);
@@ -581,10 +548,10 @@ public enum OpCode {
 	 */
 	FIZ_DAT(0x26, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 
-			long value = state.dataByteBuffer.getLong(address);
+			long value = state.getDataValue(address);
 
 			if (value == 0)
 				state.setIsFinished(true);
@@ -597,10 +564,10 @@ public enum OpCode {
 	 */
 	STZ_DAT(0x27, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 
-			long value = state.dataByteBuffer.getLong(address);
+			long value = state.getDataValue(address);
 
 			if (value == 0) {
 				state.codeByteBuffer.position(state.getOnStopAddress());
@@ -615,7 +582,7 @@ public enum OpCode {
 	 */
 	FIN_IMD(0x28) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			state.setIsFinished(true);
 		}
 	},
@@ -626,7 +593,7 @@ public enum OpCode {
 	 */
 	STP_IMD(0x29) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) {
+		protected void executeWithParams(MachineState state, long... args) {
 			state.setIsStopped(true);
 		}
 	},
@@ -637,7 +604,7 @@ public enum OpCode {
 	 */
 	SLP_IMD(0x2a) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) {
+		protected void executeWithParams(MachineState state, long... args) {
 			state.setSleepUntilHeight(state.getCurrentBlockHeight() + 1);
 			state.setIsSleeping(true);
 		}
@@ -649,7 +616,7 @@ public enum OpCode {
 	 */
 	ERR_ADR(0x2b, OpCodeParam.CODE_ADDR) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			int address = (int) args[0];
 
 			state.setOnErrorAddress(address);
@@ -663,7 +630,7 @@ public enum OpCode {
 	 */
 	SET_PCS(0x30) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) {
+		protected void executeWithParams(MachineState state, long... args) {
 			state.setOnStopAddress(state.codeByteBuffer.position());
 		}
 	},
@@ -674,7 +641,7 @@ public enum OpCode {
 	 */
 	EXT_FUN(0x32, OpCodeParam.FUNC) {
 		@Override
-		protected void preExecuteCheck(Object... args) throws ExecutionException {
+		protected void preExecuteCheck(long... args) throws ExecutionException {
 			short rawFunctionCode = (short) args[0];
 
 			FunctionCode functionCode = FunctionCode.valueOf(rawFunctionCode);
@@ -687,7 +654,7 @@ public enum OpCode {
 		}
 
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			short rawFunctionCode = (short) args[0];
 
 			FunctionCode functionCode = FunctionCode.valueOf(rawFunctionCode);
@@ -704,7 +671,7 @@ public enum OpCode {
 	 */
 	EXT_FUN_DAT(0x33, OpCodeParam.FUNC, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void preExecuteCheck(Object... args) throws ExecutionException {
+		protected void preExecuteCheck(long... args) throws ExecutionException {
 			short rawFunctionCode = (short) args[0];
 
 			FunctionCode functionCode = FunctionCode.valueOf(rawFunctionCode);
@@ -717,12 +684,12 @@ public enum OpCode {
 		}
 
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			short rawFunctionCode = (short) args[0];
 			int address = (int) args[1];
 
 			FunctionCode functionCode = FunctionCode.valueOf(rawFunctionCode);
-			long value = state.dataByteBuffer.getLong(address);
+			long value = state.getDataValue(address);
 
 			FunctionData functionData = new FunctionData(value, false);
 
@@ -736,7 +703,7 @@ public enum OpCode {
 	 */
 	EXT_FUN_DAT_2(0x34, OpCodeParam.FUNC, OpCodeParam.SRC_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void preExecuteCheck(Object... args) throws ExecutionException {
+		protected void preExecuteCheck(long... args) throws ExecutionException {
 			short rawFunctionCode = (short) args[0];
 
 			FunctionCode functionCode = FunctionCode.valueOf(rawFunctionCode);
@@ -749,14 +716,14 @@ public enum OpCode {
 		}
 
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			short rawFunctionCode = (short) args[0];
 			int address1 = (int) args[1];
 			int address2 = (int) args[2];
 
 			FunctionCode functionCode = FunctionCode.valueOf(rawFunctionCode);
-			long value1 = state.dataByteBuffer.getLong(address1);
-			long value2 = state.dataByteBuffer.getLong(address2);
+			long value1 = state.getDataValue(address1);
+			long value2 = state.getDataValue(address2);
 
 			FunctionData functionData = new FunctionData(value1, value2, false);
 
@@ -770,7 +737,7 @@ public enum OpCode {
 	 */
 	EXT_FUN_RET(0x35, OpCodeParam.FUNC, OpCodeParam.DEST_ADDR) {
 		@Override
-		protected void preExecuteCheck(Object... args) throws ExecutionException {
+		protected void preExecuteCheck(long... args) throws ExecutionException {
 			short rawFunctionCode = (short) args[0];
 
 			FunctionCode functionCode = FunctionCode.valueOf(rawFunctionCode);
@@ -783,7 +750,7 @@ public enum OpCode {
 		}
 
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			short rawFunctionCode = (short) args[0];
 			int address = (int) args[1];
 
@@ -796,7 +763,7 @@ public enum OpCode {
 			if (functionData.returnValue == null)
 				throw new ExecutionException("Function failed to return a value as expected of EXT_FUN_RET");
 
-			state.dataByteBuffer.putLong(address, functionData.returnValue);
+			state.setDataValue(address, functionData.returnValue);
 		}
 	},
 	/**
@@ -806,7 +773,7 @@ public enum OpCode {
 	 */
 	EXT_FUN_RET_DAT(0x36, OpCodeParam.FUNC, OpCodeParam.DEST_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void preExecuteCheck(Object... args) throws ExecutionException {
+		protected void preExecuteCheck(long... args) throws ExecutionException {
 			short rawFunctionCode = (short) args[0];
 
 			FunctionCode functionCode = FunctionCode.valueOf(rawFunctionCode);
@@ -819,13 +786,13 @@ public enum OpCode {
 		}
 
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			short rawFunctionCode = (short) args[0];
 			int address1 = (int) args[1];
 			int address2 = (int) args[2];
 
 			FunctionCode functionCode = FunctionCode.valueOf(rawFunctionCode);
-			long value = state.dataByteBuffer.getLong(address2);
+			long value = state.getDataValue(address2);
 
 			FunctionData functionData = new FunctionData(value, true);
 
@@ -834,7 +801,7 @@ public enum OpCode {
 			if (functionData.returnValue == null)
 				throw new ExecutionException("Function failed to return a value as expected of EXT_FUN_RET_DAT");
 
-			state.dataByteBuffer.putLong(address1, functionData.returnValue);
+			state.setDataValue(address1, functionData.returnValue);
 		}
 	},
 	/**
@@ -844,7 +811,7 @@ public enum OpCode {
 	 */
 	EXT_FUN_RET_DAT_2(0x37, OpCodeParam.FUNC, OpCodeParam.DEST_ADDR, OpCodeParam.SRC_ADDR, OpCodeParam.SRC_ADDR) {
 		@Override
-		protected void preExecuteCheck(Object... args) throws ExecutionException {
+		protected void preExecuteCheck(long... args) throws ExecutionException {
 			short rawFunctionCode = (short) args[0];
 
 			FunctionCode functionCode = FunctionCode.valueOf(rawFunctionCode);
@@ -857,15 +824,15 @@ public enum OpCode {
 		}
 
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			short rawFunctionCode = (short) args[0];
 			int address1 = (int) args[1];
 			int address2 = (int) args[2];
 			int address3 = (int) args[3];
 
 			FunctionCode functionCode = FunctionCode.valueOf(rawFunctionCode);
-			long value1 = state.dataByteBuffer.getLong(address2);
-			long value2 = state.dataByteBuffer.getLong(address3);
+			long value1 = state.getDataValue(address2);
+			long value2 = state.getDataValue(address3);
 
 			FunctionData functionData = new FunctionData(value1, value2, true);
 
@@ -874,7 +841,7 @@ public enum OpCode {
 			if (functionData.returnValue == null)
 				throw new ExecutionException("Function failed to return a value as expected of EXT_FUN_RET_DAT_2");
 
-			state.dataByteBuffer.putLong(address1, functionData.returnValue);
+			state.setDataValue(address1, functionData.returnValue);
 		}
 	},
 	/**
@@ -884,7 +851,7 @@ public enum OpCode {
 	 */
 	ADD_VAL(0x46, OpCodeParam.DEST_ADDR, OpCodeParam.VALUE) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeValueOperation(state, (a, b) -> a + b, args);
 		}
 	},
@@ -895,7 +862,7 @@ public enum OpCode {
 	 */
 	SUB_VAL(0x47, OpCodeParam.DEST_ADDR, OpCodeParam.VALUE) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeValueOperation(state, (a, b) -> a - b, args);
 		}
 	},
@@ -906,7 +873,7 @@ public enum OpCode {
 	 */
 	MUL_VAL(0x48, OpCodeParam.DEST_ADDR, OpCodeParam.VALUE) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			executeValueOperation(state, (a, b) -> a * b, args);
 		}
 	},
@@ -918,7 +885,7 @@ public enum OpCode {
 	 */
 	DIV_VAL(0x49, OpCodeParam.DEST_ADDR, OpCodeParam.VALUE) {
 		@Override
-		protected void executeWithParams(MachineState state, Object... args) throws ExecutionException {
+		protected void executeWithParams(MachineState state, long... args) throws ExecutionException {
 			try {
 				executeValueOperation(state, (a, b) -> a / b, args);
 			} catch (ArithmeticException e) {
@@ -928,10 +895,17 @@ public enum OpCode {
 	};
 
 	public final byte value;
-	private final OpCodeParam[] params;
+	/* package */ final OpCodeParam[] params;
 
-	// Create a map of opcode values to OpCode
-	private static final Map<Byte, OpCode> map = Arrays.stream(OpCode.values()).collect(Collectors.toMap(opcode -> opcode.value, opcode -> opcode));
+	// Dispatch table of opcode values to OpCode, indexed by unsigned opcode value
+	private static final OpCode[] table = new OpCode[256];
+	static {
+		for (OpCode opcode : OpCode.values())
+			table[opcode.value & 0xff] = opcode;
+	}
+
+	/** Maximum number of params taken by any OpCode */
+	/* package */ static final int MAX_PARAMS = Arrays.stream(OpCode.values()).mapToInt(opcode -> opcode.params.length).max().getAsInt();
 
 	private OpCode(int value, OpCodeParam... params) {
 		this.value = (byte) value;
@@ -939,7 +913,7 @@ public enum OpCode {
 	}
 
 	public static OpCode valueOf(int value) {
-		return map.get((byte) value);
+		return table[value & 0xff];
 	}
 
 	/**
@@ -950,7 +924,7 @@ public enum OpCode {
 	 * <p>
 	 * OpCode execution can modify <tt>codeByteBuffer.position()</tt> in cases like jumps, branches, etc.
 	 * <p>
-	 * Can also modify <tt>userStackByteBuffer</tt> and various fields of <tt>state</tt>.
+	 * Can also modify user stack and various fields of <tt>state</tt>.
 	 * <p>
 	 * Throws a subclass of <tt>ExecutionException</tt> on error, e.g. <tt>InvalidAddressException</tt>.
 	 * 
@@ -959,23 +933,22 @@ public enum OpCode {
 	 * 
 	 * @throws ExecutionException
 	 */
-	protected abstract void executeWithParams(MachineState state, Object... args) throws ExecutionException;
+	protected abstract void executeWithParams(MachineState state, long... args) throws ExecutionException;
 
-	protected void preExecuteCheck(Object... args) throws ExecutionException {
+	protected void preExecuteCheck(long... args) throws ExecutionException {
 		/* Can be overridden on a per-opcode basis */
 	}
 
 	/* package */ void execute(MachineState state) throws ExecutionException {
-		List<Object> args = new ArrayList<>();
-
-		for (OpCodeParam param : this.params)
-			args.add(param.fetch(state.codeByteBuffer, state.dataByteBuffer));
+		// Reuse state's args array to avoid allocation. Array might be longer than number of params.
+		long[] args = state.opCodeArgs;
 
-		Object[] argsArray = args.toArray();
+		for (int i = 0; i < this.params.length; ++i)
+			args[i] = this.params[i].fetch(state.codeByteBuffer, state.getDataLength());
 
-		preExecuteCheck(argsArray);
+		preExecuteCheck(args);
 
-		this.executeWithParams(state, argsArray);
+		this.executeWithParams(state, args);
 	}
 
 	public static int calcOffset(ByteBuffer byteBuffer, Integer branchTarget) {
@@ -1038,16 +1011,16 @@ public enum OpCode {
 	 *            - typically a lambda operating on two <tt>long</tt> params, e.g. <tt>(a, b) -> a + b</tt>
 	 * @throws ExecutionException
 	 */
-	protected void executeDataOperation(MachineState state, TwoValueOperator operator, Object... args) throws ExecutionException {
+	protected void executeDataOperation(MachineState state, TwoValueOperator operator, long... args) throws ExecutionException {
 		int address1 = (int) args[0];
 		int address2 = (int) args[1];
 
-		long value1 = state.dataByteBuffer.getLong(address1);
-		long value2 = state.dataByteBuffer.getLong(address2);
+		long value1 = state.getDataValue(address1);
+		long value2 = state.getDataValue(address2);
 
 		long newValue = operator.apply(value1, value2);
 
-		state.dataByteBuffer.putLong(address1, newValue);
+		state.setDataValue(address1, newValue);
 	}
 
 	/**
@@ -1059,15 +1032,15 @@ public enum OpCode {
 	 *            - typically a lambda operating on two <tt>long</tt> params, e.g. <tt>(a, b) -> a + b</tt>
 	 * @throws ExecutionException
 	 */
-	protected void executeValueOperation(MachineState state, TwoValueOperator operator, Object... args) throws ExecutionException {
+	protected void executeValueOperation(MachineState state, TwoValueOperator operator, long... args) throws ExecutionException {
 		int address1 = (int) args[0];
 
-		long value1 = state.dataByteBuffer.getLong(address1);
-		long value2 = (long) args[1];
+		long value1 = state.getDataValue(address1);
+		long value2 = args[1];
 
 		long newValue = operator.apply(value1, value2);
 
-		state.dataByteBuffer.putLong(address1, newValue);
+		state.setDataValue(address1, newValue);
 	}
 
 	/**
@@ -1080,15 +1053,15 @@ public enum OpCode {
 	 *            - typically a lambda comparing two <tt>long</tt> params, e.g. <tt>(a, b) -> a == b</tt>
 	 * @throws ExecutionException
 	 */
-	protected void executeBranchConditional(MachineState state, TwoValueComparator comparator, Object... args) throws ExecutionException {
+	protected void executeBranchConditional(MachineState state, TwoValueComparator comparator, long... args) throws ExecutionException {
 		int address1 = (int) args[0];
 		int address2 = (int) args[1];
 		byte offset = (byte) args[2];
 
 		int branchTarget = calculateBranchTarget(state, offset);
 
-		long value1 = state.dataByteBuffer.getLong(address1);
-		long value2 = state.dataByteBuffer.getLong(address2);
+		long value1 = state.getDataValue(address1);
+		long value2 = state.getDataValue(address2);
 
 		if (comparator.compare(value1, value2))
 			state.codeByteBuffer.position(branchTarget);
@@ -6,144 +6,144 @@ enum OpCodeParam {
 
 	VALUE(OpCodeParam::compileLong) {
 		@Override
-		public Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException {
-			return Long.valueOf(Utils.getCodeValue(codeByteBuffer));
+		public long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException {
+			return Utils.getCodeValue(codeByteBuffer);
 		}
 
 		@Override
-		protected String toString(Object value, int postOpcodeProgramCounter) {
-			return String.format("#%016x", (Long) value);
+		protected String toString(long value, int postOpcodeProgramCounter) {
+			return String.format("#%016x", value);
 		}
 	},
 	DEST_ADDR(OpCodeParam::compileInt) {
 		@Override
-		public Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException {
-			return Integer.valueOf(Utils.getDataAddress(codeByteBuffer, dataByteBuffer));
+		public long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException {
+			return Utils.getDataAddress(codeByteBuffer, dataLength);
 		}
 
 		@Override
-		protected String toString(Object value, int postOpcodeProgramCounter) {
-			return String.format("@%08x", ((Integer) value) / MachineState.VALUE_SIZE);
+		protected String toString(long value, int postOpcodeProgramCounter) {
+			return String.format("@%08x", ((int) value) / MachineState.VALUE_SIZE);
 		}
 	},
 	INDIRECT_DEST_ADDR(OpCodeParam::compileInt) {
 		@Override
-		public Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException {
-			return Integer.valueOf(Utils.getDataAddress(codeByteBuffer, dataByteBuffer));
+		public long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException {
+			return Utils.getDataAddress(codeByteBuffer, dataLength);
 		}
 
 		@Override
-		protected String toString(Object value, int postOpcodeProgramCounter) {
-			return String.format("@($%08x)", ((Integer) value) / MachineState.VALUE_SIZE);
+		protected String toString(long value, int postOpcodeProgramCounter) {
+			return String.format("@($%08x)", ((int) value) / MachineState.VALUE_SIZE);
 		}
 	},
 	INDIRECT_DEST_ADDR_WITH_INDEX(OpCodeParam::compileInt) {
 		@Override
-		public Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException {
-			return Integer.valueOf(Utils.getDataAddress(codeByteBuffer, dataByteBuffer));
+		public long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException {
+			return Utils.getDataAddress(codeByteBuffer, dataLength);
 		}
 
 		@Override
-		protected String toString(Object value, int postOpcodeProgramCounter) {
-			return String.format("@($%08x", ((Integer) value) / MachineState.VALUE_SIZE);
+		protected String toString(long value, int postOpcodeProgramCounter) {
+			return String.format("@($%08x", ((int) value) / MachineState.VALUE_SIZE);
 		}
 	},
 	SRC_ADDR(OpCodeParam::compileInt) {
 		@Override
-		public Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException {
-			return Integer.valueOf(Utils.getDataAddress(codeByteBuffer, dataByteBuffer));
+		public long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException {
+			return Utils.getDataAddress(codeByteBuffer, dataLength);
 		}
 
 		@Override
-		protected String toString(Object value, int postOpcodeProgramCounter) {
-			return String.format("$%08x", ((Integer) value) / MachineState.VALUE_SIZE);
+		protected String toString(long value, int postOpcodeProgramCounter) {
+			return String.format("$%08x", ((int) value) / MachineState.VALUE_SIZE);
 		}
 	},
 	INDIRECT_SRC_ADDR(OpCodeParam::compileInt) {
 		@Override
-		public Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException {
-			return Integer.valueOf(Utils.getDataAddress(codeByteBuffer, dataByteBuffer));
+		public long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException {
+			return Utils.getDataAddress(codeByteBuffer, dataLength);
 		}
 
 		@Override
-		protected String toString(Object value, int postOpcodeProgramCounter) {
-			return String.format("$($%08x)", ((Integer) value) / MachineState.VALUE_SIZE);
+		protected String toString(long value, int postOpcodeProgramCounter) {
+			return String.format("$($%08x)", ((int) value) / MachineState.VALUE_SIZE);
 		}
 	},
 	INDIRECT_SRC_ADDR_WITH_INDEX(OpCodeParam::compileInt) {
 		@Override
-		public Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException {
-			return Integer.valueOf(Utils.getDataAddress(codeByteBuffer, dataByteBuffer));
+		public long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException {
+			return Utils.getDataAddress(codeByteBuffer, dataLength);
 		}
 
 		@Override
-		protected String toString(Object value, int postOpcodeProgramCounter) {
-			return String.format("$($%08x", ((Integer) value) / MachineState.VALUE_SIZE);
+		protected String toString(long value, int postOpcodeProgramCounter) {
+			return String.format("$($%08x", ((int) value) / MachineState.VALUE_SIZE);
 		}
 	},
 	INDEX(OpCodeParam::compileInt) {
 		@Override
-		public Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException {
-			return Integer.valueOf(Utils.getDataAddress(codeByteBuffer, dataByteBuffer));
+		public long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException {
+			return Utils.getDataAddress(codeByteBuffer, dataLength);
 		}
 
 		@Override
-		protected String toString(Object value, int postOpcodeProgramCounter) {
-			return String.format("+ $%08x)", ((Integer) value) / MachineState.VALUE_SIZE);
+		protected String toString(long value, int postOpcodeProgramCounter) {
+			return String.format("+ $%08x)", ((int) value) / MachineState.VALUE_SIZE);
 		}
 	},
 	CODE_ADDR(OpCodeParam::compileInt) {
 		@Override
-		public Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException {
-			return Integer.valueOf(Utils.getCodeAddress(codeByteBuffer));
+		public long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException {
+			return Utils.getCodeAddress(codeByteBuffer);
 		}
 
 		@Override
-		protected String toString(Object value, int postOpcodeProgramCounter) {
-			return String.format("[%04x]", (Integer) value);
+		protected String toString(long value, int postOpcodeProgramCounter) {
+			return String.format("[%04x]", (int) value);
 		}
 	},
 	OFFSET(OpCodeParam::compileByte) {
 		@Override
-		public Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException {
-			return Byte.valueOf(Utils.getCodeOffset(codeByteBuffer));
+		public long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException {
+			return Utils.getCodeOffset(codeByteBuffer);
 		}
 
 		@Override
-		protected String toString(Object value, int postOpcodeProgramCounter) {
-			return String.format("PC+%02x=[%04x]", (int) ((Byte) value), postOpcodeProgramCounter - 1 + (Byte) value);
+		protected String toString(long value, int postOpcodeProgramCounter) {
+			return String.format("PC+%02x=[%04x]", (int) (byte) value, postOpcodeProgramCounter - 1 + (byte) value);
 		}
 	},
 	FUNC(OpCodeParam::compileFunc) {
 		@Override
-		public Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException {
-			return Short.valueOf(codeByteBuffer.getShort());
+		public long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException {
+			return codeByteBuffer.getShort();
 		}
 
 		@Override
-		protected String toString(Object value, int postOpcodeProgramCounter) {
-			FunctionCode functionCode = FunctionCode.valueOf((Short) value);
+		protected String toString(long value, int postOpcodeProgramCounter) {
+			FunctionCode functionCode = FunctionCode.valueOf((short) value);
 
 			// generic/unknown form
 			if (functionCode == null)
-				return String.format("FN(%04x)", (Short) value);
+				return String.format("FN(%04x)", (short) value);
 
 			// API pass-through
 			if (functionCode == FunctionCode.API_PASSTHROUGH)
-				return String.format("API-FN(%04x)", (Short) value);
+				return String.format("API-FN(%04x)", (short) value);
 
-			return "\"" + functionCode.name() + "\"" + String.format("{%04x}", (Short) value);
+			return "\"" + functionCode.name() + "\"" + String.format("{%04x}", (short) value);
 		}
 	},
 	BLOCK_HEIGHT(OpCodeParam::compileInt) {
 		@Override
-		public Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException {
-			return Integer.valueOf(codeByteBuffer.getInt());
+		public long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException {
+			return codeByteBuffer.getInt();
 		}
 
 		@Override
-		protected String toString(Object value, int postOpcodeProgramCounter) {
-			return String.format("height $%08x", ((Integer) value) / MachineState.VALUE_SIZE);
+		protected String toString(long value, int postOpcodeProgramCounter) {
+			return String.format("height $%08x", ((int) value) / MachineState.VALUE_SIZE);
 		}
 	};
 
@@ -157,7 +157,7 @@ enum OpCodeParam {
 		this.compiler = compiler;
 	}
 
-	public abstract Object fetch(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws ExecutionException;
+	public abstract long fetch(ByteBuffer codeByteBuffer, int dataLength) throws ExecutionException;
 
 	private static byte[] compileByte(OpCode opcode, Object arg) {
 		// Highly likely to be an Integer, so try that first
@@ -212,11 +212,11 @@ enum OpCodeParam {
 	}
 
 	public String disassemble(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer, int postOpcodeProgramCounter) throws ExecutionException {
-		Object value = fetch(codeByteBuffer, dataByteBuffer);
+		long value = fetch(codeByteBuffer, dataByteBuffer.limit());
 
 		return this.toString(value, postOpcodeProgramCounter);
 	}
 
-	protected abstract String toString(Object value, int postOpcodeProgramCounter);
+	protected abstract String toString(long value, int postOpcodeProgramCounter);
 
 }
@@ -0,0 +1,49 @@
+package org.ciyam.at;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Static analysis of AT code, e.g. for choosing which opcode pairs to fuse into superinstructions.
+ */
+public class OpCodeStatistics {
+
+	private OpCodeStatistics() {
+	}
+
+	/**
+	 * Counts pairs of consecutive instructions that are in the same metering block, so could be fused, across code segments.
+	 * <p>
+	 * Counts are static, i.e. each pair in code counts once regardless of how often it's executed.
+	 * Feed in the code segments of deployed ATs to find candidates for {@link Superinstruction}.
+	 *
+	 * @param codeSegments
+	 *            - code bytes of each AT, e.g. from <tt>MachineState.getCodeBytes()</tt>
+	 * @return counts keyed by <tt>"FIRST+SECOND"</tt> opcode names, most frequent first
+	 */
+	public static Map<String, Long> countFusablePairs(Iterable<byte[]> codeSegments) {
+		Map<String, Long> counts = new HashMap<>();
+
+		for (byte[] codeBytes : codeSegments) {
+			DecodedProgram decodedProgram = DecodedProgram.decode(codeBytes);
+
+			for (int programCounter = 0; programCounter < decodedProgram.getCodeLength(); ++programCounter) {
+				final int slot = decodedProgram.getSlot(programCounter);
+				if (slot == DecodedProgram.NOT_DECODED || decodedProgram.getBlockLength(slot) < 2)
+					continue;
+
+				String pair = decodedProgram.getOpCode(slot).name() + "+" + decodedProgram.getOpCode(decodedProgram.getFollowingSlot(slot)).name();
+				counts.merge(pair, 1L, Long::sum);
+			}
+		}
+
+		Map<String, Long> sortedCounts = new LinkedHashMap<>();
+		counts.entrySet().stream()
+				.sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+				.forEachOrdered(entry -> sortedCounts.put(entry.getKey(), entry.getValue()));
+
+		return sortedCounts;
+	}
+
+}
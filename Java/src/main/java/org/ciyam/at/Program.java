@@ -0,0 +1,208 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, shareable part of an AT, i.e. its code segment, along with code hash, decoded instructions and verification result.
+ * <p>
+ * Many ATs are deployed from the same template, so have identical code. Programs are interned in a bounded cache keyed by
+ * SHA-256 hash of code bytes, so all MachineStates restored using {@link #fromCodeBytes(byte[])} with identical code
+ * share one copy of code bytes and one decoded program, instead of each holding their own.
+ * <p>
+ * Unlike <tt>MachineState</tt>'s code buffer, there is no position to mutate, so programs are safe to share between threads.
+ * Each MachineState still has its own read-only view of the shared code bytes, as its position tracks the program counter.
+ *
+ * @see MachineState#fromBytes(API, AtLoggerFactory, byte[], Program)
+ */
+public final class Program {
+
+	/** Maximum number of programs kept in cache */
+	private static final int CACHE_SIZE = 4096;
+
+	private static final Map<CodeHash, Program> CACHE = new LinkedHashMap<>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<CodeHash, Program> eldest) {
+			return this.size() > CACHE_SIZE;
+		}
+	};
+
+	/** Key for program cache */
+	private static class CodeHash {
+		private final byte[] hash;
+		private final int hashCode;
+
+		public CodeHash(byte[] hash) {
+			this.hash = hash;
+			this.hashCode = Arrays.hashCode(hash);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hashCode;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof CodeHash))
+				return false;
+
+			return Arrays.equals(this.hash, ((CodeHash) other).hash);
+		}
+	}
+
+	private final byte[] codeBytes;
+	private final CodeHash codeHash;
+
+	/** Decoded form of code bytes, or null if not decoded (yet) */
+	private volatile DecodedProgram decodedProgram;
+
+	private Program(byte[] codeBytes, CodeHash codeHash) {
+		this.codeBytes = codeBytes;
+		this.codeHash = codeHash;
+	}
+
+	/**
+	 * Returns program for code bytes, from cache if possible.
+	 * <p>
+	 * <tt>codeBytes</tt> are copied if not already cached, so caller is free to modify or discard them afterwards.
+	 *
+	 * @param codeBytes
+	 * @return Program
+	 */
+	public static Program fromCodeBytes(byte[] codeBytes) {
+		return fromCodeBytes(ByteBuffer.wrap(codeBytes));
+	}
+
+	/**
+	 * Returns program for code bytes, from cache if possible.
+	 * <p>
+	 * Uses the entire code segment, i.e. from 0 up to <tt>codeByteBuffer.limit()</tt>, regardless of current position.
+	 */
+	/* package */ static Program fromCodeBytes(ByteBuffer codeByteBuffer) {
+		ByteBuffer codeBytes = codeByteBuffer.duplicate();
+		codeBytes.clear();
+
+		CodeHash codeHash;
+		try {
+			MessageDigest sha256 = MessageDigests.get("SHA-256");
+			sha256.update(codeBytes.duplicate());
+			codeHash = new CodeHash(sha256.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("No SHA-256 message digest service available", e);
+		}
+
+		synchronized (CACHE) {
+			Program program = CACHE.get(codeHash);
+			if (program != null)
+				return program;
+		}
+
+		byte[] codeBytesCopy = new byte[codeBytes.limit()];
+		codeBytes.get(codeBytesCopy);
+
+		Program program = new Program(codeBytesCopy, codeHash);
+
+		synchronized (CACHE) {
+			// Another thread might have beaten us to it, in which case use theirs
+			Program existingProgram = CACHE.putIfAbsent(codeHash, program);
+			return existingProgram != null ? existingProgram : program;
+		}
+	}
+
+	/**
+	 * Interns program with already decoded form, e.g. from {@link ProgramCache} file.
+	 * <p>
+	 * If program is already cached, it is kept, but given <tt>decodedProgram</tt> if not decoded yet.
+	 */
+	/* package */ static Program intern(byte[] codeBytes, byte[] codeHash, DecodedProgram decodedProgram) {
+		Program program = new Program(codeBytes, new CodeHash(codeHash));
+		program.decodedProgram = decodedProgram;
+
+		Program existingProgram;
+		synchronized (CACHE) {
+			existingProgram = CACHE.putIfAbsent(program.codeHash, program);
+		}
+
+		if (existingProgram == null)
+			return program;
+
+		synchronized (existingProgram) {
+			if (existingProgram.decodedProgram == null)
+				existingProgram.decodedProgram = decodedProgram;
+		}
+
+		return existingProgram;
+	}
+
+	/** Returns snapshot of cached programs, least recently used first */
+	/* package */ static List<Program> getCachedPrograms() {
+		synchronized (CACHE) {
+			return new ArrayList<>(CACHE.values());
+		}
+	}
+
+	/** Empties program cache - used in tests */
+	/* package */ static void clearCache() {
+		synchronized (CACHE) {
+			CACHE.clear();
+		}
+	}
+
+	/** Returns length of code segment */
+	public int getCodeLength() {
+		return this.codeBytes.length;
+	}
+
+	/** Returns copy of code bytes */
+	public byte[] getCodeBytes() {
+		return this.codeBytes.clone();
+	}
+
+	/** Returns copy of SHA-256 hash of code bytes */
+	public byte[] getCodeHash() {
+		return this.codeHash.hash.clone();
+	}
+
+	/** Returns new read-only view of shared code bytes, with position 0 */
+	/* package */ ByteBuffer newCodeByteBuffer() {
+		return ByteBuffer.wrap(this.codeBytes).asReadOnlyBuffer();
+	}
+
+	/** Returns decoded form of code bytes, or null if not decoded yet */
+	/* package */ DecodedProgram peekDecodedProgram() {
+		return this.decodedProgram;
+	}
+
+	/** Returns decoded form of code bytes, decoding on first use */
+	/* package */ DecodedProgram getDecodedProgram() {
+		DecodedProgram decodedProgram = this.decodedProgram;
+		if (decodedProgram != null)
+			return decodedProgram;
+
+		synchronized (this) {
+			if (this.decodedProgram == null)
+				this.decodedProgram = DecodedProgram.decode(this.codeBytes);
+
+			return this.decodedProgram;
+		}
+	}
+
+	/**
+	 * Returns result of verifying this program against data segment length, verifying if necessary.
+	 *
+	 * @see CodeVerifier#verify(byte[], short, int)
+	 */
+	public CodeVerifier.Result getVerification(int dataLength) {
+		return this.getDecodedProgram().getVerification(dataLength);
+	}
+
+}
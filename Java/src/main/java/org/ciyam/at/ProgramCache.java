@@ -0,0 +1,228 @@
+package org.ciyam.at;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persistent cache of decoded programs, so a restarted node can skip decoding AT code it has already seen.
+ * <p>
+ * {@link #save(Path)} writes every decoded program in the {@link Program} cache, along with its execution round count, to a local file. On startup, {@link #load(Path)} memory-maps that file and interns its programs,
+ * so MachineStates restored with the same code use them straight away.
+ * <p>
+ * Loaded programs are never trusted: each decoded instruction is checked against its code bytes,
+ * and verification results aren't saved, so programs are verified again before using verified fast paths.
+ * <p>
+ * Compiled programs are generated classes, so can't be saved, but as execution round counts are kept,
+ * programs that were hot enough to be compiled are compiled again on first execution instead of warming up again.
+ * <p>
+ * Files are keyed by engine fingerprint, covering decoded form layout and opcode/function code ordinals,
+ * so a file written by a different version of this library is ignored rather than misinterpreted.
+ * Each program is keyed by SHA-256 hash of its code bytes, which is checked on load, and file contents are covered by a CRC32 checksum.
+ * <p>
+ * Layout is magic, engine fingerprint, program count, then for each program: code hash, code length, code bytes and decoded form,
+ * followed by CRC32 of everything after program count.
+ */
+public final class ProgramCache {
+
+	/** "ATPC" */
+	private static final int MAGIC = 0x41545043;
+
+	/** Bump whenever layout of decoded form, or its serialized form, changes */
+	private static final int FORMAT_VERSION = 2;
+
+	private static final int HASH_LENGTH = 32;
+
+	/** Magic, engine fingerprint and program count */
+	private static final int PREAMBLE_LENGTH = 4 + 8 + 4;
+
+	private static final long ENGINE_FINGERPRINT = engineFingerprint();
+
+	private ProgramCache() {
+	}
+
+	/**
+	 * Writes all decoded programs in {@link Program} cache to <tt>path</tt>, replacing any existing file.
+	 * <p>
+	 * File is written alongside, then moved into place, so an interrupted save doesn't leave a truncated file.
+	 *
+	 * @return number of programs written
+	 * @throws IOException
+	 */
+	public static int save(Path path) throws IOException {
+		List<Program> programs = new ArrayList<>();
+		for (Program program : Program.getCachedPrograms())
+			if (program.peekDecodedProgram() != null)
+				programs.add(program);
+
+		Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+			out.writeInt(MAGIC);
+			out.writeLong(ENGINE_FINGERPRINT);
+			out.writeInt(programs.size());
+
+			CRC32 crc = new CRC32();
+			DataOutputStream body = new DataOutputStream(new CheckedOutputStream(out, crc));
+
+			for (Program program : programs) {
+				body.write(program.getCodeHash());
+				body.writeInt(program.getCodeLength());
+				body.write(program.getCodeBytes());
+				program.peekDecodedProgram().writeTo(body);
+			}
+
+			body.flush();
+			out.writeInt((int) crc.getValue());
+		}
+
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		return programs.size();
+	}
+
+	/**
+	 * Interns programs from file at <tt>path</tt>, previously written by {@link #save(Path)}, into {@link Program} cache.
+	 * <p>
+	 * Returns 0 if there's no file, or file was written with a different engine fingerprint.
+	 *
+	 * @return number of programs loaded
+	 * @throws IOException if file can't be read, or is corrupt
+	 */
+	public static int load(Path path) throws IOException {
+		if (!Files.exists(path))
+			return 0;
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() < PREAMBLE_LENGTH + 4 || channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Invalid program cache file length: " + path);
+
+			ByteBuffer byteBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (byteBuffer.getInt() != MAGIC)
+				throw new IOException("Not a program cache file: " + path);
+
+			if (byteBuffer.getLong() != ENGINE_FINGERPRINT)
+				return 0;
+
+			final int programCount = byteBuffer.getInt();
+
+			final int crcOffset = byteBuffer.limit() - 4;
+			ByteBuffer body = byteBuffer.slice();
+			body.limit(crcOffset - PREAMBLE_LENGTH);
+
+			CRC32 crc = new CRC32();
+			crc.update(body.duplicate());
+			if ((int) crc.getValue() != byteBuffer.getInt(crcOffset))
+				throw new IOException("Program cache file checksum mismatch: " + path);
+
+			// Read everything before interning anything, so a corrupt file has no effect
+			List<byte[]> codeHashes = new ArrayList<>();
+			List<byte[]> codeBytesList = new ArrayList<>();
+			List<DecodedProgram> decodedPrograms = new ArrayList<>();
+
+			for (int i = 0; i < programCount; ++i) {
+				byte[] codeHash = new byte[HASH_LENGTH];
+				body.get(codeHash);
+
+				byte[] codeBytes = new byte[checkLength(body, body.getInt(), 1)];
+				body.get(codeBytes);
+
+				if (!Arrays.equals(codeHash, sha256(codeBytes)))
+					throw new IOException("Program cache file code hash mismatch: " + path);
+
+				codeHashes.add(codeHash);
+				codeBytesList.add(codeBytes);
+				decodedPrograms.add(DecodedProgram.readFrom(body, codeBytes));
+			}
+
+			if (body.hasRemaining())
+				throw new IOException("Unexpected trailing bytes in program cache file: " + path);
+
+			for (int i = 0; i < programCount; ++i)
+				Program.intern(codeBytesList.get(i), codeHashes.get(i), decodedPrograms.get(i));
+
+			return programCount;
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Corrupt program cache file: " + path, e);
+		}
+	}
+
+	/** Returns fingerprint of everything decoded programs depend on, i.e. format version and opcode/function code ordinals */
+	private static long engineFingerprint() {
+		StringBuilder engine = new StringBuilder();
+		engine.append(FORMAT_VERSION);
+
+		for (OpCode opCode : OpCode.values())
+			engine.append(',').append(opCode.name());
+
+		for (FunctionCode functionCode : FunctionCode.values())
+			engine.append(',').append(functionCode.name());
+
+		return ByteBuffer.wrap(sha256(engine.toString().getBytes(StandardCharsets.UTF_8))).getLong();
+	}
+
+	private static byte[] sha256(byte[] input) {
+		try {
+			return MessageDigests.get("SHA-256").digest(input);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("No SHA-256 message digest service available", e);
+		}
+	}
+
+	// Helpers for DecodedProgram
+
+	/** Writes ints, without length, which caller writes if needed */
+	/* package */ static void writeInts(DataOutputStream out, int[] ints) throws IOException {
+		for (int i : ints)
+			out.writeInt(i);
+	}
+
+	/** Reads <tt>count</tt> ints */
+	/* package */ static int[] readInts(ByteBuffer in, int count) {
+		int[] ints = new int[checkLength(in, count, Integer.BYTES)];
+		in.asIntBuffer().get(ints);
+		in.position(in.position() + count * Integer.BYTES);
+		return ints;
+	}
+
+	/* package */ static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/* package */ static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[checkLength(in, in.getInt(), 1)];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns <tt>count</tt> if there are at least <tt>count</tt> items of <tt>itemSize</tt> bytes remaining.
+	 *
+	 * @throws BufferUnderflowException if not
+	 */
+	/* package */ static int checkLength(ByteBuffer in, int count, int itemSize) {
+		if (count < 0 || (long) count * itemSize > in.remaining())
+			throw new BufferUnderflowException();
+
+		return count;
+	}
+
+}
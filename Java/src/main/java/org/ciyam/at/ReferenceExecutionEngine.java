@@ -0,0 +1,49 @@
+package org.ciyam.at;
+
+/**
+ * Reference engine: decodes each opcode and its params from code bytes, then meters and executes it.
+ * <p>
+ * Slowest, but simplest, so used as the baseline that other engines must match.
+ */
+final class ReferenceExecutionEngine implements ExecutionEngine {
+
+	@Override
+	public String getName() {
+		return "reference";
+	}
+
+	@Override
+	public void run(MachineState state, long feePerStep, int maxSteps) {
+		final AtLogger logger = state.getLogger();
+
+		while (state.isRunning()) {
+			byte rawOpCode = state.codeByteBuffer.get();
+			OpCode nextOpCode = OpCode.valueOf(rawOpCode);
+
+			try {
+				if (nextOpCode == null)
+					throw new IllegalOperationException("OpCode 0x" + String.format("%02x", rawOpCode) + " not recognised");
+
+				if (logger.isDebugEnabled())
+					logger.debug(() -> String.format("[PC: %04x] %s", state.getProgramCounter(), nextOpCode.name()));
+
+				// Request opcode step-fee from API every time, as baseline for engines that cache it per round
+				if (!state.meterOpCode(state.getAPI().getOpCodeSteps(nextOpCode), feePerStep, maxSteps))
+					break;
+
+				// At this point, programCounter is BEFORE opcode (and args).
+				nextOpCode.execute(state);
+
+				// Synchronize programCounter with codeByteBuffer in case of JMPs, branches, etc.
+				state.syncProgramCounter();
+			} catch (ExecutionException e) {
+				if (state.handleExecutionException(e))
+					break;
+			}
+
+			// No longer true
+			state.clearFirstOpCodeAfterSleeping();
+		}
+	}
+
+}
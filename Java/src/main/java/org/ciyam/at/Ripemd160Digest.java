@@ -0,0 +1,130 @@
+package org.ciyam.at;
+
+/** RIPE-MD160, as used by Bitcoin's HASH160 */
+final class Ripemd160Digest extends BlockDigest {
+
+	/** Message word selection, left line */
+	private static final int[] R = {
+		0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+		7, 4, 13, 1, 10, 6, 15, 3, 12, 0, 9, 5, 2, 14, 11, 8,
+		3, 10, 14, 4, 9, 15, 8, 1, 2, 7, 0, 6, 13, 11, 5, 12,
+		1, 9, 11, 10, 0, 8, 12, 4, 13, 3, 7, 15, 14, 5, 6, 2,
+		4, 0, 5, 9, 7, 12, 2, 10, 14, 1, 3, 8, 11, 6, 15, 13
+	};
+
+	/** Message word selection, right line */
+	private static final int[] RR = {
+		5, 14, 7, 0, 9, 2, 11, 4, 13, 6, 15, 8, 1, 10, 3, 12,
+		6, 11, 3, 7, 0, 13, 5, 10, 14, 15, 8, 12, 4, 9, 1, 2,
+		15, 5, 1, 3, 7, 14, 6, 9, 11, 8, 12, 2, 10, 0, 4, 13,
+		8, 6, 4, 1, 3, 11, 15, 0, 5, 12, 2, 13, 9, 7, 10, 14,
+		12, 15, 10, 4, 1, 5, 8, 7, 6, 2, 13, 14, 0, 3, 9, 11
+	};
+
+	/** Left-rotate amounts, left line */
+	private static final int[] S = {
+		11, 14, 15, 12, 5, 8, 7, 9, 11, 13, 14, 15, 6, 7, 9, 8,
+		7, 6, 8, 13, 11, 9, 7, 15, 7, 12, 15, 9, 11, 7, 13, 12,
+		11, 13, 6, 7, 14, 9, 13, 15, 14, 8, 13, 6, 5, 12, 7, 5,
+		11, 12, 14, 15, 14, 15, 9, 8, 9, 14, 5, 6, 8, 6, 5, 12,
+		9, 15, 5, 11, 6, 8, 13, 12, 5, 12, 13, 14, 11, 8, 5, 6
+	};
+
+	/** Left-rotate amounts, right line */
+	private static final int[] SR = {
+		8, 9, 9, 11, 13, 15, 15, 5, 7, 7, 8, 11, 14, 14, 12, 6,
+		9, 13, 15, 7, 12, 8, 9, 11, 7, 7, 12, 7, 6, 15, 13, 11,
+		9, 7, 15, 11, 8, 6, 6, 14, 12, 13, 5, 14, 13, 13, 7, 5,
+		15, 5, 8, 11, 14, 14, 6, 14, 6, 9, 12, 9, 12, 5, 15, 8,
+		8, 5, 12, 9, 12, 5, 14, 6, 8, 13, 6, 5, 15, 13, 11, 11
+	};
+
+	/** Round constants, left line */
+	private static final int[] K = { 0x00000000, 0x5a827999, 0x6ed9eba1, 0x8f1bbcdc, 0xa953fd4e };
+
+	/** Round constants, right line */
+	private static final int[] KR = { 0x50a28be6, 0x5c4dd124, 0x6d703ef3, 0x7a6d76e9, 0x00000000 };
+
+	private final int[] x = new int[16];
+
+	private int h0;
+	private int h1;
+	private int h2;
+	private int h3;
+	private int h4;
+
+	public Ripemd160Digest() {
+		super(false);
+		this.resetState();
+	}
+
+	@Override
+	protected void resetState() {
+		this.h0 = 0x67452301;
+		this.h1 = 0xefcdab89;
+		this.h2 = 0x98badcfe;
+		this.h3 = 0x10325476;
+		this.h4 = 0xc3d2e1f0;
+	}
+
+	/** Boolean function for round <tt>round</tt> (0 to 4) */
+	private static int f(int round, int x, int y, int z) {
+		switch (round) {
+			case 0:
+				return x ^ y ^ z;
+			case 1:
+				return (x & y) | (~x & z);
+			case 2:
+				return (x | ~y) ^ z;
+			case 3:
+				return (x & z) | (y & ~z);
+			default:
+				return x ^ (y | ~z);
+		}
+	}
+
+	@Override
+	protected void processBlock(byte[] input, int offset) {
+		final int[] x = this.x;
+		for (int i = 0; i < 16; ++i)
+			x[i] = getIntLE(input, offset + i * 4);
+
+		int al = this.h0, bl = this.h1, cl = this.h2, dl = this.h3, el = this.h4;
+		int ar = al, br = bl, cr = cl, dr = dl, er = el;
+
+		for (int j = 0; j < 80; ++j) {
+			final int round = j >>> 4;
+
+			int t = Integer.rotateLeft(al + f(round, bl, cl, dl) + x[R[j]] + K[round], S[j]) + el;
+			al = el;
+			el = dl;
+			dl = Integer.rotateLeft(cl, 10);
+			cl = bl;
+			bl = t;
+
+			t = Integer.rotateLeft(ar + f(4 - round, br, cr, dr) + x[RR[j]] + KR[round], SR[j]) + er;
+			ar = er;
+			er = dr;
+			dr = Integer.rotateLeft(cr, 10);
+			cr = br;
+			br = t;
+		}
+
+		final int t = this.h1 + cl + dr;
+		this.h1 = this.h2 + dl + er;
+		this.h2 = this.h3 + el + ar;
+		this.h3 = this.h4 + al + br;
+		this.h4 = this.h0 + bl + cr;
+		this.h0 = t;
+	}
+
+	@Override
+	protected void writeDigest(byte[] output) {
+		putIntLE(this.h0, output, 0);
+		putIntLE(this.h1, output, 4);
+		putIntLE(this.h2, output, 8);
+		putIntLE(this.h3, output, 12);
+		putIntLE(this.h4, output, 16);
+	}
+
+}
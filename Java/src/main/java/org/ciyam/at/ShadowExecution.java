@@ -0,0 +1,540 @@
+package org.ciyam.at;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cross-engine shadow execution, for proving an alternate engine is consensus-identical before relying on it.
+ * <p>
+ * For a sample of execution rounds, after running <tt>MachineState.execute()</tt> as normal using the MachineState's own engine,
+ * the same round is re-run on a copy of the pre-round state using the shadow engine. The copy's API calls that have side effects
+ * (payments, messages, finishing, fatal errors) are recorded but not passed on. Nor are its calls that depend on the MachineState,
+ * e.g. transaction, random or platform-specific calls: the results of the actual round's calls are replayed instead.
+ * <p>
+ * The two rounds are then compared: serialized state, steps, balance and the ordered side-effect API calls.
+ * On divergence, the round is replayed on further copies, with increasing step limits, to find the program counter
+ * of the first instruction that produces a difference, and the {@link DivergenceListener} is notified.
+ * <p>
+ * Only sampled rounds incur any overhead: roughly one extra execution round each, plus a bisection on divergence.
+ * Rounds for MachineStates already using the shadow engine are never sampled.
+ *
+ * @see MachineState#setShadowExecution(ShadowExecution)
+ */
+public class ShadowExecution {
+
+	/** Details of divergence between engines */
+	public static class Divergence {
+		private final ExecutionEngine engine;
+		private final ExecutionEngine shadowEngine;
+		private final String description;
+		private final Integer programCounter;
+
+		private Divergence(ExecutionEngine engine, ExecutionEngine shadowEngine, String description, Integer programCounter) {
+			this.engine = engine;
+			this.shadowEngine = shadowEngine;
+			this.description = description;
+			this.programCounter = programCounter;
+		}
+
+		/** Returns engine whose result was used */
+		public ExecutionEngine getEngine() {
+			return this.engine;
+		}
+
+		public ExecutionEngine getShadowEngine() {
+			return this.shadowEngine;
+		}
+
+		/** Returns description of first difference found, e.g. "steps 12 vs 13" */
+		public String getDescription() {
+			return this.description;
+		}
+
+		/** Returns program counter of first instruction to produce a difference, or null if it couldn't be determined */
+		public Integer getProgramCounter() {
+			return this.programCounter;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s vs %s engine divergence at PC %s: %s", this.engine.getName(), this.shadowEngine.getName(),
+					this.programCounter == null ? "unknown" : String.format("%04x", this.programCounter), this.description);
+		}
+	}
+
+	/** Notified on divergence between engines. Called on the executing thread. */
+	public interface DivergenceListener {
+		public void onDivergence(MachineState state, Divergence divergence);
+	}
+
+	private static final DivergenceListener LOGGING_LISTENER = (state, divergence) -> state.getLogger().error(divergence::toString);
+
+	private final ExecutionEngine shadowEngine;
+	private final double samplingRate;
+	private final DivergenceListener divergenceListener;
+
+	private final AtomicLong sampledRounds = new AtomicLong();
+	private final AtomicLong divergentRounds = new AtomicLong();
+
+	/**
+	 * Shadow execution that logs divergences as errors, using the MachineState's logger.
+	 *
+	 * @param shadowEngine
+	 * @param samplingRate
+	 *            - fraction of rounds to shadow, from 0.0 (none) to 1.0 (all)
+	 */
+	public ShadowExecution(ExecutionEngine shadowEngine, double samplingRate) {
+		this(shadowEngine, samplingRate, LOGGING_LISTENER);
+	}
+
+	/**
+	 * @param shadowEngine
+	 * @param samplingRate
+	 *            - fraction of rounds to shadow, from 0.0 (none) to 1.0 (all)
+	 * @param divergenceListener
+	 * @throws IllegalArgumentException if sampling rate is out of range
+	 */
+	public ShadowExecution(ExecutionEngine shadowEngine, double samplingRate, DivergenceListener divergenceListener) {
+		if (!(samplingRate >= 0.0 && samplingRate <= 1.0))
+			throw new IllegalArgumentException("Sampling rate must be between 0.0 and 1.0");
+
+		this.shadowEngine = Objects.requireNonNull(shadowEngine);
+		this.samplingRate = samplingRate;
+		this.divergenceListener = Objects.requireNonNull(divergenceListener);
+	}
+
+	public ExecutionEngine getShadowEngine() {
+		return this.shadowEngine;
+	}
+
+	public double getSamplingRate() {
+		return this.samplingRate;
+	}
+
+	/** Returns number of rounds shadowed so far */
+	public long getSampledRounds() {
+		return this.sampledRounds.get();
+	}
+
+	/** Returns number of shadowed rounds that diverged so far */
+	public long getDivergentRounds() {
+		return this.divergentRounds.get();
+	}
+
+	/* package */ boolean isSampled(MachineState state) {
+		if (state.getExecutionEngine() == this.shadowEngine || this.samplingRate <= 0.0)
+			return false;
+
+		return this.samplingRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < this.samplingRate;
+	}
+
+	/** Executes round on <tt>state</tt> as normal, then on copy using shadow engine, and compares results. */
+	/* package */ void execute(MachineState state) {
+		this.sampledRounds.incrementAndGet();
+
+		final byte[] codeBytes = state.getCodeBytes();
+		final byte[] initialStateBytes = state.toBytes();
+
+		final API api = state.getAPI();
+
+		// Captured before execution as it might be changed by execution's side effects
+		final long initialBalance = api.getCurrentBalance(state);
+		final int maxSteps = api.getMaxStepsPerRound();
+
+		// Actual execution, recording side-effect calls but otherwise as normal
+		ShadowAPI recordingApi = new ShadowAPI(api, initialBalance, maxSteps);
+		state.swapAPI(recordingApi);
+		try {
+			state.executeRound();
+		} finally {
+			state.swapAPI(api);
+		}
+
+		// Shadow execution on copy
+		ShadowAPI shadowApi = new ShadowAPI(recordingApi, maxSteps);
+		MachineState shadowState = copy(state, shadowApi, this.shadowEngine, initialStateBytes, codeBytes);
+		shadowState.executeRound();
+
+		String description = compare(state, recordingApi, shadowState, shadowApi);
+		if (description == null)
+			return;
+
+		this.divergentRounds.incrementAndGet();
+
+		Integer programCounter = this.findDivergentProgramCounter(state, recordingApi, initialStateBytes, codeBytes, maxSteps);
+
+		this.divergenceListener.onDivergence(state, new Divergence(state.getExecutionEngine(), this.shadowEngine, description, programCounter));
+	}
+
+	/**
+	 * Replays round on pairs of copies, with step limits, to find first instruction producing a difference.
+	 * <p>
+	 * Engines sleep at the same instruction for the same step limit, so bisects on step limit for the highest limit
+	 * where both copies still agree. The next instruction to execute is then the first to diverge.
+	 *
+	 * @return program counter, or null if copies don't diverge when replayed
+	 */
+	private Integer findDivergentProgramCounter(MachineState state, ShadowAPI recordingApi, byte[] initialStateBytes, byte[] codeBytes, int maxSteps) {
+		int agreeingSteps = 0;
+		int divergingSteps = maxSteps;
+
+		if (this.replay(state, recordingApi, initialStateBytes, codeBytes, divergingSteps) == null)
+			return null;
+
+		Integer programCounter = this.replay(state, recordingApi, initialStateBytes, codeBytes, agreeingSteps);
+		if (programCounter != null)
+			// Diverged before executing any instruction
+			return programCounter;
+
+		while (divergingSteps - agreeingSteps > 1) {
+			final int steps = agreeingSteps + (divergingSteps - agreeingSteps) / 2;
+
+			if (this.replay(state, recordingApi, initialStateBytes, codeBytes, steps) == null)
+				agreeingSteps = steps;
+			else
+				divergingSteps = steps;
+		}
+
+		// Where engine's copy stopped with highest agreeing step limit
+		ShadowAPI api = new ShadowAPI(recordingApi, agreeingSteps);
+		MachineState engineState = copy(state, api, state.getExecutionEngine(), initialStateBytes, codeBytes);
+		engineState.executeRound();
+
+		return engineState.getProgramCounter();
+	}
+
+	/** Replays round on copies with step limit, returning engine's copy's program counter if copies diverge, or null if they agree */
+	private Integer replay(MachineState state, ShadowAPI recordingApi, byte[] initialStateBytes, byte[] codeBytes, int maxSteps) {
+		ShadowAPI engineApi = new ShadowAPI(recordingApi, maxSteps);
+		MachineState engineState = copy(state, engineApi, state.getExecutionEngine(), initialStateBytes, codeBytes);
+		engineState.executeRound();
+
+		ShadowAPI shadowApi = new ShadowAPI(recordingApi, maxSteps);
+		MachineState shadowState = copy(state, shadowApi, this.shadowEngine, initialStateBytes, codeBytes);
+		shadowState.executeRound();
+
+		if (compare(engineState, engineApi, shadowState, shadowApi) == null)
+			return null;
+
+		return engineState.getProgramCounter();
+	}
+
+	private static MachineState copy(MachineState state, API api, ExecutionEngine engine, byte[] stateBytes, byte[] codeBytes) {
+		MachineState copy = MachineState.fromBytes(api, state.getLoggerFactory(), stateBytes, codeBytes);
+		copy.setExecutionEngine(engine);
+		return copy;
+	}
+
+	/** Returns description of first difference, or null if results are identical */
+	private static String compare(MachineState state, ShadowAPI api, MachineState shadowState, ShadowAPI shadowApi) {
+		if (state.getSteps() != shadowState.getSteps())
+			return String.format("steps %d vs %d", state.getSteps(), shadowState.getSteps());
+
+		if (state.getCurrentBalance() != shadowState.getCurrentBalance())
+			return String.format("balance %d vs %d", state.getCurrentBalance(), shadowState.getCurrentBalance());
+
+		List<String> calls = api.getCalls();
+		List<String> shadowCalls = shadowApi.getCalls();
+		for (int i = 0; i < Math.max(calls.size(), shadowCalls.size()); ++i) {
+			String call = i < calls.size() ? calls.get(i) : "no call";
+			String shadowCall = i < shadowCalls.size() ? shadowCalls.get(i) : "no call";
+
+			if (!call.equals(shadowCall))
+				return String.format("API call %d: %s vs %s", i, call, shadowCall);
+		}
+
+		byte[] stateBytes = state.toBytes();
+		byte[] shadowStateBytes = shadowState.toBytes();
+		int mismatch = Arrays.mismatch(stateBytes, shadowStateBytes);
+		if (mismatch != -1)
+			return String.format("serialized state differs at byte %d", mismatch);
+
+		return null;
+	}
+
+	/** Call to wrapped API, for recording or replaying */
+	private interface APICall {
+		public Long apply(API api) throws ExecutionException;
+	}
+
+	/** Result of authoritative round's API call: return value or exception, plus state that API could have changed */
+	private static class CallResult {
+		private final String call;
+		private final Long returnValue;
+		private final ExecutionException exception;
+		private final long[] registers;
+		private final boolean isSleeping;
+		private final Integer sleepUntilHeight;
+		private final int codePosition;
+
+		public CallResult(String call, Long returnValue, ExecutionException exception, MachineState state) {
+			this.call = call;
+			this.returnValue = returnValue;
+			this.exception = exception;
+			this.registers = new long[] { state.a1, state.a2, state.a3, state.a4, state.b1, state.b2, state.b3, state.b4 };
+			this.isSleeping = state.isSleeping();
+			this.sleepUntilHeight = state.getSleepUntilHeight();
+			this.codePosition = state.codeByteBuffer.position();
+		}
+
+		public void restore(MachineState state) {
+			state.a1 = this.registers[0];
+			state.a2 = this.registers[1];
+			state.a3 = this.registers[2];
+			state.a4 = this.registers[3];
+			state.b1 = this.registers[4];
+			state.b2 = this.registers[5];
+			state.b3 = this.registers[6];
+			state.b4 = this.registers[7];
+			state.setIsSleeping(this.isSleeping);
+			state.setSleepUntilHeight(this.sleepUntilHeight);
+			state.codeByteBuffer.position(this.codePosition);
+		}
+	}
+
+	/**
+	 * API wrapper that records side-effect calls, with a fixed initial balance and step limit.
+	 * <p>
+	 * The authoritative round's API passes on all calls, recording results of calls that depend on the MachineState,
+	 * e.g. transaction, random and platform-specific calls. Copies' APIs pass on none of these calls, nor side-effect calls,
+	 * instead replaying the authoritative round's results, so the live API only sees each call once.
+	 * A copy making a call that the authoritative round didn't make, at that point, records it as a difference.
+	 */
+	private static class ShadowAPI extends DelegatingAPI {
+		private final long initialBalance;
+		private final int maxSteps;
+		/** Authoritative round's results, or null if this is the authoritative round's API */
+		private final List<CallResult> recordedResults;
+		private final List<CallResult> results = new ArrayList<>();
+		private final List<String> calls = new ArrayList<>();
+
+		/** Authoritative round's API */
+		public ShadowAPI(API api, long initialBalance, int maxSteps) {
+			super(api);
+			this.initialBalance = initialBalance;
+			this.maxSteps = maxSteps;
+			this.recordedResults = null;
+		}
+
+		/** Copy's API, replaying <tt>authoritativeApi</tt>'s results */
+		public ShadowAPI(ShadowAPI authoritativeApi, int maxSteps) {
+			super(authoritativeApi.api);
+			this.initialBalance = authoritativeApi.initialBalance;
+			this.maxSteps = maxSteps;
+			this.recordedResults = authoritativeApi.results;
+		}
+
+		private boolean isAuthoritative() {
+			return this.recordedResults == null;
+		}
+
+		public List<String> getCalls() {
+			return this.calls;
+		}
+
+		private static String describe(String call, MachineState state) {
+			return String.format("%s at %04x, A=%s, B=%s", call, state.getProgramCounter(),
+					Arrays.toString(new long[] { state.a1, state.a2, state.a3, state.a4 }),
+					Arrays.toString(new long[] { state.b1, state.b2, state.b3, state.b4 }));
+		}
+
+		private void record(String call, MachineState state) {
+			this.calls.add(describe(call, state));
+		}
+
+		/** Passes on, and records result of, call if authoritative, otherwise replays authoritative round's result */
+		private CallResult replayable(String call, MachineState state, APICall apiCall) {
+			final String description = describe(call, state);
+
+			if (this.isAuthoritative()) {
+				Long returnValue = null;
+				ExecutionException exception = null;
+
+				try {
+					returnValue = apiCall.apply(this.api);
+				} catch (ExecutionException e) {
+					exception = e;
+				}
+
+				CallResult result = new CallResult(description, returnValue, exception, state);
+				this.results.add(result);
+				return result;
+			}
+
+			final int index = this.results.size();
+			CallResult result = index < this.recordedResults.size() ? this.recordedResults.get(index) : null;
+
+			if (result == null || !result.call.equals(description)) {
+				// Diverged from authoritative round, so leave state unchanged, but make sure difference is reported
+				this.calls.add("unreplayable " + description);
+				result = new CallResult(description, 0L, null, state);
+			} else {
+				result.restore(state);
+			}
+
+			this.results.add(result);
+			return result;
+		}
+
+		private long replayableValue(String call, MachineState state, APICall apiCall) {
+			Long returnValue = this.replayable(call, state, apiCall).returnValue;
+			return returnValue == null ? 0L : returnValue;
+		}
+
+		private void replayableVoid(String call, MachineState state, APICall apiCall) {
+			this.replayable(call, state, apiCall);
+		}
+
+		@Override
+		public int getMaxStepsPerRound() {
+			return this.maxSteps;
+		}
+
+		@Override
+		public long getCurrentBalance(MachineState state) {
+			return this.initialBalance;
+		}
+
+		// Calls depending on MachineState
+
+		@Override
+		public int getATCreationBlockHeight(MachineState state) {
+			return (int) this.replayableValue("getATCreationBlockHeight()", state, api -> (long) api.getATCreationBlockHeight(state));
+		}
+
+		@Override
+		public void putPreviousBlockHashIntoA(MachineState state) {
+			this.replayableVoid("putPreviousBlockHashIntoA()", state, api -> {
+				api.putPreviousBlockHashIntoA(state);
+				return null;
+			});
+		}
+
+		@Override
+		public void putTransactionAfterTimestampIntoA(Timestamp timestamp, MachineState state) {
+			this.replayableVoid(String.format("putTransactionAfterTimestampIntoA(%d)", timestamp.longValue()), state, api -> {
+				api.putTransactionAfterTimestampIntoA(timestamp, state);
+				return null;
+			});
+		}
+
+		@Override
+		public long getTypeFromTransactionInA(MachineState state) {
+			return this.replayableValue("getTypeFromTransactionInA()", state, api -> api.getTypeFromTransactionInA(state));
+		}
+
+		@Override
+		public long getAmountFromTransactionInA(MachineState state) {
+			return this.replayableValue("getAmountFromTransactionInA()", state, api -> api.getAmountFromTransactionInA(state));
+		}
+
+		@Override
+		public long getTimestampFromTransactionInA(MachineState state) {
+			return this.replayableValue("getTimestampFromTransactionInA()", state, api -> api.getTimestampFromTransactionInA(state));
+		}
+
+		@Override
+		public long generateRandomUsingTransactionInA(MachineState state) {
+			return this.replayableValue("generateRandomUsingTransactionInA()", state, api -> api.generateRandomUsingTransactionInA(state));
+		}
+
+		@Override
+		public void putMessageFromTransactionInAIntoB(MachineState state) {
+			this.replayableVoid("putMessageFromTransactionInAIntoB()", state, api -> {
+				api.putMessageFromTransactionInAIntoB(state);
+				return null;
+			});
+		}
+
+		@Override
+		public void putAddressFromTransactionInAIntoB(MachineState state) {
+			this.replayableVoid("putAddressFromTransactionInAIntoB()", state, api -> {
+				api.putAddressFromTransactionInAIntoB(state);
+				return null;
+			});
+		}
+
+		@Override
+		public void putCreatorAddressIntoB(MachineState state) {
+			this.replayableVoid("putCreatorAddressIntoB()", state, api -> {
+				api.putCreatorAddressIntoB(state);
+				return null;
+			});
+		}
+
+		@Override
+		public long addMinutesToTimestamp(Timestamp timestamp, long minutes, MachineState state) {
+			return this.replayableValue(String.format("addMinutesToTimestamp(%d, %d)", timestamp.longValue(), minutes), state,
+					api -> api.addMinutesToTimestamp(timestamp, minutes, state));
+		}
+
+		@Override
+		public void platformSpecificPreExecuteCheck(int paramCount, boolean returnValueExpected, MachineState state, short rawFunctionCode)
+				throws IllegalFunctionCodeException {
+			String call = String.format("platformSpecificPreExecuteCheck(%d, %b, 0x%04x)", paramCount, returnValueExpected, rawFunctionCode);
+
+			CallResult result = this.replayable(call, state, api -> {
+				api.platformSpecificPreExecuteCheck(paramCount, returnValueExpected, state, rawFunctionCode);
+				return null;
+			});
+
+			if (result.exception != null)
+				throw (IllegalFunctionCodeException) result.exception;
+		}
+
+		@Override
+		public void platformSpecificPostCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
+			String call = String.format("platformSpecificPostCheckExecute(%d, %d, %d, %b, 0x%04x)", functionData.paramCount, functionData.value1,
+					functionData.value2, functionData.returnValueExpected, rawFunctionCode);
+
+			CallResult result = this.replayable(call, state, api -> {
+				api.platformSpecificPostCheckExecute(functionData, state, rawFunctionCode);
+				return functionData.returnValue;
+			});
+
+			if (result.exception != null)
+				throw result.exception;
+
+			functionData.returnValue = result.returnValue;
+		}
+
+		// Side effects
+
+		@Override
+		public void payAmountToB(long amount, MachineState state) {
+			this.record(String.format("payAmountToB(%d)", amount), state);
+
+			if (this.isAuthoritative())
+				this.api.payAmountToB(amount, state);
+		}
+
+		@Override
+		public void messageAToB(MachineState state) {
+			this.record("messageAToB()", state);
+
+			if (this.isAuthoritative())
+				this.api.messageAToB(state);
+		}
+
+		@Override
+		public void onFinished(long amount, MachineState state) {
+			this.record(String.format("onFinished(%d)", amount), state);
+
+			if (this.isAuthoritative())
+				this.api.onFinished(amount, state);
+		}
+
+		@Override
+		public void onFatalError(MachineState state, ExecutionException e) {
+			this.record(String.format("onFatalError(%s)", e.getMessage()), state);
+
+			if (this.isAuthoritative())
+				this.api.onFatalError(state, e);
+		}
+	}
+
+}
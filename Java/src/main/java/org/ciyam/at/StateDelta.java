@@ -0,0 +1,293 @@
+package org.ciyam.at;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+import org.ciyam.at.MachineState.StateFormat;
+
+/**
+ * Encodes and applies differences between serialized states.
+ * <p>
+ * A delta holds changed data segment words, as runs, changed tops of stacks and the whole of the remaining state, e.g. PC, flags, A and B.
+ * It also holds the length and CRC32 of the base state it was computed against, so it can't be applied to the wrong base.
+ * <p>
+ * Deltas are encoded straight from a MachineState, against <tt>V1</tt> base state bytes, converting other formats as necessary,
+ * so don't depend on the base's state format. If the base is what the MachineState was last restored from,
+ * only data pages written since then are compared, otherwise all data words are compared.
+ *
+ * @see MachineState#toDeltaBytes(byte[])
+ * @see MachineState#applyDelta(byte[], byte[])
+ */
+final class StateDelta {
+
+	/** Offsets into V1 state bytes */
+	private static class Sections {
+		private final int dataOffset;
+		private final int dataLength;
+		private final int callStackOffset;
+		private final int callStackLength;
+		private final int userStackOffset;
+		private final int userStackLength;
+		private final int miscOffset;
+
+		public Sections(byte[] stateBytes) {
+			ByteBuffer byteBuffer = ByteBuffer.wrap(stateBytes);
+
+			this.dataOffset = MachineState.HEADER_LENGTH;
+			this.dataLength = MachineState.extractDataLength(stateBytes);
+
+			this.callStackLength = byteBuffer.getInt(this.dataOffset + this.dataLength);
+			this.callStackOffset = this.dataOffset + this.dataLength + 4;
+
+			this.userStackLength = byteBuffer.getInt(this.callStackOffset + this.callStackLength);
+			this.userStackOffset = this.callStackOffset + this.callStackLength + 4;
+
+			this.miscOffset = this.userStackOffset + this.userStackLength;
+
+			if (this.callStackLength < 0 || this.userStackLength < 0 || this.miscOffset > stateBytes.length)
+				throw new IllegalArgumentException("Invalid stack lengths in state bytes");
+		}
+	}
+
+	private StateDelta() {
+	}
+
+	/**
+	 * Returns delta from <tt>previousStateBytes</tt>, any earlier serialized state of the same AT, to <tt>state</tt>,
+	 * encoded straight from state's memory.
+	 * <p>
+	 * If <tt>previousStateBytes</tt> are what <tt>state</tt> was last restored from, going by length and CRC32,
+	 * only data pages written since then are compared.
+	 */
+	public static byte[] encode(byte[] previousStateBytes, MachineState state) {
+		final byte[] previous = MachineState.convertStateFormat(previousStateBytes, StateFormat.V1);
+
+		if (!state.hasSameHeader(ByteBuffer.wrap(previous)))
+			throw new IllegalArgumentException("States have different headers");
+
+		final Sections previousSections = new Sections(previous);
+		final int previousCrc = crc32(previous);
+
+		// Otherwise data pages written since previous state are unknown, so compare all of them
+		final int previousStateCrc = previous == previousStateBytes ? previousCrc : crc32(previousStateBytes);
+		final BitSet changedDataPages;
+		if (state.isDeltaBase(previousStateBytes, previousStateCrc)) {
+			changedDataPages = state.getDeltaDirtyDataPages();
+		} else {
+			changedDataPages = new BitSet();
+			changedDataPages.set(0, (previousSections.dataLength + state.getDataPageSize() - 1) / state.getDataPageSize());
+		}
+
+		final byte[] callStackBytes = state.getCallStackBytes();
+		final byte[] userStackBytes = state.getUserStackBytes();
+		final byte[] miscBytes = state.getMiscBytes();
+
+		DeltaOutputStream delta = new DeltaOutputStream(4 + 4 + 4 + 4 + 4 + callStackBytes.length + 4 + 4 + userStackBytes.length + 4 + miscBytes.length);
+
+		// Base
+		delta.writeInt(previous.length);
+		delta.writeInt(previousCrc);
+
+		encodeData(delta, previous, previousSections, state, changedDataPages);
+
+		encodeStack(delta, previous, previousSections.callStackOffset, previousSections.callStackLength, callStackBytes);
+		encodeStack(delta, previous, previousSections.userStackOffset, previousSections.userStackLength, userStackBytes);
+
+		// Everything else
+		delta.writeInt(miscBytes.length);
+		delta.write(miscBytes, 0, miscBytes.length);
+
+		return delta.toByteArray();
+	}
+
+	/**
+	 * Returns state bytes resulting from applying delta to <tt>previousStateBytes</tt>, in the same state format.
+	 *
+	 * @throws IllegalArgumentException if delta wasn't computed against <tt>previousStateBytes</tt>, or is malformed
+	 */
+	public static byte[] apply(byte[] previousStateBytes, byte[] deltaBytes) {
+		final byte[] previous = MachineState.convertStateFormat(previousStateBytes, StateFormat.V1);
+		final Sections previousSections = new Sections(previous);
+
+		try {
+			ByteBuffer delta = ByteBuffer.wrap(deltaBytes);
+
+			if (delta.getInt() != previous.length || delta.getInt() != crc32(previous))
+				throw new IllegalArgumentException("Delta was computed against different state");
+
+			ByteArrayOutputStream current = new ByteArrayOutputStream(previous.length);
+
+			// Header is unchanged
+			current.write(previous, 0, MachineState.HEADER_LENGTH);
+
+			applyData(delta, previous, previousSections, current);
+
+			applyStack(delta, previous, previousSections.callStackOffset, previousSections.callStackLength, current);
+			applyStack(delta, previous, previousSections.userStackOffset, previousSections.userStackLength, current);
+
+			final int miscLength = delta.getInt();
+			if (miscLength < 0 || miscLength > delta.remaining())
+				throw new IllegalArgumentException("Invalid delta");
+
+			current.write(deltaBytes, delta.position(), miscLength);
+
+			if (delta.position() + miscLength != deltaBytes.length)
+				throw new IllegalArgumentException("Trailing bytes in delta");
+
+			return MachineState.convertStateFormat(current.toByteArray(), MachineState.getStateFormat(previousStateBytes));
+		} catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated delta", e);
+		}
+	}
+
+	/**
+	 * Writes runs of changed data words: run count, then each run's first word index, word count and words.
+	 * <p>
+	 * Only words in possibly changed data pages are compared with previous state. Runs can span adjacent pages.
+	 */
+	private static void encodeData(DeltaOutputStream delta, byte[] previous, Sections sections, MachineState state, BitSet dirtyDataPages) {
+		final ByteBuffer previousData = ByteBuffer.wrap(previous, sections.dataOffset, sections.dataLength).slice();
+		final int wordsPerPage = state.getDataPageSize() / MachineState.VALUE_SIZE;
+
+		// Reserve space for run count
+		final int runCountPosition = delta.size();
+		delta.writeInt(0);
+
+		int runCount = 0;
+		// Position of current run's word count, or -1 if no run in progress
+		int wordCountPosition = -1;
+		int runWordCount = 0;
+		int nextWord = -1;
+
+		for (int page = dirtyDataPages.nextSetBit(0); page >= 0; page = dirtyDataPages.nextSetBit(page + 1)) {
+			final int firstWord = page * wordsPerPage;
+			final int endWord = Math.min(firstWord + wordsPerPage, sections.dataLength / MachineState.VALUE_SIZE);
+
+			// Runs don't continue across unchanged pages
+			if (firstWord != nextWord && wordCountPosition >= 0) {
+				delta.setInt(wordCountPosition, runWordCount);
+				wordCountPosition = -1;
+			}
+
+			for (int word = firstWord; word < endWord; ++word) {
+				final int address = word * MachineState.VALUE_SIZE;
+				final long value = state.getDataValue(address);
+
+				if (value == previousData.getLong(address)) {
+					if (wordCountPosition >= 0) {
+						delta.setInt(wordCountPosition, runWordCount);
+						wordCountPosition = -1;
+					}
+
+					continue;
+				}
+
+				if (wordCountPosition < 0) {
+					delta.writeInt(word);
+					wordCountPosition = delta.size();
+					delta.writeInt(0);
+					runWordCount = 0;
+					++runCount;
+				}
+
+				delta.writeLong(value);
+				++runWordCount;
+			}
+
+			nextWord = endWord;
+		}
+
+		if (wordCountPosition >= 0)
+			delta.setInt(wordCountPosition, runWordCount);
+
+		delta.setInt(runCountPosition, runCount);
+	}
+
+	private static void applyData(ByteBuffer delta, byte[] previous, Sections sections, ByteArrayOutputStream current) {
+		byte[] data = Arrays.copyOfRange(previous, sections.dataOffset, sections.dataOffset + sections.dataLength);
+
+		final int runCount = delta.getInt();
+		for (int run = 0; run < runCount; ++run) {
+			final int firstWord = delta.getInt();
+			final int wordCount = delta.getInt();
+
+			if (firstWord < 0 || wordCount < 0 || ((long) firstWord + wordCount) * MachineState.VALUE_SIZE > data.length)
+				throw new IllegalArgumentException("Invalid data run in delta");
+
+			delta.get(data, firstWord * MachineState.VALUE_SIZE, wordCount * MachineState.VALUE_SIZE);
+		}
+
+		current.write(data, 0, data.length);
+	}
+
+	/**
+	 * Writes new stack length, length of entries kept from previous stack, then new entries.
+	 * <p>
+	 * Stacks grow downwards and are serialized from top, so kept entries are at the end.
+	 */
+	private static void encodeStack(DeltaOutputStream delta, byte[] previous, int previousOffset, int previousLength, byte[] current) {
+		final int currentLength = current.length;
+
+		int keptLength = 0;
+		while (keptLength < previousLength && keptLength < currentLength
+				&& previous[previousOffset + previousLength - 1 - keptLength] == current[currentLength - 1 - keptLength])
+			++keptLength;
+
+		delta.writeInt(currentLength);
+		delta.writeInt(keptLength);
+		delta.write(current, 0, currentLength - keptLength);
+	}
+
+	private static void applyStack(ByteBuffer delta, byte[] previous, int previousOffset, int previousLength, ByteArrayOutputStream current) {
+		final int currentLength = delta.getInt();
+		final int keptLength = delta.getInt();
+
+		if (keptLength < 0 || keptLength > previousLength || currentLength < keptLength || currentLength - keptLength > delta.remaining())
+			throw new IllegalArgumentException("Invalid stack in delta");
+
+		writeInt(current, currentLength);
+
+		current.write(delta.array(), delta.position(), currentLength - keptLength);
+		delta.position(delta.position() + currentLength - keptLength);
+
+		current.write(previous, previousOffset + previousLength - keptLength, keptLength);
+	}
+
+	private static int crc32(byte[] bytes) {
+		CRC32 crc32 = new CRC32();
+		crc32.update(bytes);
+		return (int) crc32.getValue();
+	}
+
+	private static void writeInt(ByteArrayOutputStream bytes, int value) {
+		bytes.write(value >> 24);
+		bytes.write(value >> 16);
+		bytes.write(value >> 8);
+		bytes.write(value);
+	}
+
+	/** ByteArrayOutputStream with big-endian ints and longs, including overwriting earlier ints */
+	private static class DeltaOutputStream extends ByteArrayOutputStream {
+		public DeltaOutputStream(int capacity) {
+			super(capacity);
+		}
+
+		public void writeInt(int value) {
+			StateDelta.writeInt(this, value);
+		}
+
+		public void writeLong(long value) {
+			StateDelta.writeInt(this, (int) (value >> 32));
+			StateDelta.writeInt(this, (int) value);
+		}
+
+		public void setInt(int position, int value) {
+			ByteBuffer.wrap(this.buf, position, 4).putInt(value);
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package org.ciyam.at;
+
+/**
+ * Pairs of consecutive opcodes that {@link DecodedProgram} fuses into a single dispatch.
+ * <p>
+ * Fusion only applies within a metering block, so steps and fees for both instructions are already charged,
+ * and the first instruction can't change program counter or execution flags. Observable behaviour,
+ * including steps, balance and the program counter reported on error, is the same as executing each instruction in turn.
+ * <p>
+ * Pairs are picked from counts of consecutive opcodes within metering blocks across deployed ATs,
+ * see {@link OpCodeStatistics#countFusablePairs(Iterable)}. To add a pair, add an entry here
+ * and a matching case to <tt>DecodedProgram.executeSuperinstruction()</tt>.
+ */
+enum Superinstruction {
+
+	/** Compare against constant */
+	SET_VAL_BEQ_DAT(OpCode.SET_VAL, OpCode.BEQ_DAT),
+	/** Compare against constant */
+	SET_VAL_BNE_DAT(OpCode.SET_VAL, OpCode.BNE_DAT),
+	/** Test result of A/B register function, e.g. <tt>CHECK_A_EQUALS_B</tt> */
+	EXT_FUN_RET_BZR_DAT(OpCode.EXT_FUN_RET, OpCode.BZR_DAT),
+	/** Test result of A/B register function */
+	EXT_FUN_RET_BNZ_DAT(OpCode.EXT_FUN_RET, OpCode.BNZ_DAT),
+	/** Counting loop */
+	INC_DAT_BLT_DAT(OpCode.INC_DAT, OpCode.BLT_DAT),
+	/** Counting loop */
+	INC_DAT_BNE_DAT(OpCode.INC_DAT, OpCode.BNE_DAT),
+	/** Count-down loop */
+	DEC_DAT_BNZ_DAT(OpCode.DEC_DAT, OpCode.BNZ_DAT);
+
+	public final OpCode first;
+	public final OpCode second;
+
+	private static final Superinstruction[][] BY_OPCODES = new Superinstruction[OpCode.values().length][OpCode.values().length];
+	static {
+		for (Superinstruction superinstruction : values())
+			BY_OPCODES[superinstruction.first.ordinal()][superinstruction.second.ordinal()] = superinstruction;
+	}
+
+	private Superinstruction(OpCode first, OpCode second) {
+		this.first = first;
+		this.second = second;
+	}
+
+	/** Returns superinstruction for pair of opcodes, or null if they aren't fused */
+	public static Superinstruction valueOf(OpCode first, OpCode second) {
+		return BY_OPCODES[first.ordinal()][second.ordinal()];
+	}
+
+}
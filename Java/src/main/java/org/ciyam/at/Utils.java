@@ -63,15 +63,16 @@ interface Utils {
 	 * <b>Note:</b> address is returned scaled by <tt>Constants.VALUE_SIZE</tt>.
 	 * 
 	 * @param codeByteBuffer
+	 * @param dataLength length of data segment, in bytes
 	 * @return int address into data segment
 	 * @throws CodeSegmentException if we ran out of bytes trying to fetch data address
 	 * @throws InvalidAddressException if fetched address points outside of data segment
 	 */
-	static int getDataAddress(ByteBuffer codeByteBuffer, ByteBuffer dataByteBuffer) throws CodeSegmentException, InvalidAddressException {
+	static int getDataAddress(ByteBuffer codeByteBuffer, int dataLength) throws CodeSegmentException, InvalidAddressException {
 		try {
 			final int address = codeByteBuffer.getInt() * MachineState.VALUE_SIZE;
 
-			if (address < 0 || address + MachineState.VALUE_SIZE > dataByteBuffer.limit())
+			if (address < 0 || address + MachineState.VALUE_SIZE > dataLength)
 				throw new InvalidAddressException("Data address out of bounds");
 
 			return address;
@@ -117,4 +118,31 @@ interface Utils {
 		}
 	}
 
+	/**
+	 * Returns big-endian long from <tt>bytes</tt>, starting at <tt>offset</tt>.
+	 * 
+	 * @param bytes
+	 * @param offset
+	 * @return long value
+	 */
+	static long bytesToLong(byte[] bytes, int offset) {
+		long value = 0L;
+
+		for (int i = offset; i < offset + MachineState.VALUE_SIZE; ++i)
+			value = (value << 8) | (bytes[i] & 0xffL);
+
+		return value;
+	}
+
+	/**
+	 * Returns big-endian int from <tt>bytes</tt>, starting at <tt>offset</tt>.
+	 * 
+	 * @param bytes
+	 * @param offset
+	 * @return int value
+	 */
+	static int bytesToInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+	}
+
 }
@@ -0,0 +1,156 @@
+package org.ciyam.at;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Index of when each AT can next execute, so a node only needs to load ATs that will actually run in a block.
+ * <p>
+ * Mirrors the pre-execution checks in <tt>MachineState.execute()</tt>: a finished AT never runs again;
+ * a frozen AT runs once its balance exceeds its frozen balance; a sleeping AT runs once block height reaches its sleep-until height;
+ * any other AT, e.g. stopped or out of steps, runs next block. Frozen ATs that are also sleeping need both conditions.
+ * <p>
+ * Call {@link #update(Object, MachineState)} after deploying or executing an AT, and {@link #onBalanceChanged(Object, long)}
+ * whenever a frozen AT's balance might have increased, e.g. after payments to its account.
+ * Then {@link #getATsToExecute(int)} returns every AT that might run at a given height. Dormant ATs cost nothing per block.
+ * <p>
+ * Keys can be any objects with suitable <tt>equals()</tt> and <tt>hashCode()</tt>, e.g. AT address strings.
+ * Not thread-safe.
+ *
+ * @param <K>
+ *            AT key type
+ */
+public class WakeIndex<K> {
+
+	/** Wake conditions of dormant AT */
+	private static class Dormancy {
+		/** Block height AT sleeps until, or null if not sleeping until a height */
+		private final Integer sleepUntilHeight;
+		/** Balance AT must exceed, or null if not frozen */
+		private final Long frozenBalance;
+
+		public Dormancy(Integer sleepUntilHeight, Long frozenBalance) {
+			this.sleepUntilHeight = sleepUntilHeight;
+			this.frozenBalance = frozenBalance;
+		}
+	}
+
+	/** ATs that run next block */
+	private final Set<K> nextBlockKeys = new HashSet<>();
+	/** Dormant ATs, frozen and/or sleeping until a height */
+	private final Map<K, Dormancy> dormantKeys = new HashMap<>();
+	/** Unfrozen ATs sleeping until a height, keyed by that height */
+	private final NavigableMap<Integer, Set<K>> keysBySleepUntilHeight = new TreeMap<>();
+
+	/**
+	 * Records wake condition of AT from its state, replacing any previous condition.
+	 *
+	 * @param key
+	 * @param state
+	 *            - AT after deployment or latest execution round
+	 */
+	public void update(K key, MachineState state) {
+		this.update(key, state.isFinished(), state.isFrozen(), state.getFrozenBalance(), state.isSleeping(), state.getSleepUntilHeight());
+	}
+
+	/**
+	 * Records wake condition of AT from its serialized state, e.g. when building index at node start-up.
+	 * <p>
+	 * Only the flags are deserialized, which needs no parsing of data segment or stacks with <tt>StateFormat.V2</tt> state bytes.
+	 * Follow with {@link #onBalanceChanged(Object, long)} as the AT's balance may have increased
+	 * since it was serialized.
+	 *
+	 * @param key
+	 * @param stateBytes
+	 *            - from <tt>MachineState.toBytes()</tt>
+	 */
+	public void update(K key, byte[] stateBytes) {
+		this.update(key, MachineState.flagsOnlyfromBytes(stateBytes));
+	}
+
+	private void update(K key, boolean isFinished, boolean isFrozen, Long frozenBalance, boolean isSleeping, Integer sleepUntilHeight) {
+		this.remove(key);
+
+		if (isFinished)
+			return;
+
+		final Integer wakeHeight = isSleeping ? sleepUntilHeight : null;
+
+		if (isFrozen && frozenBalance != null)
+			this.dormantKeys.put(key, new Dormancy(wakeHeight, frozenBalance));
+		else
+			this.addUnfrozen(key, wakeHeight);
+	}
+
+	/**
+	 * Notifies index of AT's current balance, waking AT if frozen with a lower balance.
+	 *
+	 * @param key
+	 * @param balance
+	 *            - AT's current balance, as returned by <tt>API.getCurrentBalance()</tt>
+	 */
+	public void onBalanceChanged(K key, long balance) {
+		Dormancy dormancy = this.dormantKeys.get(key);
+		if (dormancy == null || dormancy.frozenBalance == null || balance <= dormancy.frozenBalance)
+			return;
+
+		this.dormantKeys.remove(key);
+		this.addUnfrozen(key, dormancy.sleepUntilHeight);
+	}
+
+	/** Removes AT from index, e.g. if deleted by orphaning its deployment */
+	public void remove(K key) {
+		this.nextBlockKeys.remove(key);
+
+		Dormancy dormancy = this.dormantKeys.remove(key);
+		if (dormancy == null || dormancy.frozenBalance != null)
+			return;
+
+		Set<K> keys = this.keysBySleepUntilHeight.get(dormancy.sleepUntilHeight);
+		keys.remove(key);
+		if (keys.isEmpty())
+			this.keysBySleepUntilHeight.remove(dormancy.sleepUntilHeight);
+	}
+
+	/**
+	 * Returns ATs that might execute at block height, in no particular order.
+	 * <p>
+	 * ATs stay due, i.e. are returned for subsequent heights too, until next {@link #update(Object, MachineState)}.
+	 * Callers must sort ATs into canonical order before executing.
+	 *
+	 * @param blockHeight
+	 */
+	public Set<K> getATsToExecute(int blockHeight) {
+		Set<K> keys = new HashSet<>(this.nextBlockKeys);
+
+		for (Set<K> sleepingKeys : this.keysBySleepUntilHeight.headMap(blockHeight, true).values())
+			keys.addAll(sleepingKeys);
+
+		return keys;
+	}
+
+	/** Returns whether AT is in index, i.e. not finished */
+	public boolean contains(K key) {
+		return this.nextBlockKeys.contains(key) || this.dormantKeys.containsKey(key);
+	}
+
+	/** Returns number of ATs in index */
+	public int size() {
+		return this.nextBlockKeys.size() + this.dormantKeys.size();
+	}
+
+	private void addUnfrozen(K key, Integer sleepUntilHeight) {
+		if (sleepUntilHeight == null) {
+			this.nextBlockKeys.add(key);
+			return;
+		}
+
+		this.dormantKeys.put(key, new Dormancy(sleepUntilHeight, null));
+		this.keysBySleepUntilHeight.computeIfAbsent(sleepUntilHeight, height -> new HashSet<>()).add(key);
+	}
+
+}
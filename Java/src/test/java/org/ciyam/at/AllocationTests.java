@@ -0,0 +1,127 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AllocationTests extends ExecutableTest {
+
+	private static final int STEPS = 20000;
+
+	private static class SteppingAPI extends TestAPI {
+		private int maxStepsPerRound;
+
+		@Override
+		public int getMaxStepsPerRound() {
+			return this.maxStepsPerRound;
+		}
+	}
+
+	private com.sun.management.ThreadMXBean threadMXBean;
+	private SteppingAPI steppingApi;
+
+	@Before
+	public void beforeAllocationTest() {
+		java.lang.management.ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(mxBean instanceof com.sun.management.ThreadMXBean);
+
+		threadMXBean = (com.sun.management.ThreadMXBean) mxBean;
+		Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+		threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+		steppingApi = new SteppingAPI();
+		steppingApi.setCurrentBalance(Long.MAX_VALUE / 2);
+
+		// Infinite loop using a mix of data, stack and jump opcodes
+		codeByteBuffer.put(OpCode.ADD_VAL.value).putInt(0).putLong(1L);
+		codeByteBuffer.put(OpCode.SET_DAT.value).putInt(1).putInt(0);
+		codeByteBuffer.put(OpCode.MUL_DAT.value).putInt(1).putInt(0);
+		codeByteBuffer.put(OpCode.SHL_DAT.value).putInt(1).putInt(0);
+		codeByteBuffer.put(OpCode.PSH_DAT.value).putInt(1);
+		codeByteBuffer.put(OpCode.POP_DAT.value).putInt(2);
+		codeByteBuffer.put(OpCode.JMP_SUB.value).putInt(0x0040);
+		codeByteBuffer.put(OpCode.JMP_ADR.value).putInt(0x0000);
+
+		codeByteBuffer.position(0x0040);
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(3);
+		codeByteBuffer.put(OpCode.RET_SUB.value);
+	}
+
+	@Test
+	public void testExecuteAllocation() {
+		MachineState state = newMachineState();
+
+		// Warm up
+		for (int i = 0; i < 10; ++i)
+			executeRound(state, STEPS);
+
+		long allocatedBytes = executeRound(state, STEPS);
+		long doubleAllocatedBytes = executeRound(state, 2 * STEPS);
+
+		assertFalse(state.hadFatalError());
+		assertTrue(state.isSleeping());
+
+		assertPerStepAllocationFree(allocatedBytes, doubleAllocatedBytes);
+	}
+
+	@Test
+	public void testOpCodeExecuteAllocation() throws ExecutionException {
+		MachineState state = newMachineState();
+
+		// Warm up
+		for (int i = 0; i < 10; ++i)
+			executeOpCodes(state, STEPS);
+
+		long allocatedBytes = executeOpCodes(state, STEPS);
+		long doubleAllocatedBytes = executeOpCodes(state, 2 * STEPS);
+
+		assertPerStepAllocationFree(allocatedBytes, doubleAllocatedBytes);
+	}
+
+	private MachineState newMachineState() {
+		byte[] codeBytes = codeByteBuffer.array();
+		byte[] dataBytes = dataByteBuffer.array();
+
+		return new MachineState(steppingApi, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes);
+	}
+
+	/** Returns bytes allocated by one round of <tt>MachineState.execute()</tt> limited to <tt>steps</tt> */
+	private long executeRound(MachineState state, int steps) {
+		steppingApi.maxStepsPerRound = steps;
+
+		long startAllocatedBytes = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+		state.execute();
+
+		return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - startAllocatedBytes;
+	}
+
+	/** Returns bytes allocated by calling <tt>OpCode.execute()</tt> directly for <tt>steps</tt> opcodes */
+	private long executeOpCodes(MachineState state, int steps) throws ExecutionException {
+		ByteBuffer codeByteBuffer = state.codeByteBuffer;
+		codeByteBuffer.position(0);
+
+		long startAllocatedBytes = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+		for (int i = 0; i < steps; ++i)
+			OpCode.valueOf(codeByteBuffer.get()).execute(state);
+
+		return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - startAllocatedBytes;
+	}
+
+	private static void assertPerStepAllocationFree(long allocatedBytes, long doubleAllocatedBytes) {
+		// Any per-step allocation would be at least STEPS bytes more for twice the number of steps
+		long extraAllocatedBytes = doubleAllocatedBytes - allocatedBytes;
+		assertTrue(String.format("Per-step allocation detected: %d extra bytes for %d extra steps", extraAllocatedBytes, STEPS), extraAllocatedBytes < STEPS);
+	}
+
+}
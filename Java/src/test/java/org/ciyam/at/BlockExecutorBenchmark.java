@@ -0,0 +1,97 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * AT rounds per second executing a block's worth of ATs with varying numbers of threads.
+ * <p>
+ * Not run as part of unit tests. Run from <tt>Java</tt> directory using:<br>
+ * <tt>mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/test-classpath.txt</tt><br>
+ * <tt>java -cp target/classes:target/test-classes:$(cat target/test-classpath.txt) org.openjdk.jmh.Main BlockExecutorBenchmark</tt>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockExecutorBenchmark {
+
+	private static final int AT_COUNT = 256;
+
+	@Param({ "1", "2", "4", "8", "16" })
+	public int threads;
+
+	private BlockExecutor blockExecutor;
+	private byte[] codeBytes;
+	private byte[] dataBytes;
+	private List<MachineState> states;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		blockExecutor = new BlockExecutor(threads);
+
+		// Busy loop that runs until max steps per round, then sleeps
+		ByteBuffer codeByteBuffer = ByteBuffer.allocate(TestUtils.NUM_CODE_PAGES * MachineState.OPCODE_SIZE);
+		codeByteBuffer.put(OpCode.ADD_VAL.value).putInt(0).putLong(1L);
+		codeByteBuffer.put(OpCode.SET_DAT.value).putInt(1).putInt(0);
+		codeByteBuffer.put(OpCode.MUL_DAT.value).putInt(1).putInt(0);
+		codeByteBuffer.put(OpCode.EXT_FUN_DAT_2.value).putShort(FunctionCode.SHA256_INTO_B.value).putInt(2).putInt(3);
+		codeByteBuffer.put(OpCode.JMP_ADR.value).putInt(0);
+		codeBytes = codeByteBuffer.array();
+
+		// Hash 64 bytes starting at data address 4
+		ByteBuffer dataByteBuffer = ByteBuffer.allocate(TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE);
+		dataByteBuffer.putLong(2 * MachineState.VALUE_SIZE, 4L);
+		dataByteBuffer.putLong(3 * MachineState.VALUE_SIZE, 64L);
+		dataBytes = dataByteBuffer.array();
+	}
+
+	@Setup(Level.Invocation)
+	public void setupInvocation() {
+		states = new ArrayList<>(AT_COUNT);
+
+		for (int i = 0; i < AT_COUNT; ++i)
+			states.add(new MachineState(new TestAPI(), new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() {
+		blockExecutor.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(AT_COUNT)
+	public void executeBlock() {
+		blockExecutor.execute(states);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(BlockExecutorBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
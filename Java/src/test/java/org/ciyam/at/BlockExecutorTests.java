@@ -0,0 +1,434 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.Test;
+
+public class BlockExecutorTests extends ExecutableTest {
+
+	/** Appends side-effect calls, with AT's index, B and balance at time of call, to shared log */
+	private static class RecordingAPI extends TestAPI {
+		private final int atIndex;
+		private final List<String> log;
+
+		public RecordingAPI(int atIndex, List<String> log) {
+			this.atIndex = atIndex;
+			this.log = log;
+		}
+
+		private void record(String call, MachineState state) {
+			this.log.add(String.format("AT %d: %s, B=%s, balance %d", this.atIndex, call, Arrays.toString(this.getB(state)), state.getCurrentBalance()));
+		}
+
+		@Override
+		public void payAmountToB(long amount, MachineState state) {
+			this.record("payAmountToB(" + amount + ")", state);
+			super.payAmountToB(amount, state);
+		}
+
+		@Override
+		public void messageAToB(MachineState state) {
+			this.record("messageAToB()", state);
+			super.messageAToB(state);
+		}
+
+		@Override
+		public void onFinished(long amount, MachineState state) {
+			this.record("onFinished(" + amount + ")", state);
+			super.onFinished(amount, state);
+		}
+
+		@Override
+		public void onFatalError(MachineState state, ExecutionException e) {
+			this.record("onFatalError(" + e.getMessage() + ")", state);
+			super.onFatalError(state, e);
+		}
+	}
+
+	/** Balances shared by all ATs, with payments applied immediately, so ATs interact within a block */
+	private static class LedgerAPI extends TestAPI {
+		private final int atIndex;
+		private final long[] ledger;
+		private final List<String> log;
+
+		public LedgerAPI(int atIndex, long[] ledger, List<String> log) {
+			this.atIndex = atIndex;
+			this.ledger = ledger;
+			this.log = log;
+		}
+
+		@Override
+		public long getFeePerStep() {
+			return 0L;
+		}
+
+		@Override
+		public long getCurrentBalance(MachineState state) {
+			synchronized (this.ledger) {
+				return this.ledger[this.atIndex];
+			}
+		}
+
+		@Override
+		public void payAmountToB(long amount, MachineState state) {
+			synchronized (this.ledger) {
+				this.ledger[this.atIndex] -= amount;
+				this.ledger[(int) state.b1] += amount;
+			}
+
+			this.log.add(String.format("AT %d: paid %d to AT %d", this.atIndex, amount, state.b1));
+		}
+	}
+
+	/** Ledger where platform-specific function 0x0501 pays its argument, immediately, to AT's successor in block */
+	private static class PlatformLedgerAPI extends LedgerAPI {
+		private final int atIndex;
+		private final long[] ledger;
+		private final List<String> log;
+
+		public PlatformLedgerAPI(int atIndex, long[] ledger, List<String> log) {
+			super(atIndex, ledger, log);
+			this.atIndex = atIndex;
+			this.ledger = ledger;
+			this.log = log;
+		}
+
+		@Override
+		public void platformSpecificPostCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
+			if (rawFunctionCode != 0x0501) {
+				super.platformSpecificPostCheckExecute(functionData, state, rawFunctionCode);
+				return;
+			}
+
+			final int recipientIndex = (this.atIndex + 1) % this.ledger.length;
+
+			synchronized (this.ledger) {
+				this.ledger[this.atIndex] -= functionData.value1;
+				this.ledger[recipientIndex] += functionData.value1;
+			}
+
+			this.log.add(String.format("AT %d: platform paid %d to AT %d", this.atIndex, functionData.value1, recipientIndex));
+		}
+	}
+
+	/** Resolves AT to its index in block, and B to AT index in B1 */
+	private static class LedgerAccountResolver implements AccountResolver {
+		private final Map<MachineState, Long> atIndexes = Collections.synchronizedMap(new IdentityHashMap<>());
+
+		public void add(MachineState state, long atIndex) {
+			this.atIndexes.put(state, atIndex);
+		}
+
+		@Override
+		public Object getAccount(MachineState state) {
+			return this.atIndexes.get(state);
+		}
+
+		@Override
+		public Object getAccountInB(MachineState state) {
+			return state.b1;
+		}
+
+		@Override
+		public Object getCreatorAccount(MachineState state) {
+			return -1L;
+		}
+	}
+
+	@Test
+	public void testInvalidParallelism() {
+		try {
+			new BlockExecutor(0);
+			fail("Parallelism of zero should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testDuplicateState() {
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+		state = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+
+		BlockExecutor blockExecutor = new BlockExecutor(2);
+		try {
+			blockExecutor.execute(Arrays.asList(state, state));
+			fail("Duplicate MachineState should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		} finally {
+			blockExecutor.shutdown();
+		}
+	}
+
+	@Test
+	public void testMatchesSequential() {
+		for (int parallelism : new int[] { 1, 2, 4, 8 }) {
+			BlockExecutor blockExecutor = new BlockExecutor(parallelism);
+			try {
+				assertMatchesSequential(blockExecutor);
+			} finally {
+				blockExecutor.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void testExistingPool() {
+		assertMatchesSequential(new BlockExecutor(ForkJoinPool.commonPool()));
+	}
+
+	@Test
+	public void testInteractingATs() {
+		for (int parallelism : new int[] { 2, 4, 8 }) {
+			LedgerAccountResolver accountResolver = new LedgerAccountResolver();
+			BlockExecutor blockExecutor = new BlockExecutor(parallelism, accountResolver);
+			try {
+				assertInteractingMatchesSequential(blockExecutor, accountResolver);
+			} finally {
+				blockExecutor.shutdown();
+			}
+
+			assertTrue(blockExecutor.getReexecutionCount() > 0);
+		}
+	}
+
+	@Test
+	public void testPlatformSpecificCalls() {
+		final int atCount = 20;
+
+		long[] sequentialLedger = new long[atCount];
+		long[] optimisticLedger = new long[atCount];
+		List<String> sequentialLog = new ArrayList<>();
+		List<String> optimisticLog = Collections.synchronizedList(new ArrayList<>());
+
+		List<MachineState> sequentialStates = new ArrayList<>();
+		List<MachineState> optimisticStates = new ArrayList<>();
+
+		LedgerAccountResolver accountResolver = new LedgerAccountResolver();
+		BlockExecutor blockExecutor = new BlockExecutor(4, accountResolver);
+
+		for (int i = 0; i < atCount; ++i) {
+			// Only some ATs make platform-specific call, but their successors read balance it writes
+			byte[] codeBytes = platformPaymentProgram(i % 5 == 2 ? 30L + i : 0L);
+
+			sequentialLedger[i] = optimisticLedger[i] = 1000L + i;
+
+			sequentialStates.add(new MachineState(new PlatformLedgerAPI(i, sequentialLedger, sequentialLog), new QuietLoggerFactory(), TestUtils.HEADER_BYTES,
+					codeBytes, new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE]));
+
+			MachineState optimisticState = new MachineState(new PlatformLedgerAPI(i, optimisticLedger, optimisticLog), new QuietLoggerFactory(),
+					TestUtils.HEADER_BYTES, codeBytes, new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE]);
+			accountResolver.add(optimisticState, i);
+			optimisticStates.add(optimisticState);
+		}
+
+		try {
+			for (int round = 0; round < 4; ++round) {
+				for (MachineState state : sequentialStates)
+					state.execute();
+
+				blockExecutor.execute(optimisticStates);
+
+				for (int i = 0; i < atCount; ++i)
+					assertArrayEquals("AT " + i + ", round " + round, sequentialStates.get(i).toBytes(), optimisticStates.get(i).toBytes());
+
+				assertArrayEquals("round " + round, sequentialLedger, optimisticLedger);
+			}
+		} finally {
+			blockExecutor.shutdown();
+		}
+
+		// Platform-specific calls made once each, in canonical order
+		assertEquals(4 * 4, sequentialLog.size());
+		assertEquals(sequentialLog, optimisticLog);
+
+		// First platform-specific call's AT, and all ATs after it, re-executed every round
+		assertEquals(4L * (atCount - 2), blockExecutor.getReexecutionCount());
+	}
+
+	@Test
+	public void testReexecutionCount() {
+		// Never pays, so no interaction
+		assertEquals(0L, countReexecutions(atIndex -> chainPaymentProgram(atIndex, Long.MAX_VALUE, 0L)));
+
+		// Pays own account, so reads own write
+		assertEquals(8L, countReexecutions(atIndex -> chainPaymentProgram(atIndex, 0L, 10L)));
+	}
+
+	private long countReexecutions(IntFunction<byte[]> programGenerator) {
+		LedgerAccountResolver accountResolver = new LedgerAccountResolver();
+		BlockExecutor blockExecutor = new BlockExecutor(ForkJoinPool.commonPool(), accountResolver);
+
+		List<MachineState> states = new ArrayList<>();
+		long[] ledger = new long[8];
+		Arrays.fill(ledger, 1000L);
+
+		for (int i = 0; i < ledger.length; ++i) {
+			MachineState state = new MachineState(new LedgerAPI(i, ledger, new ArrayList<>()), new QuietLoggerFactory(), TestUtils.HEADER_BYTES,
+					programGenerator.apply(i), new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE]);
+			accountResolver.add(state, i);
+			states.add(state);
+		}
+
+		blockExecutor.execute(states);
+
+		return blockExecutor.getReexecutionCount();
+	}
+
+	/** ATs pay their successor in block if balance is above threshold, so later ATs can observe earlier payments */
+	private void assertInteractingMatchesSequential(BlockExecutor blockExecutor, LedgerAccountResolver accountResolver) {
+		final int atCount = 30;
+
+		long[] sequentialLedger = new long[atCount];
+		long[] optimisticLedger = new long[atCount];
+		List<String> sequentialLog = new ArrayList<>();
+		List<String> optimisticLog = Collections.synchronizedList(new ArrayList<>());
+
+		List<MachineState> sequentialStates = new ArrayList<>();
+		List<MachineState> optimisticStates = new ArrayList<>();
+
+		for (int i = 0; i < atCount; ++i) {
+			// Only some ATs pay, so some are unaffected by others
+			final long threshold = i % 3 == 0 ? 500L : Long.MAX_VALUE;
+			byte[] codeBytes = chainPaymentProgram((i + 1) % atCount, threshold, 200L);
+
+			sequentialLedger[i] = optimisticLedger[i] = 400L + 50L * (i % 5);
+
+			sequentialStates.add(new MachineState(new LedgerAPI(i, sequentialLedger, sequentialLog), new QuietLoggerFactory(), TestUtils.HEADER_BYTES,
+					codeBytes, new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE]));
+
+			MachineState optimisticState = new MachineState(new LedgerAPI(i, optimisticLedger, optimisticLog), new QuietLoggerFactory(), TestUtils.HEADER_BYTES,
+					codeBytes, new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE]);
+			accountResolver.add(optimisticState, i);
+			optimisticStates.add(optimisticState);
+		}
+
+		for (int round = 0; round < 6; ++round) {
+			for (MachineState state : sequentialStates)
+				state.execute();
+
+			blockExecutor.execute(optimisticStates);
+
+			for (int i = 0; i < atCount; ++i)
+				assertArrayEquals("AT " + i + ", round " + round, sequentialStates.get(i).toBytes(), optimisticStates.get(i).toBytes());
+
+			assertArrayEquals("round " + round, sequentialLedger, optimisticLedger);
+		}
+
+		assertFalse(sequentialLog.isEmpty());
+		assertEquals(sequentialLog, optimisticLog);
+	}
+
+	private void assertMatchesSequential(BlockExecutor blockExecutor) {
+		final int atCount = 40;
+		Random random = new Random(0x9753L);
+
+		List<String> sequentialLog = new ArrayList<>();
+		List<String> parallelLog = Collections.synchronizedList(new ArrayList<>());
+
+		List<MachineState> sequentialStates = new ArrayList<>();
+		List<MachineState> parallelStates = new ArrayList<>();
+
+		for (int i = 0; i < atCount; ++i) {
+			byte[] codeBytes = i % 3 == 0 ? payingProgram(i) : RandomPrograms.generate(random);
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			sequentialStates.add(new MachineState(new RecordingAPI(i, sequentialLog), new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes.clone()));
+			parallelStates.add(new MachineState(new RecordingAPI(i, parallelLog), new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes.clone()));
+		}
+
+		for (int round = 0; round < 4; ++round) {
+			for (MachineState state : sequentialStates)
+				state.execute();
+
+			blockExecutor.execute(parallelStates);
+
+			for (int i = 0; i < atCount; ++i) {
+				MachineState sequentialState = sequentialStates.get(i);
+				MachineState parallelState = parallelStates.get(i);
+
+				assertEquals(sequentialState.getSteps(), parallelState.getSteps());
+				assertArrayEquals("AT " + i + ", round " + round, sequentialState.toBytes(), parallelState.toBytes());
+
+				for (MachineState state : Arrays.asList(sequentialState, parallelState)) {
+					TestAPI api = (TestAPI) state.getAPI();
+					api.setCurrentBalance(state.getCurrentBalance());
+					api.bumpCurrentBlockHeight();
+				}
+			}
+		}
+
+		assertTrue(sequentialLog.stream().anyMatch(call -> call.contains("payAmountToB")));
+		assertEquals(sequentialLog, parallelLog);
+	}
+
+	/** Pays creator, sends message, clears B then stops, so repeats every round */
+	private static byte[] payingProgram(int atIndex) {
+		ByteBuffer codeBytes = ByteBuffer.allocate(TestUtils.NUM_CODE_PAGES * MachineState.OPCODE_SIZE);
+
+		codeBytes.put(OpCode.SET_VAL.value).putInt(0).putLong(100L + atIndex);
+		codeBytes.put(OpCode.EXT_FUN.value).putShort(FunctionCode.PUT_CREATOR_INTO_B.value);
+		codeBytes.put(OpCode.EXT_FUN_DAT.value).putShort(FunctionCode.PAY_TO_ADDRESS_IN_B.value).putInt(0);
+		codeBytes.put(OpCode.EXT_FUN_DAT.value).putShort(FunctionCode.SET_A1.value).putInt(0);
+		codeBytes.put(OpCode.EXT_FUN.value).putShort(FunctionCode.MESSAGE_A_TO_ADDRESS_IN_B.value);
+		codeBytes.put(OpCode.EXT_FUN.value).putShort(FunctionCode.CLEAR_B.value);
+		codeBytes.put(OpCode.STP_IMD.value);
+		codeBytes.put(OpCode.FIN_IMD.value);
+
+		return codeBytes.array();
+	}
+
+	/** Saves balance, then, unless <tt>amount</tt> is zero, pays <tt>amount</tt> to successor AT using platform-specific function, then stops */
+	private static byte[] platformPaymentProgram(long amount) {
+		ByteBuffer codeBytes = ByteBuffer.allocate(TestUtils.NUM_CODE_PAGES * MachineState.OPCODE_SIZE);
+
+		// @0: balance, @1: amount
+		codeBytes.put(OpCode.EXT_FUN_RET.value).putShort(FunctionCode.GET_CURRENT_BALANCE.value).putInt(0);
+
+		if (amount != 0L) {
+			codeBytes.put(OpCode.SET_VAL.value).putInt(1).putLong(amount);
+			codeBytes.put(OpCode.EXT_FUN_DAT.value).putShort((short) 0x0501).putInt(1);
+		}
+
+		codeBytes.put(OpCode.STP_IMD.value);
+
+		return codeBytes.array();
+	}
+
+	/** Pays <tt>amount</tt> to AT <tt>recipientIndex</tt> if balance is above <tt>threshold</tt>, then stops, so repeats every round */
+	private static byte[] chainPaymentProgram(int recipientIndex, long threshold, long amount) {
+		ByteBuffer codeBytes = ByteBuffer.allocate(TestUtils.NUM_CODE_PAGES * MachineState.OPCODE_SIZE);
+
+		// @0: balance, @1: threshold, @2: recipient, @3: amount
+		codeBytes.put(OpCode.SET_VAL.value).putInt(1).putLong(threshold);
+		codeBytes.put(OpCode.SET_VAL.value).putInt(2).putLong(recipientIndex);
+		codeBytes.put(OpCode.SET_VAL.value).putInt(3).putLong(amount);
+		codeBytes.put(OpCode.EXT_FUN_RET.value).putShort(FunctionCode.GET_CURRENT_BALANCE.value).putInt(0);
+		int branchAddress = codeBytes.position();
+		codeBytes.put(OpCode.BLE_DAT.value).putInt(0).putInt(1).put((byte) 0);
+		codeBytes.put(OpCode.EXT_FUN_DAT.value).putShort(FunctionCode.SET_B1.value).putInt(2);
+		codeBytes.put(OpCode.EXT_FUN_DAT.value).putShort(FunctionCode.PAY_TO_ADDRESS_IN_B.value).putInt(3);
+		codeBytes.put(branchAddress + 9, (byte) (codeBytes.position() - branchAddress));
+		codeBytes.put(OpCode.STP_IMD.value);
+
+		return codeBytes.array();
+	}
+
+}
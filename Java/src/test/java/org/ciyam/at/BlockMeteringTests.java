@@ -0,0 +1,239 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that charging steps/fees per block of decoded instructions sleeps, freezes and fails
+ * at exactly the same instruction, with exactly the same steps and balance, as per-opcode metering.
+ */
+public class BlockMeteringTests extends ExecutableTest {
+
+	private static final long FEE_PER_STEP = 3L;
+
+	/** API with varying opcode steps, non-unit fee and configurable max steps */
+	private static class MeteringAPI extends TestAPI {
+		private int maxStepsPerRound = TestAPI.MAX_STEPS_PER_ROUND;
+		private Long finishedAmount;
+
+		@Override
+		public int getMaxStepsPerRound() {
+			return this.maxStepsPerRound;
+		}
+
+		@Override
+		public int getOpCodeSteps(OpCode opcode) {
+			return 1 + opcode.value % 3;
+		}
+
+		@Override
+		public long getFeePerStep() {
+			return FEE_PER_STEP;
+		}
+
+		@Override
+		public void onFinished(long amount, MachineState state) {
+			this.finishedAmount = amount;
+			super.onFinished(amount, state);
+		}
+	}
+
+	private MeteringAPI meteringApi;
+
+	/** Program counters of each instruction in straight-line program, plus following PC */
+	private List<Integer> programCounters;
+
+	/** Cumulative steps after each instruction in straight-line program, starting with 0 */
+	private List<Long> cumulativeSteps;
+
+	@Before
+	public void beforeMeteringTest() {
+		meteringApi = new MeteringAPI();
+		programCounters = new ArrayList<>();
+		cumulativeSteps = new ArrayList<>();
+		cumulativeSteps.add(0L);
+	}
+
+	@Test
+	public void testSleepBoundaries() {
+		buildStraightLineProgram();
+
+		final int instructionCount = programCounters.size() - 1;
+		final long totalSteps = cumulativeSteps.get(instructionCount);
+
+		for (int maxSteps = 0; maxSteps <= totalSteps + 1; ++maxSteps) {
+			meteringApi.maxStepsPerRound = maxSteps;
+			meteringApi.setCurrentBalance(TestAPI.DEFAULT_INITIAL_BALANCE);
+
+			MachineState state = newMachineState();
+			state.execute();
+
+			int expectedExecuted = executedWithin(maxSteps);
+			String description = String.format("max steps %d", maxSteps);
+
+			assertEquals(description, cumulativeSteps.get(expectedExecuted).intValue(), state.getSteps());
+
+			if (expectedExecuted < instructionCount) {
+				assertTrue(description, state.isSleeping());
+				assertEquals(description, programCounters.get(expectedExecuted).intValue(), state.getProgramCounter());
+				assertEquals(description, TestAPI.DEFAULT_INITIAL_BALANCE - state.getSteps() * FEE_PER_STEP, state.getCurrentBalance());
+			} else {
+				assertTrue(description, state.isFinished());
+				assertFalse(description, state.hadFatalError());
+			}
+		}
+	}
+
+	@Test
+	public void testFreezeBoundaries() {
+		buildStraightLineProgram();
+
+		final int instructionCount = programCounters.size() - 1;
+		final long totalFee = cumulativeSteps.get(instructionCount) * FEE_PER_STEP;
+
+		for (long balance = 0; balance <= totalFee + 1; ++balance) {
+			meteringApi.setCurrentBalance(balance);
+
+			MachineState state = newMachineState();
+			state.execute();
+
+			int expectedExecuted = executedWithin(balance / FEE_PER_STEP);
+			String description = String.format("balance %d", balance);
+
+			assertEquals(description, cumulativeSteps.get(expectedExecuted).intValue(), state.getSteps());
+
+			if (expectedExecuted < instructionCount) {
+				assertTrue(description, state.isFrozen());
+				assertEquals(description, programCounters.get(expectedExecuted).intValue(), state.getProgramCounter());
+				assertEquals(description, balance - state.getSteps() * FEE_PER_STEP, state.getCurrentBalance());
+				assertEquals(description, Long.valueOf(state.getCurrentBalance()), state.getFrozenBalance());
+			} else {
+				assertTrue(description, state.isFinished());
+				assertEquals(description, Long.valueOf(balance - state.getSteps() * FEE_PER_STEP), meteringApi.finishedAmount);
+			}
+		}
+	}
+
+	@Test
+	public void testErrorMidBlock() {
+		int errorAddress = 0x0100;
+
+		addInstruction(OpCode.ERR_ADR, () -> codeByteBuffer.put(OpCode.ERR_ADR.value).putInt(errorAddress));
+		addInstruction(OpCode.SET_VAL, () -> codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(1234L));
+		addInstruction(OpCode.DIV_DAT, () -> codeByteBuffer.put(OpCode.DIV_DAT.value).putInt(0).putInt(1));
+		addInstruction(OpCode.INC_DAT, () -> codeByteBuffer.put(OpCode.INC_DAT.value).putInt(2));
+		addInstruction(OpCode.INC_DAT, () -> codeByteBuffer.put(OpCode.INC_DAT.value).putInt(2));
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		codeByteBuffer.position(errorAddress);
+		codeByteBuffer.put(OpCode.STP_IMD.value);
+
+		assertTrue(DecodedProgram.fromCodeBytes(codeByteBuffer).getBlockLength(0) > 3);
+
+		meteringApi.setCurrentBalance(TestAPI.DEFAULT_INITIAL_BALANCE);
+
+		MachineState state = newMachineState();
+		state.execute();
+
+		// Only ERR_ADR, SET_VAL, DIV_DAT then STP_IMD charged
+		long expectedSteps = cumulativeSteps.get(3) + meteringApi.getOpCodeSteps(OpCode.STP_IMD);
+
+		assertTrue(state.isStopped());
+		assertFalse(state.hadFatalError());
+		assertEquals(expectedSteps, state.getSteps());
+		assertEquals(TestAPI.DEFAULT_INITIAL_BALANCE - expectedSteps * FEE_PER_STEP, state.getCurrentBalance());
+		assertEquals(0L, ByteBuffer.wrap(state.toBytes()).getLong(MachineState.HEADER_LENGTH + 2 * MachineState.VALUE_SIZE));
+	}
+
+	@Test
+	public void testFatalErrorMidBlock() {
+		addInstruction(OpCode.SET_VAL, () -> codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(1234L));
+		addInstruction(OpCode.DIV_DAT, () -> codeByteBuffer.put(OpCode.DIV_DAT.value).putInt(0).putInt(1));
+		addInstruction(OpCode.INC_DAT, () -> codeByteBuffer.put(OpCode.INC_DAT.value).putInt(2));
+		addInstruction(OpCode.INC_DAT, () -> codeByteBuffer.put(OpCode.INC_DAT.value).putInt(2));
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		meteringApi.setCurrentBalance(TestAPI.DEFAULT_INITIAL_BALANCE);
+
+		MachineState state = newMachineState();
+		state.execute();
+
+		long expectedSteps = cumulativeSteps.get(2);
+
+		assertTrue(state.isFinished());
+		assertTrue(state.hadFatalError());
+		assertEquals(expectedSteps, state.getSteps());
+		assertEquals(Long.valueOf(TestAPI.DEFAULT_INITIAL_BALANCE - expectedSteps * FEE_PER_STEP), meteringApi.finishedAmount);
+	}
+
+	/** Straight-line program of data opcodes that form metering blocks, ending with FIN_IMD */
+	private void buildStraightLineProgram() {
+		for (int i = 0; i < 40; ++i) {
+			final int address = i % 8;
+
+			switch (i % 5) {
+				case 0:
+					addInstruction(OpCode.SET_VAL, () -> codeByteBuffer.put(OpCode.SET_VAL.value).putInt(address).putLong(address * 3L));
+					break;
+
+				case 1:
+					addInstruction(OpCode.INC_DAT, () -> codeByteBuffer.put(OpCode.INC_DAT.value).putInt(address));
+					break;
+
+				case 2:
+					addInstruction(OpCode.ADD_DAT, () -> codeByteBuffer.put(OpCode.ADD_DAT.value).putInt(address).putInt(7 - address));
+					break;
+
+				case 3:
+					addInstruction(OpCode.PSH_DAT, () -> codeByteBuffer.put(OpCode.PSH_DAT.value).putInt(address));
+					break;
+
+				default:
+					addInstruction(OpCode.POP_DAT, () -> codeByteBuffer.put(OpCode.POP_DAT.value).putInt(address));
+					break;
+			}
+		}
+
+		addInstruction(OpCode.FIN_IMD, () -> codeByteBuffer.put(OpCode.FIN_IMD.value));
+		programCounters.add(codeByteBuffer.position());
+
+		assertTrue(DecodedProgram.fromCodeBytes(codeByteBuffer).getBlockLength(0) > 1);
+	}
+
+	private void addInstruction(OpCode opCode, Runnable writer) {
+		programCounters.add(codeByteBuffer.position());
+		writer.run();
+
+		cumulativeSteps.add(cumulativeSteps.get(cumulativeSteps.size() - 1) + meteringApi.getOpCodeSteps(opCode));
+	}
+
+	/** Returns number of straight-line instructions that fit within step allowance */
+	private int executedWithin(long allowedSteps) {
+		int executed = 0;
+
+		while (executed + 1 < cumulativeSteps.size() && cumulativeSteps.get(executed + 1) <= allowedSteps)
+			++executed;
+
+		return executed;
+	}
+
+	private MachineState newMachineState() {
+		byte[] codeBytes = codeByteBuffer.array();
+		byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+
+		MachineState state = new MachineState(meteringApi, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes);
+		state.setExecutionEngine(ExecutionEngine.FAST);
+		return state;
+	}
+
+}
@@ -0,0 +1,183 @@
+package org.ciyam.at;
+
+import static org.ciyam.at.test.LockstepExecution.newMachineState;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.LockstepExecution;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Equivalence tests between interpreter and bytecode compiler tier.
+ * <p>
+ * Each program is executed for several rounds, once with compilation disabled and once with compilation on first round.
+ * After every round, serialized state, steps, balance and recorded API calls must match exactly.
+ */
+public class BytecodeCompilerTests extends ExecutableTest {
+
+	private static final int ROUNDS = 6;
+
+	/** TestAPI that also records state-changing API calls */
+	private static class RecordingAPI extends TestAPI {
+		public final List<String> calls = new ArrayList<>();
+
+		@Override
+		public void payAmountToB(long amount, MachineState state) {
+			calls.add(String.format("payAmountToB(%d) at %04x", amount, state.getProgramCounter()));
+			super.payAmountToB(amount, state);
+		}
+
+		@Override
+		public void messageAToB(MachineState state) {
+			calls.add(String.format("messageAToB() at %04x", state.getProgramCounter()));
+			super.messageAToB(state);
+		}
+
+		@Override
+		public void onFinished(long amount, MachineState state) {
+			calls.add(String.format("onFinished(%d) at %04x", amount, state.getProgramCounter()));
+			super.onFinished(amount, state);
+		}
+
+		@Override
+		public void onFatalError(MachineState state, ExecutionException e) {
+			calls.add(String.format("onFatalError(%s) at %04x", e.getMessage(), state.getProgramCounter()));
+			super.onFatalError(state, e);
+		}
+	}
+
+	@After
+	public void afterCompilerTest() {
+		MachineState.setCompilationThreshold(0);
+	}
+
+	@Test
+	public void testLoop() throws ExecutionException {
+		// Count down from 1000 into @1, summing into @2, with some bit twiddling
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(1000L);
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(3).putLong(3L);
+		int loopAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.ADD_DAT.value).putInt(2).putInt(0);
+		codeByteBuffer.put(OpCode.SET_DAT.value).putInt(4).putInt(2);
+		codeByteBuffer.put(OpCode.SHL_DAT.value).putInt(4).putInt(3);
+		codeByteBuffer.put(OpCode.XOR_DAT.value).putInt(5).putInt(4);
+		codeByteBuffer.put(OpCode.DEC_DAT.value).putInt(0);
+		int branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BNZ_DAT.value).putInt(0).put((byte) (loopAddress - branchAddress));
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		assertEquivalent(codeByteBuffer.array(), dataByteBuffer.array(), TestAPI.DEFAULT_INITIAL_BALANCE * 100, ROUNDS * 4);
+
+		DecodedProgram decodedProgram = DecodedProgram.fromCodeBytes(ByteBuffer.wrap(codeByteBuffer.array()));
+		CompiledProgram compiledProgram = decodedProgram.getCompiledProgram(1, new QuietLoggerFactory().create(getClass()));
+		assertNotNull(compiledProgram);
+		assertNotEquals(CompiledProgram.NO_BLOCK, compiledProgram.getBlock(loopAddress, dataByteBuffer.limit()));
+	}
+
+	@Test
+	public void testFreezeMidBlock() throws ExecutionException {
+		// Infinite loop, with balance running out part-way through block
+		for (int i = 0; i < 10; ++i)
+			codeByteBuffer.put(OpCode.INC_DAT.value).putInt(i);
+
+		codeByteBuffer.put(OpCode.JMP_ADR.value).putInt(0);
+
+		assertEquivalent(codeByteBuffer.array(), dataByteBuffer.array(), 1237L, ROUNDS);
+	}
+
+	@Test
+	public void testShifts() throws ExecutionException {
+		long[] shifts = { 0L, 1L, 63L, 64L, 65L, -1L, Long.MIN_VALUE, Long.MAX_VALUE };
+
+		for (int i = 0; i < shifts.length; ++i) {
+			codeByteBuffer.put(OpCode.SET_VAL.value).putInt(10 + i).putLong(shifts[i]);
+			codeByteBuffer.put(OpCode.SET_VAL.value).putInt(20 + i).putLong(0x8123456789abcdefL);
+			codeByteBuffer.put(OpCode.SHL_DAT.value).putInt(20 + i).putInt(10 + i);
+			codeByteBuffer.put(OpCode.SET_VAL.value).putInt(30 + i).putLong(0x8123456789abcdefL);
+			codeByteBuffer.put(OpCode.SHR_DAT.value).putInt(30 + i).putInt(10 + i);
+		}
+
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		assertEquivalent(codeByteBuffer.array(), dataByteBuffer.array(), TestAPI.DEFAULT_INITIAL_BALANCE, ROUNDS);
+	}
+
+	@Test
+	public void testDataSegmentTooSmall() throws ExecutionException {
+		// Block uses data address beyond data segment so must not be executed in compiled form
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(1L);
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(TestUtils.NUM_DATA_PAGES).putLong(2L);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		assertEquivalent(codeByteBuffer.array(), dataByteBuffer.array(), TestAPI.DEFAULT_INITIAL_BALANCE, ROUNDS);
+	}
+
+	/** Each generated class has its own classloader, so can be unloaded once its compiled program is unreachable */
+	@Test
+	public void testClassLoaderPerCompilation() {
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.JMP_ADR.value).putInt(0);
+
+		DecodedProgram decodedProgram = DecodedProgram.fromCodeBytes(ByteBuffer.wrap(codeByteBuffer.array()));
+
+		Class<?> codeClass = BytecodeCompiler.compile(decodedProgram).getCodeClass();
+		Class<?> otherCodeClass = BytecodeCompiler.compile(decodedProgram).getCodeClass();
+		assertNotSame(BytecodeCompiler.class.getClassLoader(), codeClass.getClassLoader());
+		assertNotSame(codeClass.getClassLoader(), otherCodeClass.getClassLoader());
+	}
+
+	@Test
+	public void testRandomPrograms() throws ExecutionException {
+		Random random = new Random(0x1234L);
+
+		for (int program = 0; program < 200; ++program) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			long initialBalance = 100L + random.nextInt(5000);
+
+			assertEquivalent(codeBytes, dataBytes, initialBalance, ROUNDS);
+		}
+	}
+
+	private static void assertEquivalent(byte[] codeBytes, byte[] dataBytes, long initialBalance, int rounds) {
+		RecordingAPI interpretedApi = new RecordingAPI();
+		RecordingAPI compiledApi = new RecordingAPI();
+
+		interpretedApi.setCurrentBalance(initialBalance);
+		compiledApi.setCurrentBalance(initialBalance);
+
+		MachineState interpretedState = newMachineState(interpretedApi, codeBytes, dataBytes.clone());
+		MachineState compiledState = newMachineState(compiledApi, codeBytes, dataBytes.clone());
+
+		// Compiled code is only used by fast engine
+		interpretedState.setExecutionEngine(ExecutionEngine.FAST);
+		compiledState.setExecutionEngine(ExecutionEngine.FAST);
+
+		new LockstepExecution(interpretedApi, interpretedState, compiledApi, compiledState) {
+			@Override
+			protected void execute(MachineState state, boolean isActual) {
+				MachineState.setCompilationThreshold(isActual ? 1 : 0);
+				super.execute(state, isActual);
+			}
+
+			@Override
+			protected void assertRound(String description) {
+				super.assertRound(description);
+				assertEquals(description, interpretedApi.calls, compiledApi.calls);
+			}
+		}.run(rounds);
+	}
+
+}
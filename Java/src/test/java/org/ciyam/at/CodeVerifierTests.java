@@ -0,0 +1,180 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.TestUtils;
+import org.junit.Test;
+
+public class CodeVerifierTests extends ExecutableTest {
+
+	@Test
+	public void testValidProgram() throws ExecutionException {
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(10L);
+		codeByteBuffer.put(OpCode.ERR_ADR.value).putInt(0x0040);
+		int loopAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.DEC_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.JMP_SUB.value).putInt(0x0050);
+		int branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BNZ_DAT.value).putInt(0).put((byte) (loopAddress - branchAddress));
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		codeByteBuffer.position(0x0040);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		codeByteBuffer.position(0x0050);
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(TestUtils.NUM_DATA_PAGES - 1);
+		codeByteBuffer.put(OpCode.RET_SUB.value);
+
+		// Unreachable zero padding in between subroutines is fine
+		CodeVerifier.Result result = CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, TestUtils.NUM_DATA_PAGES);
+		assertTrue(result.getErrors().toString(), result.isValid());
+		assertEquals(TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE, result.getDataLength());
+
+		execute(true);
+
+		assertTrue(state.isFinished());
+		assertFalse(state.hadFatalError());
+		assertEquals(10L, getData(TestUtils.NUM_DATA_PAGES - 1));
+	}
+
+	@Test
+	public void testDataAddressOutOfBounds() throws ExecutionException {
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(1L);
+		codeByteBuffer.put(OpCode.SET_DAT.value).putInt(1).putInt(TestUtils.NUM_DATA_PAGES);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		CodeVerifier.Result result = CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, TestUtils.NUM_DATA_PAGES);
+		assertFalse(result.isValid());
+		assertEquals(1, result.getErrors().size());
+		assertTrue(result.getErrors().get(0).startsWith("PC 000d:"));
+
+		// Fits with one more data page
+		assertTrue(CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, TestUtils.NUM_DATA_PAGES + 1).isValid());
+
+		// Unverified programs still fail at runtime as before
+		execute(true);
+
+		assertTrue(state.isFinished());
+		assertTrue(state.hadFatalError());
+	}
+
+	@Test
+	public void testUnreachableErrorsIgnored() throws ExecutionException {
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+		codeByteBuffer.put(OpCode.SET_DAT.value).putInt(1).putInt(TestUtils.NUM_DATA_PAGES);
+		codeByteBuffer.put(OpCode.JMP_ADR.value).putInt(Integer.MAX_VALUE);
+
+		assertTrue(CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, TestUtils.NUM_DATA_PAGES).isValid());
+	}
+
+	@Test
+	public void testJumpIntoInstruction() throws ExecutionException {
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(OpCode.FIN_IMD.value);
+		// Last byte of value happens to be FIN_IMD
+		codeByteBuffer.put(OpCode.JMP_ADR.value).putInt(12);
+
+		CodeVerifier.Result result = CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, TestUtils.NUM_DATA_PAGES);
+		assertFalse(result.isValid());
+		assertEquals("PC 000c: not at start of instruction", result.getErrors().get(0));
+	}
+
+	@Test
+	public void testBadCodeAddress() throws ExecutionException {
+		codeByteBuffer.put(OpCode.ERR_ADR.value).putInt(codeByteBuffer.capacity());
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		CodeVerifier.Result result = CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, TestUtils.NUM_DATA_PAGES);
+		assertFalse(result.isValid());
+		assertTrue(result.getErrors().get(0).contains("code address"));
+	}
+
+	@Test
+	public void testBadBranchTarget() throws ExecutionException {
+		codeByteBuffer.put(OpCode.NOP.value);
+		codeByteBuffer.put(OpCode.BZR_DAT.value).putInt(0).put((byte) -10);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		CodeVerifier.Result result = CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, TestUtils.NUM_DATA_PAGES);
+		assertFalse(result.isValid());
+		assertTrue(result.getErrors().get(0).startsWith("PC 0001: branch target"));
+	}
+
+	@Test
+	public void testUnknownOpCode() throws ExecutionException {
+		codeByteBuffer.put(OpCode.NOP.value);
+		codeByteBuffer.put((byte) 0xff);
+
+		CodeVerifier.Result result = CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, TestUtils.NUM_DATA_PAGES);
+		assertFalse(result.isValid());
+		assertEquals("PC 0001: OpCode 0xff not recognised", result.getErrors().get(0));
+	}
+
+	@Test
+	public void testUnknownFunction() throws ExecutionException {
+		codeByteBuffer.put(OpCode.EXT_FUN.value).putShort((short) 0x7fff);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		CodeVerifier.Result result = CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, TestUtils.NUM_DATA_PAGES);
+		assertFalse(result.isValid());
+		// EXT_FUN with unknown function code stops reachability from following it, so only that error
+		assertEquals(result.getErrors().toString(), 1, result.getErrors().size());
+		assertTrue(result.getErrors().get(0).contains("unknown function code"));
+	}
+
+	@Test
+	public void testRunsOffEnd() throws ExecutionException {
+		while (codeByteBuffer.remaining() > 0)
+			codeByteBuffer.put(OpCode.NOP.value);
+
+		CodeVerifier.Result result = CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, TestUtils.NUM_DATA_PAGES);
+		assertFalse(result.isValid());
+		assertEquals(String.format("PC %04x: execution runs off end of code segment", codeByteBuffer.capacity() - 1), result.getErrors().get(0));
+	}
+
+	@Test
+	public void testVersion1DataPages() {
+		final short version = 1;
+		final int valuesPerPage = 256 / MachineState.VALUE_SIZE;
+
+		codeByteBuffer.put(OpCode.SET_DAT.value).putInt(0).putInt(valuesPerPage - 1);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		// Version 1 data pages are 256 bytes, so one page holds all addresses
+		CodeVerifier.Result result = CodeVerifier.verify(codeByteBuffer.array(), version, 1);
+		assertTrue(result.getErrors().toString(), result.isValid());
+		assertEquals(256, result.getDataLength());
+
+		// Whereas version 2 data pages hold only one value each
+		assertFalse(CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, 1).isValid());
+		assertTrue(CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, valuesPerPage).isValid());
+
+		codeByteBuffer.clear();
+		codeByteBuffer.put(OpCode.SET_DAT.value).putInt(0).putInt(valuesPerPage);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		assertFalse(CodeVerifier.verify(codeByteBuffer.array(), version, 1).isValid());
+		assertTrue(CodeVerifier.verify(codeByteBuffer.array(), version, 2).isValid());
+	}
+
+	@Test
+	public void testUnknownVersion() {
+		try {
+			CodeVerifier.verify(codeByteBuffer.array(), (short) 0, TestUtils.NUM_DATA_PAGES);
+			fail("Unknown version should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testInvalidNumDataPages() {
+		try {
+			CodeVerifier.verify(codeByteBuffer.array(), TestUtils.VERSION, -1);
+			fail("Negative number of data pages should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+}
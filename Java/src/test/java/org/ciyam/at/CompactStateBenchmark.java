@@ -0,0 +1,159 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.ciyam.at.MachineState.StateFormat;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * States serialized and deserialized per second, for each state format, using random test-suite programs that run without fatal errors.
+ * Also prints serialized sizes for each state format, including worst case of random data segment.
+ * <p>
+ * Serializing writes into a reused buffer and deserializing restores into reused states, as a node would,
+ * with allocating <tt>toBytes()</tt> and <tt>fromBytes()</tt> benchmarked for comparison.
+ * <p>
+ * Not run as part of unit tests. Run from <tt>Java</tt> directory using:<br>
+ * <tt>mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/test-classpath.txt</tt><br>
+ * <tt>java -cp target/classes:target/test-classes:$(cat target/test-classpath.txt) org.openjdk.jmh.Main CompactStateBenchmark</tt>
+ * <p>
+ * Running this class itself, instead of <tt>org.openjdk.jmh.Main</tt>, also prints serialized sizes first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompactStateBenchmark {
+
+	private static final int AT_COUNT = 5;
+	private static final int ROUNDS = 5;
+
+	@Param({ "V1", "V2", "COMPACT" })
+	public StateFormat stateFormat;
+
+	private List<MachineState> states;
+	private List<MachineState> restoredStates;
+	private List<byte[]> codeBytesList;
+	private List<byte[]> stateBytesList;
+	private ByteBuffer stateBuffer;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		states = runningStates();
+
+		restoredStates = new ArrayList<>();
+		codeBytesList = new ArrayList<>();
+		stateBytesList = new ArrayList<>();
+		int maxSize = 0;
+		for (MachineState state : states) {
+			byte[] stateBytes = state.toBytes(stateFormat);
+
+			codeBytesList.add(state.getCodeBytes());
+			stateBytesList.add(stateBytes);
+			restoredStates.add(MachineState.fromBytes(new TestAPI(), new QuietLoggerFactory(), stateBytes, state.getCodeBytes()));
+			maxSize = Math.max(maxSize, stateBytes.length);
+		}
+
+		stateBuffer = ByteBuffer.allocate(maxSize);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(AT_COUNT)
+	public void serialize(Blackhole blackhole) {
+		for (MachineState state : states)
+			blackhole.consume(state.toBytes(stateFormat));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(AT_COUNT)
+	public void serializeInPlace(Blackhole blackhole) {
+		for (MachineState state : states) {
+			stateBuffer.clear();
+			blackhole.consume(state.writeTo(stateBuffer, stateFormat));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(AT_COUNT)
+	public void deserialize(Blackhole blackhole) {
+		for (int i = 0; i < AT_COUNT; ++i)
+			blackhole.consume(MachineState.fromBytes(states.get(i).getAPI(), new QuietLoggerFactory(), stateBytesList.get(i), codeBytesList.get(i)));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(AT_COUNT)
+	public void deserializeInPlace(Blackhole blackhole) {
+		for (int i = 0; i < AT_COUNT; ++i) {
+			MachineState restoredState = restoredStates.get(i);
+			restoredState.reuseFromBytes(restoredState.getAPI(), stateBytesList.get(i));
+			blackhole.consume(restoredState);
+		}
+	}
+
+	/** Returns first few random programs, from fixed seed, that are still running without fatal error after a few rounds */
+	private static List<MachineState> runningStates() {
+		Random random = new Random(0xc0117ac7L);
+		List<MachineState> states = new ArrayList<>();
+
+		while (states.size() < AT_COUNT) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+
+			TestAPI api = new TestAPI();
+			MachineState state = new MachineState(api, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes);
+
+			for (int round = 0; round < ROUNDS && !state.isFinished(); ++round) {
+				state.execute();
+				api.setCurrentBalance(state.getCurrentBalance());
+				api.bumpCurrentBlockHeight();
+			}
+
+			if (!state.isFinished() && !state.hadFatalError())
+				states.add(state);
+		}
+
+		return states;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		List<MachineState> states = runningStates();
+		for (int i = 0; i < states.size(); ++i) {
+			MachineState state = states.get(i);
+			System.out.println(String.format("AT %d: V1 %d bytes, V2 %d bytes, COMPACT %d bytes", i,
+					state.toBytes(StateFormat.V1).length, state.toBytes(StateFormat.V2).length, state.toBytes(StateFormat.COMPACT).length));
+		}
+
+		byte[] randomDataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+		new Random(0L).nextBytes(randomDataBytes);
+		MachineState randomState = new MachineState(new TestAPI(), new QuietLoggerFactory(), TestUtils.HEADER_BYTES, states.get(0).getCodeBytes(), randomDataBytes);
+		System.out.println(String.format("random data: V1 %d bytes, COMPACT %d bytes",
+				randomState.toBytes(StateFormat.V1).length, randomState.toBytes(StateFormat.COMPACT).length));
+
+		new Runner(new OptionsBuilder().include(CompactStateBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
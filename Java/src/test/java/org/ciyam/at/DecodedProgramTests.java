@@ -0,0 +1,139 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.ciyam.at.test.ExecutableTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DecodedProgramTests extends ExecutableTest {
+
+	@Before
+	public void beforeDecodedTest() {
+		MachineState.setDefaultExecutionEngine(ExecutionEngine.FAST);
+	}
+
+	@After
+	public void afterDecodedTest() {
+		MachineState.setDefaultExecutionEngine(ExecutionEngine.REFERENCE);
+	}
+
+	@Test
+	public void testDecodeSlots() throws ExecutionException {
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(8888L);
+		codeByteBuffer.put(OpCode.ADD_DAT.value).putInt(1).putInt(0);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		DecodedProgram decodedProgram = DecodedProgram.decode(codeByteBuffer.array());
+
+		int dataLength = dataByteBuffer.limit();
+
+		assertNotEquals(DecodedProgram.NOT_DECODED, decodedProgram.getSlot(0x0000, dataLength));
+		assertEquals(OpCode.SET_VAL, decodedProgram.getOpCode(decodedProgram.getSlot(0x0000, dataLength)));
+
+		// Middle of SET_VAL
+		assertEquals(DecodedProgram.NOT_DECODED, decodedProgram.getSlot(0x0001, dataLength));
+
+		assertEquals(OpCode.ADD_DAT, decodedProgram.getOpCode(decodedProgram.getSlot(0x000d, dataLength)));
+		assertEquals(OpCode.FIN_IMD, decodedProgram.getOpCode(decodedProgram.getSlot(0x0016, dataLength)));
+
+		// Out of bounds
+		assertEquals(DecodedProgram.NOT_DECODED, decodedProgram.getSlot(-1, dataLength));
+		assertEquals(DecodedProgram.NOT_DECODED, decodedProgram.getSlot(decodedProgram.getCodeLength(), dataLength));
+
+		// Data segment too small for ADD_DAT's @1
+		assertNotEquals(DecodedProgram.NOT_DECODED, decodedProgram.getSlot(0x000d, 2 * MachineState.VALUE_SIZE));
+		assertEquals(DecodedProgram.NOT_DECODED, decodedProgram.getSlot(0x000d, 1 * MachineState.VALUE_SIZE));
+	}
+
+	@Test
+	public void testInvalidInstructionsNotDecoded() throws ExecutionException {
+		int badDataAddress = dataByteBuffer.limit() / MachineState.VALUE_SIZE;
+
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(-1).putLong(8888L); // negative data address
+		codeByteBuffer.put(OpCode.JMP_ADR.value).putInt(0x1000); // beyond code segment
+		codeByteBuffer.put(OpCode.BZR_DAT.value).putInt(0).put((byte) -0x20); // branch target before code segment
+		codeByteBuffer.put(OpCode.EXT_FUN.value).putShort((short) 0x7777); // unknown function
+		codeByteBuffer.put(OpCode.EXT_FUN.value).putShort(FunctionCode.ECHO.value); // wrong param count
+		codeByteBuffer.put(OpCode.SLP_DAT.value).putInt(0x7ffffff0); // block height outside code segment
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(badDataAddress).putLong(8888L); // valid but beyond data segment
+		codeByteBuffer.put((byte) 0xdd); // unknown opcode
+
+		DecodedProgram decodedProgram = DecodedProgram.decode(codeByteBuffer.array());
+
+		int dataLength = dataByteBuffer.limit();
+
+		for (int pc = 0; pc < codeByteBuffer.position(); ++pc)
+			assertEquals(String.format("PC %04x unexpectedly decoded", pc), DecodedProgram.NOT_DECODED, decodedProgram.getSlot(pc, dataLength));
+	}
+
+	@Test
+	public void testInvalidInstructionFallback() throws ExecutionException {
+		int badDataAddress = dataByteBuffer.limit() / MachineState.VALUE_SIZE;
+
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(badDataAddress).putLong(8888L);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		execute(true);
+
+		assertTrue(state.isFinished());
+		assertTrue(state.hadFatalError());
+	}
+
+	@Test
+	public void testJumpIntoInstruction() throws ExecutionException {
+		// SET_VAL's immediate value starts with FIN_IMD opcode byte
+		long trickValue = ((long) OpCode.FIN_IMD.value) << 56;
+
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(trickValue);
+		codeByteBuffer.put(OpCode.JMP_ADR.value).putInt(0x0005);
+
+		execute(true);
+
+		assertTrue(state.isFinished());
+		assertFalse(state.hadFatalError());
+		assertEquals(trickValue, getData(0));
+	}
+
+	@Test
+	public void testCacheSharing() {
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(8888L);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		byte[] codeBytes = codeByteBuffer.array();
+
+		DecodedProgram decodedProgram1 = DecodedProgram.fromCodeBytes(ByteBuffer.wrap(codeBytes.clone()));
+		DecodedProgram decodedProgram2 = DecodedProgram.fromCodeBytes(ByteBuffer.wrap(codeBytes.clone()).asReadOnlyBuffer());
+
+		assertSame(decodedProgram1, decodedProgram2);
+
+		codeBytes[1] = 1;
+
+		DecodedProgram decodedProgram3 = DecodedProgram.fromCodeBytes(ByteBuffer.wrap(codeBytes));
+
+		assertNotSame(decodedProgram1, decodedProgram3);
+	}
+
+	@Test
+	public void testDecodedLoop() throws ExecutionException {
+		// Count down from 100 into @1, summing into @2
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(100L);
+		int loopAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.ADD_DAT.value).putInt(2).putInt(0);
+		codeByteBuffer.put(OpCode.DEC_DAT.value).putInt(0);
+		int branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BNZ_DAT.value).putInt(0).put((byte) (loopAddress - branchAddress));
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		execute(false);
+
+		assertTrue(state.isFinished());
+		assertFalse(state.hadFatalError());
+		assertEquals(0L, getData(0));
+		assertEquals(5050L, getData(2));
+	}
+
+}
@@ -0,0 +1,94 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.ciyam.at.MachineState.MemoryModel;
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.After;
+import org.junit.Test;
+
+public class DirtyDataPageTests extends ExecutableTest {
+
+	@After
+	public void afterDirtyDataPageTest() {
+		MachineState.setCompilationThreshold(0);
+	}
+
+	@Test
+	public void testDirtyDataPages() {
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(3).putLong(1234L);
+		codeByteBuffer.put(OpCode.EXT_FUN_DAT.value).putShort(FunctionCode.SET_A1.value).putInt(3);
+		codeByteBuffer.put(OpCode.EXT_FUN_DAT.value).putShort(FunctionCode.GET_A_IND.value).putInt(5);
+		codeByteBuffer.put(OpCode.STP_IMD.value);
+
+		// GET_A_IND writes A1..A4 into @(@5) onwards
+		dataByteBuffer.putLong(5 * MachineState.VALUE_SIZE, 10L);
+
+		MachineState state = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+		assertEquals(MachineState.VALUE_SIZE, state.getDataPageSize());
+		assertTrue(state.getDirtyDataPages().isEmpty());
+
+		state.execute();
+		assertFalse(state.hadFatalError());
+
+		BitSet expectedPages = new BitSet();
+		expectedPages.set(3);
+		expectedPages.set(10, 14);
+		assertEquals(expectedPages, state.getDirtyDataPages());
+
+		// Dirty pages are reset each round
+		codeByteBuffer.put(0, OpCode.STP_IMD.value);
+		state = MachineState.fromBytes(api, loggerFactory, state.toBytes(), codeByteBuffer.array());
+		state.execute();
+		assertTrue(state.getDirtyDataPages().isEmpty());
+	}
+
+	/** Every changed page is reported dirty, identically for all engines, memory models and compiled code */
+	@Test
+	public void testCoversChangedPages() {
+		Random random = new Random(0xd127L);
+
+		for (int i = 0; i < 100; ++i) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			BitSet referencePages = dirtyPagesAfterRound(codeBytes, dataBytes, ExecutionEngine.REFERENCE, MemoryModel.BYTE_BUFFER, 0);
+
+			assertEquals(referencePages, dirtyPagesAfterRound(codeBytes, dataBytes, ExecutionEngine.FAST, MemoryModel.BYTE_BUFFER, 0));
+			assertEquals(referencePages, dirtyPagesAfterRound(codeBytes, dataBytes, ExecutionEngine.FAST, MemoryModel.ARRAY, 0));
+			assertEquals(referencePages, dirtyPagesAfterRound(codeBytes, dataBytes, ExecutionEngine.FAST, MemoryModel.BYTE_BUFFER, 1));
+		}
+	}
+
+	private static BitSet dirtyPagesAfterRound(byte[] codeBytes, byte[] dataBytes, ExecutionEngine executionEngine, MemoryModel memoryModel, int compilationThreshold) {
+		MachineState.setCompilationThreshold(compilationThreshold);
+
+		MachineState state = new MachineState(new TestAPI(), new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes);
+		state.setExecutionEngine(executionEngine);
+		state.setMemoryModel(memoryModel);
+
+		// Compiled code is only used after threshold rounds, so compare second round
+		state.execute();
+		((TestAPI) state.getAPI()).bumpCurrentBlockHeight();
+
+		byte[] dataBefore = MachineState.extractDataBytes(state.toBytes());
+		state.execute();
+		byte[] dataAfter = MachineState.extractDataBytes(state.toBytes());
+
+		BitSet dirtyPages = state.getDirtyDataPages();
+		for (int page = 0; page < dataBefore.length / state.getDataPageSize(); ++page)
+			for (int offset = page * state.getDataPageSize(); offset < (page + 1) * state.getDataPageSize(); ++offset)
+				if (dataBefore[offset] != dataAfter[offset])
+					assertTrue("changed page " + page + " not dirty", dirtyPages.get(page));
+
+		return dirtyPages;
+	}
+
+}
@@ -0,0 +1,128 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares map-based opcode/function code lookup, as previously used, against dispatch tables.
+ * <p>
+ * Not run as part of unit tests. Run from <tt>Java</tt> directory using:<br>
+ * <tt>mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/test-classpath.txt</tt><br>
+ * <tt>java -cp target/classes:target/test-classes:$(cat target/test-classpath.txt) org.openjdk.jmh.Main DispatchBenchmark</tt>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	/** Must be multiple of number of opcodes in loop so user stack stays balanced */
+	private static final int STEPS = 1200;
+
+	// Previous map-based lookups, for comparison
+	private static final Map<Byte, OpCode> opCodeMap = Arrays.stream(OpCode.values()).collect(Collectors.toMap(opcode -> opcode.value, opcode -> opcode));
+	private static final Map<Short, FunctionCode> functionCodeMap = Arrays.stream(FunctionCode.values())
+			.collect(Collectors.toMap(functionCode -> functionCode.value, functionCode -> functionCode));
+
+	private byte[] rawOpCodes;
+	private short[] rawFunctionCodes;
+	private MachineState state;
+
+	@Setup
+	public void setup() {
+		rawOpCodes = new byte[OpCode.values().length];
+		for (int i = 0; i < rawOpCodes.length; ++i)
+			rawOpCodes[i] = OpCode.values()[i].value;
+
+		rawFunctionCodes = new short[FunctionCode.values().length];
+		for (int i = 0; i < rawFunctionCodes.length; ++i)
+			rawFunctionCodes[i] = FunctionCode.values()[i].value;
+
+		ByteBuffer codeByteBuffer = ByteBuffer.allocate(TestUtils.NUM_CODE_PAGES * MachineState.OPCODE_SIZE);
+		codeByteBuffer.put(OpCode.ADD_VAL.value).putInt(0).putLong(1L);
+		codeByteBuffer.put(OpCode.SET_DAT.value).putInt(1).putInt(0);
+		codeByteBuffer.put(OpCode.MUL_DAT.value).putInt(1).putInt(0);
+		codeByteBuffer.put(OpCode.PSH_DAT.value).putInt(1);
+		codeByteBuffer.put(OpCode.POP_DAT.value).putInt(2);
+		codeByteBuffer.put(OpCode.JMP_ADR.value).putInt(0x0000);
+
+		byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+
+		state = new MachineState(new TestAPI(), new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataBytes);
+	}
+
+	@Benchmark
+	public void opCodeMapLookup(Blackhole blackhole) {
+		for (byte rawOpCode : rawOpCodes)
+			blackhole.consume(opCodeMap.get(rawOpCode));
+	}
+
+	@Benchmark
+	public void opCodeTableLookup(Blackhole blackhole) {
+		for (byte rawOpCode : rawOpCodes)
+			blackhole.consume(OpCode.valueOf(rawOpCode));
+	}
+
+	@Benchmark
+	public void functionCodeMapLookup(Blackhole blackhole) {
+		for (short rawFunctionCode : rawFunctionCodes)
+			blackhole.consume(functionCodeMap.get(rawFunctionCode));
+	}
+
+	@Benchmark
+	public void functionCodeTableLookup(Blackhole blackhole) {
+		for (short rawFunctionCode : rawFunctionCodes)
+			blackhole.consume(FunctionCode.valueOf(rawFunctionCode));
+	}
+
+	/** Per-instruction cost of undecoded execution loop using map lookup */
+	@Benchmark
+	@OperationsPerInvocation(STEPS)
+	public void executeLoopMapDispatch() throws ExecutionException {
+		ByteBuffer codeByteBuffer = state.codeByteBuffer;
+		codeByteBuffer.position(0);
+
+		for (int i = 0; i < STEPS; ++i)
+			opCodeMap.get(codeByteBuffer.get()).execute(state);
+	}
+
+	/** Per-instruction cost of undecoded execution loop using dispatch table */
+	@Benchmark
+	@OperationsPerInvocation(STEPS)
+	public void executeLoopTableDispatch() throws ExecutionException {
+		ByteBuffer codeByteBuffer = state.codeByteBuffer;
+		codeByteBuffer.position(0);
+
+		for (int i = 0; i < STEPS; ++i)
+			OpCode.valueOf(codeByteBuffer.get()).execute(state);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(DispatchBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
@@ -0,0 +1,199 @@
+package org.ciyam.at;
+
+import static org.ciyam.at.test.LockstepExecution.newMachineState;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.LockstepExecution;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Equivalence tests between <tt>REFERENCE</tt> and <tt>FAST</tt> execution engines, plus engine selection.
+ */
+public class ExecutionEngineTests extends ExecutableTest {
+
+	private static final int ROUNDS = 6;
+
+	@After
+	public void afterEngineTest() {
+		MachineState.setDefaultExecutionEngine(ExecutionEngine.REFERENCE);
+	}
+
+	@Test
+	public void testEngineSelection() {
+		// Faster engine is opt-in
+		assertEquals(ExecutionEngine.REFERENCE, MachineState.getDefaultExecutionEngine());
+
+		MachineState state = newMachineState(new TestAPI(), codeByteBuffer.array(), dataByteBuffer.array());
+		assertEquals(ExecutionEngine.REFERENCE, state.getExecutionEngine());
+
+		// Per AT
+		state.setExecutionEngine(ExecutionEngine.FAST);
+		assertEquals(ExecutionEngine.FAST, state.getExecutionEngine());
+
+		// Per node, which also applies to deserialized states
+		MachineState.setDefaultExecutionEngine(ExecutionEngine.FAST);
+		state = MachineState.fromBytes(new TestAPI(), new QuietLoggerFactory(), state.toBytes(), codeByteBuffer.array());
+		assertEquals(ExecutionEngine.FAST, state.getExecutionEngine());
+
+		try {
+			state.setExecutionEngine(null);
+			fail("Null execution engine should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testReferenceEngine() throws ExecutionException {
+		// Sum 1..100 into @1, with error handler
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(100L);
+		codeByteBuffer.put(OpCode.ERR_ADR.value).putInt(0x0080);
+		int loopAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.ADD_DAT.value).putInt(1).putInt(0);
+		codeByteBuffer.put(OpCode.DEC_DAT.value).putInt(0);
+		int branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BNZ_DAT.value).putInt(0).put((byte) (loopAddress - branchAddress));
+		// Divide by zero, handled by error address
+		codeByteBuffer.put(OpCode.DIV_DAT.value).putInt(1).putInt(0);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		codeByteBuffer.position(0x0080);
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(2).putLong(1L);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		MachineState.setDefaultExecutionEngine(ExecutionEngine.REFERENCE);
+		execute(true);
+
+		assertEquals(ExecutionEngine.REFERENCE, state.getExecutionEngine());
+		assertTrue(state.isFinished());
+		assertFalse(state.hadFatalError());
+		assertEquals(5050L, getData(1));
+		assertEquals(1L, getData(2));
+	}
+
+	/** Reference engine requests steps from API for every opcode executed, without caching per round */
+	@Test
+	public void testReferenceEngineRequestsStepsPerOpCode() {
+		final int[] requestCount = new int[1];
+		TestAPI countingApi = new TestAPI() {
+			@Override
+			public int getOpCodeSteps(OpCode opcode) {
+				++requestCount[0];
+				return super.getOpCodeSteps(opcode);
+			}
+		};
+
+		for (int i = 0; i < 10; ++i)
+			codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		MachineState state = newMachineState(countingApi, codeByteBuffer.array(), dataByteBuffer.array());
+		state.setExecutionEngine(ExecutionEngine.REFERENCE);
+		state.execute();
+
+		assertTrue(state.isFinished());
+		assertEquals(11, requestCount[0]);
+	}
+
+	/** Verified program rewound by API into unreachable code, that falls through to an out-of-bounds data address, fails as per reference engine */
+	@Test
+	public void testRewindToUnreachableCode() {
+		final int badDataAddress = dataByteBuffer.limit() / MachineState.VALUE_SIZE;
+
+		codeByteBuffer.put(OpCode.JMP_ADR.value).putInt(0x0040);
+
+		// Unreachable, so not verified, with first instruction fitting data segment but second not
+		final int unreachableAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(1L);
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(badDataAddress).putLong(2L);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		codeByteBuffer.position(0x0040);
+		codeByteBuffer.put(OpCode.EXT_FUN.value).putShort(FunctionCode.PUT_CREATOR_INTO_B.value);
+		final int afterCallAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		byte[] codeBytes = codeByteBuffer.array();
+		assertTrue(Program.fromCodeBytes(codeBytes).getVerification(dataByteBuffer.limit()).isValid());
+
+		byte[] referenceStateBytes = null;
+		for (ExecutionEngine engine : new ExecutionEngine[] { ExecutionEngine.REFERENCE, ExecutionEngine.FAST }) {
+			TestAPI rewindingApi = new TestAPI() {
+				@Override
+				public void putCreatorAddressIntoB(MachineState state) {
+					super.putCreatorAddressIntoB(state);
+					rewindCodePosition(state, afterCallAddress - unreachableAddress);
+				}
+			};
+
+			MachineState state = newMachineState(rewindingApi, codeBytes, dataByteBuffer.array());
+			state.setExecutionEngine(engine);
+			state.execute();
+
+			assertTrue(engine.getName(), state.hadFatalError());
+			assertEquals(engine.getName(), 1L, state.getDataValue(0));
+
+			if (referenceStateBytes == null)
+				referenceStateBytes = state.toBytes();
+			else
+				assertArrayEquals(engine.getName(), referenceStateBytes, state.toBytes());
+		}
+	}
+
+	@Test
+	public void testRandomPrograms() {
+		Random random = new Random(0x9abcL);
+
+		for (int program = 0; program < 200; ++program) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			long initialBalance = 100L + random.nextInt(5000);
+
+			assertEquivalent(codeBytes, dataBytes, initialBalance);
+		}
+	}
+
+	@Test
+	public void testRandomProgramsCompiled() {
+		Random random = new Random(0xdef0L);
+
+		MachineState.setCompilationThreshold(1);
+		try {
+			for (int program = 0; program < 50; ++program) {
+				byte[] codeBytes = RandomPrograms.generate(random);
+				byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+
+				assertEquivalent(codeBytes, dataBytes, 100L + random.nextInt(5000));
+			}
+		} finally {
+			MachineState.setCompilationThreshold(0);
+		}
+	}
+
+	private static void assertEquivalent(byte[] codeBytes, byte[] dataBytes, long initialBalance) {
+		TestAPI referenceApi = new TestAPI();
+		TestAPI fastApi = new TestAPI();
+
+		referenceApi.setCurrentBalance(initialBalance);
+		fastApi.setCurrentBalance(initialBalance);
+
+		MachineState referenceState = newMachineState(referenceApi, codeBytes, dataBytes.clone());
+		referenceState.setExecutionEngine(ExecutionEngine.REFERENCE);
+		MachineState fastState = newMachineState(fastApi, codeBytes, dataBytes.clone());
+		fastState.setExecutionEngine(ExecutionEngine.FAST);
+
+		new LockstepExecution(referenceApi, referenceState, fastApi, fastState).run(ROUNDS);
+	}
+
+}
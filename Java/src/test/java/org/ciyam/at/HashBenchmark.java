@@ -0,0 +1,80 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares hash providers. JCE RIPE-MD160 comes from BouncyCastle, registered during setup, as the JDK has none.
+ * <p>
+ * Not run as part of unit tests. Run from <tt>Java</tt> directory using:<br>
+ * <tt>mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/test-classpath.txt</tt><br>
+ * <tt>java -cp target/classes:target/test-classes:$(cat target/test-classpath.txt) org.openjdk.jmh.Main HashBenchmark</tt>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+	@Param({ "BUILT_IN", "JCE" })
+	public String providerName;
+
+	@Param({ "MD5", "SHA256", "RIPEMD160" })
+	public String algorithmName;
+
+	/** Typical atomic-swap secret, and a larger message */
+	@Param({ "32", "1024" })
+	public int messageLength;
+
+	private HashProvider hashProvider;
+	private HashProvider.Algorithm algorithm;
+	private ByteBuffer message;
+	private byte[] digest;
+
+	@Setup
+	public void setup() {
+		if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null)
+			Security.addProvider(new BouncyCastleProvider());
+
+		hashProvider = providerName.equals("JCE") ? HashProvider.JCE : HashProvider.BUILT_IN;
+		algorithm = HashProvider.Algorithm.valueOf(algorithmName);
+
+		byte[] messageBytes = new byte[messageLength];
+		new Random(0L).nextBytes(messageBytes);
+		message = ByteBuffer.wrap(messageBytes);
+
+		digest = new byte[algorithm.digestLength];
+	}
+
+	@Benchmark
+	public byte[] hash() throws ExecutionException {
+		message.rewind();
+		hashProvider.hash(algorithm, message, digest);
+		return digest;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(HashBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
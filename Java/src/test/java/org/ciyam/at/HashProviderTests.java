@@ -0,0 +1,158 @@
+package org.ciyam.at;
+
+import static org.ciyam.at.test.TestUtils.hexToBytes;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.ciyam.at.HashProvider.Algorithm;
+import org.ciyam.at.test.ExecutableTest;
+import org.junit.After;
+import org.junit.Test;
+
+public class HashProviderTests extends ExecutableTest {
+
+	@After
+	public void afterHashProviderTest() {
+		MachineState.setHashProvider(HashProvider.BUILT_IN);
+	}
+
+	@Test
+	public void testDefaultProvider() {
+		assertEquals(HashProvider.BUILT_IN, MachineState.getHashProvider());
+
+		try {
+			MachineState.setHashProvider(null);
+			fail("Null hash provider should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testMD5Vectors() throws ExecutionException {
+		assertHash(Algorithm.MD5, "", "d41d8cd98f00b204e9800998ecf8427e");
+		assertHash(Algorithm.MD5, "abc", "900150983cd24fb0d6963f7d28e17f72");
+		assertHash(Algorithm.MD5, "12345678901234567890123456789012345678901234567890123456789012345678901234567890", "57edf4a22be3c955ac49da2e2107b67a");
+	}
+
+	@Test
+	public void testSHA256Vectors() throws ExecutionException {
+		assertHash(Algorithm.SHA256, "", "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855");
+		assertHash(Algorithm.SHA256, "abc", "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+		assertHash(Algorithm.SHA256, "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq", "248d6a61d20638b8e5c026930c3e6039a33ce45964ff2167f6ecedd419db06c1");
+	}
+
+	@Test
+	public void testRIPEMD160Vectors() throws ExecutionException {
+		assertHash(Algorithm.RIPEMD160, "", "9c1185a5c5e9fc54612808977ee8f548b2258d31");
+		assertHash(Algorithm.RIPEMD160, "abc", "8eb208f7e05d987a9b044a8e98c6b087f15a0bfc");
+		assertHash(Algorithm.RIPEMD160, "message digest", "5d0689ef49d2fae572b881b123a85ffa21595f36");
+		assertHash(Algorithm.RIPEMD160, "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq", "12a053384a9c0c88e405a06c27dcf49ada62eb2b");
+		assertHash(Algorithm.RIPEMD160, "12345678901234567890123456789012345678901234567890123456789012345678901234567890", "9b752e45573d4b39f4dbd3323cab82bf63326bfb");
+	}
+
+	@Test
+	public void testBuiltInMatchesJce() throws ExecutionException {
+		Random random = new Random(0x2468L);
+
+		// Lengths around padding and block boundaries
+		for (int length = 0; length <= 200; ++length) {
+			byte[] message = new byte[length];
+			random.nextBytes(message);
+
+			for (Algorithm algorithm : Algorithm.values()) {
+				byte[] expected = new byte[algorithm.digestLength];
+				HashProvider.JCE.hash(algorithm, ByteBuffer.wrap(message), expected);
+
+				byte[] actual = new byte[algorithm.digestLength];
+				HashProvider.BUILT_IN.hash(algorithm, ByteBuffer.wrap(message), actual);
+
+				assertArrayEquals(algorithm.name() + " length " + length, expected, actual);
+			}
+		}
+	}
+
+	@Test
+	public void testBufferTypes() throws ExecutionException {
+		byte[] message = new byte[300];
+		new Random(0x1357L).nextBytes(message);
+
+		for (Algorithm algorithm : Algorithm.values()) {
+			byte[] expected = new byte[algorithm.digestLength];
+			HashProvider.BUILT_IN.hash(algorithm, ByteBuffer.wrap(message, 7, 200).slice(), expected);
+
+			// Offset into backing array
+			ByteBuffer heapBuffer = ByteBuffer.wrap(message);
+			heapBuffer.position(7).limit(207);
+			assertHashOf(algorithm, expected, heapBuffer);
+
+			// No accessible backing array
+			assertHashOf(algorithm, expected, heapBuffer.asReadOnlyBuffer().position(7));
+
+			// Direct
+			ByteBuffer directBuffer = ByteBuffer.allocateDirect(message.length).put(message);
+			directBuffer.position(7).limit(207);
+			assertHashOf(algorithm, expected, directBuffer);
+		}
+	}
+
+	@Test
+	public void testFunctionCodesUseProvider() throws ExecutionException {
+		final String message = "The quick, brown fox jumped over the lazy dog.";
+		final byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+
+		// Data addr 0 has start of message bytes (address 2), addr 1 has length of message bytes, addr 2+ for message
+		dataByteBuffer.putLong(2L);
+		dataByteBuffer.putLong(messageBytes.length);
+		dataByteBuffer.put(messageBytes);
+
+		codeByteBuffer.put(OpCode.EXT_FUN_DAT_2.value).putShort(FunctionCode.SHA256_INTO_B.value).putInt(0).putInt(1);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		// Provider that fills digest with 0x5a
+		MachineState.setHashProvider(new HashProvider() {
+			@Override
+			public String getName() {
+				return "fake";
+			}
+
+			@Override
+			public void hash(Algorithm algorithm, ByteBuffer input, byte[] output) {
+				for (int i = 0; i < algorithm.digestLength; ++i)
+					output[i] = 0x5a;
+
+				input.position(input.limit());
+			}
+		});
+
+		execute(true);
+
+		assertTrue(state.isFinished());
+		assertFalse(state.hadFatalError());
+		assertEquals(0x5a5a5a5a5a5a5a5aL, state.b1);
+		assertEquals(0x5a5a5a5a5a5a5a5aL, state.b4);
+	}
+
+	private static void assertHash(Algorithm algorithm, String message, String expectedHex) throws ExecutionException {
+		ByteBuffer input = ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+		byte[] actual = new byte[algorithm.digestLength];
+
+		HashProvider.BUILT_IN.hash(algorithm, input, actual);
+
+		assertArrayEquals(algorithm.name() + " of \"" + message + "\"", hexToBytes(expectedHex), actual);
+		assertFalse(input.hasRemaining());
+	}
+
+	private static void assertHashOf(Algorithm algorithm, byte[] expected, ByteBuffer input) throws ExecutionException {
+		byte[] actual = new byte[algorithm.digestLength];
+
+		HashProvider.BUILT_IN.hash(algorithm, input, actual);
+
+		assertArrayEquals(algorithm.name(), expected, actual);
+		assertFalse(input.hasRemaining());
+	}
+
+}
@@ -5,6 +5,7 @@ import static org.junit.Assert.*;
 
 import java.nio.charset.StandardCharsets;
 
+import org.ciyam.at.MachineState.MemoryModel;
 import org.ciyam.at.test.ExecutableTest;
 import org.junit.Test;
 
@@ -55,6 +56,38 @@ public class HashingFunctionCodeTests extends ExecutableTest {
 		checkHash("HASH160", FunctionCode.CHECK_HASH160_WITH_B, "54d54a03fd447996ab004dee87fab80bf9477e23");
 	}
 
+	@Test
+	public void testCHECK_HASH160_Mismatch() throws ExecutionException {
+		// Differs only in last byte, which is in MSB of B3
+		checkHash("HASH160", FunctionCode.CHECK_HASH160_WITH_B, "54d54a03fd447996ab004dee87fab80bf9477e24", 0L);
+	}
+
+	@Test
+	public void testCHECK_SHA256_Mismatch() throws ExecutionException {
+		// Differs only in last byte, i.e. LSB of B4
+		checkHash("SHA256", FunctionCode.CHECK_SHA256_WITH_B, "c01d63749ebe5d6b16f7247015cac2e49a5ac4fb6c7f24bed07b8aa904da97f4", 0L);
+	}
+
+	@Test
+	public void testHashesWithArrayMemoryModel() throws ExecutionException {
+		MachineState.setDefaultMemoryModel(MemoryModel.ARRAY);
+
+		try {
+			testHash("SHA256", FunctionCode.SHA256_INTO_B, "c01d63749ebe5d6b16f7247015cac2e49a5ac4fb6c7f24bed07b8aa904da97f3");
+		} finally {
+			MachineState.setDefaultMemoryModel(MemoryModel.BYTE_BUFFER);
+		}
+	}
+
+	@Test
+	public void testRepeatedHashes() throws ExecutionException {
+		// Cached digests must be reset between uses
+		for (int i = 0; i < 3; ++i) {
+			beforeTest();
+			testHash("HASH160", FunctionCode.HASH160_INTO_B, "54d54a03fd447996ab004dee87fab80bf9477e23");
+		}
+	}
+
 	private void testHash(String hashName, FunctionCode hashFunction, String expected) throws ExecutionException {
 		// Data addr 0 for setting values
 		dataByteBuffer.putLong(0L);
@@ -92,6 +125,10 @@ public class HashingFunctionCodeTests extends ExecutableTest {
 	}
 
 	private void checkHash(String hashName, FunctionCode checkFunction, String expected) throws ExecutionException {
+		checkHash(hashName, checkFunction, expected, 1L);
+	}
+
+	private void checkHash(String hashName, FunctionCode checkFunction, String expected, long expectedResult) throws ExecutionException {
 		// Data addr 0 for setting values
 		dataByteBuffer.putLong(0L);
 		// Data addr 1 for results
@@ -117,7 +154,7 @@ public class HashingFunctionCodeTests extends ExecutableTest {
 
 		assertTrue("MachineState isn't in finished state", state.isFinished());
 		assertFalse("MachineState encountered fatal error", state.hadFatalError());
-		assertEquals(hashName + " hashes do not match", 1L, getData(1));
+		assertEquals(hashName + " check result incorrect", expectedResult, getData(1));
 	}
 
 	private void loadHashIntoB(String expected) {
@@ -0,0 +1,98 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.ciyam.at.MachineState.MemoryModel;
+import org.ciyam.at.MachineState.StateFormat;
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.Test;
+
+public class LazyStateTests extends ExecutableTest {
+
+	/** Lazily restored states execute identically to fully restored states */
+	@Test
+	public void testMatchesFromBytes() {
+		Random random = new Random(0x1a2eL);
+
+		for (int i = 0; i < 60; ++i) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			final StateFormat stateFormat = StateFormat.values()[i % StateFormat.values().length];
+
+			TestAPI testApi = new TestAPI();
+			byte[] stateBytes = new MachineState(testApi, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes).toBytes(stateFormat);
+
+			for (int round = 0; round < 3; ++round) {
+				MachineState expectedState = MachineState.fromBytes(testApi, loggerFactory, stateBytes, codeBytes);
+				expectedState.execute();
+
+				// Serialized state within larger direct buffer, as if memory-mapped
+				ByteBuffer mappedBytes = ByteBuffer.allocateDirect(stateBytes.length + 10);
+				mappedBytes.position(7);
+				mappedBytes.put(stateBytes);
+				mappedBytes.position(7).limit(7 + stateBytes.length);
+
+				MachineState lazyState = MachineState.lazyFromBytes(testApi, loggerFactory, mappedBytes, codeBytes);
+				lazyState.execute();
+
+				assertEquals(7, mappedBytes.position());
+				assertArrayEquals("program " + i + ", round " + round, expectedState.toBytes(stateFormat), lazyState.toBytes(stateFormat));
+				assertEquals(expectedState.getDirtyDataPages(), lazyState.getDirtyDataPages());
+
+				stateBytes = lazyState.toBytes(stateFormat);
+				testApi.bumpCurrentBlockHeight();
+			}
+		}
+	}
+
+	@Test
+	public void testCopyOnWrite() {
+		// Write to data chunk 0, leaving chunk 1 (addresses 32 onwards) unwritten
+		codeByteBuffer.put(OpCode.SET_DAT.value).putInt(0).putInt(40);
+		codeByteBuffer.put(OpCode.STP_IMD.value);
+		byte[] codeBytes = codeByteBuffer.array();
+
+		dataByteBuffer.putLong(1 * MachineState.VALUE_SIZE, 1111L);
+		dataByteBuffer.putLong(40 * MachineState.VALUE_SIZE, 4040L);
+
+		byte[] stateBytes = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeBytes, dataByteBuffer.array()).toBytes();
+		byte[] originalStateBytes = stateBytes.clone();
+
+		MachineState state = MachineState.lazyFromBytes(api, loggerFactory, ByteBuffer.wrap(stateBytes), codeBytes);
+		state.execute();
+		assertTrue(state.isStopped());
+
+		// Serialized state is never modified
+		assertArrayEquals(originalStateBytes, stateBytes);
+
+		byte[] dataBytes = MachineState.extractDataBytes(state.toBytes());
+		assertEquals(4040L, ByteBuffer.wrap(dataBytes).getLong(0));
+		assertEquals(1111L, ByteBuffer.wrap(dataBytes).getLong(1 * MachineState.VALUE_SIZE));
+
+		// Unwritten chunks are still read in place, written chunks were copied
+		final int dataOffset = MachineState.HEADER_LENGTH;
+		ByteBuffer.wrap(stateBytes).putLong(dataOffset + 40 * MachineState.VALUE_SIZE, 5050L);
+		ByteBuffer.wrap(stateBytes).putLong(dataOffset + 1 * MachineState.VALUE_SIZE, 2222L);
+
+		dataBytes = MachineState.extractDataBytes(state.toBytes());
+		assertEquals(5050L, ByteBuffer.wrap(dataBytes).getLong(40 * MachineState.VALUE_SIZE));
+		assertEquals(1111L, ByteBuffer.wrap(dataBytes).getLong(1 * MachineState.VALUE_SIZE));
+
+		// Changing memory model copies whole data segment
+		state.setMemoryModel(MemoryModel.ARRAY);
+		ByteBuffer.wrap(stateBytes).putLong(dataOffset + 40 * MachineState.VALUE_SIZE, 6060L);
+
+		dataBytes = MachineState.extractDataBytes(state.toBytes());
+		assertEquals(5050L, ByteBuffer.wrap(dataBytes).getLong(40 * MachineState.VALUE_SIZE));
+		assertEquals(1111L, ByteBuffer.wrap(dataBytes).getLong(1 * MachineState.VALUE_SIZE));
+	}
+
+}
@@ -0,0 +1,176 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.ciyam.at.MachineState.MemoryModel;
+import org.ciyam.at.MachineState.StateFormat;
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.Test;
+
+public class MachineStateArenaTests extends ExecutableTest {
+
+	/** Arena-backed ATs execute and serialize exactly as heap-backed ATs, including across free and compaction */
+	@Test
+	public void testMatchesHeap() {
+		final int atCount = 20;
+		Random random = new Random(0xa7e4aL);
+
+		List<MachineState> heapStates = new ArrayList<>();
+		List<MachineState> arenaStates = new ArrayList<>();
+		List<TestAPI> heapApis = new ArrayList<>();
+		List<TestAPI> arenaApis = new ArrayList<>();
+
+		for (int i = 0; i < atCount; ++i) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			TestAPI heapApi = new TestAPI();
+			TestAPI arenaApi = new TestAPI();
+			heapStates.add(new MachineState(heapApi, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes));
+			arenaStates.add(new MachineState(arenaApi, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes));
+			heapApis.add(heapApi);
+			arenaApis.add(arenaApi);
+		}
+
+		MachineStateArena arena = new MachineStateArena(atCount * arenaStates.get(0).getArenaLength());
+		for (MachineState state : arenaStates)
+			arena.allocate(state);
+
+		assertEquals(atCount, arena.getLiveCount());
+		assertEquals(0, arena.getUnallocatedLength());
+		assertTrue(arenaStates.get(0).dataByteBuffer.isDirect());
+		assertTrue(arenaStates.get(0).callStackByteBuffer.isDirect());
+		assertTrue(arenaStates.get(0).userStackByteBuffer.isDirect());
+
+		for (int round = 0; round < 5; ++round) {
+			for (int i = 0; i < atCount; ++i) {
+				MachineState heapState = heapStates.get(i);
+				MachineState arenaState = arenaStates.get(i);
+
+				heapState.execute();
+				arenaState.execute();
+
+				for (StateFormat stateFormat : StateFormat.values())
+					assertArrayEquals("AT " + i + " round " + round, heapState.toBytes(stateFormat), arenaState.toBytes(stateFormat));
+
+				heapApis.get(i).bumpCurrentBlockHeight();
+				arenaApis.get(i).bumpCurrentBlockHeight();
+			}
+
+			// Free every other state, which remains usable on heap, then compact the rest
+			if (round == 1) {
+				for (int i = 0; i < atCount; i += 2)
+					arena.free(arenaStates.get(i));
+
+				assertFalse(arenaStates.get(0).dataByteBuffer.isDirect());
+				assertEquals(0, arena.getUnallocatedLength());
+
+				arena.compact();
+
+				assertEquals(atCount / 2, arena.getLiveCount());
+				assertEquals(arena.getCapacity() / 2, arena.getUnallocatedLength());
+			}
+		}
+	}
+
+	/** Arena-backed state is restored in place, whatever the default memory model */
+	@Test
+	public void testReuseInPlace() {
+		codeByteBuffer.put(OpCode.PSH_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.STP_IMD.value);
+
+		MachineState state = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+		state.execute();
+		byte[] stateBytes = state.toBytes();
+
+		MachineStateArena arena = new MachineStateArena(state.getArenaLength());
+		arena.allocate(state);
+
+		ByteBuffer dataBuffer = state.dataByteBuffer;
+		ByteBuffer userStackBuffer = state.userStackByteBuffer;
+
+		MachineState.setDefaultMemoryModel(MemoryModel.ARRAY);
+		try {
+			state.execute();
+
+			MachineStatePool pool = new MachineStatePool();
+			pool.release(state);
+			assertSame(state, pool.acquire(api, loggerFactory, stateBytes, codeByteBuffer.array()));
+		} finally {
+			MachineState.setDefaultMemoryModel(MemoryModel.BYTE_BUFFER);
+		}
+
+		assertSame(dataBuffer, state.dataByteBuffer);
+		assertSame(userStackBuffer, state.userStackByteBuffer);
+		assertArrayEquals(stateBytes, state.toBytes());
+
+		// Entry pushed by second execution, below restored stack pointer, is cleared
+		for (int i = 0; i < state.userStackByteBuffer.position(); ++i)
+			assertEquals("Stale user stack byte at " + i, 0, state.userStackByteBuffer.get(i));
+
+		try {
+			state.setMemoryModel(MemoryModel.ARRAY);
+			fail("Arena-backed state should be stuck with BYTE_BUFFER memory model");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		arena.free(state);
+		state.setMemoryModel(MemoryModel.ARRAY);
+		assertArrayEquals(stateBytes, state.toBytes());
+	}
+
+	@Test
+	public void testArenaFull() {
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		MachineState state1 = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+		MachineState state2 = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+		MachineState state3 = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+
+		MachineStateArena arena = new MachineStateArena(ByteBuffer.allocate(2 * state1.getArenaLength()));
+		arena.allocate(state1);
+		arena.allocate(state2);
+
+		try {
+			arena.allocate(state3);
+			fail("Allocation should fail when arena is full");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		try {
+			arena.allocate(state1);
+			fail("State can only be allocated once");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		// Freeing lower block leaves a hole, which allocation reclaims by compacting
+		arena.free(state1);
+		assertEquals(0, arena.getUnallocatedLength());
+
+		byte[] state2Bytes = state2.toBytes();
+		arena.allocate(state3);
+		assertArrayEquals(state2Bytes, state2.toBytes());
+		assertEquals(2, arena.getLiveCount());
+
+		try {
+			new MachineStateArena(ByteBuffer.allocate(16)).free(state2);
+			fail("Freeing from wrong arena should fail");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+}
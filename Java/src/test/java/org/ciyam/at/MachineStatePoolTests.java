@@ -0,0 +1,145 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.ciyam.at.MachineState.MemoryModel;
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.Test;
+
+public class MachineStatePoolTests extends ExecutableTest {
+
+	@Test
+	public void testReuseInPlace() {
+		codeByteBuffer.put(OpCode.PSH_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.STP_IMD.value);
+
+		MachineState state = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+		state.execute();
+		byte[] stateBytes = state.toBytes();
+
+		ByteBuffer dataBuffer = state.dataByteBuffer;
+		ByteBuffer callStackBuffer = state.callStackByteBuffer;
+		ByteBuffer userStackBuffer = state.userStackByteBuffer;
+
+		state.execute();
+		state.reuseFromBytes(api, stateBytes);
+
+		assertSame(dataBuffer, state.dataByteBuffer);
+		assertSame(callStackBuffer, state.callStackByteBuffer);
+		assertSame(userStackBuffer, state.userStackByteBuffer);
+		assertArrayEquals(stateBytes, state.toBytes());
+
+		// Entry pushed by second execution, below restored stack pointer, is cleared
+		for (int i = 0; i < state.userStackByteBuffer.position(); ++i)
+			assertEquals("Stale user stack byte at " + i, 0, state.userStackByteBuffer.get(i));
+	}
+
+	/** Executing ATs via pooled instances gives same results as fresh instances */
+	@Test
+	public void testMatchesFromBytes() {
+		for (MemoryModel memoryModel : MemoryModel.values()) {
+			MachineState.setDefaultMemoryModel(memoryModel);
+			try {
+				assertPoolMatchesFromBytes();
+			} finally {
+				MachineState.setDefaultMemoryModel(MemoryModel.BYTE_BUFFER);
+			}
+		}
+	}
+
+	private void assertPoolMatchesFromBytes() {
+		final int atCount = 20;
+		Random random = new Random(0x9001L);
+
+		List<byte[]> codeBytesList = new ArrayList<>();
+		List<byte[]> stateBytesList = new ArrayList<>();
+		List<TestAPI> apis = new ArrayList<>();
+
+		for (int i = 0; i < atCount; ++i) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			TestAPI testApi = new TestAPI();
+			MachineState state = new MachineState(testApi, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes);
+
+			codeBytesList.add(codeBytes);
+			stateBytesList.add(state.toBytes());
+			apis.add(testApi);
+		}
+
+		MachineStatePool pool = new MachineStatePool(2);
+
+		for (int block = 0; block < 5; ++block) {
+			for (int i = 0; i < atCount; ++i) {
+				TestAPI testApi = apis.get(i);
+
+				MachineState expectedState = MachineState.fromBytes(testApi, loggerFactory, stateBytesList.get(i), codeBytesList.get(i));
+				expectedState.execute();
+
+				MachineState pooledState = pool.acquire(testApi, loggerFactory, stateBytesList.get(i), codeBytesList.get(i));
+				pooledState.execute();
+
+				byte[] stateBytes = pooledState.toBytes();
+				assertArrayEquals("AT " + i + ", block " + block, expectedState.toBytes(), stateBytes);
+				assertEquals(expectedState.getDirtyDataPages(), pooledState.getDirtyDataPages());
+
+				pool.release(pooledState);
+				stateBytesList.set(i, stateBytes);
+			}
+
+			for (TestAPI testApi : apis)
+				testApi.bumpCurrentBlockHeight();
+		}
+
+		// Only first acquire needed a new instance
+		assertEquals(5L * atCount - 1, pool.getReuseCount());
+		assertEquals(1, pool.getIdleCount());
+	}
+
+	@Test
+	public void testKeyedByHeader() {
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+		byte[] codeBytes = codeByteBuffer.array();
+
+		byte[] otherHeaderBytes = TestUtils.toHeaderBytes(TestUtils.VERSION, TestUtils.NUM_CODE_PAGES, (short) (TestUtils.NUM_DATA_PAGES / 2),
+				TestUtils.NUM_CALL_STACK_PAGES, TestUtils.NUM_USER_STACK_PAGES, TestUtils.MIN_ACTIVATION_AMOUNT);
+
+		byte[] stateBytes = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeBytes, new byte[0]).toBytes();
+		byte[] otherStateBytes = new MachineState(api, loggerFactory, otherHeaderBytes, codeBytes, new byte[0]).toBytes();
+
+		MachineStatePool pool = new MachineStatePool(1);
+
+		MachineState state = pool.acquire(api, loggerFactory, stateBytes, codeBytes);
+		MachineState extraState = pool.acquire(api, loggerFactory, stateBytes, codeBytes);
+		pool.release(state);
+		pool.release(extraState);
+		assertEquals(1, pool.getIdleCount());
+
+		// Different header needs new instance
+		MachineState otherState = pool.acquire(api, loggerFactory, otherStateBytes, codeBytes);
+		assertNotSame(state, otherState);
+		assertArrayEquals(otherStateBytes, otherState.toBytes());
+		assertEquals(0L, pool.getReuseCount());
+
+		assertSame(state, pool.acquire(api, loggerFactory, stateBytes, codeBytes));
+		assertEquals(1L, pool.getReuseCount());
+
+		try {
+			state.reuseFromBytes(api, loggerFactory, otherStateBytes, codeBytes);
+			fail("Mismatched header should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+}
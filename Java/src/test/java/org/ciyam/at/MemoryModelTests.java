@@ -0,0 +1,233 @@
+package org.ciyam.at;
+
+import static org.ciyam.at.test.LockstepExecution.newMachineState;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.ciyam.at.MachineState.MemoryModel;
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.LockstepExecution;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Equivalence tests between <tt>BYTE_BUFFER</tt> and <tt>ARRAY</tt> memory models.
+ * <p>
+ * Each program is executed for several rounds under both models, with state serialized and deserialized between rounds.
+ * After every round, serialized state, steps, balance and program counter must match exactly.
+ */
+public class MemoryModelTests extends ExecutableTest {
+
+	private static final int ROUNDS = 6;
+
+	@After
+	public void afterMemoryModelTest() {
+		MachineState.setDefaultMemoryModel(MemoryModel.BYTE_BUFFER);
+	}
+
+	@Test
+	public void testDefaultMemoryModel() {
+		MachineState state = newMachineState(new TestAPI(), codeByteBuffer.array(), dataByteBuffer.array());
+		assertEquals(MemoryModel.BYTE_BUFFER, state.getMemoryModel());
+
+		MachineState.setDefaultMemoryModel(MemoryModel.ARRAY);
+
+		state = newMachineState(new TestAPI(), codeByteBuffer.array(), dataByteBuffer.array());
+		assertEquals(MemoryModel.ARRAY, state.getMemoryModel());
+
+		state = MachineState.fromBytes(new TestAPI(), new QuietLoggerFactory(), state.toBytes(), codeByteBuffer.array());
+		assertEquals(MemoryModel.ARRAY, state.getMemoryModel());
+
+		try {
+			MachineState.setDefaultMemoryModel(null);
+			fail("Null memory model should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testSubroutinesAndStack() throws ExecutionException {
+		// Push 1..5 via subroutine, then pop and sum into @1
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(5L);
+		int loopAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.JMP_SUB.value).putInt(0x0080);
+		codeByteBuffer.put(OpCode.DEC_DAT.value).putInt(0);
+		int branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BNZ_DAT.value).putInt(0).put((byte) (loopAddress - branchAddress));
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(5L);
+		int popLoopAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.POP_DAT.value).putInt(2);
+		codeByteBuffer.put(OpCode.ADD_DAT.value).putInt(1).putInt(2);
+		codeByteBuffer.put(OpCode.SLP_IMD.value);
+		codeByteBuffer.put(OpCode.DEC_DAT.value).putInt(0);
+		branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BNZ_DAT.value).putInt(0).put((byte) (popLoopAddress - branchAddress));
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		codeByteBuffer.position(0x0080);
+		codeByteBuffer.put(OpCode.PSH_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.SLP_IMD.value);
+		codeByteBuffer.put(OpCode.RET_SUB.value);
+
+		assertEquivalent(codeByteBuffer.array(), dataByteBuffer.array(), TestAPI.DEFAULT_INITIAL_BALANCE, ROUNDS * 3);
+
+		MachineState.setDefaultMemoryModel(MemoryModel.ARRAY);
+		execute(false);
+
+		assertTrue(state.isFinished());
+		assertFalse(state.hadFatalError());
+		assertEquals(15L, getData(1));
+		assertEquals(0, callStackSize);
+		assertEquals(0, userStackSize);
+	}
+
+	@Test
+	public void testStackBounds() throws ExecutionException {
+		// Overflow user stack
+		int loopAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.PSH_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.JMP_ADR.value).putInt(loopAddress);
+
+		assertFatalUnderBothModels(codeByteBuffer.array());
+
+		// Underflow call stack
+		codeByteBuffer.clear().put(new byte[codeByteBuffer.capacity()]).clear();
+		codeByteBuffer.put(OpCode.RET_SUB.value);
+
+		assertFatalUnderBothModels(codeByteBuffer.array());
+
+		// Overflow call stack
+		codeByteBuffer.clear().put(new byte[codeByteBuffer.capacity()]).clear();
+		codeByteBuffer.put(OpCode.JMP_SUB.value).putInt(0);
+
+		assertFatalUnderBothModels(codeByteBuffer.array());
+	}
+
+	@Test
+	public void testHashing() throws ExecutionException {
+		// Hash some data bytes, which ARRAY model has to extract from long[]
+		for (int i = 0; i < 8; ++i)
+			codeByteBuffer.put(OpCode.SET_VAL.value).putInt(i).putLong(0x0123456789abcdefL * (i + 1));
+
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(8).putLong(1L);
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(9).putLong(53L);
+		codeByteBuffer.put(OpCode.EXT_FUN_DAT_2.value).putShort(FunctionCode.SHA256_INTO_B.value).putInt(8).putInt(9);
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(9).putLong(3L);
+		codeByteBuffer.put(OpCode.EXT_FUN_DAT_2.value).putShort(FunctionCode.HASH160_INTO_B.value).putInt(8).putInt(9);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		assertEquivalent(codeByteBuffer.array(), dataByteBuffer.array(), TestAPI.DEFAULT_INITIAL_BALANCE, 1);
+	}
+
+	@Test
+	public void testSetMemoryModel() throws ExecutionException {
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(42L);
+		codeByteBuffer.put(OpCode.PSH_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.JMP_SUB.value).putInt(0x0040);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		codeByteBuffer.position(0x0040);
+		codeByteBuffer.put(OpCode.SLP_IMD.value);
+		codeByteBuffer.put(OpCode.RET_SUB.value);
+
+		TestAPI api = new TestAPI();
+		MachineState state = new MachineState(api, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+		state.execute();
+		assertTrue(state.isSleeping());
+
+		byte[] expectedBytes = state.toBytes();
+
+		state.setMemoryModel(MemoryModel.ARRAY);
+		assertEquals(MemoryModel.ARRAY, state.getMemoryModel());
+		assertArrayEquals(expectedBytes, state.toBytes());
+
+		state.setMemoryModel(MemoryModel.BYTE_BUFFER);
+		assertEquals(MemoryModel.BYTE_BUFFER, state.getMemoryModel());
+		assertArrayEquals(expectedBytes, state.toBytes());
+
+		state.setMemoryModel(MemoryModel.ARRAY);
+		api.bumpCurrentBlockHeight();
+		state.execute();
+
+		assertTrue(state.isFinished());
+		assertFalse(state.hadFatalError());
+		assertEquals(42L, state.popUserStack());
+	}
+
+	@Test
+	public void testRandomPrograms() throws ExecutionException {
+		Random random = new Random(0x5678L);
+
+		for (int program = 0; program < 200; ++program) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			long initialBalance = 100L + random.nextInt(5000);
+
+			assertEquivalent(codeBytes, dataBytes, initialBalance, ROUNDS);
+		}
+	}
+
+	private void assertFatalUnderBothModels(byte[] codeBytes) {
+		MachineState byteBufferState = newMachineState(new TestAPI(), codeBytes, dataByteBuffer.array());
+		byteBufferState.execute();
+
+		MachineState arrayState;
+		MachineState.setDefaultMemoryModel(MemoryModel.ARRAY);
+		try {
+			arrayState = newMachineState(new TestAPI(), codeBytes, dataByteBuffer.array());
+		} finally {
+			MachineState.setDefaultMemoryModel(MemoryModel.BYTE_BUFFER);
+		}
+		arrayState.execute();
+
+		assertTrue(byteBufferState.hadFatalError());
+		assertTrue(arrayState.hadFatalError());
+		assertEquals(byteBufferState.getSteps(), arrayState.getSteps());
+		assertArrayEquals(byteBufferState.toBytes(), arrayState.toBytes());
+	}
+
+	private static void assertEquivalent(byte[] codeBytes, byte[] dataBytes, long initialBalance, int rounds) {
+		TestAPI byteBufferApi = new TestAPI();
+		TestAPI arrayApi = new TestAPI();
+
+		byteBufferApi.setCurrentBalance(initialBalance);
+		arrayApi.setCurrentBalance(initialBalance);
+
+		try {
+			MachineState.setDefaultMemoryModel(MemoryModel.BYTE_BUFFER);
+			MachineState byteBufferState = newMachineState(byteBufferApi, codeBytes, dataBytes.clone());
+			MachineState.setDefaultMemoryModel(MemoryModel.ARRAY);
+			MachineState arrayState = newMachineState(arrayApi, codeBytes, dataBytes.clone());
+
+			new LockstepExecution(byteBufferApi, byteBufferState, arrayApi, arrayState) {
+				@Override
+				protected void assertRound(String description) {
+					assertEquals(description, MemoryModel.ARRAY, this.actualState.getMemoryModel());
+					super.assertRound(description);
+				}
+
+				@Override
+				protected void betweenRounds() {
+					super.betweenRounds();
+
+					// Round-trip through serialized form, as nodes would between blocks
+					MachineState.setDefaultMemoryModel(MemoryModel.BYTE_BUFFER);
+					this.expectedState = MachineState.fromBytes(this.expectedApi, new QuietLoggerFactory(), this.expectedState.toBytes(), codeBytes);
+					MachineState.setDefaultMemoryModel(MemoryModel.ARRAY);
+					this.actualState = MachineState.fromBytes(this.actualApi, new QuietLoggerFactory(), this.actualState.toBytes(), codeBytes);
+				}
+			}.run(rounds);
+		} finally {
+			MachineState.setDefaultMemoryModel(MemoryModel.BYTE_BUFFER);
+		}
+	}
+
+}
@@ -0,0 +1,208 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProgramCacheTests extends ExecutableTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Before
+	@After
+	public void clearProgramCache() {
+		Program.clearCache();
+	}
+
+	/** Programs loaded from file are already decoded, verified again, and execute exactly as freshly decoded programs */
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		final int atCount = 10;
+		Random random = new Random(0xcac4eL);
+		final int dataLength = TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE;
+
+		List<byte[]> codeBytesList = new ArrayList<>();
+		List<byte[]> stateBytesList = new ArrayList<>();
+		List<byte[]> expectedStateBytes = new ArrayList<>();
+		List<CodeVerifier.Result> expectedVerifications = new ArrayList<>();
+
+		for (int i = 0; i < atCount; ++i) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+			byte[] dataBytes = new byte[dataLength];
+			random.nextBytes(dataBytes);
+
+			MachineState state = new MachineState(new TestAPI(), new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes);
+			byte[] stateBytes = state.toBytes();
+			state.execute();
+
+			codeBytesList.add(codeBytes);
+			stateBytesList.add(stateBytes);
+			expectedStateBytes.add(state.toBytes());
+			expectedVerifications.add(Program.fromCodeBytes(codeBytes).getVerification(dataLength));
+		}
+
+		Path path = temporaryFolder.getRoot().toPath().resolve("programs.cache");
+		assertEquals(atCount, ProgramCache.save(path));
+
+		Program.clearCache();
+		assertEquals(atCount, ProgramCache.load(path));
+
+		for (int i = 0; i < atCount; ++i) {
+			Program program = Program.fromCodeBytes(codeBytesList.get(i));
+			assertNotNull("Program should already be decoded", program.peekDecodedProgram());
+
+			CodeVerifier.Result expectedVerification = expectedVerifications.get(i);
+			CodeVerifier.Result verification = program.peekDecodedProgram().getVerification(dataLength);
+			assertEquals(expectedVerification.isValid(), verification.isValid());
+			assertEquals(expectedVerification.getErrors(), verification.getErrors());
+
+			MachineState state = MachineState.fromBytes(new TestAPI(), new QuietLoggerFactory(), stateBytesList.get(i), program);
+			state.setExecutionEngine(ExecutionEngine.FAST);
+			state.execute();
+			assertArrayEquals("AT " + i, expectedStateBytes.get(i), state.toBytes());
+		}
+	}
+
+	@Test
+	public void testExecutionRoundsKept() throws IOException {
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		AtLogger logger = loggerFactory.create(ProgramCacheTests.class);
+
+		DecodedProgram decodedProgram = Program.fromCodeBytes(codeByteBuffer.array()).getDecodedProgram();
+		for (int round = 0; round < 3; ++round)
+			assertNull(decodedProgram.getCompiledProgram(5, logger));
+
+		Path path = temporaryFolder.getRoot().toPath().resolve("programs.cache");
+		ProgramCache.save(path);
+		Program.clearCache();
+		ProgramCache.load(path);
+
+		DecodedProgram loadedProgram = Program.fromCodeBytes(codeByteBuffer.array()).peekDecodedProgram();
+		assertNotSame(decodedProgram, loadedProgram);
+
+		// Only two more rounds needed to reach threshold
+		assertNull(loadedProgram.getCompiledProgram(5, logger));
+		assertNotNull(loadedProgram.getCompiledProgram(5, logger));
+	}
+
+	@Test
+	public void testMissingFile() throws IOException {
+		assertEquals(0, ProgramCache.load(temporaryFolder.getRoot().toPath().resolve("missing.cache")));
+	}
+
+	@Test
+	public void testStaleFingerprint() throws IOException {
+		Path path = savedCache();
+
+		byte[] fileBytes = Files.readAllBytes(path);
+		fileBytes[4] ^= 1; // engine fingerprint
+		Files.write(path, fileBytes);
+
+		Program.clearCache();
+		assertEquals(0, ProgramCache.load(path));
+		assertTrue(Program.getCachedPrograms().isEmpty());
+	}
+
+	@Test
+	public void testCorruptFile() throws IOException {
+		Path path = savedCache();
+		byte[] fileBytes = Files.readAllBytes(path);
+
+		// Flipped bit in body
+		byte[] corruptBytes = fileBytes.clone();
+		corruptBytes[fileBytes.length / 2] ^= 1;
+		assertLoadFails(path, corruptBytes);
+
+		// Truncated
+		assertLoadFails(path, Arrays.copyOf(fileBytes, fileBytes.length - 1));
+
+		// Not a cache file
+		corruptBytes = fileBytes.clone();
+		corruptBytes[0] ^= 1;
+		assertLoadFails(path, corruptBytes);
+	}
+
+	/** Decoded form that doesn't match code bytes is rejected, even with valid checksum */
+	@Test
+	public void testInconsistentDecodedForm() throws IOException {
+		Path path = savedCache();
+		byte[] fileBytes = Files.readAllBytes(path);
+
+		// Magic, fingerprint, program count, code hash, code length, code bytes, slot by program counter, instructions length
+		final int codeLength = codeByteBuffer.capacity();
+		final int instructionsOffset = 4 + 8 + 4 + 32 + 4 + codeLength + codeLength * 4 + 4;
+
+		// SET_VAL decoded as FIN_IMD
+		assertLoadFails(path, withChecksum(withInt(fileBytes, instructionsOffset, OpCode.FIN_IMD.ordinal())));
+
+		// SET_VAL's next program counter in middle of its value
+		assertLoadFails(path, withChecksum(withInt(fileBytes, instructionsOffset + 4, 6)));
+
+		// SET_VAL's value index out of range
+		assertLoadFails(path, withChecksum(withInt(fileBytes, instructionsOffset + 5 * 4, 1)));
+
+		// Unchanged, but with checksum recalculated, still loads
+		Files.write(path, withChecksum(fileBytes.clone()));
+		assertEquals(1, ProgramCache.load(path));
+	}
+
+	private static byte[] withInt(byte[] fileBytes, int offset, int value) {
+		byte[] bytes = fileBytes.clone();
+		ByteBuffer.wrap(bytes).putInt(offset, value);
+		return bytes;
+	}
+
+	/** Recalculates checksum, covering everything after magic, fingerprint and program count */
+	private static byte[] withChecksum(byte[] fileBytes) {
+		CRC32 crc = new CRC32();
+		crc.update(fileBytes, 16, fileBytes.length - 16 - 4);
+		ByteBuffer.wrap(fileBytes).putInt(fileBytes.length - 4, (int) crc.getValue());
+		return fileBytes;
+	}
+
+	private Path savedCache() throws IOException {
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(8888L);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+		Program.fromCodeBytes(codeByteBuffer.array()).getVerification(TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE);
+
+		Path path = temporaryFolder.getRoot().toPath().resolve("programs.cache");
+		assertEquals(1, ProgramCache.save(path));
+		return path;
+	}
+
+	private static void assertLoadFails(Path path, byte[] fileBytes) throws IOException {
+		Files.write(path, fileBytes);
+		Program.clearCache();
+
+		try {
+			ProgramCache.load(path);
+			fail("Loading corrupt program cache file should fail");
+		} catch (IOException e) {
+			// Expected
+		}
+
+		assertTrue(Program.getCachedPrograms().isEmpty());
+	}
+
+}
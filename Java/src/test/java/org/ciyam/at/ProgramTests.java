@@ -0,0 +1,154 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.Test;
+
+public class ProgramTests extends ExecutableTest {
+
+	@Test
+	public void testInterning() throws NoSuchAlgorithmException {
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(8888L);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		byte[] codeBytes = codeByteBuffer.array();
+
+		Program program1 = Program.fromCodeBytes(codeBytes.clone());
+		Program program2 = Program.fromCodeBytes(codeBytes.clone());
+
+		assertSame(program1, program2);
+		assertSame(program1.getDecodedProgram(), DecodedProgram.fromCodeBytes(codeByteBuffer));
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(codeBytes), program1.getCodeHash());
+
+		// Program has its own copy of code bytes
+		byte[] originalCodeBytes = codeBytes.clone();
+		codeBytes[1] = 1;
+		assertArrayEquals(originalCodeBytes, program1.getCodeBytes());
+
+		Program program3 = Program.fromCodeBytes(codeBytes);
+		assertNotSame(program1, program3);
+
+		// Returned copies can't modify program
+		program3.getCodeBytes()[1] = 2;
+		assertArrayEquals(codeBytes, program3.getCodeBytes());
+	}
+
+	@Test
+	public void testSharedAcrossStates() {
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.STP_IMD.value);
+
+		MachineState state = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+		byte[] stateBytes = state.toBytes();
+
+		MachineState state1 = MachineState.fromBytes(api, loggerFactory, stateBytes, codeByteBuffer.array().clone());
+		MachineState state2 = MachineState.fromBytes(api, loggerFactory, stateBytes, codeByteBuffer.array().clone());
+
+		assertSame(state1.getProgram(), state2.getProgram());
+		assertSame(state.getProgram(), state1.getProgram());
+
+		// Each state still has own program counter
+		state1.execute();
+		assertEquals(0, state2.codeByteBuffer.position());
+		assertEquals(1L, state1.dataByteBuffer.getLong(0));
+
+		state2.execute();
+		assertArrayEquals(state1.toBytes(), state2.toBytes());
+	}
+
+	@Test
+	public void testGetCodeBytesKeepsPosition() {
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.STP_IMD.value);
+
+		MachineState state = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+		state.codeByteBuffer.position(5);
+
+		assertArrayEquals(codeByteBuffer.array(), state.getCodeBytes());
+		assertEquals(5, state.codeByteBuffer.position());
+	}
+
+	@Test
+	public void testWrongCodeLength() {
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		MachineState state = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+		byte[] stateBytes = state.toBytes();
+
+		Program program = Program.fromCodeBytes(new byte[] { OpCode.FIN_IMD.value });
+
+		try {
+			MachineState.fromBytes(api, loggerFactory, stateBytes, program);
+			fail("Restoring with wrong code length should fail");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	/** Many threads executing ATs with same program give same results as executing them one after another */
+	@Test
+	public void testConcurrentExecution() throws InterruptedException, ExecutionException {
+		final int atCount = 64;
+		final int rounds = 5;
+		Random random = new Random(0x5eedL);
+
+		byte[] codeBytes = RandomPrograms.generate(random);
+		Program program = Program.fromCodeBytes(codeBytes);
+
+		List<byte[]> stateBytesList = new ArrayList<>();
+		for (int i = 0; i < atCount; ++i) {
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			MachineState state = new MachineState(new TestAPI(), new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes);
+			stateBytesList.add(state.toBytes());
+		}
+
+		List<byte[]> expectedStateBytes = new ArrayList<>();
+		for (byte[] stateBytes : stateBytesList)
+			expectedStateBytes.add(executeRounds(stateBytes, codeBytes.clone(), null, rounds));
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<byte[]>> futures = new ArrayList<>();
+			for (byte[] stateBytes : stateBytesList)
+				futures.add(executor.submit(() -> executeRounds(stateBytes, null, program, rounds)));
+
+			for (int i = 0; i < atCount; ++i)
+				assertArrayEquals("AT " + i, expectedStateBytes.get(i), futures.get(i).get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static byte[] executeRounds(byte[] stateBytes, byte[] codeBytes, Program program, int rounds) {
+		TestAPI testApi = new TestAPI();
+
+		for (int round = 0; round < rounds; ++round) {
+			MachineState state = program != null
+					? MachineState.fromBytes(testApi, new QuietLoggerFactory(), stateBytes, program)
+					: MachineState.fromBytes(testApi, new QuietLoggerFactory(), stateBytes, codeBytes);
+
+			state.execute();
+			stateBytes = state.toBytes();
+			testApi.bumpCurrentBlockHeight();
+		}
+
+		return stateBytes;
+	}
+
+}
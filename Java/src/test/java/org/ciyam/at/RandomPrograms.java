@@ -0,0 +1,90 @@
+package org.ciyam.at;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.ciyam.at.test.TestUtils;
+
+/** Generates random programs for equivalence tests between memory models, engines, etc. */
+public class RandomPrograms {
+
+	private RandomPrograms() {
+	}
+
+	/**
+	 * Returns code bytes for random, valid-ish program: occasional out-of-bounds data addresses,
+	 * but all jump/branch targets land on the start of an instruction.
+	 */
+	public static byte[] generate(Random random) {
+		final OpCode[] opCodes = {
+			OpCode.SET_VAL, OpCode.SET_DAT, OpCode.CLR_DAT, OpCode.INC_DAT, OpCode.DEC_DAT,
+			OpCode.ADD_DAT, OpCode.SUB_DAT, OpCode.MUL_DAT, OpCode.DIV_DAT, OpCode.BOR_DAT, OpCode.AND_DAT, OpCode.XOR_DAT, OpCode.NOT_DAT,
+			OpCode.MOD_DAT, OpCode.SHL_DAT, OpCode.SHR_DAT, OpCode.ADD_VAL, OpCode.SUB_VAL, OpCode.MUL_VAL, OpCode.DIV_VAL,
+			OpCode.PSH_DAT, OpCode.POP_DAT, OpCode.SET_IND, OpCode.IND_DAT, OpCode.SET_IDX, OpCode.IDX_DAT,
+			OpCode.JMP_ADR, OpCode.JMP_SUB, OpCode.RET_SUB, OpCode.BZR_DAT, OpCode.BNZ_DAT,
+			OpCode.BGT_DAT, OpCode.BLT_DAT, OpCode.BGE_DAT, OpCode.BLE_DAT, OpCode.BEQ_DAT, OpCode.BNE_DAT,
+			OpCode.SLP_IMD, OpCode.STP_IMD, OpCode.SET_PCS, OpCode.ERR_ADR, OpCode.NOP
+		};
+
+		final int codeLength = TestUtils.NUM_CODE_PAGES * MachineState.OPCODE_SIZE;
+		ByteBuffer codeByteBuffer = ByteBuffer.allocate(codeLength);
+
+		List<Integer> instructionAddresses = new ArrayList<>();
+		List<Integer> codeAddressPositions = new ArrayList<>();
+		List<Integer> offsetPositions = new ArrayList<>();
+
+		// Leave room for FIN_IMD and longest instruction
+		while (codeByteBuffer.position() < codeLength / 2) {
+			OpCode opCode = opCodes[random.nextInt(opCodes.length)];
+			instructionAddresses.add(codeByteBuffer.position());
+
+			codeByteBuffer.put(opCode.value);
+
+			for (OpCodeParam param : opCode.params) {
+				switch (param) {
+					case VALUE:
+						codeByteBuffer.putLong(random.nextInt(8) == 0 ? random.nextLong() : random.nextInt(20) - 3);
+						break;
+
+					case CODE_ADDR:
+						codeAddressPositions.add(codeByteBuffer.position());
+						codeByteBuffer.putInt(0);
+						break;
+
+					case OFFSET:
+						offsetPositions.add(codeByteBuffer.position());
+						codeByteBuffer.put((byte) 0);
+						break;
+
+					default:
+						// Data address, occasionally out of bounds
+						codeByteBuffer.putInt(random.nextInt(100) == 0 ? TestUtils.NUM_DATA_PAGES : random.nextInt(16));
+						break;
+				}
+			}
+		}
+
+		instructionAddresses.add(codeByteBuffer.position());
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		// Code targets must be instruction starts, as jumping to unknown opcodes after ERR_ADR loops forever without using steps
+		for (int position : codeAddressPositions)
+			codeByteBuffer.putInt(position, instructionAddresses.get(random.nextInt(instructionAddresses.size())));
+
+		for (int position : offsetPositions) {
+			int programCounter = instructionAddresses.stream().filter(address -> address < position).reduce((a, b) -> b).get();
+
+			int target;
+			do
+				target = instructionAddresses.get(random.nextInt(instructionAddresses.size()));
+			while (target - programCounter < Byte.MIN_VALUE || target - programCounter > Byte.MAX_VALUE);
+
+			codeByteBuffer.put(position, (byte) (target - programCounter));
+		}
+
+		return codeByteBuffer.array();
+	}
+
+}
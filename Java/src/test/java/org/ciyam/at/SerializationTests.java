@@ -3,9 +3,20 @@ package org.ciyam.at;
 import static org.ciyam.at.test.TestUtils.hexToBytes;
 import static org.junit.Assert.*;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
 
+import org.ciyam.at.MachineState.MemoryModel;
+import org.ciyam.at.MachineState.StateFormat;
 import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
 import org.ciyam.at.test.TestUtils;
 import org.junit.Test;
 
@@ -111,6 +122,409 @@ public class SerializationTests extends ExecutableTest {
 		restoredState = MachineState.fromBytes(api, loggerFactory, packedState, codeBytes);
 	}
 
+	/** Test V1 and V2 state formats hold identical states, and convert to each other. */
+	@Test
+	public void testStateFormats() {
+		Random random = new Random(0x5eedL);
+
+		for (int i = 0; i < 50; ++i) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			TestAPI testApi = new TestAPI();
+			MachineState state = new MachineState(testApi, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes);
+
+			for (int round = 0; round < 3; ++round) {
+				state.execute();
+
+				// Exercise optional values
+				if (round == 1) {
+					state.a2 = random.nextLong();
+					state.setIsFrozen(true);
+					state.setFrozenBalance(random.nextLong());
+				}
+
+				if (round == 2) {
+					state.b4 = random.nextLong();
+					state.setIsSleeping(true);
+					state.setSleepUntilHeight(random.nextInt());
+				}
+
+				assertStateFormatsEquivalent(state, codeBytes);
+
+				testApi.bumpCurrentBlockHeight();
+			}
+		}
+	}
+
+	@Test
+	public void testBulkStateFormatConversion() {
+		Random random = new Random(0xb01dL);
+
+		List<byte[]> v1States = new ArrayList<>();
+		for (int i = 0; i < 20; ++i) {
+			MachineState state = new MachineState(new TestAPI(), new QuietLoggerFactory(), TestUtils.HEADER_BYTES, RandomPrograms.generate(random), new byte[0]);
+			state.execute();
+			v1States.add(state.toBytes(StateFormat.V1));
+		}
+
+		List<byte[]> v2States = MachineState.convertStateFormat(v1States.stream(), StateFormat.V2).collect(Collectors.toList());
+		List<byte[]> roundTripStates = MachineState.convertStateFormat(v2States.stream(), StateFormat.V1).collect(Collectors.toList());
+
+		for (int i = 0; i < v1States.size(); ++i) {
+			assertEquals(StateFormat.V2, MachineState.getStateFormat(v2States.get(i)));
+			assertArrayEquals(v1States.get(i), roundTripStates.get(i));
+		}
+	}
+
+	@Test
+	public void testCompactStateFormat() {
+		// Mostly zero data segment with some small, negative and large values
+		dataByteBuffer.putLong(1 * MachineState.VALUE_SIZE, 1L);
+		dataByteBuffer.putLong(2 * MachineState.VALUE_SIZE, -2L);
+		dataByteBuffer.putLong(3 * MachineState.VALUE_SIZE, Long.MAX_VALUE);
+		dataByteBuffer.putLong(4 * MachineState.VALUE_SIZE, Long.MIN_VALUE);
+		dataByteBuffer.putLong(5 * MachineState.VALUE_SIZE, 0x00ffffffffffffffL);
+		dataByteBuffer.putLong(300 * MachineState.VALUE_SIZE, 1000000L);
+
+		codeByteBuffer.put(OpCode.PSH_DAT.value).putInt(3);
+		codeByteBuffer.put(OpCode.PSH_DAT.value).putInt(1);
+		codeByteBuffer.put(OpCode.JMP_SUB.value).putInt(codeByteBuffer.position() + 4);
+		codeByteBuffer.put(OpCode.STP_IMD.value);
+
+		byte[] codeBytes = codeByteBuffer.array();
+		state = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeBytes, dataByteBuffer.array());
+		state.execute();
+		assertTrue(state.isStopped());
+
+		byte[] v1Bytes = state.toBytes(StateFormat.V1);
+		byte[] compactBytes = state.toBytes(StateFormat.COMPACT);
+
+		assertTrue(compactBytes.length * 20 < v1Bytes.length);
+		assertStateFormatsEquivalent(state, codeBytes);
+
+		// Malformed compact state bytes
+		for (int length : new int[] { MachineState.HEADER_LENGTH, MachineState.HEADER_LENGTH + 3, compactBytes.length - 1 }) {
+			try {
+				MachineState.fromBytes(api, loggerFactory, Arrays.copyOf(compactBytes, length), codeBytes);
+				fail("Truncated compact state bytes should be rejected");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	/** Compact state encoded straight from, and decoded straight into, state's memory matches conversion from/to V1 */
+	@Test
+	public void testCompactInPlace() {
+		Random random = new Random(0xc0de5L);
+
+		for (int i = 0; i < 20; ++i) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			// Mostly zero, with some random values
+			for (int j = 0; j < 20; ++j)
+				dataBytes[random.nextInt(dataBytes.length)] = (byte) random.nextInt();
+
+			MachineState.setDefaultMemoryModel(i % 2 == 0 ? MemoryModel.BYTE_BUFFER : MemoryModel.ARRAY);
+			try {
+				TestAPI testApi = new TestAPI();
+				MachineState state = new MachineState(testApi, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes);
+
+				// Other state with stale, random, data segment and deeper stacks, to be overwritten in place
+				byte[] staleDataBytes = new byte[dataBytes.length];
+				random.nextBytes(staleDataBytes);
+				MachineState reusedState = new MachineState(new TestAPI(), new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, staleDataBytes);
+
+				for (int round = 0; round < 3; ++round) {
+					state.execute();
+					reusedState.execute();
+					reusedState.execute();
+
+					byte[] v1Bytes = state.toBytes(StateFormat.V1);
+					byte[] compactBytes = state.toBytes(StateFormat.COMPACT);
+					assertArrayEquals(MachineState.convertStateFormat(v1Bytes, StateFormat.COMPACT), compactBytes);
+
+					reusedState.reuseFromBytes(testApi, compactBytes);
+					assertArrayEquals(v1Bytes, reusedState.toBytes(StateFormat.V1));
+
+					// Lazily-read state encodes from V1 bytes
+					MachineState lazyState = MachineState.lazyFromBytes(testApi, new QuietLoggerFactory(), ByteBuffer.wrap(v1Bytes), codeBytes);
+					assertArrayEquals(compactBytes, lazyState.toBytes(StateFormat.COMPACT));
+
+					testApi.bumpCurrentBlockHeight();
+				}
+			} finally {
+				MachineState.setDefaultMemoryModel(MemoryModel.BYTE_BUFFER);
+			}
+		}
+	}
+
+	@Test
+	public void testWriteTo() {
+		Random random = new Random(0x3717eL);
+
+		for (int i = 0; i < 50; ++i) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			MachineState.setDefaultMemoryModel(i % 2 == 0 ? MemoryModel.BYTE_BUFFER : MemoryModel.ARRAY);
+			try {
+				TestAPI testApi = new TestAPI();
+				MachineState state = new MachineState(testApi, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes);
+
+				for (int round = 0; round < 3; ++round) {
+					state.execute();
+
+					for (StateFormat stateFormat : StateFormat.values())
+						assertWriteToMatchesToBytes(state, stateFormat);
+
+					testApi.bumpCurrentBlockHeight();
+				}
+			} finally {
+				MachineState.setDefaultMemoryModel(MemoryModel.BYTE_BUFFER);
+			}
+		}
+	}
+
+	private static void assertWriteToMatchesToBytes(MachineState state, StateFormat stateFormat) {
+		byte[] expectedBytes = state.toBytes(stateFormat);
+		assertEquals(expectedBytes.length, state.serializedSize(stateFormat));
+
+		final int offset = 3;
+
+		// Heap buffer, with other byte order, and direct buffer
+		for (ByteBuffer dst : List.of(ByteBuffer.allocate(offset + expectedBytes.length + 5).order(ByteOrder.LITTLE_ENDIAN), ByteBuffer.allocateDirect(offset + expectedBytes.length))) {
+			final ByteOrder byteOrder = dst.order();
+			dst.position(offset);
+
+			assertEquals(expectedBytes.length, state.writeTo(dst, stateFormat));
+			assertEquals(offset + expectedBytes.length, dst.position());
+			assertEquals(byteOrder, dst.order());
+
+			byte[] actualBytes = new byte[expectedBytes.length];
+			dst.position(offset);
+			dst.get(actualBytes);
+			assertArrayEquals(expectedBytes, actualBytes);
+		}
+
+		// Too small
+		ByteBuffer dst = ByteBuffer.allocate(expectedBytes.length - 1);
+		try {
+			state.writeTo(dst, stateFormat);
+			fail("Should throw BufferOverflowException");
+		} catch (BufferOverflowException e) {
+			assertEquals(0, dst.position());
+		}
+	}
+
+	@Test
+	public void testDefaultStateFormat() {
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+		state = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+
+		assertEquals(StateFormat.V1, MachineState.getDefaultStateFormat());
+		assertEquals(StateFormat.V1, MachineState.getStateFormat(state.toBytes()));
+
+		try {
+			MachineState.setDefaultStateFormat(StateFormat.V2);
+			assertEquals(StateFormat.V2, MachineState.getStateFormat(state.toBytes()));
+		} finally {
+			MachineState.setDefaultStateFormat(StateFormat.V1);
+		}
+	}
+
+	/** Test deltas, against previous round and against older snapshots, reproduce full state bytes. */
+	@Test
+	public void testDeltas() {
+		Random random = new Random(0xde17aL);
+
+		for (int i = 0; i < 50; ++i) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			MachineState.setDefaultMemoryModel(i % 4 < 2 ? MemoryModel.BYTE_BUFFER : MemoryModel.ARRAY);
+			try {
+				TestAPI testApi = new TestAPI();
+				MachineState state = new MachineState(testApi, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes);
+
+				final StateFormat stateFormat = i % 2 == 0 ? StateFormat.V1 : StateFormat.V2;
+				byte[] snapshotBytes = state.toBytes(stateFormat);
+				byte[] previousBytes = snapshotBytes;
+				List<byte[]> deltas = new ArrayList<>();
+
+				for (int round = 0; round < 8; ++round) {
+					state.execute();
+
+					if (round == 3)
+						state.a3 = random.nextLong();
+
+					byte[] stateBytes = state.toBytes(stateFormat);
+
+					// Chained from previous round
+					byte[] deltaBytes = state.toDeltaBytes(previousBytes);
+					byte[] appliedBytes = MachineState.applyDelta(previousBytes, deltaBytes);
+					assertArrayEquals("program " + i + ", round " + round, stateBytes, appliedBytes);
+
+					// Directly from periodic snapshot, older than restored-from state
+					assertArrayEquals(stateBytes, MachineState.applyDelta(snapshotBytes, state.toDeltaBytes(snapshotBytes)));
+
+					// From periodic snapshot, applying chain of deltas
+					deltas.add(deltaBytes);
+					byte[] chainedBytes = snapshotBytes;
+					for (byte[] delta : deltas)
+						chainedBytes = MachineState.applyDelta(chainedBytes, delta);
+					assertArrayEquals(stateBytes, chainedBytes);
+
+					// Restoring via delta, then carrying on with restored state, so deltas are from restored state's dirty pages
+					state = MachineState.fromBytes(testApi, new QuietLoggerFactory(), appliedBytes, codeBytes);
+					assertArrayEquals(stateBytes, state.toBytes(stateFormat));
+
+					previousBytes = appliedBytes;
+					testApi.setCurrentBalance(state.getCurrentBalance());
+					testApi.bumpCurrentBlockHeight();
+				}
+			} finally {
+				MachineState.setDefaultMemoryModel(MemoryModel.BYTE_BUFFER);
+			}
+		}
+	}
+
+	@Test
+	public void testDeltaSize() {
+		// Increment one counter per round
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(7);
+		codeByteBuffer.put(OpCode.STP_IMD.value);
+
+		state = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+		byte[] previousBytes = state.toBytes();
+
+		state.execute();
+		byte[] stateBytes = state.toBytes();
+		byte[] deltaBytes = state.toDeltaBytes(previousBytes);
+
+		assertTrue(deltaBytes.length * 10 < stateBytes.length);
+		assertArrayEquals(stateBytes, MachineState.applyDelta(previousBytes, deltaBytes));
+	}
+
+	/** Deltas from snapshots older than restored-from state include data written before restoring */
+	@Test
+	public void testDeltaFromOlderSnapshot() {
+		final int farAddress = 40;
+
+		// First round sets far-away word and flag, later rounds only increment @0
+		final int branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BNZ_DAT.value).putInt(1).put((byte) 0);
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(farAddress).putLong(7L);
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(1).putLong(1L);
+		codeByteBuffer.put(OpCode.STP_IMD.value);
+		final int laterRoundAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.STP_IMD.value);
+		codeByteBuffer.put(branchAddress + 1 + 4, (byte) (laterRoundAddress - branchAddress));
+
+		byte[] codeBytes = codeByteBuffer.array();
+		state = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeBytes, dataByteBuffer.array());
+		byte[] firstBytes = state.toBytes();
+
+		state.execute();
+		byte[] secondBytes = state.toBytes();
+		assertEquals(7L, state.getDataValue(farAddress * MachineState.VALUE_SIZE));
+
+		state = MachineState.fromBytes(api, loggerFactory, secondBytes, codeBytes);
+		api.bumpCurrentBlockHeight();
+		state.execute();
+		byte[] thirdBytes = state.toBytes();
+		assertFalse(state.getDirtyDataPages().get(farAddress * MachineState.VALUE_SIZE / state.getDataPageSize()));
+
+		// Restored-from state
+		assertArrayEquals(thirdBytes, MachineState.applyDelta(secondBytes, state.toDeltaBytes(secondBytes)));
+
+		// Older snapshot, from before far-away word was set
+		assertArrayEquals(thirdBytes, MachineState.applyDelta(firstBytes, state.toDeltaBytes(firstBytes)));
+	}
+
+	@Test
+	public void testDeltaWrongBase() {
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.STP_IMD.value);
+
+		state = new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+		byte[] firstBytes = state.toBytes();
+		state.execute();
+		byte[] secondBytes = state.toBytes();
+		state.execute();
+
+		byte[] deltaBytes = state.toDeltaBytes(secondBytes);
+
+		try {
+			MachineState.applyDelta(firstBytes, deltaBytes);
+			fail("Delta should be rejected for wrong base state");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+
+		try {
+			MachineState.applyDelta(secondBytes, Arrays.copyOf(deltaBytes, deltaBytes.length - 1));
+			fail("Truncated delta should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	private void assertStateFormatsEquivalent(MachineState state, byte[] codeBytes) {
+		byte[] v1Bytes = state.toBytes(StateFormat.V1);
+		byte[] v2Bytes = state.toBytes(StateFormat.V2);
+
+		assertEquals(StateFormat.V1, MachineState.getStateFormat(v1Bytes));
+		assertEquals(StateFormat.V2, MachineState.getStateFormat(v2Bytes));
+
+		assertArrayEquals(v2Bytes, MachineState.convertStateFormat(v1Bytes, StateFormat.V2));
+		assertArrayEquals(v1Bytes, MachineState.convertStateFormat(v2Bytes, StateFormat.V1));
+		assertSame(v1Bytes, MachineState.convertStateFormat(v1Bytes, StateFormat.V1));
+
+		byte[] compactBytes = state.toBytes(StateFormat.COMPACT);
+		assertEquals(StateFormat.COMPACT, MachineState.getStateFormat(compactBytes));
+		assertArrayEquals(compactBytes, MachineState.convertStateFormat(v2Bytes, StateFormat.COMPACT));
+		assertArrayEquals(v1Bytes, MachineState.convertStateFormat(compactBytes, StateFormat.V1));
+		assertArrayEquals(v2Bytes, MachineState.convertStateFormat(compactBytes, StateFormat.V2));
+
+		assertArrayEquals(MachineState.extractDataBytes(v1Bytes), MachineState.extractDataBytes(v2Bytes));
+		assertArrayEquals(MachineState.extractDataBytes(v1Bytes), MachineState.extractDataBytes(compactBytes));
+
+		for (MemoryModel memoryModel : MemoryModel.values()) {
+			MachineState.setDefaultMemoryModel(memoryModel);
+			try {
+				MachineState restoredState = MachineState.fromBytes(api, loggerFactory, v2Bytes, codeBytes);
+				assertArrayEquals(v1Bytes, restoredState.toBytes(StateFormat.V1));
+
+				restoredState.reuseFromBytes(api, v1Bytes);
+				assertArrayEquals(v2Bytes, restoredState.toBytes(StateFormat.V2));
+
+				restoredState = MachineState.fromBytes(api, loggerFactory, compactBytes, codeBytes);
+				assertArrayEquals(v1Bytes, restoredState.toBytes(StateFormat.V1));
+			} finally {
+				MachineState.setDefaultMemoryModel(MemoryModel.BYTE_BUFFER);
+			}
+		}
+
+		MachineState v1Flags = MachineState.flagsOnlyfromBytes(v1Bytes);
+		MachineState v2Flags = MachineState.flagsOnlyfromBytes(v2Bytes);
+		assertEquals(v1Flags.getFrozenBalance(), MachineState.flagsOnlyfromBytes(compactBytes).getFrozenBalance());
+		assertEquals(v1Flags.isSleeping(), v2Flags.isSleeping());
+		assertEquals(v1Flags.getSleepUntilHeight(), v2Flags.getSleepUntilHeight());
+		assertEquals(v1Flags.isFrozen(), v2Flags.isFrozen());
+		assertEquals(v1Flags.getFrozenBalance(), v2Flags.getFrozenBalance());
+		assertEquals(v1Flags.isFinished(), v2Flags.isFinished());
+		assertEquals(v1Flags.getProgramCounter(), v2Flags.getProgramCounter());
+		assertEquals(v1Flags.getOnErrorAddress(), v2Flags.getOnErrorAddress());
+		assertArrayEquals(new long[] { v1Flags.a1, v1Flags.a2, v1Flags.a3, v1Flags.a4, v1Flags.b1, v1Flags.b2, v1Flags.b3, v1Flags.b4 },
+				new long[] { v2Flags.a1, v2Flags.a2, v2Flags.a3, v2Flags.a4, v2Flags.b1, v2Flags.b2, v2Flags.b3, v2Flags.b4 });
+	}
+
 	private byte[] simulate() {
 		byte[] headerBytes = TestUtils.HEADER_BYTES;
 		byte[] codeBytes = codeByteBuffer.array();
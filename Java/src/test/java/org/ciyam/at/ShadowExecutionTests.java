@@ -0,0 +1,229 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShadowExecutionTests extends ExecutableTest {
+
+	/** Like reference engine, but INC_DAT at <tt>brokenProgramCounter</tt> increments twice */
+	private static class BrokenEngine implements ExecutionEngine {
+		private final int brokenProgramCounter;
+
+		public BrokenEngine(int brokenProgramCounter) {
+			this.brokenProgramCounter = brokenProgramCounter;
+		}
+
+		@Override
+		public String getName() {
+			return "broken";
+		}
+
+		@Override
+		public void run(MachineState state, long feePerStep, int maxSteps) {
+			while (state.isRunning()) {
+				final int programCounter = state.getProgramCounter();
+				OpCode nextOpCode = OpCode.valueOf(state.codeByteBuffer.get());
+
+				try {
+					if (!state.meterOpCode(state.getAPI().getOpCodeSteps(nextOpCode), feePerStep, maxSteps))
+						break;
+
+					nextOpCode.execute(state);
+
+					if (nextOpCode == OpCode.INC_DAT && programCounter == this.brokenProgramCounter)
+						state.setDataValue(0, state.getDataValue(0) + 1);
+
+					state.syncProgramCounter();
+				} catch (ExecutionException e) {
+					if (state.handleExecutionException(e))
+						break;
+				}
+
+				state.clearFirstOpCodeAfterSleeping();
+			}
+		}
+	}
+
+	private final List<ShadowExecution.Divergence> divergences = new ArrayList<>();
+
+	@Before
+	public void beforeShadowTest() {
+		divergences.clear();
+	}
+
+	@After
+	public void afterShadowTest() {
+		MachineState.setShadowExecution(null);
+	}
+
+	@Test
+	public void testInvalidSamplingRate() {
+		try {
+			new ShadowExecution(ExecutionEngine.REFERENCE, 1.5);
+			fail("Sampling rate above 1.0 should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testNoDivergence() {
+		ShadowExecution shadowExecution = new ShadowExecution(ExecutionEngine.FAST, 1.0, (state, divergence) -> divergences.add(divergence));
+		Random random = new Random(0x1357L);
+
+		for (int program = 0; program < 50; ++program) {
+			byte[] codeBytes = RandomPrograms.generate(random);
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			TestAPI plainApi = new TestAPI();
+			TestAPI shadowedApi = new TestAPI();
+
+			MachineState plainState = new MachineState(plainApi, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes.clone());
+			MachineState shadowedState = new MachineState(shadowedApi, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes.clone());
+
+			for (int round = 0; round < 4; ++round) {
+				MachineState.setShadowExecution(null);
+				plainState.execute();
+
+				MachineState.setShadowExecution(shadowExecution);
+				shadowedState.execute();
+
+				// Shadowing mustn't change actual outcome
+				assertEquals(plainState.getSteps(), shadowedState.getSteps());
+				assertArrayEquals(plainState.toBytes(), shadowedState.toBytes());
+
+				plainApi.setCurrentBalance(plainState.getCurrentBalance());
+				shadowedApi.setCurrentBalance(shadowedState.getCurrentBalance());
+				plainApi.bumpCurrentBlockHeight();
+				shadowedApi.bumpCurrentBlockHeight();
+			}
+		}
+
+		assertTrue(divergences.toString(), divergences.isEmpty());
+		assertEquals(0, shadowExecution.getDivergentRounds());
+		assertTrue(shadowExecution.getSampledRounds() > 0);
+	}
+
+	@Test
+	public void testSideEffectsOnlyOnce() throws ExecutionException {
+		// Pay 100 to creator, then finish
+		dataByteBuffer.putLong(100L);
+		codeByteBuffer.put(OpCode.EXT_FUN.value).putShort(FunctionCode.PUT_CREATOR_INTO_B.value);
+		codeByteBuffer.put(OpCode.EXT_FUN_DAT.value).putShort(FunctionCode.PAY_TO_ADDRESS_IN_B.value).putInt(0);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		ShadowExecution shadowExecution = new ShadowExecution(ExecutionEngine.FAST, 1.0, (state, divergence) -> divergences.add(divergence));
+		MachineState.setShadowExecution(shadowExecution);
+
+		final long initialCreatorBalance = api.accounts.get(TestAPI.AT_CREATOR_ADDRESS).balance;
+		final long initialBalance = api.accounts.get(TestAPI.AT_ADDRESS).balance;
+
+		execute(true);
+
+		assertTrue(state.isFinished());
+		assertTrue(divergences.toString(), divergences.isEmpty());
+		assertEquals(1, shadowExecution.getSampledRounds());
+
+		// Payment plus refund on finishing, each only once, so creator ends up with all of AT's balance less fees
+		assertEquals(initialCreatorBalance + initialBalance - state.getSteps() * api.getFeePerStep(), api.accounts.get(TestAPI.AT_CREATOR_ADDRESS).balance);
+	}
+
+	@Test
+	public void testDivergence() throws ExecutionException {
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(1).putLong(5L);
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		final int brokenProgramCounter = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.ADD_DAT.value).putInt(1).putInt(0);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		ExecutionEngine brokenEngine = new BrokenEngine(brokenProgramCounter);
+		ShadowExecution shadowExecution = new ShadowExecution(brokenEngine, 1.0, (state, divergence) -> divergences.add(divergence));
+		MachineState.setShadowExecution(shadowExecution);
+
+		execute(true);
+
+		// Actual execution is unaffected by broken shadow engine
+		assertTrue(state.isFinished());
+		assertEquals(2L, getData(0));
+		assertEquals(7L, getData(1));
+
+		assertEquals(1, divergences.size());
+		assertEquals(1, shadowExecution.getDivergentRounds());
+
+		ShadowExecution.Divergence divergence = divergences.get(0);
+		assertEquals(ExecutionEngine.REFERENCE, divergence.getEngine());
+		assertEquals(brokenEngine, divergence.getShadowEngine());
+		assertEquals(Integer.valueOf(brokenProgramCounter), divergence.getProgramCounter());
+	}
+
+	/** Shadow and bisection copies replay actual round's results, instead of calling API again */
+	@Test
+	public void testAPICallsOnlyOnce() throws ExecutionException {
+		final int[] platformCallCount = new int[1];
+		final int[] creatorCallCount = new int[1];
+
+		api = new TestAPI() {
+			@Override
+			public void platformSpecificPostCheckExecute(FunctionData functionData, MachineState state, short rawFunctionCode) throws ExecutionException {
+				super.platformSpecificPostCheckExecute(functionData, state, rawFunctionCode);
+				// Differs per call, so copies calling again would diverge
+				functionData.returnValue = (long) ++platformCallCount[0];
+			}
+
+			@Override
+			public void putCreatorAddressIntoB(MachineState state) {
+				++creatorCallCount[0];
+				super.putCreatorAddressIntoB(state);
+			}
+		};
+
+		codeByteBuffer.put(OpCode.EXT_FUN_RET.value).putShort((short) 0x0502).putInt(1);
+		codeByteBuffer.put(OpCode.EXT_FUN.value).putShort(FunctionCode.PUT_CREATOR_INTO_B.value);
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		final int brokenProgramCounter = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		ShadowExecution shadowExecution = new ShadowExecution(new BrokenEngine(brokenProgramCounter), 1.0, (state, divergence) -> divergences.add(divergence));
+		MachineState.setShadowExecution(shadowExecution);
+
+		execute(true);
+
+		assertTrue(state.isFinished());
+		assertEquals(2L, getData(0));
+		assertEquals(1L, getData(1));
+
+		// Divergence found by bisection, with each API call still only made by actual round
+		assertEquals(1, divergences.size());
+		assertEquals(Integer.valueOf(brokenProgramCounter), divergences.get(0).getProgramCounter());
+		assertEquals(1, platformCallCount[0]);
+		assertEquals(1, creatorCallCount[0]);
+	}
+
+	@Test
+	public void testShadowEngineNotSampled() throws ExecutionException {
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		ShadowExecution shadowExecution = new ShadowExecution(ExecutionEngine.REFERENCE, 1.0);
+		MachineState.setShadowExecution(shadowExecution);
+
+		execute(true);
+
+		assertTrue(state.isFinished());
+		assertEquals(0, shadowExecution.getSampledRounds());
+	}
+
+}
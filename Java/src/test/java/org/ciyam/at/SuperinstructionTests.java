@@ -0,0 +1,213 @@
+package org.ciyam.at;
+
+import static org.ciyam.at.test.LockstepExecution.newMachineState;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.LockstepExecution;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.Test;
+
+/**
+ * Checks superinstructions behave exactly as their separate instructions, including sleeping/freezing part-way through.
+ */
+public class SuperinstructionTests extends ExecutableTest {
+
+	/** API with varying opcode steps, configurable max steps and fee */
+	private static class MeteringAPI extends TestAPI {
+		private final int maxStepsPerRound;
+
+		public MeteringAPI(int maxStepsPerRound) {
+			this.maxStepsPerRound = maxStepsPerRound;
+		}
+
+		@Override
+		public int getMaxStepsPerRound() {
+			return this.maxStepsPerRound;
+		}
+
+		@Override
+		public int getOpCodeSteps(OpCode opcode) {
+			return 1 + opcode.value % 3;
+		}
+
+		@Override
+		public long getFeePerStep() {
+			return 2L;
+		}
+	}
+
+	@Test
+	public void testFusion() {
+		buildLoopProgram();
+
+		DecodedProgram decodedProgram = DecodedProgram.fromCodeBytes(codeByteBuffer);
+
+		int fusedCount = 0;
+		for (int programCounter = 0; programCounter < decodedProgram.getCodeLength(); ++programCounter) {
+			final int slot = decodedProgram.getSlot(programCounter);
+			if (slot == DecodedProgram.NOT_DECODED)
+				continue;
+
+			final int superinstruction = decodedProgram.getSuperinstruction(slot);
+			if (superinstruction == DecodedProgram.NO_SUPERINSTRUCTION)
+				continue;
+
+			++fusedCount;
+			assertTrue(decodedProgram.getBlockLength(slot) >= 2);
+			assertEquals(Superinstruction.values()[superinstruction].first, decodedProgram.getOpCode(slot));
+			assertEquals(Superinstruction.values()[superinstruction].second, decodedProgram.getOpCode(decodedProgram.getFollowingSlot(slot)));
+		}
+
+		assertEquals(Superinstruction.values().length, fusedCount);
+	}
+
+	@Test
+	public void testSleepBoundaries() {
+		buildLoopProgram();
+
+		// Opcodes cost up to 3 steps, so fewer max steps would never progress
+		for (int maxSteps = 3; maxSteps <= 60; ++maxSteps)
+			assertEquivalent(maxSteps, 100000L);
+	}
+
+	@Test
+	public void testFreezeBoundaries() {
+		buildLoopProgram();
+
+		for (long balance = 0; balance <= 400; ++balance)
+			assertEquivalent(TestAPI.MAX_STEPS_PER_ROUND, balance);
+	}
+
+	@Test
+	public void testCountFusablePairs() {
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(0).putLong(1L);
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(1).putLong(1L);
+		codeByteBuffer.put(OpCode.BEQ_DAT.value).putInt(0).putInt(1).put((byte) 0);
+
+		Map<String, Long> counts = OpCodeStatistics.countFusablePairs(Collections.singletonList(codeByteBuffer.array()));
+
+		assertEquals(Long.valueOf(1L), counts.get("SET_VAL+SET_VAL"));
+		assertEquals(Long.valueOf(1L), counts.get("SET_VAL+BEQ_DAT"));
+		assertEquals(2, counts.size());
+	}
+
+	/** Loop exercising every superinstruction, with values that take each branch both ways */
+	private void buildLoopProgram() {
+		// @0: loop counter, @1: limit, @2: scratch, @3: sum, @4: scratch
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(1).putLong(6L);
+
+		int loopAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.ADD_DAT.value).putInt(3).putInt(0);
+
+		// SET_VAL + BEQ_DAT: skip INC when counter is 2
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(2).putLong(2L);
+		int branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BEQ_DAT.value).putInt(0).putInt(2).put((byte) 0);
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(3);
+		patchBranch(branchAddress);
+
+		// SET_VAL + BNE_DAT: skip ADD unless counter is 3
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(2).putLong(3L);
+		branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BNE_DAT.value).putInt(0).putInt(2).put((byte) 0);
+		codeByteBuffer.put(OpCode.ADD_VAL.value).putInt(3).putLong(100L);
+		patchBranch(branchAddress);
+
+		// EXT_FUN_RET + BZR_DAT: A1 = counter, B1 = 3, skip MUL unless A == B
+		codeByteBuffer.put(OpCode.EXT_FUN_DAT.value).putShort(FunctionCode.SET_A1.value).putInt(0);
+		codeByteBuffer.put(OpCode.EXT_FUN_DAT.value).putShort(FunctionCode.SET_B1.value).putInt(2);
+		codeByteBuffer.put(OpCode.EXT_FUN_RET.value).putShort(FunctionCode.CHECK_A_EQUALS_B.value).putInt(2);
+		branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BZR_DAT.value).putInt(2).put((byte) 0);
+		codeByteBuffer.put(OpCode.MUL_VAL.value).putInt(3).putLong(3L);
+		patchBranch(branchAddress);
+
+		// EXT_FUN_RET + BNZ_DAT: skip DEC unless B is zero
+		codeByteBuffer.put(OpCode.EXT_FUN_RET.value).putShort(FunctionCode.CHECK_B_IS_ZERO.value).putInt(2);
+		branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BNZ_DAT.value).putInt(2).put((byte) 0);
+		codeByteBuffer.put(OpCode.DEC_DAT.value).putInt(3);
+		patchBranch(branchAddress);
+
+		// DEC_DAT + BNZ_DAT: inner count-down loop
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(2).putLong(3L);
+		int innerLoopAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(3);
+		codeByteBuffer.put(OpCode.DEC_DAT.value).putInt(2);
+		branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BNZ_DAT.value).putInt(2).put((byte) (innerLoopAddress - branchAddress));
+
+		// INC_DAT + BNE_DAT: skip SHL unless copy of counter reaches 4
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(2).putLong(4L);
+		codeByteBuffer.put(OpCode.SET_DAT.value).putInt(4).putInt(0);
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(4);
+		branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BNE_DAT.value).putInt(4).putInt(2).put((byte) 0);
+		codeByteBuffer.put(OpCode.ADD_DAT.value).putInt(3).putInt(3);
+		patchBranch(branchAddress);
+
+		// INC_DAT + BLT_DAT: inner counting loop
+		codeByteBuffer.put(OpCode.SET_VAL.value).putInt(4).putLong(0L);
+		innerLoopAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(3);
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(4);
+		branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BLT_DAT.value).putInt(4).putInt(2).put((byte) (innerLoopAddress - branchAddress));
+
+		// Main loop is too long for a branch
+		codeByteBuffer.put(OpCode.INC_DAT.value).putInt(0);
+		branchAddress = codeByteBuffer.position();
+		codeByteBuffer.put(OpCode.BGE_DAT.value).putInt(0).putInt(1).put((byte) 0);
+		codeByteBuffer.put(OpCode.JMP_ADR.value).putInt(loopAddress);
+		patchBranch(branchAddress);
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+	}
+
+	/** Sets offset of branch at <tt>branchAddress</tt>, which is the instruction's last byte, to jump to current position */
+	private void patchBranch(int branchAddress) {
+		final int offsetAddress = codeByteBuffer.get(branchAddress) == OpCode.BZR_DAT.value || codeByteBuffer.get(branchAddress) == OpCode.BNZ_DAT.value
+				? branchAddress + 5 : branchAddress + 9;
+		codeByteBuffer.put(offsetAddress, (byte) (codeByteBuffer.position() - branchAddress));
+	}
+
+	private void assertEquivalent(int maxSteps, long initialBalance) {
+		MeteringAPI referenceApi = new MeteringAPI(maxSteps);
+		MeteringAPI fastApi = new MeteringAPI(maxSteps);
+
+		referenceApi.setCurrentBalance(initialBalance);
+		fastApi.setCurrentBalance(initialBalance);
+
+		byte[] codeBytes = codeByteBuffer.array();
+		byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+
+		MachineState referenceState = newMachineState(referenceApi, codeBytes, dataBytes);
+		referenceState.setExecutionEngine(ExecutionEngine.REFERENCE);
+		MachineState fastState = newMachineState(fastApi, codeBytes, dataBytes);
+		fastState.setExecutionEngine(ExecutionEngine.FAST);
+
+		new LockstepExecution(referenceApi, referenceState, fastApi, fastState) {
+			@Override
+			protected void assertRound(String description) {
+				super.assertRound(String.format("max steps %d, balance %d, %s", maxSteps, initialBalance, description));
+			}
+
+			@Override
+			protected boolean isDone() {
+				return this.expectedState.isFinished() || this.expectedState.isFrozen();
+			}
+		}.run(1000);
+
+		if (initialBalance >= 100000L) {
+			assertTrue(fastState.isFinished());
+			assertFalse("max steps " + maxSteps, fastState.hadFatalError());
+			assertEquals(6L, ByteBuffer.wrap(fastState.toBytes()).getLong(MachineState.HEADER_LENGTH));
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+package org.ciyam.at;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ciyam.at.test.ExecutableTest;
+import org.ciyam.at.test.QuietLoggerFactory;
+import org.ciyam.at.test.TestAPI;
+import org.ciyam.at.test.TestUtils;
+import org.junit.Test;
+
+public class WakeIndexTests extends ExecutableTest {
+
+	@Test
+	public void testConditions() {
+		WakeIndex<String> wakeIndex = new WakeIndex<>();
+
+		codeByteBuffer.put(OpCode.FIN_IMD.value);
+
+		MachineState running = newState();
+		wakeIndex.update("running", running);
+
+		MachineState sleeping = newState();
+		sleeping.setIsSleeping(true);
+		sleeping.setSleepUntilHeight(20);
+		wakeIndex.update("sleeping", sleeping);
+
+		MachineState frozen = newState();
+		frozen.setIsFrozen(true);
+		frozen.setFrozenBalance(500L);
+		wakeIndex.update("frozen", frozen);
+
+		MachineState frozenAndSleeping = newState();
+		frozenAndSleeping.setIsFrozen(true);
+		frozenAndSleeping.setFrozenBalance(500L);
+		frozenAndSleeping.setIsSleeping(true);
+		frozenAndSleeping.setSleepUntilHeight(30);
+		wakeIndex.update("frozenAndSleeping", frozenAndSleeping);
+
+		MachineState finished = newState();
+		finished.setIsFinished(true);
+		wakeIndex.update("finished", finished);
+
+		assertEquals(4, wakeIndex.size());
+		assertFalse(wakeIndex.contains("finished"));
+
+		assertEquals(Collections.singleton("running"), wakeIndex.getATsToExecute(10));
+		assertEquals(Set.of("running", "sleeping"), wakeIndex.getATsToExecute(20));
+		assertEquals(Set.of("running", "sleeping"), wakeIndex.getATsToExecute(40));
+
+		// Balance must exceed frozen balance
+		wakeIndex.onBalanceChanged("frozen", 500L);
+		wakeIndex.onBalanceChanged("frozenAndSleeping", 500L);
+		assertEquals(Set.of("running", "sleeping"), wakeIndex.getATsToExecute(40));
+
+		wakeIndex.onBalanceChanged("frozen", 501L);
+		wakeIndex.onBalanceChanged("frozenAndSleeping", 501L);
+		assertEquals(Set.of("running", "frozen"), wakeIndex.getATsToExecute(10));
+		assertEquals(Set.of("running", "sleeping", "frozen"), wakeIndex.getATsToExecute(20));
+		assertEquals(Set.of("running", "sleeping", "frozen", "frozenAndSleeping"), wakeIndex.getATsToExecute(30));
+
+		// Re-executed AT replaces previous condition
+		wakeIndex.update("sleeping", finished);
+		wakeIndex.remove("frozen");
+		assertEquals(Set.of("running", "frozenAndSleeping"), wakeIndex.getATsToExecute(30));
+		assertEquals(2, wakeIndex.size());
+	}
+
+	@Test
+	public void testFromBytes() {
+		codeByteBuffer.put(OpCode.SLP_IMD.value).put(OpCode.FIN_IMD.value);
+
+		MachineState state = newState();
+		state.execute();
+		assertTrue(state.isSleeping());
+
+		final int wakeHeight = state.getSleepUntilHeight();
+
+		WakeIndex<Integer> wakeIndex = new WakeIndex<>();
+		wakeIndex.update(1, state.toBytes());
+
+		assertTrue(wakeIndex.getATsToExecute(wakeHeight - 1).isEmpty());
+		assertEquals(Collections.singleton(1), wakeIndex.getATsToExecute(wakeHeight));
+	}
+
+	/** Executing only indexed ATs gives same results as executing every AT every block */
+	@Test
+	public void testMatchesExecutingAll() {
+		final int atCount = 40;
+		Random random = new Random(0x3141L);
+
+		List<MachineState> allStates = new ArrayList<>();
+		List<MachineState> indexedStates = new ArrayList<>();
+		WakeIndex<Integer> wakeIndex = new WakeIndex<>();
+
+		for (int i = 0; i < atCount; ++i) {
+			byte[] codeBytes;
+			switch (i % 4) {
+				case 0:
+					codeBytes = sleepingProgram();
+					break;
+
+				case 1:
+					codeBytes = spinningProgram();
+					break;
+
+				default:
+					codeBytes = RandomPrograms.generate(random);
+					break;
+			}
+
+			byte[] dataBytes = new byte[TestUtils.NUM_DATA_PAGES * MachineState.VALUE_SIZE];
+			random.nextBytes(dataBytes);
+
+			final long initialBalance = 200L + random.nextInt(2000);
+
+			for (List<MachineState> states : List.of(allStates, indexedStates)) {
+				TestAPI api = new TestAPI();
+				api.setCurrentBalance(initialBalance);
+				states.add(new MachineState(api, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes.clone()));
+			}
+
+			wakeIndex.update(i, indexedStates.get(i));
+		}
+
+		long indexedRoundCount = 0;
+		int blockHeight = ((TestAPI) allStates.get(0).getAPI()).getCurrentBlockHeight();
+
+		for (int block = 0; block < 60; ++block) {
+			for (MachineState state : allStates)
+				state.execute();
+
+			Set<Integer> dueIndexes = wakeIndex.getATsToExecute(blockHeight);
+			for (int i = 0; i < atCount; ++i) {
+				if (!dueIndexes.contains(i))
+					continue;
+
+				indexedStates.get(i).execute();
+				wakeIndex.update(i, indexedStates.get(i));
+				++indexedRoundCount;
+			}
+
+			++blockHeight;
+
+			for (int i = 0; i < atCount; ++i) {
+				MachineState allState = allStates.get(i);
+				MachineState indexedState = indexedStates.get(i);
+				assertArrayEquals("AT " + i + ", block " + block, allState.toBytes(), indexedState.toBytes());
+
+				// Skipped ATs' current balance is stale, so use API's
+				TestAPI allApi = (TestAPI) allState.getAPI();
+				TestAPI indexedApi = (TestAPI) indexedState.getAPI();
+				final long allBalance = allState.getCurrentBalance();
+				final long indexedBalance = dueIndexes.contains(i) ? indexedState.getCurrentBalance() : indexedApi.getCurrentBalance(indexedState);
+				assertEquals("AT " + i + ", block " + block, allBalance, indexedBalance);
+
+				// Occasional payments to AT
+				final long payment = random.nextInt(10) == 0 ? random.nextInt(600) : 0L;
+
+				allApi.setCurrentBalance(allBalance + payment);
+				indexedApi.setCurrentBalance(indexedBalance + payment);
+				allApi.bumpCurrentBlockHeight();
+				indexedApi.bumpCurrentBlockHeight();
+
+				wakeIndex.onBalanceChanged(i, indexedBalance + payment);
+			}
+		}
+
+		assertTrue(indexedRoundCount < 60L * atCount);
+	}
+
+	/** Sleeps until next block, then loops */
+	private static byte[] sleepingProgram() {
+		ByteBuffer codeBytes = ByteBuffer.allocate(TestUtils.NUM_CODE_PAGES * MachineState.OPCODE_SIZE);
+
+		codeBytes.put(OpCode.INC_DAT.value).putInt(0);
+		codeBytes.put(OpCode.SLP_IMD.value);
+		codeBytes.put(OpCode.JMP_ADR.value).putInt(0);
+
+		return codeBytes.array();
+	}
+
+	/** Loops until frozen due to lack of funds */
+	private static byte[] spinningProgram() {
+		ByteBuffer codeBytes = ByteBuffer.allocate(TestUtils.NUM_CODE_PAGES * MachineState.OPCODE_SIZE);
+
+		codeBytes.put(OpCode.INC_DAT.value).putInt(1);
+		codeBytes.put(OpCode.JMP_ADR.value).putInt(0);
+
+		return codeBytes.array();
+	}
+
+	private MachineState newState() {
+		return new MachineState(api, loggerFactory, TestUtils.HEADER_BYTES, codeByteBuffer.array(), dataByteBuffer.array());
+	}
+
+}
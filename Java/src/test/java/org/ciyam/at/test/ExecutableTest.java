@@ -27,6 +27,7 @@ public abstract class ExecutableTest {
 
 	@BeforeClass
 	public static void beforeClass() {
+		// For JCE RIPE-MD160, to check built-in implementation against
 		Security.insertProviderAt(new BouncyCastleProvider(), 0);
 	}
 
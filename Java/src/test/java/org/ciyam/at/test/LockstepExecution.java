@@ -0,0 +1,87 @@
+package org.ciyam.at.test;
+
+import static org.junit.Assert.*;
+
+import org.ciyam.at.MachineState;
+
+/**
+ * Executes two MachineStates, with the same code and data, round by round in lockstep,
+ * e.g. under different execution engines or memory models.
+ * <p>
+ * After every round, steps, balance, program counter and serialized state must match exactly.
+ * Between rounds, each API's balance is updated from its state and block height is bumped.
+ * <p>
+ * Override hooks to vary how each side is executed, add checks, or e.g. round-trip states through serialized form.
+ */
+public class LockstepExecution {
+
+	public final TestAPI expectedApi;
+	public final TestAPI actualApi;
+	public MachineState expectedState;
+	public MachineState actualState;
+
+	/** States must have been created using APIs, e.g. using {@link #newMachineState(TestAPI, byte[], byte[])} */
+	public LockstepExecution(TestAPI expectedApi, MachineState expectedState, TestAPI actualApi, MachineState actualState) {
+		this.expectedApi = expectedApi;
+		this.expectedState = expectedState;
+		this.actualApi = actualApi;
+		this.actualState = actualState;
+	}
+
+	/** Returns new MachineState, using test header, that doesn't log */
+	public static MachineState newMachineState(TestAPI api, byte[] codeBytes, byte[] dataBytes) {
+		return new MachineState(api, new QuietLoggerFactory(), TestUtils.HEADER_BYTES, codeBytes, dataBytes);
+	}
+
+	/**
+	 * Executes up to <tt>maxRounds</tt> rounds, checking states match after each.
+	 *
+	 * @return number of rounds executed
+	 */
+	public int run(int maxRounds) {
+		int round = 0;
+
+		while (round < maxRounds) {
+			this.execute(this.expectedState, false);
+			this.execute(this.actualState, true);
+
+			this.assertRound(String.format("round %d", round));
+			++round;
+
+			if (this.isDone())
+				break;
+
+			this.betweenRounds();
+		}
+
+		return round;
+	}
+
+	/** Executes one round of <tt>state</tt>, which is the actual state if <tt>isActual</tt> */
+	protected void execute(MachineState state, boolean isActual) {
+		state.execute();
+	}
+
+	/** Checks states match after a round */
+	protected void assertRound(String description) {
+		assertEquals(description, this.expectedState.getSteps(), this.actualState.getSteps());
+		assertEquals(description, this.expectedState.getCurrentBalance(), this.actualState.getCurrentBalance());
+		assertEquals(description, this.expectedState.getProgramCounter(), this.actualState.getProgramCounter());
+		assertArrayEquals(description, this.expectedState.toBytes(), this.actualState.toBytes());
+	}
+
+	/** Returns whether to stop before executing the next round, e.g. because expected state has finished */
+	protected boolean isDone() {
+		return false;
+	}
+
+	/** Prepares APIs, and optionally states, for next round */
+	protected void betweenRounds() {
+		this.expectedApi.setCurrentBalance(this.expectedState.getCurrentBalance());
+		this.actualApi.setCurrentBalance(this.actualState.getCurrentBalance());
+
+		this.expectedApi.bumpCurrentBlockHeight();
+		this.actualApi.bumpCurrentBlockHeight();
+	}
+
+}
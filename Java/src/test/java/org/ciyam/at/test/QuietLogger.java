@@ -0,0 +1,39 @@
+package org.ciyam.at.test;
+
+import java.util.function.Supplier;
+
+import org.ciyam.at.AtLogger;
+
+/** Logger that discards everything, for allocation tests and benchmarks. */
+public class QuietLogger implements AtLogger {
+
+	@Override
+	public void error(String message) {
+	}
+
+	@Override
+	public void error(Supplier<String> messageSupplier) {
+	}
+
+	@Override
+	public void debug(String message) {
+	}
+
+	@Override
+	public void debug(Supplier<String> messageSupplier) {
+	}
+
+	@Override
+	public boolean isDebugEnabled() {
+		return false;
+	}
+
+	@Override
+	public void echo(String message) {
+	}
+
+	@Override
+	public void echo(Supplier<String> messageSupplier) {
+	}
+
+}
@@ -0,0 +1,13 @@
+package org.ciyam.at.test;
+
+import org.ciyam.at.AtLogger;
+import org.ciyam.at.AtLoggerFactory;
+
+public class QuietLoggerFactory implements AtLoggerFactory {
+
+	@Override
+	public AtLogger create(Class<?> loggerName) {
+		return new QuietLogger();
+	}
+
+}